@@ -20,7 +20,10 @@ import org.mariotaku.gallery3d.R;
 import org.mariotaku.gallery3d.common.ApiHelper;
 import org.mariotaku.gallery3d.data.BitmapPool;
 import org.mariotaku.gallery3d.data.DataManager;
+import org.mariotaku.gallery3d.data.DecodeCostModel;
+import org.mariotaku.gallery3d.data.DownloadCache;
 import org.mariotaku.gallery3d.data.MediaItem;
+import org.mariotaku.gallery3d.data.RegionDecoderCache;
 import org.mariotaku.gallery3d.ui.GLRoot;
 import org.mariotaku.gallery3d.ui.GLRootView;
 import org.mariotaku.gallery3d.util.ThreadPool;
@@ -73,6 +76,14 @@ public class AbstractGalleryActivity extends Activity implements GalleryContext
 		return ((GalleryApp) getApplication()).getDataManager();
 	}
 
+	public DecodeCostModel getDecodeCostModel() {
+		return ((GalleryApp) getApplication()).getDecodeCostModel();
+	}
+
+	public DownloadCache getDownloadCache() {
+		return ((GalleryApp) getApplication()).getDownloadCache();
+	}
+
 	public GalleryActionBar getGalleryActionBar() {
 		if (mActionBar == null) {
 			mActionBar = new GalleryActionBar(this);
@@ -88,6 +99,10 @@ public class AbstractGalleryActivity extends Activity implements GalleryContext
 		return mOrientationManager;
 	}
 
+	public RegionDecoderCache getRegionDecoderCache() {
+		return ((GalleryApp) getApplication()).getRegionDecoderCache();
+	}
+
 	public synchronized StateManager getStateManager() {
 		if (mStateManager == null) {
 			mStateManager = new StateManager(this);
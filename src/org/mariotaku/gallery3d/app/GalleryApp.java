@@ -17,8 +17,10 @@
 package org.mariotaku.gallery3d.app;
 
 import org.mariotaku.gallery3d.data.DataManager;
+import org.mariotaku.gallery3d.data.DecodeCostModel;
 import org.mariotaku.gallery3d.data.DownloadCache;
 import org.mariotaku.gallery3d.data.ImageCacheService;
+import org.mariotaku.gallery3d.data.RegionDecoderCache;
 import org.mariotaku.gallery3d.util.ThreadPool;
 
 import android.content.ContentResolver;
@@ -33,12 +35,16 @@ public interface GalleryApp {
 
 	public DataManager getDataManager();
 
+	public DecodeCostModel getDecodeCostModel();
+
 	public DownloadCache getDownloadCache();
 
 	public ImageCacheService getImageCacheService();
 
 	public Looper getMainLooper();
 
+	public RegionDecoderCache getRegionDecoderCache();
+
 	public Resources getResources();
 
 	public ThreadPool getThreadPool();
@@ -18,26 +18,44 @@ package org.mariotaku.gallery3d.app;
 
 import java.io.File;
 
+import org.mariotaku.gallery3d.common.ApiHelper;
+import org.mariotaku.gallery3d.common.Utils;
 import org.mariotaku.gallery3d.data.DataManager;
+import org.mariotaku.gallery3d.data.DecodeCostModel;
+import org.mariotaku.gallery3d.data.DecodeUtils;
 import org.mariotaku.gallery3d.data.DownloadCache;
+import org.mariotaku.gallery3d.data.HttpDownloadTransport;
 import org.mariotaku.gallery3d.data.ImageCacheService;
+import org.mariotaku.gallery3d.data.RegionDecoderCache;
+import org.mariotaku.gallery3d.ui.TileImageView;
 import org.mariotaku.gallery3d.util.GalleryUtils;
 import org.mariotaku.gallery3d.util.ThreadPool;
 
 import android.app.Application;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.AsyncTask;
+import android.preference.PreferenceManager;
 
-public class GalleryAppImpl extends Application implements GalleryApp {
+public class GalleryAppImpl extends Application implements GalleryApp, OnSharedPreferenceChangeListener {
+
+	// Whether hot downloads may be rewritten as WebP, see
+	// DownloadCache.setTranscodeEnabled(). Off unless the user turns it on.
+	public static final String KEY_TRANSCODE_DOWNLOADS = "transcode-downloads";
 
 	private static final String DOWNLOAD_FOLDER = "download";
 	private static final long DOWNLOAD_CAPACITY = 64 * 1024 * 1024; // 64M
+	private static final long REGION_DECODER_CAPACITY = 24 * 1024 * 1024; // 24M
+	private static final String DECODE_COST_FILE = "decode_cost";
 
 	private ImageCacheService mImageCacheService;
 	private final Object mLock = new Object();
 	private DataManager mDataManager;
 	private ThreadPool mThreadPool;
 	private DownloadCache mDownloadCache;
+	private RegionDecoderCache mRegionDecoderCache;
+	private DecodeCostModel mDecodeCostModel;
 
 	@Override
 	public Context getAndroidContext() {
@@ -53,6 +71,14 @@ public class GalleryAppImpl extends Application implements GalleryApp {
 		return mDataManager;
 	}
 
+	@Override
+	public synchronized DecodeCostModel getDecodeCostModel() {
+		if (mDecodeCostModel == null) {
+			mDecodeCostModel = new DecodeCostModel(new File(getCacheDir(), DECODE_COST_FILE));
+		}
+		return mDecodeCostModel;
+	}
+
 	@Override
 	public synchronized DownloadCache getDownloadCache() {
 		if (mDownloadCache == null) {
@@ -63,7 +89,13 @@ public class GalleryAppImpl extends Application implements GalleryApp {
 			}
 
 			if (!cacheDir.isDirectory()) throw new RuntimeException("fail to create: " + cacheDir.getAbsolutePath());
-			mDownloadCache = new DownloadCache(this, cacheDir, DOWNLOAD_CAPACITY);
+			final HttpDownloadTransport transport = new HttpDownloadTransport(Utils.getUserAgent(this));
+			transport.setAcceptWebp(ApiHelper.HAS_WEBP_DECODING);
+			mDownloadCache = new DownloadCache(this, cacheDir, DOWNLOAD_CAPACITY, transport);
+			final SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(this);
+			mDownloadCache.setTranscodeEnabled(pref.getBoolean(KEY_TRANSCODE_DOWNLOADS, false));
+			pref.registerOnSharedPreferenceChangeListener(this);
+			mDownloadCache.setTilePyramidSize(TileImageView.getTileSize(this), TileImageView.getTileBorder());
 		}
 		return mDownloadCache;
 	}
@@ -79,6 +111,14 @@ public class GalleryAppImpl extends Application implements GalleryApp {
 		}
 	}
 
+	@Override
+	public synchronized RegionDecoderCache getRegionDecoderCache() {
+		if (mRegionDecoderCache == null) {
+			mRegionDecoderCache = new RegionDecoderCache(REGION_DECODER_CAPACITY);
+		}
+		return mRegionDecoderCache;
+	}
+
 	@Override
 	public synchronized ThreadPool getThreadPool() {
 		if (mThreadPool == null) {
@@ -92,7 +132,30 @@ public class GalleryAppImpl extends Application implements GalleryApp {
 		super.onCreate();
 		initializeAsyncTask();
 		GalleryUtils.initialize(this);
+		DecodeUtils.setCostModel(getDecodeCostModel());
+	}
 
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		getRegionDecoderCache().clear();
+	}
+
+	@Override
+	public synchronized void onSharedPreferenceChanged(final SharedPreferences pref, final String key) {
+		if (KEY_TRANSCODE_DOWNLOADS.equals(key) && mDownloadCache != null) {
+			mDownloadCache.setTranscodeEnabled(pref.getBoolean(KEY_TRANSCODE_DOWNLOADS, false));
+		}
+	}
+
+	@Override
+	public void onTrimMemory(final int level) {
+		super.onTrimMemory(level);
+		getRegionDecoderCache().trimMemory(level);
+		if (level >= TRIM_MEMORY_UI_HIDDEN) {
+			// Keep what was learned in case the process goes away.
+			getDecodeCostModel().save();
+		}
 	}
 
 	private void initializeAsyncTask() {
@@ -23,9 +23,12 @@ import java.util.HashSet;
 import org.mariotaku.gallery3d.common.BitmapUtils;
 import org.mariotaku.gallery3d.common.Utils;
 import org.mariotaku.gallery3d.data.BitmapPool;
+import org.mariotaku.gallery3d.data.DecodeCostModel;
+import org.mariotaku.gallery3d.data.LargeImageJob;
 import org.mariotaku.gallery3d.data.MediaItem;
 import org.mariotaku.gallery3d.data.MediaObject;
 import org.mariotaku.gallery3d.data.Path;
+import org.mariotaku.gallery3d.data.RegionDecoderCache;
 import org.mariotaku.gallery3d.ui.PhotoView;
 import org.mariotaku.gallery3d.ui.ScreenNail;
 import org.mariotaku.gallery3d.ui.SynchronizedHandler;
@@ -57,30 +60,8 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 	private static final int SCREEN_NAIL_MAX = PhotoView.SCREEN_NAIL_MAX;
 	private static final int IMAGE_CACHE_SIZE = 2 * SCREEN_NAIL_MAX + 1;
 
-	private static final int BIT_SCREEN_NAIL = 1;
-	private static final int BIT_FULL_IMAGE = 2;
-
-	// sImageFetchSeq is the fetching sequence for images.
-	// We want to fetch the current screennail first (offset = 0), the next
-	// screennail (offset = +1), then the previous screennail (offset = -1) etc.
-	// After all the screennail are fetched, we fetch the full images (only some
-	// of them because of we don't want to use too much memory).
-	private static ImageFetch[] sImageFetchSeq;
-
-	static {
-		int k = 0;
-		sImageFetchSeq = new ImageFetch[1 + (IMAGE_CACHE_SIZE - 1) * 2 + 3];
-		sImageFetchSeq[k++] = new ImageFetch(0, BIT_SCREEN_NAIL);
-
-		for (int i = 1; i < IMAGE_CACHE_SIZE; ++i) {
-			sImageFetchSeq[k++] = new ImageFetch(i, BIT_SCREEN_NAIL);
-			sImageFetchSeq[k++] = new ImageFetch(-i, BIT_SCREEN_NAIL);
-		}
-
-		sImageFetchSeq[k++] = new ImageFetch(0, BIT_FULL_IMAGE);
-		sImageFetchSeq[k++] = new ImageFetch(1, BIT_FULL_IMAGE);
-		sImageFetchSeq[k++] = new ImageFetch(-1, BIT_FULL_IMAGE);
-	}
+	static final int BIT_SCREEN_NAIL = 1;
+	static final int BIT_FULL_IMAGE = 2;
 
 	private final TileImageViewAdapter mTileProvider = new TileImageViewAdapter();
 
@@ -123,6 +104,8 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 	private final Handler mMainHandler;
 
 	private final ThreadPool mThreadPool;
+	private final RegionDecoderCache mRegionDecoderCache;
+	private final DecodeCostModel mDecodeCostModel;
 	private final PhotoView mPhotoView;
 
 	private ReloadTask mReloadTask;
@@ -135,6 +118,32 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 
 	private final TiledTexture.Uploader mUploader;
 
+	// mPrefetchController gives the fetching sequence for images. We want to
+	// fetch the current screennail first (offset = 0), the next screennail
+	// (offset = +1), then the previous screennail (offset = -1) etc. After all
+	// the screennail are fetched, we fetch the full images (only some of them
+	// because of we don't want to use too much memory). On a slow link, fewer
+	// neighbours are prefetched and the current full image comes first.
+	private final PrefetchController mPrefetchController;
+	private final PrefetchController.SizeEstimator mSizeEstimator = new PrefetchController.SizeEstimator() {
+		@Override
+		public long getEstimatedBytes(final int offset) {
+			final MediaItem item = getItemInternal(mCurrentIndex + offset);
+			if (item == null) return PrefetchController.NO_ITEM;
+			final long bytes = item.getPendingDownloadBytes();
+			return bytes < 0 ? PrefetchController.UNKNOWN_SIZE : bytes;
+		}
+
+		@Override
+		public float getEstimatedDecodeMillis(final int offset) {
+			final MediaItem item = getItemInternal(mCurrentIndex + offset);
+			if (item == null) return 0;
+			final long pixels = (long) item.getWidth() * item.getHeight();
+			return Math.max(0, mDecodeCostModel.estimateMillis(item.getMimeType(), DecodeCostModel.OP_DECODE,
+					pixels, 0, item.getSize()));
+		}
+	};
+
 	// The path of the current viewing item will be stored in mItemPath.
 	// If mItemPath is not null, mCurrentIndex is only a hint for where we
 	// can find the item. If mItemPath is null, then we use the mCurrentIndex to
@@ -146,11 +155,15 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 		mItemPath = Utils.checkNotNull(itemPath);
 		mCurrentIndex = indexHint;
 		mThreadPool = activity.getThreadPool();
+		mRegionDecoderCache = activity.getRegionDecoderCache();
+		mDecodeCostModel = activity.getDecodeCostModel();
 		mNeedFullImage = true;
 
 		Arrays.fill(mChanges, MediaObject.INVALID_DATA_VERSION);
 
 		mUploader = new TiledTexture.Uploader(activity.getGLRoot());
+		mPrefetchController = new PrefetchController(activity.getDownloadCache().getThroughputEstimator(),
+				IMAGE_CACHE_SIZE - 1);
 
 		mMainHandler = new SynchronizedHandler(activity.getGLRoot()) {
 			@Override
@@ -189,6 +202,11 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 		return mCurrentIndex;
 	}
 
+	@Override
+	public int getFirstLevel() {
+		return mTileProvider.getFirstLevel();
+	}
+
 	@Override
 	public int getImageHeight() {
 		return mTileProvider.getImageHeight();
@@ -269,8 +287,8 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 
 	@Override
 	public Bitmap getTile(final int level, final int x, final int y, final int tileSize, final int borderSize,
-			final BitmapPool pool) {
-		return mTileProvider.getTile(level, x, y, tileSize, borderSize, pool);
+			final BitmapPool pool, final boolean draft) {
+		return mTileProvider.getTile(level, x, y, tileSize, borderSize, pool, draft);
 	}
 
 	@Override
@@ -302,8 +320,11 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 				entry.screenNail.recycle();
 			}
 		}
-		mImageCache.clear();
 		mTileProvider.clear();
+		for (final ImageEntry entry : mImageCache.values()) {
+			releaseFullImage(entry);
+		}
+		mImageCache.clear();
 
 		mUploader.clear();
 		TiledTexture.freeResources();
@@ -327,6 +348,17 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 		mDataListener = listener;
 	}
 
+	@Override
+	public void setMagnified(final boolean magnified) {
+		// Full images are requested for the current picture anyway, only the
+		// tile pyramid waits for the zoom.
+		if (!magnified) return;
+		final MediaItem item = getItemInternal(mCurrentIndex);
+		if (item != null) {
+			item.prepareTilePyramidFile();
+		}
+	}
+
 	@Override
 	public void setNeedFullImage(final boolean enabled) {
 		mNeedFullImage = enabled;
@@ -440,6 +472,13 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 		return new TiledScreenNail(width, height);
 	}
 
+	// Gives the decoder of the entry back to the region decoder cache.
+	private void releaseFullImage(final ImageEntry entry) {
+		if (entry.fullImage == null) return;
+		mRegionDecoderCache.release(entry.fullImage);
+		entry.fullImage = null;
+	}
+
 	// Returns the task if we started the task or the task is already started.
 	private Future<?> startTaskIfNeeded(final int index, final int which) {
 		if (index < mActiveStart || index >= mActiveEnd) return null;
@@ -473,16 +512,18 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 
 	private void updateFullImage(final Path path, final Future<BitmapRegionDecoder> future) {
 		final ImageEntry entry = mImageCache.get(path);
+		final BitmapRegionDecoder fullImage = future.get();
 		if (entry == null || entry.fullImageTask != future) {
-			final BitmapRegionDecoder fullImage = future.get();
+			// Arrived late; it stays in the region decoder cache.
 			if (fullImage != null) {
-				fullImage.recycle();
+				mRegionDecoderCache.release(fullImage);
 			}
 			return;
 		}
 
 		entry.fullImageTask = null;
-		entry.fullImage = future.get();
+		releaseFullImage(entry);
+		entry.fullImage = fullImage;
 		if (entry.fullImage != null) {
 			if (path == getPath(mCurrentIndex)) {
 				updateTileProvider(entry);
@@ -508,7 +549,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 						entry.fullImageTask.cancel();
 						entry.fullImageTask = null;
 					}
-					entry.fullImage = null;
+					releaseFullImage(entry);
 					entry.requestedFullImage = MediaObject.INVALID_DATA_VERSION;
 				}
 				if (entry.requestedScreenNail != item.getDataVersion()) {
@@ -531,6 +572,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 			if (entry.fullImageTask != null) {
 				entry.fullImageTask.cancel();
 			}
+			releaseFullImage(entry);
 			if (entry.screenNailTask != null) {
 				entry.screenNailTask.cancel();
 			}
@@ -555,7 +597,12 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 		// 1. Find the most wanted request and start it (if not already
 		// started).
 		Future<?> task = null;
-		for (final ImageFetch element : sImageFetchSeq) {
+		final ImageEntry current = mImageCache.get(item.getPath());
+		mPrefetchController.setPaused(current != null
+				&& (current.screenNailTask != null || current.fullImageTask != null));
+		mPrefetchController.update(mSizeEstimator);
+		for (int i = 0, n = mPrefetchController.getCount(); i < n; ++i) {
+			final ImageFetch element = mPrefetchController.getImageFetch(i);
 			final int offset = element.indexOffset;
 			final int bit = element.imageBit;
 			if (bit == BIT_FULL_IMAGE && !mNeedFullImage) {
@@ -664,6 +711,9 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 		if (screenNail != null) {
 			if (fullImage != null) {
 				mTileProvider.setScreenNail(screenNail, fullImage.getWidth(), fullImage.getHeight());
+				final MediaItem item = getItemInternal(mCurrentIndex);
+				mTileProvider.setMimeType(item == null ? null : item.getMimeType());
+				mTileProvider.setOpaque(item != null && item.isOpaque());
 				mTileProvider.setRegionDecoder(fullImage);
 			} else {
 				final int width = screenNail.getWidth();
@@ -689,7 +739,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 		if (s instanceof TiledScreenNail) {
 			final TiledTexture t = ((TiledScreenNail) s).getTexture();
 			if (t != null && !t.isReady()) {
-				mUploader.addTexture(t);
+				mUploader.addTexture(t, offset == 0);
 			}
 		}
 	}
@@ -707,7 +757,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 		@Override
 		public BitmapRegionDecoder run(final JobContext jc) {
 			if (isTemporaryItem(mItem)) return null;
-			return mItem.requestLargeImage().run(jc);
+			return mRegionDecoderCache.requestLargeImage(mItem).run(jc);
 		}
 	}
 
@@ -741,7 +791,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 		public boolean failToLoad = false;
 	}
 
-	private static class ImageFetch {
+	static class ImageFetch {
 		int indexOffset;
 		int imageBit;
 
@@ -859,12 +909,29 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 			// reload.
 			if (isTemporaryItem(mItem)) return newPlaceholderScreenNail(mItem);
 
-			Bitmap bitmap = mItem.requestImage(MediaItem.TYPE_THUMBNAIL).run(jc);
-			if (jc.isCancelled()) return null;
-			if (bitmap != null) {
-				bitmap = BitmapUtils.rotateBitmap(bitmap, mItem.getRotation() - mItem.getFullImageRotation(), true);
+			// If the full image is going to be opened anyway, open it now and
+			// take the screen nail from it. The decoder waits for the full
+			// image request in the region decoder cache.
+			Bitmap bitmap = null;
+			if ((mItem.getSupportedOperations() & MediaItem.SUPPORT_FULL_IMAGE) != 0 && !mItem.hasReducedImage()) {
+				final LargeImageJob.Result result = new LargeImageJob(mRegionDecoderCache, mItem,
+						MediaItem.getTargetSize(MediaItem.TYPE_THUMBNAIL)).run(jc);
+				if (result != null) {
+					bitmap = result.screenNail;
+					mRegionDecoderCache.release(result.decoder);
+				}
+			}
+			if (bitmap == null && !jc.isCancelled()) {
+				bitmap = mItem.requestImage(MediaItem.TYPE_THUMBNAIL).run(jc);
+			}
+			if (jc.isCancelled()) {
+				BitmapUtils.recycleSilently(bitmap);
+				return null;
 			}
-			return bitmap == null ? null : new TiledScreenNail(bitmap);
+			// Any rotation beyond that of the full image is applied when the
+			// screen nail is drawn.
+			return bitmap == null ? null : new TiledScreenNail(bitmap, mItem.getRotation()
+					- mItem.getFullImageRotation());
 		}
 	}
 
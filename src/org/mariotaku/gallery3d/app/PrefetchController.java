@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.app;
+
+import org.mariotaku.gallery3d.app.PhotoDataAdapter.ImageFetch;
+import org.mariotaku.gallery3d.data.ThroughputEstimator;
+
+// PrefetchController decides the order in which PhotoDataAdapter requests
+// images, and how many neighbours it prefetches at all.
+//
+// Each neighbour is costed in milliseconds: the time to download it at the
+// estimated throughput, plus the time to decode it as predicted by the
+// DecodeCostModel. While neither is known, or every neighbour fits within
+// PREFETCH_BUDGET, we keep the classic order: the current screen nail, the
+// neighbours' screen nails, then the full images of the current and adjacent
+// pictures. Otherwise we only prefetch the neighbours that fit in the budget,
+// nearest first and the cheaper side first at each distance, and move the
+// current full image ahead of them.
+//
+// While the current picture is still downloading or decoding, the caller
+// pauses the controller with setPaused(), and the sequence holds the current
+// picture only, so that prefetch never competes with it.
+class PrefetchController {
+	// Returned by SizeEstimator if there is no item at the offset.
+	public static final long NO_ITEM = -1;
+	// Returned by SizeEstimator if the item must be downloaded but its size
+	// is not known. The average size of past downloads is used instead.
+	public static final long UNKNOWN_SIZE = -2;
+
+	// How long (in ms) we are willing to spend on pictures the user may never
+	// look at.
+	private static final long PREFETCH_BUDGET = 3000;
+	private static final long DEFAULT_ESTIMATED_BYTES = 512 * 1024;
+
+	private final ThroughputEstimator mEstimator;
+	private final int mMaxOffset;
+	private final ImageFetch[] mSequence;
+	private int mCount;
+	private boolean mPaused;
+
+	// The cost of the neighbours, indexed by distance, valid where there is
+	// a neighbour at that distance.
+	private final float[] mNextMillis;
+	private final float[] mPrevMillis;
+	private final boolean[] mHasNext;
+	private final boolean[] mHasPrev;
+
+	public PrefetchController(final ThroughputEstimator estimator, final int maxOffset) {
+		mEstimator = estimator;
+		mMaxOffset = maxOffset;
+		mSequence = new ImageFetch[1 + maxOffset * 2 + 3];
+		mNextMillis = new float[maxOffset + 1];
+		mPrevMillis = new float[maxOffset + 1];
+		mHasNext = new boolean[maxOffset + 1];
+		mHasPrev = new boolean[maxOffset + 1];
+		for (int i = 0; i < mSequence.length; ++i) {
+			mSequence[i] = new ImageFetch(0, 0);
+		}
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	public ImageFetch getImageFetch(final int i) {
+		return mSequence[i];
+	}
+
+	public boolean isPaused() {
+		return mPaused;
+	}
+
+	// Pauses prefetch while the current picture is being fetched. The next
+	// update() takes it into account.
+	public void setPaused(final boolean paused) {
+		mPaused = paused;
+	}
+
+	// Rebuilds the fetch sequence from the current estimates.
+	public void update(final SizeEstimator sizes) {
+		final float bytesPerMillis = mEstimator.getBytesPerMillis();
+		final long averageBytes = mEstimator.getAverageBytes();
+		final long unknownBytes = averageBytes > 0 ? averageBytes : DEFAULT_ESTIMATED_BYTES;
+
+		// Whether every neighbour fits decides the order, so cost them all
+		// first.
+		float total = 0;
+		for (int d = 1; d <= mMaxOffset; ++d) {
+			mHasNext[d] = sizes.getEstimatedBytes(d) != NO_ITEM;
+			mHasPrev[d] = sizes.getEstimatedBytes(-d) != NO_ITEM;
+			mNextMillis[d] = mHasNext[d] ? estimate(sizes, d, bytesPerMillis, unknownBytes) : 0;
+			mPrevMillis[d] = mHasPrev[d] ? estimate(sizes, -d, bytesPerMillis, unknownBytes) : 0;
+			total += mNextMillis[d] + mPrevMillis[d];
+		}
+		final boolean fetchAll = total <= PREFETCH_BUDGET;
+
+		int k = 0;
+		set(k++, 0, PhotoDataAdapter.BIT_SCREEN_NAIL);
+		if (!fetchAll || mPaused) {
+			set(k++, 0, PhotoDataAdapter.BIT_FULL_IMAGE);
+		}
+		if (mPaused) {
+			mCount = k;
+			return;
+		}
+
+		float spent = 0;
+		boolean hasNext = false, hasPrev = false;
+		outer: for (int d = 1; d <= mMaxOffset; ++d) {
+			final float next = mNextMillis[d];
+			final float prev = mPrevMillis[d];
+			// The classic order takes the next picture first.
+			final boolean prevFirst = !fetchAll && mHasPrev[d] && (!mHasNext[d] || prev < next);
+			for (int i = 0; i < 2; ++i) {
+				final boolean isPrev = prevFirst == (i == 0);
+				if (!(isPrev ? mHasPrev[d] : mHasNext[d])) {
+					continue;
+				}
+				final float millis = isPrev ? prev : next;
+				if (!fetchAll && spent + millis > PREFETCH_BUDGET) {
+					break outer;
+				}
+				spent += millis;
+				set(k++, isPrev ? -d : d, PhotoDataAdapter.BIT_SCREEN_NAIL);
+				if (d == 1) {
+					if (isPrev) {
+						hasPrev = true;
+					} else {
+						hasNext = true;
+					}
+				}
+			}
+		}
+
+		if (fetchAll) {
+			set(k++, 0, PhotoDataAdapter.BIT_FULL_IMAGE);
+		}
+		if (hasNext) {
+			set(k++, 1, PhotoDataAdapter.BIT_FULL_IMAGE);
+		}
+		if (hasPrev) {
+			set(k++, -1, PhotoDataAdapter.BIT_FULL_IMAGE);
+		}
+		mCount = k;
+	}
+
+	private void set(final int i, final int offset, final int bit) {
+		mSequence[i].indexOffset = offset;
+		mSequence[i].imageBit = bit;
+	}
+
+	// Returns the time in ms to fetch and decode the item at the offset,
+	// which must exist. Unknown parts of it count as free.
+	private static float estimate(final SizeEstimator sizes, final int offset, final float bytesPerMillis,
+			final long unknownBytes) {
+		final long bytes = sizes.getEstimatedBytes(offset);
+		float millis = Math.max(0, sizes.getEstimatedDecodeMillis(offset));
+		if (bytesPerMillis > 0) {
+			millis += (bytes == UNKNOWN_SIZE ? unknownBytes : bytes) / bytesPerMillis;
+		}
+		return millis;
+	}
+
+	public interface SizeEstimator {
+		// Returns the number of bytes that must be downloaded for the item at
+		// the given offset from the current one, 0 if it is local or already
+		// downloaded, or one of NO_ITEM and UNKNOWN_SIZE.
+		public long getEstimatedBytes(int offset);
+
+		// Returns the expected time in ms to decode the screen nail of the
+		// item at the given offset, or 0 if it can't be told.
+		public float getEstimatedDecodeMillis(int offset);
+	}
+}
@@ -17,21 +17,28 @@
 package org.mariotaku.gallery3d.app;
 
 import org.mariotaku.gallery3d.common.BitmapUtils;
+import org.mariotaku.gallery3d.common.GifDecoder;
 import org.mariotaku.gallery3d.common.Utils;
+import org.mariotaku.gallery3d.data.LargeImageJob;
 import org.mariotaku.gallery3d.data.MediaItem;
+import org.mariotaku.gallery3d.data.RegionDecoderCache;
+import org.mariotaku.gallery3d.data.TilePyramid;
+import org.mariotaku.gallery3d.ui.AnimatedScreenNail;
 import org.mariotaku.gallery3d.ui.BitmapScreenNail;
+import org.mariotaku.gallery3d.ui.GLRoot;
 import org.mariotaku.gallery3d.ui.PhotoView;
 import org.mariotaku.gallery3d.ui.ScreenNail;
 import org.mariotaku.gallery3d.ui.SynchronizedHandler;
+import org.mariotaku.gallery3d.ui.TileImageView;
 import org.mariotaku.gallery3d.ui.TileImageViewAdapter;
 import org.mariotaku.gallery3d.util.Future;
 import org.mariotaku.gallery3d.util.FutureListener;
 import org.mariotaku.gallery3d.util.ThreadPool;
+import org.mariotaku.gallery3d.util.ThreadPool.Job;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
-import android.graphics.Rect;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
@@ -41,55 +48,101 @@ public class SinglePhotoDataAdapter extends TileImageViewAdapter implements Phot
 	private static final String TAG = "SinglePhotoDataAdapter";
 	private static final int SIZE_BACKUP = 1024;
 	private static final int MSG_UPDATE_IMAGE = 1;
+	private static final int MSG_UPDATE_THUMB = 2;
+	private static final int MSG_NEED_FULL_IMAGE = 3;
+	private static final int MSG_TILE_IN_SOFTWARE = 4;
+	private static final int MSG_UPDATE_BACKUP = 5;
+	private static final int MSG_UPDATE_TILES = 6;
+	private static final int MSG_UPDATE_ANIMATION = 7;
 
 	private final MediaItem mItem;
 	private final boolean mHasFullImage;
+	// If the item has a reduced image, we show it first and only open the
+	// full image once the user zooms past its resolution.
+	private final boolean mHasReducedImage;
+	private boolean mNeedFullImage;
 	private Future<?> mTask;
+	private Future<?> mFullImageTask;
+	// Tiles the image in software if the region decoder fails on it.
+	private Future<?> mTileTask;
+	private final int mTileSize;
 	private final Handler mHandler;
 
 	private final PhotoView mPhotoView;
 	private final ThreadPool mThreadPool;
+	private final RegionDecoderCache mRegionDecoderCache;
+	private final GLRoot mGLRoot;
 	private int mLoadingState = LOADING_INIT;
 	private BitmapScreenNail mBitmapScreenNail;
+	private AnimatedScreenNail mAnimatedScreenNail;
+	// Held from the region decoder cache until pause().
+	private BitmapRegionDecoder mRegionDecoder;
 
-	private final FutureListener<BitmapRegionDecoder> mLargeListener = new FutureListener<BitmapRegionDecoder>() {
+	private final FutureListener<LargeImageJob.Result> mLargeListener = new FutureListener<LargeImageJob.Result>() {
 		@Override
-		public void onFutureDone(final Future<BitmapRegionDecoder> future) {
-			final BitmapRegionDecoder decoder = future.get();
-			if (decoder == null) return;
-			final int width = decoder.getWidth();
-			final int height = decoder.getHeight();
-			final BitmapFactory.Options options = new BitmapFactory.Options();
-			options.inSampleSize = BitmapUtils.computeSampleSize((float) SIZE_BACKUP / Math.max(width, height));
-			final Bitmap bitmap = decoder.decodeRegion(new Rect(0, 0, width, height), options);
-			mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_IMAGE, new ImageBundle(decoder, bitmap)));
+		public void onFutureDone(final Future<LargeImageJob.Result> future) {
+			final LargeImageJob.Result result = future.get();
+			if (result == null) {
+				// GIF, BMP, or a file the codec fails on.
+				if (!future.isCancelled()) {
+					mHandler.sendEmptyMessage(MSG_TILE_IN_SOFTWARE);
+				}
+				return;
+			}
+			mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_IMAGE, result));
 		}
 	};
 
 	private final FutureListener<Bitmap> mThumbListener = new FutureListener<Bitmap>() {
 		@Override
 		public void onFutureDone(final Future<Bitmap> future) {
-			mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_IMAGE, future));
+			mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_THUMB, future));
 		}
 	};
 
 	public SinglePhotoDataAdapter(final AbstractGalleryActivity activity, final PhotoView view, final MediaItem item) {
 		mItem = Utils.checkNotNull(item);
 		mHasFullImage = (item.getSupportedOperations() & MediaItem.SUPPORT_FULL_IMAGE) != 0;
+		mHasReducedImage = mHasFullImage && item.hasReducedImage();
 		mPhotoView = Utils.checkNotNull(view);
 		mHandler = new SynchronizedHandler(activity.getGLRoot()) {
 			@Override
 			@SuppressWarnings("unchecked")
 			public void handleMessage(final Message message) {
-				Utils.assertTrue(message.what == MSG_UPDATE_IMAGE);
-				if (mHasFullImage) {
-					onDecodeLargeComplete((ImageBundle) message.obj);
-				} else {
-					onDecodeThumbComplete((Future<Bitmap>) message.obj);
+				switch (message.what) {
+					case MSG_UPDATE_IMAGE:
+						onDecodeLargeComplete((LargeImageJob.Result) message.obj);
+						return;
+					case MSG_UPDATE_THUMB:
+						onDecodeThumbComplete((Future<Bitmap>) message.obj);
+						return;
+					case MSG_NEED_FULL_IMAGE:
+						mNeedFullImage = true;
+						requestFullImageIfNeeded();
+						return;
+					case MSG_TILE_IN_SOFTWARE:
+						if (mTileTask == null) {
+							mTileTask = mThreadPool.submit(new SoftwareTileJob());
+						}
+						return;
+					case MSG_UPDATE_BACKUP:
+						onDecodeBackupComplete((Bitmap) message.obj);
+						return;
+					case MSG_UPDATE_TILES:
+						onDecodeTilesComplete((TilePyramid) message.obj);
+						return;
+					case MSG_UPDATE_ANIMATION:
+						onDecodeAnimationComplete((AnimatedScreenNail) message.obj);
+						return;
+					default:
+						throw new AssertionError(message.what);
 				}
 			}
 		};
 		mThreadPool = activity.getThreadPool();
+		mRegionDecoderCache = activity.getRegionDecoderCache();
+		mGLRoot = activity.getGLRoot();
+		mTileSize = TileImageView.getTileSize(activity.getAndroidContext());
 	}
 
 	@Override
@@ -146,21 +199,62 @@ public class SinglePhotoDataAdapter extends TileImageViewAdapter implements Phot
 		if (task.get() == null) {
 			mTask = null;
 		}
+		final Future<?> fullImageTask = mFullImageTask;
+		if (fullImageTask != null) {
+			fullImageTask.cancel();
+			fullImageTask.waitDone();
+			if (fullImageTask.get() == null) {
+				mFullImageTask = null;
+			}
+		}
+		final Future<?> tileTask = mTileTask;
+		if (tileTask != null) {
+			tileTask.cancel();
+			tileTask.waitDone();
+			mTileTask = null;
+		}
 		if (mBitmapScreenNail != null) {
 			mBitmapScreenNail.recycle();
 			mBitmapScreenNail = null;
 		}
+		if (mAnimatedScreenNail != null) {
+			mAnimatedScreenNail.recycle();
+			mAnimatedScreenNail = null;
+		}
+		if (mRegionDecoder != null) {
+			clear();
+			mRegionDecoderCache.release(mRegionDecoder);
+			mRegionDecoder = null;
+			// Opened again on resume, most likely from the cache.
+			if (mHasReducedImage) {
+				mFullImageTask = null;
+			} else {
+				mTask = null;
+			}
+		}
 	}
 
 	@Override
 	public void resume() {
 		if (mTask == null) {
-			if (mHasFullImage) {
-				mTask = mThreadPool.submit(mItem.requestLargeImage(), mLargeListener);
+			if (mHasFullImage && !mHasReducedImage) {
+				mTask = mThreadPool.submit(new LargeImageJob(mRegionDecoderCache, mItem, SIZE_BACKUP), mLargeListener);
 			} else {
 				mTask = mThreadPool.submit(mItem.requestImage(MediaItem.TYPE_THUMBNAIL), mThumbListener);
 			}
 		}
+		requestFullImageIfNeeded();
+	}
+
+	@Override
+	public void setMagnified(final boolean magnified) {
+		if (!magnified) return;
+		mItem.prepareTilePyramidFile();
+		// Only the reduced image case loads the full image on demand, and it
+		// is kept once loaded.
+		if (mHasReducedImage) {
+			mHandler.sendEmptyMessage(MSG_NEED_FULL_IMAGE);
+		}
 	}
 
 	@Override
@@ -168,25 +262,80 @@ public class SinglePhotoDataAdapter extends TileImageViewAdapter implements Phot
 		// currently not necessary.
 	}
 
-	private void onDecodeLargeComplete(final ImageBundle bundle) {
+	private void onDecodeAnimationComplete(final AnimatedScreenNail nail) {
+		if (mTileTask == null || mBitmapScreenNail == null) {
+			nail.recycle();
+			return;
+		}
+		mAnimatedScreenNail = nail;
+		setScreenNail(nail, nail.getWidth(), nail.getHeight());
+		mBitmapScreenNail.recycle();
+		mBitmapScreenNail = null;
+		mPhotoView.notifyImageChange(0);
+	}
+
+	private void onDecodeBackupComplete(final Bitmap backup) {
+		if (mTileTask == null) {
+			// Paused meanwhile.
+			BitmapUtils.recycleSilently(backup);
+			return;
+		}
+		if (backup == null) {
+			mLoadingState = LOADING_FAIL;
+			return;
+		}
+		mLoadingState = LOADING_COMPLETE;
+		setScreenNail(backup, backup.getWidth(), backup.getHeight());
+		mPhotoView.notifyImageChange(0);
+	}
+
+	private void onDecodeLargeComplete(final LargeImageJob.Result result) {
+		if (mRegionDecoder != null) {
+			mRegionDecoderCache.release(mRegionDecoder);
+		}
+		mRegionDecoder = result.decoder;
 		try {
-			setScreenNail(bundle.backupImage, bundle.decoder.getWidth(), bundle.decoder.getHeight());
-			setRegionDecoder(bundle.decoder);
+			setScreenNail(result.screenNail, result.decoder.getWidth(), result.decoder.getHeight());
+			setOpaque(mItem.isOpaque());
+			setMimeType(mItem.getMimeType());
+			setTilePyramidFile(mItem.getTilePyramidFile());
+			setRegionDecoder(result.decoder);
 			mPhotoView.notifyImageChange(0);
 		} catch (final Throwable t) {
 			Log.w(TAG, "fail to decode large", t);
 		}
 	}
 
+	private void onDecodeTilesComplete(final TilePyramid pyramid) {
+		if (mTileTask == null || mBitmapScreenNail == null) {
+			pyramid.close();
+			return;
+		}
+		setOpaque(mItem.isOpaque());
+		setTilePyramid(pyramid);
+		mPhotoView.notifyImageChange(0);
+	}
+
 	private void onDecodeThumbComplete(final Future<Bitmap> future) {
 		try {
 			final Bitmap backup = future.get();
 			if (backup == null) {
+				if (mHasReducedImage) {
+					// Try the full image before giving up.
+					mNeedFullImage = true;
+					requestFullImageIfNeeded();
+					return;
+				}
 				mLoadingState = LOADING_FAIL;
 				return;
 			} else {
 				mLoadingState = LOADING_COMPLETE;
 			}
+			// The full image may have won the race.
+			if (mFullImageTask != null && mFullImageTask.isDone() && mFullImageTask.get() != null) {
+				backup.recycle();
+				return;
+			}
 			setScreenNail(backup, backup.getWidth(), backup.getHeight());
 			mPhotoView.notifyImageChange(0);
 		} catch (final Throwable t) {
@@ -194,18 +343,53 @@ public class SinglePhotoDataAdapter extends TileImageViewAdapter implements Phot
 		}
 	}
 
+	private void requestFullImageIfNeeded() {
+		if (!mHasReducedImage || !mNeedFullImage || mFullImageTask != null) return;
+		mFullImageTask = mThreadPool.submit(new LargeImageJob(mRegionDecoderCache, mItem, SIZE_BACKUP), mLargeListener);
+	}
+
 	private void setScreenNail(final Bitmap bitmap, final int width, final int height) {
+		final BitmapScreenNail old = mBitmapScreenNail;
 		mBitmapScreenNail = new BitmapScreenNail(bitmap);
 		setScreenNail(mBitmapScreenNail, width, height);
+		if (old != null) {
+			old.recycle();
+		}
 	}
 
-	private static class ImageBundle {
-		public final BitmapRegionDecoder decoder;
-		public final Bitmap backupImage;
+	// Shows the thumbnail, then plays the image if it is animated, or else
+	// tiles the full image in software and serves the tiles from the pyramid.
+	private class SoftwareTileJob implements Job<Void> {
+		@Override
+		public Void run(final JobContext jc) {
+			final Bitmap backup = mItem.requestImage(MediaItem.TYPE_THUMBNAIL).run(jc);
+			if (jc.isCancelled()) {
+				BitmapUtils.recycleSilently(backup);
+				return null;
+			}
+			mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_BACKUP, backup));
+			if (backup == null) return null;
 
-		public ImageBundle(final BitmapRegionDecoder decoder, final Bitmap backupImage) {
-			this.decoder = decoder;
-			this.backupImage = backupImage;
+			final Job<GifDecoder> animation = mItem.requestAnimation();
+			final GifDecoder decoder = animation == null ? null : animation.run(jc);
+			if (decoder != null && !jc.isCancelled()) {
+				final AnimatedScreenNail nail = AnimatedScreenNail.create(decoder, mGLRoot, mThreadPool);
+				if (nail != null) {
+					// Recycled on the GL thread if we are paused meanwhile.
+					mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_ANIMATION, nail));
+					return null;
+				}
+			}
+
+			final Job<TilePyramid> job = mItem.requestTilePyramid(mTileSize, TileImageView.getTileBorder());
+			final TilePyramid pyramid = job == null ? null : job.run(jc);
+			if (pyramid == null) return null;
+			if (jc.isCancelled()) {
+				pyramid.close();
+				return null;
+			}
+			mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_TILES, pyramid));
+			return null;
 		}
 	}
 }
@@ -121,6 +121,13 @@ public class ApiHelper {
 
 	public static final boolean HAS_POST_ON_ANIMATION = Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN;
 
+	// WebP can be encoded since ICS, but older region decoders handle it
+	// poorly, so only rewrite cached images as WebP on newer releases.
+	public static final boolean HAS_WEBP_TRANSCODING = Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN_MR1;
+
+	// WebP with alpha or lossless compression decodes from JB MR1 on.
+	public static final boolean HAS_WEBP_DECODING = Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN_MR1;
+
 	public static int getIntFieldIfExists(final Class<?> klass, final String fieldName, final Class<?> obj,
 			final int defaultVal) {
 		try {
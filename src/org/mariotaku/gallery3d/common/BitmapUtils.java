@@ -144,6 +144,32 @@ public class BitmapUtils {
 		return null;
 	}
 
+	// Returns the MIME type of an image from the first bytes of its data, or
+	// null if the format is not recognized.
+	public static String getMimeTypeFromHeader(final byte[] header, final int length) {
+		if (length >= 3 && (header[0] & 0xff) == 0xff && (header[1] & 0xff) == 0xd8 && (header[2] & 0xff) == 0xff)
+			return "image/jpeg";
+		if (length >= 8 && (header[0] & 0xff) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G')
+			return "image/png";
+		if (length >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F' && header[3] == '8')
+			return "image/gif";
+		if (length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F'
+				&& header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P')
+			return "image/webp";
+		if (length >= 2 && header[0] == 'B' && header[1] == 'M') return "image/bmp";
+		return null;
+	}
+
+	// Returns true if the image, identified by the first bytes of its data,
+	// is in a format that cannot have an alpha channel: JPEG, or WebP in
+	// the simple lossy format.
+	public static boolean isOpaqueFromHeader(final byte[] header, final int length) {
+		final String mimeType = getMimeTypeFromHeader(header, length);
+		if ("image/jpeg".equals(mimeType)) return true;
+		return "image/webp".equals(mimeType) && length >= 16 && header[12] == 'V' && header[13] == 'P'
+				&& header[14] == '8' && header[15] == ' ';
+	}
+
 	public static boolean isRotationSupported(String mimeType) {
 		if (mimeType == null) return false;
 		mimeType = mimeType.toLowerCase();
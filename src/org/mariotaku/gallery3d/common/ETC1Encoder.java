@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.common;
+
+import java.nio.ByteBuffer;
+
+// ETC1Encoder compresses RGB pixels to ETC1 (OES_compressed_ETC1_RGB8_texture)
+// and decodes ETC1 data back to pixels. It has no Android dependencies, so
+// the encoder and its error figures can be checked off the device.
+//
+// Each 4x4 block is split into two halves of 2x4 pixels, either side by side
+// or one above the other. For both splits we take the average color of each
+// half as its base color (coded differentially if the two are close enough,
+// individually otherwise) and choose the modifier table giving the least
+// squared error for each half. The split with the smaller error is written.
+//
+// The alpha channel is ignored. An instance keeps scratch state for one block
+// and must not be used by multiple threads at the same time.
+public class ETC1Encoder {
+	// The internal format of ETC1 textures.
+	public static final int ETC1_RGB8_OES = 0x8D64;
+	public static final int BLOCK_BYTES = 8;
+
+	// Indexed by table and by pixel selector.
+	private static final int[][] MODIFIERS = { { 2, 8, -2, -8 }, { 5, 17, -5, -17 }, { 9, 29, -9, -29 },
+			{ 13, 42, -13, -42 }, { 18, 60, -18, -60 }, { 24, 80, -24, -80 }, { 33, 106, -33, -106 },
+			{ 47, 183, -47, -183 } };
+
+	// The pixels of the current block, in ETC1 order (column by column).
+	private final int[] mRed = new int[16];
+	private final int[] mGreen = new int[16];
+	private final int[] mBlue = new int[16];
+
+	// The base colors of both halves for the split being tried, and for the
+	// best split so far.
+	private final int[] mBase = new int[6];
+	private final int[] mBestBase = new int[6];
+	private final int[] mAverage = new int[6];
+	private final int[] mQuantized = new int[6];
+	private int mTable;
+
+	// Encodes pixels (in Bitmap.getPixels() layout) to out, starting at its
+	// position. Returns the total squared error over the RGB channels.
+	public long encode(final int[] pixels, final int width, final int height, final ByteBuffer out) {
+		if (!canEncode(width, height)) throw new IllegalArgumentException(width + "x" + height);
+		if (out.remaining() < getEncodedSize(width, height)) throw new IllegalArgumentException("buffer too small");
+		long error = 0;
+		for (int by = 0; by < height; by += 4) {
+			for (int bx = 0; bx < width; bx += 4) {
+				loadBlock(pixels, width, bx, by);
+				error += encodeBlock(out);
+			}
+		}
+		return error;
+	}
+
+	private long encodeBlock(final ByteBuffer out) {
+		long bestError = Long.MAX_VALUE;
+		int bestHeader = 0;
+		for (int flip = 0; flip < 2; flip++) {
+			final int header = chooseBaseColors(flip);
+			final long error0 = chooseTable(0, flip);
+			final int table0 = mTable;
+			final long error1 = chooseTable(1, flip);
+			final int table1 = mTable;
+			if (error0 + error1 < bestError) {
+				bestError = error0 + error1;
+				bestHeader = header | table0 << 5 | table1 << 2 | flip;
+				System.arraycopy(mBase, 0, mBestBase, 0, 6);
+			}
+		}
+
+		final int flip = bestHeader & 1;
+		final int[] table0 = MODIFIERS[bestHeader >> 5 & 7];
+		final int[] table1 = MODIFIERS[bestHeader >> 2 & 7];
+		int selectors = 0;
+		for (int i = 0; i < 16; i++) {
+			final int half = getHalf(i, flip);
+			final int sel = chooseSelector(i, mBestBase, half * 3, half == 0 ? table0 : table1);
+			selectors |= (sel >> 1) << 16 + i | (sel & 1) << i;
+		}
+		out.putInt(bestHeader);
+		out.putInt(selectors);
+		return bestError;
+	}
+
+	// Sets mBase to the base colors of both halves and returns the header
+	// bits coding them.
+	private int chooseBaseColors(final int flip) {
+		final int[] avg = mAverage;
+		final int[] q = mQuantized;
+		for (int c = 0; c < 6; c++) {
+			avg[c] = 0;
+		}
+		for (int i = 0; i < 16; i++) {
+			final int offset = getHalf(i, flip) * 3;
+			avg[offset] += mRed[i];
+			avg[offset + 1] += mGreen[i];
+			avg[offset + 2] += mBlue[i];
+		}
+		boolean differential = true;
+		for (int c = 0; c < 6; c++) {
+			avg[c] = (avg[c] + 4) / 8;
+			q[c] = (avg[c] * 31 + 127) / 255;
+		}
+		for (int c = 0; c < 3; c++) {
+			final int delta = q[c + 3] - q[c];
+			if (delta < -4 || delta > 3) {
+				differential = false;
+			}
+		}
+		int header = 0;
+		if (differential) {
+			for (int c = 0; c < 3; c++) {
+				final int delta = q[c + 3] - q[c];
+				header |= q[c] << 27 - c * 8 | (delta & 7) << 24 - c * 8;
+				mBase[c] = extend5(q[c]);
+				mBase[c + 3] = extend5(q[c + 3]);
+			}
+			header |= 2;
+		} else {
+			for (int c = 0; c < 6; c++) {
+				q[c] = (avg[c] * 15 + 127) / 255;
+			}
+			for (int c = 0; c < 3; c++) {
+				header |= q[c] << 28 - c * 8 | q[c + 3] << 24 - c * 8;
+				mBase[c] = extend4(q[c]);
+				mBase[c + 3] = extend4(q[c + 3]);
+			}
+		}
+		return header;
+	}
+
+	// Sets mTable to the best modifier table for a half and returns its error.
+	private long chooseTable(final int half, final int flip) {
+		long bestError = Long.MAX_VALUE;
+		for (int t = 0; t < MODIFIERS.length; t++) {
+			long error = 0;
+			for (int i = 0; i < 16 && error < bestError; i++) {
+				if (getHalf(i, flip) != half) {
+					continue;
+				}
+				final int sel = chooseSelector(i, mBase, half * 3, MODIFIERS[t]);
+				error += getError(i, mBase, half * 3, MODIFIERS[t][sel]);
+			}
+			if (error < bestError) {
+				bestError = error;
+				mTable = t;
+			}
+		}
+		return bestError;
+	}
+
+	private int chooseSelector(final int i, final int[] base, final int offset, final int[] table) {
+		int best = 0;
+		int bestError = Integer.MAX_VALUE;
+		for (int sel = 0; sel < 4; sel++) {
+			final int error = getError(i, base, offset, table[sel]);
+			if (error < bestError) {
+				bestError = error;
+				best = sel;
+			}
+		}
+		return best;
+	}
+
+	private int getError(final int i, final int[] base, final int offset, final int modifier) {
+		final int dr = clamp(base[offset] + modifier) - mRed[i];
+		final int dg = clamp(base[offset + 1] + modifier) - mGreen[i];
+		final int db = clamp(base[offset + 2] + modifier) - mBlue[i];
+		return dr * dr + dg * dg + db * db;
+	}
+
+	private void loadBlock(final int[] pixels, final int stride, final int bx, final int by) {
+		for (int x = 0; x < 4; x++) {
+			for (int y = 0; y < 4; y++) {
+				final int color = pixels[(by + y) * stride + bx + x];
+				final int i = x * 4 + y;
+				mRed[i] = color >> 16 & 0xFF;
+				mGreen[i] = color >> 8 & 0xFF;
+				mBlue[i] = color & 0xFF;
+			}
+		}
+	}
+
+	public static boolean canEncode(final int width, final int height) {
+		return width > 0 && height > 0 && width % 4 == 0 && height % 4 == 0;
+	}
+
+	// Decodes ETC1 data from in, starting at its position, to opaque pixels
+	// in Bitmap.getPixels() layout.
+	public static void decode(final ByteBuffer in, final int width, final int height, final int[] pixels) {
+		if (!canEncode(width, height)) throw new IllegalArgumentException(width + "x" + height);
+		final int[] base = new int[6];
+		for (int by = 0; by < height; by += 4) {
+			for (int bx = 0; bx < width; bx += 4) {
+				final int header = in.getInt();
+				final int selectors = in.getInt();
+				for (int c = 0; c < 3; c++) {
+					if ((header & 2) != 0) {
+						final int q = header >>> 27 - c * 8 & 0x1F;
+						final int delta = (header >> 24 - c * 8 & 7) << 29 >> 29;
+						base[c] = extend5(q);
+						base[c + 3] = extend5(q + delta & 0x1F);
+					} else {
+						base[c] = extend4(header >>> 28 - c * 8 & 0xF);
+						base[c + 3] = extend4(header >> 24 - c * 8 & 0xF);
+					}
+				}
+				final int flip = header & 1;
+				for (int x = 0; x < 4; x++) {
+					for (int y = 0; y < 4; y++) {
+						final int i = x * 4 + y;
+						final int half = getHalf(i, flip);
+						final int sel = (selectors >>> 16 + i & 1) << 1 | selectors >> i & 1;
+						final int modifier = MODIFIERS[header >> (half == 0 ? 5 : 2) & 7][sel];
+						final int offset = half * 3;
+						pixels[(by + y) * width + bx + x] = 0xFF000000 | clamp(base[offset] + modifier) << 16
+								| clamp(base[offset + 1] + modifier) << 8 | clamp(base[offset + 2] + modifier);
+					}
+				}
+			}
+		}
+	}
+
+	public static int getEncodedSize(final int width, final int height) {
+		return width / 4 * (height / 4) * BLOCK_BYTES;
+	}
+
+	// Returns the peak signal-to-noise ratio in dB for the given total squared
+	// error over the RGB channels of pixelCount pixels.
+	public static double getPSNR(final long squaredError, final int pixelCount) {
+		if (squaredError == 0) return Double.POSITIVE_INFINITY;
+		final double mse = (double) squaredError / (pixelCount * 3L);
+		return 10 * Math.log10(255 * 255 / mse);
+	}
+
+	private static int clamp(final int value) {
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+
+	private static int extend4(final int value) {
+		return value << 4 | value;
+	}
+
+	private static int extend5(final int value) {
+		return value << 3 | value >> 2;
+	}
+
+	// The half of the block the i-th pixel (in ETC1 order) belongs to. Without
+	// flip the halves are the left and right 2x4 pixels, with flip the top and
+	// bottom 4x2 pixels.
+	private static int getHalf(final int i, final int flip) {
+		return flip == 0 ? i >> 3 : (i & 3) >> 1;
+	}
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.common;
+
+import java.io.IOException;
+
+// GifDecoder decodes the frames of a GIF one at a time, composing each onto
+// a canvas of the logical screen size as browsers do. Only the canvas (and,
+// for frames disposed to the previous state, one copy of it) is kept, so the
+// memory needed does not depend on the number of frames. The canvas is only
+// allocated by the first call to nextFrame(), so callers can check the size
+// from the header first.
+//
+// It has no Android dependencies. An instance must not be used by multiple
+// threads at the same time.
+public class GifDecoder {
+	// Frames with a shorter delay are shown for DEFAULT_DELAY, as browsers do.
+	private static final int MIN_DELAY = 20; // ms
+	private static final int DEFAULT_DELAY = 100; // ms
+
+	private static final int MAX_CODES = 4096;
+	private static final byte[] NETSCAPE = { 'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E' };
+
+	private static final int DISPOSE_BACKGROUND = 2;
+	private static final int DISPOSE_PREVIOUS = 3;
+
+	private final byte[] mData;
+	private final int mWidth;
+	private final int mHeight;
+	private final int[] mGlobalColors;
+	private final int mFirstFrame;
+	private int mLoopCount = 1;
+
+	private int mPosition;
+	private int[] mCanvas;
+	private int[] mSaved;
+	private final int[] mLocalColors = new int[256];
+
+	// The frame drawn last, and how it is to be disposed of.
+	private int mDisposal;
+	private int mFrameX, mFrameY, mFrameWidth, mFrameHeight;
+	// Read from the graphic control extension of the next frame.
+	private int mNextDisposal;
+	private int mTransparentIndex = -1;
+
+	// LZW state.
+	private final short[] mPrefix = new short[MAX_CODES];
+	private final byte[] mSuffix = new byte[MAX_CODES];
+	private final byte[] mStack = new byte[MAX_CODES + 1];
+	private byte[] mIndices;
+
+	public GifDecoder(final byte[] data) throws IOException {
+		mData = data;
+		if (data.length < 13 || data[0] != 'G' || data[1] != 'I' || data[2] != 'F')
+			throw new IOException("not a gif");
+		mWidth = readShort(6);
+		mHeight = readShort(8);
+		if (mWidth <= 0 || mHeight <= 0) throw new IOException("bad size");
+		final int packed = data[10] & 0xff;
+		mPosition = 13;
+		if ((packed & 0x80) != 0) {
+			final int count = 2 << (packed & 7);
+			if (mPosition + count * 3 > data.length) throw new IOException("truncated color table");
+			mGlobalColors = new int[256];
+			mPosition = readColors(mPosition, count, mGlobalColors);
+		} else {
+			mGlobalColors = null;
+		}
+		mFirstFrame = mPosition;
+	}
+
+	// Returns the number of frames, without decoding them.
+	public int countFrames() {
+		final int position = mPosition;
+		mPosition = mFirstFrame;
+		int count = 0;
+		try {
+			while (skipToImage() >= 0) {
+				mPosition += 9;
+				final int packed = mData[mPosition - 1] & 0xff;
+				if ((packed & 0x80) != 0) {
+					mPosition += 3 * (2 << (packed & 7));
+				}
+				mPosition++; // LZW code size
+				skipSubBlocks();
+				count++;
+			}
+		} catch (final ArrayIndexOutOfBoundsException e) {
+			// Truncated, count what we have seen.
+		}
+		mPosition = position;
+		return count;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	// The number of times the animation is played, 0 meaning forever.
+	public int getLoopCount() {
+		return mLoopCount;
+	}
+
+	// The canvas in the layout of Bitmap.setPixels(), as drawn by the last
+	// call to nextFrame(), or null before the first one.
+	public int[] getPixels() {
+		return mCanvas;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	// Draws the next frame onto the canvas and returns how long it is to be
+	// shown in milliseconds, or -1 if there are no more frames.
+	public int nextFrame() {
+		if (mCanvas == null) {
+			if ((long) mWidth * mHeight > Integer.MAX_VALUE) return -1;
+			mCanvas = new int[mWidth * mHeight];
+		}
+		try {
+			final int delay = skipToImage();
+			if (delay < 0) return -1;
+			dispose();
+			if (!decodeImage()) {
+				mPosition = mData.length;
+				return -1;
+			}
+			return delay < MIN_DELAY ? DEFAULT_DELAY : delay;
+		} catch (final ArrayIndexOutOfBoundsException e) {
+			// Truncated data, treat it as the end.
+			mPosition = mData.length;
+			return -1;
+		}
+	}
+
+	// Starts over from the first frame.
+	public void rewind() {
+		mPosition = mFirstFrame;
+		mDisposal = 0;
+		if (mCanvas == null) return;
+		for (int i = mCanvas.length - 1; i >= 0; i--) {
+			mCanvas[i] = 0;
+		}
+	}
+
+	// Returns false if the image can't be decoded.
+	private boolean decodeImage() {
+		final byte[] data = mData;
+		mFrameX = readShort(mPosition);
+		mFrameY = readShort(mPosition + 2);
+		mFrameWidth = readShort(mPosition + 4);
+		mFrameHeight = readShort(mPosition + 6);
+		final int packed = data[mPosition + 8] & 0xff;
+		mPosition += 9;
+		int[] colors = mGlobalColors;
+		if ((packed & 0x80) != 0) {
+			mPosition = readColors(mPosition, 2 << (packed & 7), mLocalColors);
+			colors = mLocalColors;
+		}
+		final boolean interlaced = (packed & 0x40) != 0;
+		final int dataSize = data[mPosition] & 0xff;
+		if (dataSize < 1 || dataSize > 11 || (long) mFrameWidth * mFrameHeight > (long) mCanvas.length * 4)
+			return false;
+
+		if (mNextDisposal == DISPOSE_PREVIOUS) {
+			if (mSaved == null) {
+				mSaved = new int[mCanvas.length];
+			}
+			System.arraycopy(mCanvas, 0, mSaved, 0, mCanvas.length);
+		}
+
+		final int pixelCount = mFrameWidth * mFrameHeight;
+		if (mIndices == null || mIndices.length < pixelCount) {
+			mIndices = new byte[pixelCount];
+		}
+		final int decoded = decodeLzw(pixelCount);
+		mDisposal = mNextDisposal;
+		if (colors == null) return true;
+
+		// Pass 1 every 8th row from 0, pass 2 every 8th from 4, pass 3 every
+		// 4th from 2, pass 4 every 2nd from 1.
+		int pass = 0, step = 8, row = 0;
+		for (int i = 0; i < mFrameHeight; i++) {
+			int y = i;
+			if (interlaced) {
+				while (row >= mFrameHeight && pass < 3) {
+					pass++;
+					step = pass == 3 ? 2 : pass == 2 ? 4 : 8;
+					row = pass == 1 ? 4 : pass == 2 ? 2 : 1;
+				}
+				y = row;
+				row += step;
+			}
+			final int cy = mFrameY + y;
+			if (cy >= mHeight) {
+				continue;
+			}
+			// Pixels missing from truncated data are left alone.
+			final int end = Math.min(Math.min(mFrameWidth, mWidth - mFrameX), decoded - i * mFrameWidth);
+			for (int x = 0, src = i * mFrameWidth, dst = cy * mWidth + mFrameX; x < end; x++, src++, dst++) {
+				final int index = mIndices[src] & 0xff;
+				if (index != mTransparentIndex) {
+					mCanvas[dst] = colors[index];
+				}
+			}
+		}
+		return true;
+	}
+
+	// Decodes the LZW data of the image into mIndices and returns the number
+	// of pixels decoded.
+	private int decodeLzw(final int pixelCount) {
+		final byte[] data = mData;
+		final int dataSize = data[mPosition++] & 0xff;
+		final int clear = 1 << dataSize;
+		final int end = clear + 1;
+		int available = clear + 2;
+		int codeSize = dataSize + 1;
+		int codeMask = (1 << codeSize) - 1;
+		int oldCode = -1;
+		int first = 0;
+		for (int code = 0; code < clear; code++) {
+			mPrefix[code] = 0;
+			mSuffix[code] = (byte) code;
+		}
+
+		int bits = 0, datum = 0, blockLeft = 0, top = 0, i = 0;
+		boolean terminated = false;
+		while (i < pixelCount) {
+			if (top == 0) {
+				if (bits < codeSize) {
+					if (blockLeft == 0) {
+						blockLeft = data[mPosition++] & 0xff;
+						if (blockLeft == 0) {
+							terminated = true;
+							break;
+						}
+					}
+					datum |= (data[mPosition++] & 0xff) << bits;
+					bits += 8;
+					blockLeft--;
+					continue;
+				}
+				int code = datum & codeMask;
+				datum >>= codeSize;
+				bits -= codeSize;
+
+				if (code == clear) {
+					codeSize = dataSize + 1;
+					codeMask = (1 << codeSize) - 1;
+					available = clear + 2;
+					oldCode = -1;
+					continue;
+				}
+				if (code == end || code > available) {
+					break;
+				}
+				if (oldCode == -1) {
+					mStack[top++] = mSuffix[code];
+					oldCode = code;
+					first = code;
+					continue;
+				}
+				final int inCode = code;
+				if (code == available) {
+					mStack[top++] = (byte) first;
+					code = oldCode;
+				}
+				while (code > clear) {
+					mStack[top++] = mSuffix[code];
+					code = mPrefix[code];
+				}
+				first = mSuffix[code] & 0xff;
+				mStack[top++] = (byte) first;
+				if (available < MAX_CODES) {
+					mPrefix[available] = (short) oldCode;
+					mSuffix[available] = (byte) first;
+					available++;
+					if ((available & codeMask) == 0 && available < MAX_CODES) {
+						codeSize++;
+						codeMask += available;
+					}
+				}
+				oldCode = inCode;
+			}
+			mIndices[i++] = mStack[--top];
+		}
+
+		// Skip what is left of the image data.
+		if (!terminated) {
+			mPosition += blockLeft;
+			skipSubBlocks();
+		}
+		return i;
+	}
+
+	// Disposes of the frame drawn last.
+	private void dispose() {
+		if (mDisposal == DISPOSE_BACKGROUND) {
+			final int right = Math.min(mFrameX + mFrameWidth, mWidth);
+			final int bottom = Math.min(mFrameY + mFrameHeight, mHeight);
+			for (int y = mFrameY; y < bottom; y++) {
+				for (int x = mFrameX, i = y * mWidth + x; x < right; x++, i++) {
+					mCanvas[i] = 0;
+				}
+			}
+		} else if (mDisposal == DISPOSE_PREVIOUS && mSaved != null) {
+			System.arraycopy(mSaved, 0, mCanvas, 0, mCanvas.length);
+		}
+	}
+
+	private int readColors(int position, final int count, final int[] colors) {
+		for (int i = 0; i < count; i++, position += 3) {
+			colors[i] = 0xff000000 | (mData[position] & 0xff) << 16 | (mData[position + 1] & 0xff) << 8
+					| mData[position + 2] & 0xff;
+		}
+		return position;
+	}
+
+	private int readShort(final int position) {
+		return mData[position] & 0xff | (mData[position + 1] & 0xff) << 8;
+	}
+
+	private void skipSubBlocks() {
+		int size;
+		while ((size = mData[mPosition++] & 0xff) > 0) {
+			mPosition += size;
+		}
+	}
+
+	// Reads the blocks up to the next image descriptor and returns the delay
+	// of the image in ms, leaving mPosition at the descriptor. Returns -1 at
+	// the end of the data.
+	private int skipToImage() {
+		final byte[] data = mData;
+		int delay = 0;
+		mNextDisposal = 0;
+		mTransparentIndex = -1;
+		while (mPosition < data.length) {
+			final int type = data[mPosition++] & 0xff;
+			if (type == 0x2C) return delay;
+			if (type != 0x21) {
+				// The trailer, or garbage.
+				break;
+			}
+			final int label = data[mPosition++] & 0xff;
+			if (label == 0xF9) {
+				final int packed = data[mPosition + 1] & 0xff;
+				mNextDisposal = packed >> 2 & 7;
+				delay = readShort(mPosition + 2) * 10;
+				mTransparentIndex = (packed & 1) != 0 ? data[mPosition + 4] & 0xff : -1;
+			} else if (label == 0xFF && isNetscapeLoop(mPosition)) {
+				mLoopCount = readShort(mPosition + 14);
+			}
+			skipSubBlocks();
+		}
+		mPosition = data.length;
+		return -1;
+	}
+
+	// Returns true if the application extension at position is the NETSCAPE
+	// loop count.
+	private boolean isNetscapeLoop(final int position) {
+		if (position + 15 >= mData.length || mData[position] != 11) return false;
+		for (int i = 0; i < NETSCAPE.length; i++) {
+			if (mData[position + 1 + i] != NETSCAPE[i]) return false;
+		}
+		return mData[position + 12] >= 3 && mData[position + 13] == 1;
+	}
+}
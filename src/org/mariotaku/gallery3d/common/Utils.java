@@ -17,6 +17,8 @@
 package org.mariotaku.gallery3d.common;
 
 import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
 
 import android.content.Context;
@@ -332,6 +334,19 @@ public class Utils {
 		return Integer.highestOneBit(n);
 	}
 
+	// Reads into the buffer until it is full or the stream ends, since a
+	// single read() of a stream still being downloaded may return less.
+	// Returns the number of bytes read.
+	public static int readFully(final InputStream is, final byte[] buffer) throws IOException {
+		int length = 0;
+		while (length < buffer.length) {
+			final int n = is.read(buffer, length, buffer.length - length);
+			if (n < 0) break;
+			length += n;
+		}
+		return length;
+	}
+
 	public static void swap(final int[] array, final int i, final int j) {
 		final int temp = array[i];
 		array[i] = array[j];
@@ -21,7 +21,11 @@ import java.util.ArrayList;
 import org.mariotaku.gallery3d.common.Utils;
 
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
 
+// Bitmaps of different configs share the pool limit but are otherwise kept
+// apart: getBitmap() only returns bitmaps of the requested config, so that a
+// decoder can reuse them.
 public class BitmapPool {
 	@SuppressWarnings("unused")
 	private static final String TAG = "BitmapPool";
@@ -56,18 +60,30 @@ public class BitmapPool {
 	}
 
 	// Get a Bitmap from the pool.
-	public synchronized Bitmap getBitmap() {
+	public Bitmap getBitmap() {
+		return getBitmap(Config.ARGB_8888);
+	}
+
+	// Get a Bitmap with the specified config from the pool.
+	public synchronized Bitmap getBitmap(final Config config) {
 		Utils.assertTrue(mOneSize);
-		final int size = mPool.size();
-		return size > 0 ? mPool.remove(size - 1) : null;
+		for (int i = mPool.size() - 1; i >= 0; i--) {
+			if (mPool.get(i).getConfig() == config) return mPool.remove(i);
+		}
+		return null;
 	}
 
 	// Get a Bitmap from the pool with the specified size.
-	public synchronized Bitmap getBitmap(final int width, final int height) {
+	public Bitmap getBitmap(final int width, final int height) {
+		return getBitmap(width, height, Config.ARGB_8888);
+	}
+
+	// Get a Bitmap from the pool with the specified size and config.
+	public synchronized Bitmap getBitmap(final int width, final int height, final Config config) {
 		Utils.assertTrue(!mOneSize);
 		for (int i = mPool.size() - 1; i >= 0; i--) {
 			final Bitmap b = mPool.get(i);
-			if (b.getWidth() == width && b.getHeight() == height) return mPool.remove(i);
+			if (b.getWidth() == width && b.getHeight() == height && b.getConfig() == config) return mPool.remove(i);
 		}
 		return null;
 	}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.mariotaku.gallery3d.common.Utils;
+
+import android.util.Log;
+
+// DecodeCostModel learns how long decodes take on this device, so schedulers
+// can tell a 2MP PNG from a 50MP JPEG before decoding it.
+//
+// Timings are kept per format and per kind of decode, whole image or region.
+// For each, the cost in ms is modelled as a + b * source megapixels + c *
+// decoded megapixels: the second term covers reading the image, the third
+// producing the sampled output. The coefficients are fitted by least squares
+// over exponentially decayed samples, so the model follows the device. Byte
+// sizes are recorded too, to guess the pixel count of images whose size is
+// not known yet.
+//
+// Every sample is predicted before it is learned from, and the relative error
+// is tracked, which gives the error of the model on the recorded trace as it
+// runs, see getRelativeError(). The model is kept in a small file, see save().
+public class DecodeCostModel {
+	private static final String TAG = "DecodeCostModel";
+
+	public static final int OP_DECODE = 0;
+	public static final int OP_REGION_DECODE = 1;
+	private static final int OP_COUNT = 2;
+
+	// Other formats share the last bucket.
+	private static final String[] FORMATS = { "jpeg", "png", "webp", "gif", "bmp" };
+	private static final int FORMAT_COUNT = FORMATS.length + 1;
+
+	private static final int MAGIC = 0x44434d31; // "DCM1"
+	private static final float DECAY = 0.95f;
+	// Buckets with fewer samples don't predict.
+	private static final int MIN_SAMPLES = 5;
+	private static final float MEGA = 1000000f;
+
+	private final File mFile;
+	private final Bucket[] mBuckets = new Bucket[FORMAT_COUNT * OP_COUNT];
+	private boolean mDirty;
+
+	// Loads the model from file if it is there.
+	public DecodeCostModel(final File file) {
+		mFile = file;
+		for (int i = 0; i < mBuckets.length; i++) {
+			mBuckets[i] = new Bucket();
+		}
+		load();
+	}
+
+	// Returns the estimated cost in ms, or -1 if there is not enough data for
+	// the format yet. Unknown sizes are passed as 0; they are guessed from the
+	// byte size or from past decodes.
+	public synchronized float estimateMillis(final String mimeType, final int op, final long sourcePixels,
+			final long decodedPixels, final long bytes) {
+		final Bucket bucket = getBucket(mimeType, op);
+		if (bucket.count < MIN_SAMPLES) return -1;
+		float source = sourcePixels / MEGA;
+		if (sourcePixels <= 0) {
+			source = bytes > 0 && bucket.bytesPerPixel > 0 ? bytes / bucket.bytesPerPixel / MEGA : bucket.meanSource;
+		}
+		final float decoded = decodedPixels > 0 ? decodedPixels / MEGA : Math.min(source, bucket.meanDecoded);
+		return Math.max(0, bucket.predict(source, decoded));
+	}
+
+	// Returns the smoothed relative error of the predictions made for the
+	// recorded decodes, or -1 if nothing was predicted yet.
+	public synchronized float getRelativeError(final String mimeType, final int op) {
+		return getBucket(mimeType, op).error;
+	}
+
+	// Records a decode of sourcePixels of the image, sampled down to
+	// decodedPixels, from an image of the given byte size (0 if unknown).
+	public synchronized void record(final String mimeType, final int op, final long sourcePixels,
+			final long decodedPixels, final long bytes, final float millis) {
+		if (sourcePixels <= 0 || decodedPixels <= 0 || millis < 0) return;
+		final Bucket bucket = getBucket(mimeType, op);
+		final float source = sourcePixels / MEGA;
+		final float decoded = decodedPixels / MEGA;
+		if (bucket.count >= MIN_SAMPLES) {
+			final float error = Math.abs(bucket.predict(source, decoded) - millis) / Math.max(1, millis);
+			bucket.error = bucket.error < 0 ? error : bucket.error + (1 - DECAY) * (error - bucket.error);
+		}
+		bucket.add(source, decoded, millis);
+		if (bytes > 0 && op == OP_DECODE) {
+			final float bytesPerPixel = (float) bytes / sourcePixels;
+			bucket.bytesPerPixel = bucket.bytesPerPixel <= 0 ? bytesPerPixel : bucket.bytesPerPixel + (1 - DECAY)
+					* (bytesPerPixel - bucket.bytesPerPixel);
+		}
+		mDirty = true;
+	}
+
+	// Writes the model to its file if it changed since it was loaded or last
+	// saved.
+	public synchronized void save() {
+		if (!mDirty) return;
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(mBuckets.length);
+			for (final Bucket bucket : mBuckets) {
+				bucket.write(out);
+			}
+			mDirty = false;
+		} catch (final IOException e) {
+			Log.w(TAG, "fail to save " + mFile, e);
+		} finally {
+			Utils.closeSilently(out);
+		}
+	}
+
+	private Bucket getBucket(final String mimeType, final int op) {
+		int format = FORMATS.length;
+		if (mimeType != null) {
+			final String type = mimeType.toLowerCase();
+			for (int i = 0; i < FORMATS.length; i++) {
+				if (type.endsWith(FORMATS[i])) {
+					format = i;
+					break;
+				}
+			}
+		}
+		return mBuckets[op * FORMAT_COUNT + format];
+	}
+
+	private void load() {
+		if (!mFile.isFile()) return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+			if (in.readInt() != MAGIC || in.readInt() != mBuckets.length) return;
+			for (final Bucket bucket : mBuckets) {
+				bucket.read(in);
+			}
+		} catch (final IOException e) {
+			Log.w(TAG, "fail to load " + mFile, e);
+			for (int i = 0; i < mBuckets.length; i++) {
+				mBuckets[i] = new Bucket();
+			}
+		} finally {
+			Utils.closeSilently(in);
+		}
+	}
+
+	// The decayed normal equations of the fit, over the features (1, source,
+	// decoded).
+	private static class Bucket {
+		public int count;
+		public float error = -1;
+		public float bytesPerPixel;
+		public float meanSource;
+		public float meanDecoded;
+		// The upper half of the symmetric matrix, and the right hand side.
+		private final float[] mMatrix = new float[6];
+		private final float[] mVector = new float[3];
+		// The solution, or null if it must be computed again.
+		private float[] mWeights;
+
+		public void add(final float source, final float decoded, final float millis) {
+			final float[] m = mMatrix, v = mVector;
+			for (int i = 0; i < 6; i++) {
+				m[i] *= DECAY;
+			}
+			for (int i = 0; i < 3; i++) {
+				v[i] *= DECAY;
+			}
+			m[0] += 1;
+			m[1] += source;
+			m[2] += decoded;
+			m[3] += source * source;
+			m[4] += source * decoded;
+			m[5] += decoded * decoded;
+			v[0] += millis;
+			v[1] += millis * source;
+			v[2] += millis * decoded;
+			meanSource = count == 0 ? source : meanSource + (1 - DECAY) * (source - meanSource);
+			meanDecoded = count == 0 ? decoded : meanDecoded + (1 - DECAY) * (decoded - meanDecoded);
+			count++;
+			mWeights = null;
+		}
+
+		public float predict(final float source, final float decoded) {
+			if (mWeights == null) {
+				mWeights = solve();
+			}
+			return mWeights[0] + mWeights[1] * source + mWeights[2] * decoded;
+		}
+
+		public void read(final DataInputStream in) throws IOException {
+			count = in.readInt();
+			error = in.readFloat();
+			bytesPerPixel = in.readFloat();
+			meanSource = in.readFloat();
+			meanDecoded = in.readFloat();
+			for (int i = 0; i < 6; i++) {
+				mMatrix[i] = in.readFloat();
+			}
+			for (int i = 0; i < 3; i++) {
+				mVector[i] = in.readFloat();
+			}
+			mWeights = null;
+		}
+
+		public void write(final DataOutputStream out) throws IOException {
+			out.writeInt(count);
+			out.writeFloat(error);
+			out.writeFloat(bytesPerPixel);
+			out.writeFloat(meanSource);
+			out.writeFloat(meanDecoded);
+			for (int i = 0; i < 6; i++) {
+				out.writeFloat(mMatrix[i]);
+			}
+			for (int i = 0; i < 3; i++) {
+				out.writeFloat(mVector[i]);
+			}
+		}
+
+		// Solves the normal equations by Cramer's rule, with a little ridge
+		// so that features which never varied (say, the sample size of the
+		// tiles) don't make the system singular. Falls back to the mean cost.
+		private float[] solve() {
+			final float ridge = 1e-3f * Math.max(1, mMatrix[0]);
+			final double a = mMatrix[0], b = mMatrix[1], c = mMatrix[2];
+			final double d = mMatrix[3] + ridge, e = mMatrix[4], f = mMatrix[5] + ridge;
+			final double det = a * (d * f - e * e) - b * (b * f - e * c) + c * (b * e - d * c);
+			final float[] w = new float[3];
+			if (Math.abs(det) < 1e-9 || mMatrix[0] <= 0) {
+				w[0] = mMatrix[0] > 0 ? mVector[0] / mMatrix[0] : 0;
+				return w;
+			}
+			final double y0 = mVector[0], y1 = mVector[1], y2 = mVector[2];
+			w[0] = (float) ((y0 * (d * f - e * e) - b * (y1 * f - e * y2) + c * (y1 * e - d * y2)) / det);
+			w[1] = (float) ((a * (y1 * f - e * y2) - y0 * (b * f - e * c) + c * (b * y2 - y1 * c)) / det);
+			w[2] = (float) ((a * (d * y2 - y1 * e) - b * (b * y2 - y1 * c) + y0 * (b * e - d * c)) / det);
+			return w;
+		}
+	}
+}
@@ -18,6 +18,7 @@ package org.mariotaku.gallery3d.data;
 
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
 import org.mariotaku.gallery3d.common.ApiHelper;
@@ -32,6 +33,10 @@ import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.Build;
 import android.util.FloatMath;
 import android.util.Log;
@@ -39,6 +44,55 @@ import android.util.Log;
 public class DecodeUtils {
 	private static final String TAG = "DecodeUtils";
 
+	// In opaque mode, images known to have no alpha channel are decoded to
+	// RGB_565, which takes half the memory and upload bandwidth of ARGB_8888.
+	private static volatile boolean sOpaqueModeEnabled = true;
+	private static volatile boolean sDitherEnabled = true;
+	// Learns from the decodes made here, see setCostModel().
+	private static volatile DecodeCostModel sCostModel;
+
+	// Thumbnails of images larger than MAX_WHOLE_PIXELS, or whose sampled
+	// decode would be larger than MAX_SAMPLED_PIXELS, are decoded in bands
+	// of at most BAND_PIXELS through BitmapRegionDecoder, see
+	// decodeThumbnailInBands().
+	private static final long MAX_WHOLE_PIXELS = 48 * 1024 * 1024;
+	private static final long MAX_SAMPLED_PIXELS = 4 * 1024 * 1024;
+	private static final int BAND_PIXELS = 512 * 1024;
+
+	// Sets the config (and dithering) to decode an image with.
+	public static void applyPreferredConfig(final Options options, final boolean opaque) {
+		options.inPreferredConfig = getPreferredConfig(opaque);
+		options.inDither = sDitherEnabled;
+	}
+
+	public static Config getPreferredConfig(final boolean opaque) {
+		return opaque && sOpaqueModeEnabled ? Config.RGB_565 : Config.ARGB_8888;
+	}
+
+	public static DecodeCostModel getCostModel() {
+		return sCostModel;
+	}
+
+	public static boolean isDitherEnabled() {
+		return sDitherEnabled;
+	}
+
+	// Dithering hides banding of RGB_565 images in smooth gradients, at some
+	// decoding cost.
+	public static void setDitherEnabled(final boolean enabled) {
+		sDitherEnabled = enabled;
+	}
+
+	// Thumbnail decodes are timed and recorded into the model, or not at all
+	// if it is null.
+	public static void setCostModel(final DecodeCostModel model) {
+		sCostModel = model;
+	}
+
+	public static void setOpaqueModeEnabled(final boolean enabled) {
+		sOpaqueModeEnabled = enabled;
+	}
+
 	public static BitmapRegionDecoder createBitmapRegionDecoder(final JobContext jc, final byte[] bytes,
 			final int offset, final int length, final boolean shareable) {
 		if (offset < 0 || length <= 0 || offset + length > bytes.length)
@@ -96,7 +150,9 @@ public class DecodeUtils {
 		if (options.inSampleSize < 1) {
 			options.inSampleSize = 1;
 		}
-		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		if (options.inPreferredConfig != Config.RGB_565) {
+			options.inPreferredConfig = Config.ARGB_8888;
+		}
 		options.inBitmap = options.inSampleSize == 1 ? findCachedBitmap(pool, jc, data, offset, length, options) : null;
 		try {
 			final Bitmap bitmap = decode(jc, data, offset, length, options);
@@ -151,7 +207,9 @@ public class DecodeUtils {
 		if (options.inSampleSize < 1) {
 			options.inSampleSize = 1;
 		}
-		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		if (options.inPreferredConfig != Config.RGB_565) {
+			options.inPreferredConfig = Config.ARGB_8888;
+		}
 		options.inBitmap = options.inSampleSize == 1 ? findCachedBitmap(pool, jc, fileDescriptor, options) : null;
 		try {
 			final Bitmap bitmap = DecodeUtils.decode(jc, fileDescriptor, options);
@@ -211,7 +269,7 @@ public class DecodeUtils {
 		return ensureGLCompatibleBitmap(BitmapFactory.decodeByteArray(data, 0, data.length, options));
 	}
 
-	public static Bitmap decodeThumbnail(final JobContext jc, final FileDescriptor fd, Options options,
+	public static Bitmap decodeThumbnail(final JobContext jc, final byte[] data, Options options,
 			final int targetSize, final int type) {
 		if (options == null) {
 			options = new Options();
@@ -219,50 +277,90 @@ public class DecodeUtils {
 		jc.setCancelListener(new DecodeCanceller(options));
 
 		options.inJustDecodeBounds = true;
-		BitmapFactory.decodeFileDescriptor(fd, null, options);
+		BitmapFactory.decodeByteArray(data, 0, data.length, options);
 		if (jc.isCancelled()) return null;
 
-		final int w = options.outWidth;
-		final int h = options.outHeight;
+		setThumbnailSampleSize(options, targetSize, type);
+		options.inJustDecodeBounds = false;
+		if (isTooLargeToDecodeWhole(options)) {
+			final Bitmap bitmap = decodeThumbnailInBands(jc,
+					createBitmapRegionDecoder(jc, data, 0, data.length, false), options, targetSize, type);
+			if (bitmap != null || jc.isCancelled()) return bitmap;
+		}
+		setOptionsMutable(options);
 
-		if (type == MediaItem.TYPE_MICROTHUMBNAIL) {
-			// We center-crop the original image as it's micro thumbnail. In
-			// this case,
-			// we want to make sure the shorter side >= "targetSize".
-			final float scale = (float) targetSize / Math.min(w, h);
-			options.inSampleSize = BitmapUtils.computeSampleSizeLarger(scale);
+		final long sourcePixels = (long) options.outWidth * options.outHeight;
+		final long startTime = System.nanoTime();
+		final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		recordDecode(options.outMimeType, sourcePixels, bitmap, data.length, startTime);
+		return resizeThumbnail(bitmap, targetSize, type);
+	}
 
-			// For an extremely wide image, e.g. 300x30000, we may got OOM when
-			// decoding
-			// it for TYPE_MICROTHUMBNAIL. So we add a max number of pixels
-			// limit here.
-			final int MAX_PIXEL_COUNT = 640000; // 400 x 1600
-			if (w / options.inSampleSize * (h / options.inSampleSize) > MAX_PIXEL_COUNT) {
-				options.inSampleSize = BitmapUtils.computeSampleSize(FloatMath.sqrt((float) MAX_PIXEL_COUNT / (w * h)));
-			}
-		} else {
-			// For screen nail, we only want to keep the longer side >=
-			// targetSize.
-			final float scale = (float) targetSize / Math.max(w, h);
-			options.inSampleSize = BitmapUtils.computeSampleSizeLarger(scale);
+	public static Bitmap decodeThumbnail(final JobContext jc, final FileDescriptor fd, final Options options,
+			final int targetSize, final int type) {
+		return decodeThumbnail(jc, fd, 0, options, targetSize, type);
+	}
+
+	// fileSize is the size of the file in bytes, or 0 if it is not known.
+	public static Bitmap decodeThumbnail(final JobContext jc, final FileDescriptor fd, final long fileSize,
+			Options options, final int targetSize, final int type) {
+		if (options == null) {
+			options = new Options();
 		}
+		jc.setCancelListener(new DecodeCanceller(options));
+
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFileDescriptor(fd, null, options);
+		if (jc.isCancelled()) return null;
 
+		setThumbnailSampleSize(options, targetSize, type);
 		options.inJustDecodeBounds = false;
+		if (isTooLargeToDecodeWhole(options)) {
+			final Bitmap bitmap = decodeThumbnailInBands(jc, createBitmapRegionDecoder(jc, fd, false), options,
+					targetSize, type);
+			if (bitmap != null || jc.isCancelled()) return bitmap;
+		}
 		setOptionsMutable(options);
 
-		Bitmap result = BitmapFactory.decodeFileDescriptor(fd, null, options);
-		if (result == null) return null;
+		final long sourcePixels = (long) options.outWidth * options.outHeight;
+		final long startTime = System.nanoTime();
+		final Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fd, null, options);
+		recordDecode(options.outMimeType, sourcePixels, bitmap, fileSize, startTime);
+		return resizeThumbnail(bitmap, targetSize, type);
+	}
 
-		// We need to resize down if the decoder does not support inSampleSize
-		// (For example, GIF images)
-		final float scale = (float) targetSize
-				/ (type == MediaItem.TYPE_MICROTHUMBNAIL ? Math.min(result.getWidth(), result.getHeight()) : Math.max(
-						result.getWidth(), result.getHeight()));
+	// Decodes from a stream which supports mark() and reset() without a limit,
+	// such as one that is still being downloaded. The time it takes is not
+	// recorded, as it includes the wait for the bytes.
+	public static Bitmap decodeThumbnail(final JobContext jc, final InputStream is, Options options,
+			final int targetSize, final int type) {
+		if (options == null) {
+			options = new Options();
+		}
+		jc.setCancelListener(new DecodeCanceller(options));
 
-		if (scale <= 0.5) {
-			result = BitmapUtils.resizeBitmapByScale(result, scale, true);
+		try {
+			is.mark(Integer.MAX_VALUE);
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeStream(is, null, options);
+			if (jc.isCancelled()) return null;
+			is.reset();
+
+			setThumbnailSampleSize(options, targetSize, type);
+			options.inJustDecodeBounds = false;
+			if (isTooLargeToDecodeWhole(options)) {
+				final Bitmap bitmap = decodeThumbnailInBands(jc, createBitmapRegionDecoder(jc, is, false), options,
+						targetSize, type);
+				if (bitmap != null || jc.isCancelled()) return bitmap;
+				is.reset();
+			}
+			setOptionsMutable(options);
+
+			return resizeThumbnail(BitmapFactory.decodeStream(is, null, options), targetSize, type);
+		} catch (final IOException e) {
+			Log.w(TAG, "fail to decode stream", e);
+			return null;
 		}
-		return ensureGLCompatibleBitmap(result);
 	}
 
 	public static Bitmap decodeThumbnail(final JobContext jc, final String filePath, final Options options,
@@ -271,7 +369,7 @@ public class DecodeUtils {
 		try {
 			fis = new FileInputStream(filePath);
 			final FileDescriptor fd = fis.getFD();
-			return decodeThumbnail(jc, fd, options, targetSize, type);
+			return decodeThumbnail(jc, fd, fis.getChannel().size(), options, targetSize, type);
 		} catch (final Exception ex) {
 			Log.w(TAG, ex);
 			return null;
@@ -297,18 +395,154 @@ public class DecodeUtils {
 		}
 	}
 
+	// Decodes the thumbnail decodeThumbnail() would, one horizontal band at a
+	// time, drawing each band scaled onto the result. Only the result and one
+	// band are in memory at once, whatever the size of the image. For micro
+	// thumbnails only the center square, which is all the caller keeps, is
+	// decoded. The decoder is recycled. Returns null if the decoder is null,
+	// fails, or the job is cancelled.
+	@TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
+	private static Bitmap decodeThumbnailInBands(final JobContext jc, final BitmapRegionDecoder decoder,
+			final Options options, final int targetSize, final int type) {
+		if (decoder == null) return null;
+		try {
+			final int w = decoder.getWidth();
+			final int h = decoder.getHeight();
+			final Rect source = new Rect(0, 0, w, h);
+			if (type == MediaItem.TYPE_MICROTHUMBNAIL) {
+				final int side = Math.min(w, h);
+				source.set((w - side) / 2, (h - side) / 2, (w + side) / 2, (h + side) / 2);
+			}
+			final float scale = Math.min(1f, (float) targetSize
+					/ (type == MediaItem.TYPE_MICROTHUMBNAIL ? source.width() : Math.max(w, h)));
+			final int width = Math.max(1, Math.round(source.width() * scale));
+			final int height = Math.max(1, Math.round(source.height() * scale));
+
+			// Decode at no less than the target resolution, and let the
+			// canvas scale down the rest of the way.
+			final Options bandOptions = new Options();
+			bandOptions.inSampleSize = Utils.prevPowerOf2(Math.max(1, (int) (1 / scale)));
+			bandOptions.inPreferredConfig = options.inPreferredConfig;
+			bandOptions.inDither = options.inDither;
+			final boolean reuseBands = ApiHelper.HAS_REUSING_BITMAP_IN_BITMAP_REGION_DECODER;
+			if (reuseBands) {
+				setOptionsMutable(bandOptions);
+			}
+			final int sampleSize = bandOptions.inSampleSize;
+			final int sampledWidth = (source.width() + sampleSize - 1) / sampleSize;
+			final int bandHeight = Math.max(1, BAND_PIXELS / sampledWidth) * sampleSize;
+
+			final Bitmap result = Bitmap.createBitmap(width, height, options.inPreferredConfig);
+			final Canvas canvas = new Canvas(result);
+			final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+			paint.setDither(options.inDither);
+			final float scaleY = (float) height / source.height();
+			final Rect band = new Rect();
+			final RectF target = new RectF();
+			Bitmap bitmap = null;
+			for (int top = source.top; top < source.bottom; top += bandHeight) {
+				band.set(source.left, top, source.right, Math.min(top + bandHeight, source.bottom));
+				// All bands but the last have the same size, so each can be
+				// decoded into the previous one.
+				if (bitmap != null && (!reuseBands || band.height() != bandHeight)) {
+					bitmap.recycle();
+					bitmap = null;
+				}
+				bandOptions.inBitmap = bitmap;
+				bitmap = jc.isCancelled() ? null : decoder.decodeRegion(band, bandOptions);
+				if (bitmap == null) {
+					if (bandOptions.inBitmap != null) {
+						bandOptions.inBitmap.recycle();
+					}
+					result.recycle();
+					return null;
+				}
+				target.set(0, (top - source.top) * scaleY, width, (band.bottom - source.top) * scaleY);
+				canvas.drawBitmap(bitmap, null, target, paint);
+			}
+			bitmap.recycle();
+			return result;
+		} catch (final Throwable t) {
+			Log.w(TAG, "fail to decode in bands", t);
+			return null;
+		} finally {
+			decoder.recycle();
+		}
+	}
+
 	private static Bitmap findCachedBitmap(final BitmapPool pool, final JobContext jc, final byte[] data,
 			final int offset, final int length, final Options options) {
-		if (pool.isOneSize()) return pool.getBitmap();
+		if (pool.isOneSize()) return pool.getBitmap(options.inPreferredConfig);
 		decodeBounds(jc, data, offset, length, options);
-		return pool.getBitmap(options.outWidth, options.outHeight);
+		return pool.getBitmap(options.outWidth, options.outHeight, options.inPreferredConfig);
 	}
 
 	private static Bitmap findCachedBitmap(final BitmapPool pool, final JobContext jc,
 			final FileDescriptor fileDescriptor, final Options options) {
-		if (pool.isOneSize()) return pool.getBitmap();
+		if (pool.isOneSize()) return pool.getBitmap(options.inPreferredConfig);
 		decodeBounds(jc, fileDescriptor, options);
-		return pool.getBitmap(options.outWidth, options.outHeight);
+		return pool.getBitmap(options.outWidth, options.outHeight, options.inPreferredConfig);
+	}
+
+	// Returns true if decoding the whole image with the sample size in
+	// options may take much more memory than the thumbnail needs.
+	private static boolean isTooLargeToDecodeWhole(final Options options) {
+		final long pixels = (long) options.outWidth * options.outHeight;
+		final long sampleArea = (long) options.inSampleSize * options.inSampleSize;
+		return pixels > MAX_WHOLE_PIXELS || pixels / sampleArea > MAX_SAMPLED_PIXELS;
+	}
+
+	// Sets inSampleSize for a thumbnail from the bounds in options.outWidth
+	// and options.outHeight.
+	private static void setThumbnailSampleSize(final Options options, final int targetSize, final int type) {
+		final int w = options.outWidth;
+		final int h = options.outHeight;
+
+		if (type == MediaItem.TYPE_MICROTHUMBNAIL) {
+			// We center-crop the original image as it's micro thumbnail. In
+			// this case,
+			// we want to make sure the shorter side >= "targetSize".
+			final float scale = (float) targetSize / Math.min(w, h);
+			options.inSampleSize = BitmapUtils.computeSampleSizeLarger(scale);
+
+			// For an extremely wide image, e.g. 300x30000, we may got OOM when
+			// decoding
+			// it for TYPE_MICROTHUMBNAIL. So we add a max number of pixels
+			// limit here.
+			final int MAX_PIXEL_COUNT = 640000; // 400 x 1600
+			if (w / options.inSampleSize * (h / options.inSampleSize) > MAX_PIXEL_COUNT) {
+				options.inSampleSize = BitmapUtils.computeSampleSize(FloatMath.sqrt((float) MAX_PIXEL_COUNT / (w * h)));
+			}
+		} else {
+			// For screen nail, we only want to keep the longer side >=
+			// targetSize.
+			final float scale = (float) targetSize / Math.max(w, h);
+			options.inSampleSize = BitmapUtils.computeSampleSizeLarger(scale);
+		}
+	}
+
+	private static void recordDecode(final String mimeType, final long sourcePixels, final Bitmap bitmap,
+			final long bytes, final long startTime) {
+		final DecodeCostModel model = sCostModel;
+		if (model == null || bitmap == null) return;
+		final float millis = (System.nanoTime() - startTime) / 1000000f;
+		final long decodedPixels = (long) bitmap.getWidth() * bitmap.getHeight();
+		model.record(mimeType, DecodeCostModel.OP_DECODE, sourcePixels, decodedPixels, bytes, millis);
+	}
+
+	private static Bitmap resizeThumbnail(Bitmap result, final int targetSize, final int type) {
+		if (result == null) return null;
+
+		// We need to resize down if the decoder does not support inSampleSize
+		// (For example, GIF images)
+		final float scale = (float) targetSize
+				/ (type == MediaItem.TYPE_MICROTHUMBNAIL ? Math.min(result.getWidth(), result.getHeight()) : Math.max(
+						result.getWidth(), result.getHeight()));
+
+		if (scale <= 0.5) {
+			result = BitmapUtils.resizeBitmapByScale(result, scale, true);
+		}
+		return ensureGLCompatibleBitmap(result);
 	}
 
 	private static class DecodeCanceller implements CancelListener {
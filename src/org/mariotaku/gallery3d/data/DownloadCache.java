@@ -16,12 +16,19 @@
 
 package org.mariotaku.gallery3d.data;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.HashSet;
 
 import org.mariotaku.gallery3d.app.GalleryApp;
+import org.mariotaku.gallery3d.common.ApiHelper;
+import org.mariotaku.gallery3d.common.BitmapUtils;
 import org.mariotaku.gallery3d.common.LruCache;
 import org.mariotaku.gallery3d.common.Utils;
 import org.mariotaku.gallery3d.data.DownloadEntry.Columns;
@@ -37,20 +44,42 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class DownloadCache {
 	private static final String TAG = "DownloadCache";
 	private static final int MAX_DELETE_COUNT = 16;
 	private static final int LRU_CAPACITY = 4;
+	// Bodies up to this size are kept in memory and written to disk behind
+	// the decode.
+	private static final int DEFAULT_MEMORY_BODY_LIMIT = 128 * 1024;
+	// Larger images are not transcoded, decoding them whole would need too
+	// much memory.
+	private static final int TRANSCODE_MAX_PIXELS = 4 * 1024 * 1024;
+	private static final int TRANSCODE_QUALITY = 90;
+	// The transcoded file is kept only if it saves at least this fraction.
+	private static final float TRANSCODE_MIN_SAVING = 0.1f;
+	// Images larger than what we transcode get a tile pyramid, see
+	// TilePyramid, written beside the cached file once they are zoomed into.
+	// Level 0 is left to the region decoder, which reads it straight from the
+	// original without a second lossy encode.
+	private static final int PYRAMID_MIN_PIXELS = TRANSCODE_MAX_PIXELS;
+	private static final int PYRAMID_FIRST_LEVEL = 1;
+	private static final String PYRAMID_SUFFIX = ".pyr";
 
 	private static final String TABLE_NAME = DownloadEntry.SCHEMA.getTableName();
 
-	private static final String QUERY_PROJECTION[] = { Columns.ID, Columns.DATA };
+	private static final String QUERY_PROJECTION[] = { Columns.ID, Columns.DATA, Columns.DECODE_COUNT,
+			Columns.TRANSCODED };
 	private static final String WHERE_HASH_AND_URL = String.format("%s = ? AND %s = ?", Columns.HASH_CODE,
 			Columns.CONTENT_URL);
 	private static final int QUERY_INDEX_ID = 0;
 	private static final int QUERY_INDEX_DATA = 1;
+	private static final int QUERY_INDEX_DECODE_COUNT = 2;
+	private static final int QUERY_INDEX_TRANSCODED = 3;
 
 	private static final String FREESPACE_PROJECTION[] = { Columns.ID, Columns.DATA, Columns.CONTENT_URL,
 			Columns.CONTENT_SIZE };
@@ -66,19 +95,37 @@ public class DownloadCache {
 	private static final int SUM_INDEX_SUM = 0;
 
 	private final LruCache<String, Entry> mEntryMap = new LruCache<String, Entry>(LRU_CAPACITY);
+	// Entries kept in memory until PersistJob has inserted them, so they
+	// can't be evicted from mEntryMap before they can be found in the
+	// database. Guarded by mEntryMap.
+	private final HashMap<String, Entry> mPendingEntries = new HashMap<String, Entry>();
 	private final HashMap<String, DownloadTask> mTaskMap = new HashMap<String, DownloadTask>();
+	private final ThroughputEstimator mThroughputEstimator = new ThroughputEstimator();
 	private final File mRoot;
 	private final GalleryApp mApplication;
 	private final SQLiteDatabase mDatabase;
 	private final long mCapacity;
 
+	private volatile DownloadTransport mTransport;
+	private volatile int mMemoryBodyLimit = DEFAULT_MEMORY_BODY_LIMIT;
+	private volatile boolean mTranscodeEnabled;
+	private volatile int mPyramidTileSize;
+	private volatile int mPyramidBorderSize;
+
 	private long mTotalBytes = 0;
 	private boolean mInitialized = false;
 
 	public DownloadCache(final GalleryApp application, final File root, final long capacity) {
+		this(application, root, capacity, new HttpDownloadTransport(Utils.getUserAgent(application
+				.getAndroidContext())));
+	}
+
+	public DownloadCache(final GalleryApp application, final File root, final long capacity,
+			final DownloadTransport transport) {
 		mRoot = Utils.checkNotNull(root);
 		mApplication = Utils.checkNotNull(application);
 		mCapacity = capacity;
+		mTransport = Utils.checkNotNull(transport);
 		mDatabase = new DatabaseHelper(application.getAndroidContext()).getWritableDatabase();
 	}
 
@@ -90,12 +137,12 @@ public class DownloadCache {
 		final String stringUrl = url.toString();
 
 		// First find in the entry-pool
-		synchronized (mEntryMap) {
-			final Entry entry = mEntryMap.get(stringUrl);
-			if (entry != null) {
-				updateLastAccess(entry.mId);
-				return entry;
+		final Entry cached = findEntryInMemory(stringUrl);
+		if (cached != null) {
+			if (cached.mId != 0) {
+				updateLastAccess(cached.mId);
 			}
+			return cached;
 		}
 
 		// Then, find it in database
@@ -121,6 +168,109 @@ public class DownloadCache {
 		return proxy.get(jc);
 	}
 
+	// Returns a stream of the body of the url while it is being downloaded,
+	// so decoding can start on its first bytes. Returns null if the body is
+	// already in the cache; use download() then. Reads throw an IOException
+	// if the download fails or the job is cancelled. Closing the stream of a
+	// cancelled job before the end gives up its interest in the download, as
+	// cancelling download() does; otherwise the download goes on to the cache.
+	public GrowingFileInputStream openStream(final JobContext jc, final URL url) {
+		if (!mInitialized) {
+			initialize();
+		}
+
+		final String stringUrl = url.toString();
+		if (findEntryInMemory(stringUrl) != null) return null;
+
+		final TaskProxy proxy = new TaskProxy();
+		synchronized (mTaskMap) {
+			if (findEntryInDatabase(stringUrl) != null) return null;
+			DownloadTask task = mTaskMap.get(stringUrl);
+			if (task == null) {
+				task = new DownloadTask(stringUrl);
+				mTaskMap.put(stringUrl, task);
+				task.mFuture = mApplication.getThreadPool().submit(task, task);
+			}
+			task.addProxy(proxy);
+			return new TaskStream(task, proxy, jc);
+		}
+	}
+
+	public ThroughputEstimator getThroughputEstimator() {
+		return mThroughputEstimator;
+	}
+
+	public DownloadTransport getTransport() {
+		return mTransport;
+	}
+
+	// Marks an entry as the original of an image, which is what the region
+	// decoder reads at full resolution once the user zooms in. Such an entry
+	// is never transcoded, whether transcoding is enabled or not. Called
+	// every time the original is fetched, since the mark is not stored.
+	public void keepOriginal(final Entry entry) {
+		synchronized (entry) {
+			entry.mKeepOriginal = true;
+		}
+	}
+
+	// Called by the decoders every time an entry is decoded. Once an entry
+	// turns out to be hot, it is rewritten as WebP in the background if
+	// transcoding is enabled.
+	public void recordDecode(final Entry entry) {
+		final int count;
+		synchronized (entry) {
+			count = ++entry.mDecodeCount;
+			// Entries still being written behind are not in the database yet,
+			// PersistJob stores their count when it inserts them.
+			if (entry.mId == 0) return;
+		}
+		// Keep the database off the decode path.
+		mApplication.getThreadPool().submit(new DecodeCountJob(entry, count));
+	}
+
+	// Writes the tile pyramid of a large entry in the background, unless it
+	// has one already. Called when the user first zooms into the image, since
+	// the pyramid doesn't pay off for images only looked at whole.
+	public void requestPyramid(final Entry entry) {
+		if (mPyramidTileSize <= 0 || entry.mId == 0) return;
+		synchronized (entry) {
+			if (entry.mPyramidRequested) return;
+			entry.mPyramidRequested = true;
+		}
+		mApplication.getThreadPool().submit(new PyramidJob(entry, mPyramidTileSize, mPyramidBorderSize));
+	}
+
+	public void setMemoryBodyLimit(final int bytes) {
+		mMemoryBodyLimit = Math.max(0, bytes);
+	}
+
+	// Enables rewriting hot JPEG and PNG entries as WebP, except those marked
+	// with keepOriginal(). Off by default, since the rewrite is lossy.
+	public void setTranscodeEnabled(final boolean enabled) {
+		mTranscodeEnabled = enabled;
+	}
+
+	// Sets the tiles of the pyramids written for large images, which must be
+	// those TileImageView asks for. A tile size of 0 (the default) disables
+	// the pyramids.
+	public void setTilePyramidSize(final int tileSize, final int borderSize) {
+		mPyramidBorderSize = borderSize;
+		mPyramidTileSize = tileSize;
+	}
+
+	// Replaces the transport used by downloads started after this call.
+	public void setTransport(final DownloadTransport transport) {
+		mTransport = Utils.checkNotNull(transport);
+	}
+
+	private Entry findEntryInMemory(final String stringUrl) {
+		synchronized (mEntryMap) {
+			final Entry entry = mEntryMap.get(stringUrl);
+			return entry != null ? entry : mPendingEntries.get(stringUrl);
+		}
+	}
+
 	private Entry findEntryInDatabase(final String stringUrl) {
 		final long hash = Utils.crc64Long(stringUrl);
 		final String whereArgs[] = { String.valueOf(hash), stringUrl };
@@ -135,6 +285,8 @@ public class DownloadCache {
 					entry = mEntryMap.get(stringUrl);
 					if (entry == null) {
 						entry = new Entry(id, file);
+						entry.mDecodeCount = cursor.getInt(QUERY_INDEX_DECODE_COUNT);
+						entry.mTranscoded = cursor.getInt(QUERY_INDEX_TRANSCODED) != 0;
 						mEntryMap.put(stringUrl, entry);
 					}
 				}
@@ -164,6 +316,7 @@ public class DownloadCache {
 					--maxDeleteFileCount;
 					mTotalBytes -= size;
 					new File(path).delete();
+					new File(path + PYRAMID_SUFFIX).delete();
 					mDatabase.delete(TABLE_NAME, ID_WHERE, new String[] { String.valueOf(id) });
 				} else {
 					// skip delete, since it is being used
@@ -196,13 +349,14 @@ public class DownloadCache {
 		}
 	}
 
-	private synchronized long insertEntry(final String url, final File file) {
+	private synchronized long insertEntry(final String url, final File file, final int decodeCount) {
 		final long size = file.length();
 		mTotalBytes += size;
 
 		final ContentValues values = new ContentValues();
 		final String hashCode = String.valueOf(Utils.crc64Long(url));
 		values.put(Columns.DATA, file.getAbsolutePath());
+		values.put(Columns.DECODE_COUNT, decodeCount);
 		values.put(Columns.HASH_CODE, hashCode);
 		values.put(Columns.CONTENT_URL, url);
 		values.put(Columns.CONTENT_SIZE, size);
@@ -210,6 +364,53 @@ public class DownloadCache {
 		return mDatabase.insert(TABLE_NAME, "", values);
 	}
 
+	// Moves a freshly written pyramid beside the entry and counts it in the
+	// size of the entry. Returns false if the entry has been evicted in the
+	// meantime, or is not on disk yet.
+	public synchronized boolean addPyramidFile(final Entry entry, final File file) {
+		final long size = file.length();
+		final ContentValues values = new ContentValues();
+		values.put(Columns.CONTENT_SIZE, entry.cacheFile.length() + size);
+		final String[] whereArgs = { String.valueOf(entry.mId) };
+		if (mDatabase.update(TABLE_NAME, values, ID_WHERE, whereArgs) == 0) return false;
+		if (!file.renameTo(entry.getPyramidFile())) {
+			values.put(Columns.CONTENT_SIZE, entry.cacheFile.length());
+			mDatabase.update(TABLE_NAME, values, ID_WHERE, whereArgs);
+			return false;
+		}
+		mTotalBytes += size;
+		return true;
+	}
+
+	// Replaces the file of an entry with a transcoded one. Returns false if
+	// the entry has been evicted or marked as an original in the meantime.
+	private synchronized boolean replaceEntryFile(final Entry entry, final File file) {
+		synchronized (entry) {
+			if (entry.mKeepOriginal) return false;
+		}
+		final long oldSize = entry.cacheFile.length();
+		final long newSize = file.length();
+		final ContentValues values = new ContentValues();
+		values.put(Columns.CONTENT_SIZE, newSize + entry.getPyramidFile().length());
+		values.put(Columns.TRANSCODED, true);
+		final String[] whereArgs = { String.valueOf(entry.mId) };
+		if (mDatabase.update(TABLE_NAME, values, ID_WHERE, whereArgs) == 0) return false;
+		// Decoders that already opened the old file keep reading it.
+		if (!file.renameTo(entry.cacheFile)) {
+			values.put(Columns.CONTENT_SIZE, oldSize);
+			mDatabase.update(TABLE_NAME, values, ID_WHERE, whereArgs);
+			return false;
+		}
+		mTotalBytes += newSize - oldSize;
+		return true;
+	}
+
+	private void setTranscoded(final Entry entry) {
+		final ContentValues values = new ContentValues();
+		values.put(Columns.TRANSCODED, true);
+		mDatabase.update(TABLE_NAME, values, ID_WHERE, new String[] { String.valueOf(entry.mId) });
+	}
+
 	private void updateLastAccess(final long id) {
 		final ContentValues values = new ContentValues();
 		values.put(Columns.LAST_ACCESS, System.currentTimeMillis());
@@ -218,11 +419,30 @@ public class DownloadCache {
 
 	public class Entry {
 		public File cacheFile;
-		protected long mId;
+		// The body of a small download, or null. While this is set, cacheFile
+		// may still be being written, so readers should prefer it.
+		public final byte[] data;
+		protected volatile long mId;
+		// Guarded by the entry itself.
+		int mDecodeCount;
+		boolean mTranscoded;
+		boolean mKeepOriginal;
+		boolean mPyramidRequested;
 
 		Entry(final long id, final File cacheFile) {
+			this(id, cacheFile, null);
+		}
+
+		Entry(final long id, final File cacheFile, final byte[] data) {
 			mId = id;
 			this.cacheFile = Utils.checkNotNull(cacheFile);
+			this.data = data;
+		}
+
+		// The tile pyramid of the entry. The file exists only for large
+		// images, once it has been written.
+		public File getPyramidFile() {
+			return new File(cacheFile.getPath() + PYRAMID_SUFFIX);
 		}
 	}
 
@@ -262,7 +482,7 @@ public class DownloadCache {
 
 	private final class DatabaseHelper extends SQLiteOpenHelper {
 		public static final String DATABASE_NAME = "download.db";
-		public static final int DATABASE_VERSION = 2;
+		public static final int DATABASE_VERSION = 3;
 
 		public DatabaseHelper(final Context context) {
 			super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -287,9 +507,21 @@ public class DownloadCache {
 		}
 	}
 
-	private class DownloadTask implements Job<File>, FutureListener<File> {
+	private static class Body {
+		public final File file;
+		public final byte[] data;
+
+		public Body(final File file, final byte[] data) {
+			this.file = file;
+			this.data = data;
+		}
+	}
+
+	private class DownloadTask implements Job<Body>, FutureListener<Body> {
 		private final HashSet<TaskProxy> mProxySet = new HashSet<TaskProxy>();
-		private Future<File> mFuture;
+		// What is downloaded so far, for the streams of openStream().
+		private final GrowingFileInputStream.Source mSource = new GrowingFileInputStream.Source();
+		private Future<Body> mFuture;
 		private final String mUrl;
 
 		public DownloadTask(final String url) {
@@ -303,11 +535,19 @@ public class DownloadCache {
 		}
 
 		@Override
-		public void onFutureDone(final Future<File> future) {
-			final File file = future.get();
-			long id = 0;
-			if (file != null) { // insert to database
-				id = insertEntry(mUrl, file);
+		public void onFutureDone(final Future<Body> future) {
+			final Body body = future.get();
+			Entry entry = null;
+			if (body != null && body.data != null) {
+				// The body stays in memory; write it to disk in the background
+				// and insert it to database once it is there.
+				entry = new Entry(0, body.file, body.data);
+				synchronized (mEntryMap) {
+					mPendingEntries.put(mUrl, entry);
+				}
+				mApplication.getThreadPool().submit(new PersistJob(mUrl, entry));
+			} else if (body != null) { // insert to database
+				entry = new Entry(insertEntry(mUrl, body.file, 0), body.file);
 			}
 
 			if (future.isCancelled()) {
@@ -316,10 +556,8 @@ public class DownloadCache {
 			}
 
 			synchronized (mTaskMap) {
-				Entry entry = null;
 				synchronized (mEntryMap) {
-					if (file != null) {
-						entry = new Entry(id, file);
+					if (entry != null) {
 						Utils.assertTrue(mEntryMap.put(mUrl, entry) == null);
 					}
 				}
@@ -342,27 +580,348 @@ public class DownloadCache {
 		}
 
 		@Override
-		public File run(final JobContext jc) {
+		public Body run(final JobContext jc) {
 			// TODO: utilize etag
 			jc.setMode(ThreadPool.MODE_NETWORK);
 			File tempFile = null;
+			MemoryFirstOutputStream output = null;
 			try {
 				final URL url = new URL(mUrl);
 				tempFile = File.createTempFile("cache", ".tmp", mRoot);
-				// download from url to tempFile
+				mSource.setFile(tempFile);
+				// download from url to memory, or to tempFile if it is too big
+				output = new MemoryFirstOutputStream(tempFile, mMemoryBodyLimit, mSource);
 				jc.setMode(ThreadPool.MODE_NETWORK);
-				final boolean downloaded = DownloadUtils.requestDownload(jc, url, tempFile);
+				final long startTime = SystemClock.elapsedRealtime();
+				final boolean downloaded = DownloadUtils.download(jc, mTransport, url, output);
+				output.close();
 				jc.setMode(ThreadPool.MODE_NONE);
-				if (downloaded) return tempFile;
+				if (downloaded) {
+					mThroughputEstimator.addSample(output.getCount(), SystemClock.elapsedRealtime() - startTime);
+					final byte[] data = output.getData();
+					mSource.onFinished(data);
+					return new Body(tempFile, data);
+				}
 			} catch (final Exception e) {
 				Log.e(TAG, String.format("fail to download %s", mUrl), e);
 			} finally {
+				Utils.closeSilently(output);
 				jc.setMode(ThreadPool.MODE_NONE);
 			}
+			mSource.onFailed();
 			if (tempFile != null) {
 				tempFile.delete();
 			}
 			return null;
 		}
 	}
+
+	// Buffers the body in memory until it grows past the limit, then moves it
+	// to the file and keeps writing there. What reaches the file is published
+	// to the source.
+	private static class MemoryFirstOutputStream extends OutputStream {
+		private final File mFile;
+		private final int mLimit;
+		private final GrowingFileInputStream.Source mSource;
+		private ByteArrayOutputStream mBuffer;
+		private OutputStream mFileOutput;
+		private long mCount;
+
+		public MemoryFirstOutputStream(final File file, final int limit, final GrowingFileInputStream.Source source)
+				throws IOException {
+			mFile = file;
+			mLimit = limit;
+			mSource = source;
+			if (limit > 0) {
+				mBuffer = new ByteArrayOutputStream();
+			} else {
+				mFileOutput = new FileOutputStream(file);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mFileOutput != null) {
+				mFileOutput.close();
+			}
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+
+		// Returns the body if it fits in memory, or null if it is in the file.
+		public byte[] getData() {
+			return mBuffer == null ? null : mBuffer.toByteArray();
+		}
+
+		@Override
+		public void write(final byte[] buffer, final int offset, final int count) throws IOException {
+			if (mBuffer != null && mCount + count > mLimit) {
+				mFileOutput = new FileOutputStream(mFile);
+				mBuffer.writeTo(mFileOutput);
+				mBuffer = null;
+			}
+			if (mBuffer != null) {
+				mBuffer.write(buffer, offset, count);
+				mCount += count;
+			} else {
+				mFileOutput.write(buffer, offset, count);
+				mCount += count;
+				mSource.onWritten(mCount);
+			}
+		}
+
+		@Override
+		public void write(final int oneByte) throws IOException {
+			write(new byte[] { (byte) oneByte }, 0, 1);
+		}
+	}
+
+	private class TaskStream extends GrowingFileInputStream {
+		private final DownloadTask mTask;
+		private final TaskProxy mProxy;
+		private final JobContext mJobContext;
+		private boolean mClosed;
+
+		public TaskStream(final DownloadTask task, final TaskProxy proxy, final JobContext jc) {
+			super(task.mSource, jc);
+			mTask = task;
+			mProxy = proxy;
+			mJobContext = jc;
+		}
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			if (mClosed) return;
+			mClosed = true;
+			if (mJobContext.isCancelled() && !mTask.mSource.isDone()) {
+				mTask.removeProxy(mProxy);
+			}
+		}
+	}
+
+	// Stores the decode count of an entry, and starts transcoding it once it
+	// is decoded often enough.
+	private class DecodeCountJob implements Job<Void> {
+		private final Entry mEntry;
+		private final int mCount;
+
+		public DecodeCountJob(final Entry entry, final int count) {
+			mEntry = entry;
+			mCount = count;
+		}
+
+		@Override
+		public Void run(final JobContext jc) {
+			// Disk I/O only, don't hold a CPU slot.
+			jc.setMode(ThreadPool.MODE_NONE);
+			final ContentValues values = new ContentValues();
+			values.put(Columns.DECODE_COUNT, mCount);
+			mDatabase.update(TABLE_NAME, values, ID_WHERE, new String[] { String.valueOf(mEntry.mId) });
+
+			if (!mTranscodeEnabled || !ApiHelper.HAS_WEBP_TRANSCODING) return null;
+			synchronized (mEntry) {
+				if (mEntry.mTranscoded || mEntry.mKeepOriginal
+						|| !DownloadEntry.isWorthTranscoding(mCount, mEntry.cacheFile.length()))
+					return null;
+				// Mark it now so that it is scheduled only once.
+				mEntry.mTranscoded = true;
+			}
+			mApplication.getThreadPool().submit(new TranscodeJob(mEntry));
+			return null;
+		}
+	}
+
+	private class PersistJob implements Job<Void> {
+		private final String mUrl;
+		private final Entry mEntry;
+
+		public PersistJob(final String url, final Entry entry) {
+			mUrl = url;
+			mEntry = entry;
+		}
+
+		@Override
+		public Void run(final JobContext jc) {
+			// Disk I/O only, don't hold a CPU slot.
+			jc.setMode(ThreadPool.MODE_NONE);
+			FileOutputStream fos = null;
+			try {
+				fos = new FileOutputStream(mEntry.cacheFile);
+				fos.write(mEntry.data);
+				fos.close();
+				fos = null;
+				final int insertedCount;
+				synchronized (mEntry) {
+					insertedCount = mEntry.mDecodeCount;
+				}
+				final long id = insertEntry(mUrl, mEntry.cacheFile, insertedCount);
+				final int count;
+				synchronized (mEntry) {
+					mEntry.mId = id;
+					count = mEntry.mDecodeCount;
+				}
+				// Decodes recorded during the insert went uncounted.
+				if (count != insertedCount) {
+					mApplication.getThreadPool().submit(new DecodeCountJob(mEntry, count));
+				}
+				freeSomeSpaceIfNeed(MAX_DELETE_COUNT);
+			} catch (final IOException e) {
+				// The entry is still served from memory until it is evicted.
+				Log.w(TAG, "fail to write " + mEntry.cacheFile, e);
+				mEntry.cacheFile.delete();
+			} finally {
+				Utils.closeSilently(fos);
+				// From now on it is found in the database, or in mEntryMap as
+				// long as it is in use.
+				synchronized (mEntryMap) {
+					mPendingEntries.remove(mUrl);
+				}
+			}
+			return null;
+		}
+	}
+
+	// Writes the coarser levels of the tile pyramid of a large opaque entry,
+	// so that their tiles can be read instead of region decoded from the
+	// original every time the image is zoomed into.
+	private class PyramidJob implements Job<Void> {
+		private final Entry mEntry;
+		private final int mTileSize;
+		private final int mBorderSize;
+
+		public PyramidJob(final Entry entry, final int tileSize, final int borderSize) {
+			mEntry = entry;
+			mTileSize = tileSize;
+			mBorderSize = borderSize;
+		}
+
+		@Override
+		public Void run(final JobContext jc) {
+			if (!jc.setMode(ThreadPool.MODE_CPU)) return null;
+			File tempFile = null;
+			try {
+				final File file = mEntry.cacheFile;
+				// A pyramid in an older format is written again.
+				final TilePyramid existing = TilePyramid.open(mEntry.getPyramidFile());
+				if (existing != null) {
+					existing.close();
+					return null;
+				}
+				if (!isOpaque(file)) return null;
+
+				final BitmapFactory.Options options = new BitmapFactory.Options();
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+				if (options.outWidth <= 0 || options.outHeight <= 0
+						|| (long) options.outWidth * options.outHeight <= PYRAMID_MIN_PIXELS) return null;
+
+				tempFile = File.createTempFile("pyramid", ".tmp", mRoot);
+				if (TilePyramid.write(jc, file, tempFile, mTileSize, mBorderSize, PYRAMID_FIRST_LEVEL)
+						&& addPyramidFile(mEntry, tempFile)) {
+					tempFile = null;
+				}
+			} catch (final Throwable t) {
+				Log.w(TAG, "fail to write pyramid of " + mEntry.cacheFile, t);
+			} finally {
+				if (tempFile != null) {
+					tempFile.delete();
+				}
+			}
+			return null;
+		}
+
+		private boolean isOpaque(final File file) throws IOException {
+			final byte[] header = new byte[16];
+			final FileInputStream is = new FileInputStream(file);
+			try {
+				return BitmapUtils.isOpaqueFromHeader(header, Utils.readFully(is, header));
+			} finally {
+				Utils.closeSilently(is);
+			}
+		}
+	}
+
+	// Rewrites a hot entry as WebP, which is smaller on disk and cheaper to
+	// decode than the JPEG or PNG it replaces. The result is kept only if it
+	// is noticeably smaller. JPEGs with an EXIF orientation are skipped, since
+	// the orientation would be lost.
+	private class TranscodeJob implements Job<Void> {
+		private final Entry mEntry;
+
+		public TranscodeJob(final Entry entry) {
+			mEntry = entry;
+		}
+
+		@Override
+		public Void run(final JobContext jc) {
+			File tempFile = null;
+			FileOutputStream fos = null;
+			Bitmap bitmap = null;
+			try {
+				final File file = mEntry.cacheFile;
+				final String mimeType = readMimeType(file);
+				if (!canTranscode(file, mimeType)) return null;
+
+				final BitmapFactory.Options options = new BitmapFactory.Options();
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+				if (options.outWidth <= 0 || options.outHeight <= 0
+						|| options.outWidth * options.outHeight > TRANSCODE_MAX_PIXELS) return null;
+				options.inJustDecodeBounds = false;
+				options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+				bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+				// Keep images with alpha as they are, lossy WebP with alpha is
+				// not understood by every decoder.
+				if (bitmap == null || bitmap.hasAlpha() || jc.isCancelled()) return null;
+
+				tempFile = File.createTempFile("transcode", ".tmp", mRoot);
+				fos = new FileOutputStream(tempFile);
+				if (!bitmap.compress(Bitmap.CompressFormat.WEBP, TRANSCODE_QUALITY, fos)) return null;
+				fos.close();
+				fos = null;
+				if (jc.isCancelled()) return null;
+
+				if (tempFile.length() <= file.length() * (1 - TRANSCODE_MIN_SAVING)
+						&& replaceEntryFile(mEntry, tempFile)) {
+					tempFile = null;
+				}
+			} catch (final Throwable t) {
+				Log.w(TAG, "fail to transcode " + mEntry.cacheFile, t);
+			} finally {
+				Utils.closeSilently(fos);
+				BitmapUtils.recycleSilently(bitmap);
+				if (tempFile != null) {
+					tempFile.delete();
+				}
+				// Whatever happened, don't try this entry again.
+				setTranscoded(mEntry);
+			}
+			return null;
+		}
+
+		private boolean canTranscode(final File file, final String mimeType) throws IOException {
+			if (MediaItem.MIME_TYPE_JPEG.equals(mimeType)) {
+				final FileInputStream is = new FileInputStream(file);
+				try {
+					return Exif.getOrientation(is) == 0;
+				} finally {
+					Utils.closeSilently(is);
+				}
+			}
+			return "image/png".equals(mimeType);
+		}
+
+		private String readMimeType(final File file) throws IOException {
+			final byte[] header = new byte[16];
+			final FileInputStream is = new FileInputStream(file);
+			try {
+				return BitmapUtils.getMimeTypeFromHeader(header, Utils.readFully(is, header));
+			} finally {
+				Utils.closeSilently(is);
+			}
+		}
+	}
 }
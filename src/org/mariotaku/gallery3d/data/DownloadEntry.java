@@ -43,6 +43,22 @@ public class DownloadEntry extends Entry {
 	@Column("_data")
 	public String path;
 
+	@Column("decode_count")
+	public int decodeCount;
+
+	@Column("transcoded")
+	public boolean transcoded;
+
+	// Transcoding costs a full decode and encode, which only pays off for
+	// entries that keep being decoded. Small bodies are cheap to decode
+	// anyway and are left alone.
+	public static final int TRANSCODE_MIN_DECODE_COUNT = 3;
+	public static final long TRANSCODE_MIN_SIZE = 64 * 1024;
+
+	public static boolean isWorthTranscoding(final int decodeCount, final long contentSize) {
+		return decodeCount >= TRANSCODE_MIN_DECODE_COUNT && contentSize >= TRANSCODE_MIN_SIZE;
+	}
+
 	@Override
 	public String toString() {
 		// Note: THIS IS REQUIRED. We used all the fields here. Otherwise,
@@ -51,7 +67,9 @@ public class DownloadEntry extends Entry {
 		return new StringBuilder().append("hash_code: ").append(hashCode).append(", ").append("content_url")
 				.append(contentUrl).append(", ").append("_size").append(contentSize).append(", ").append("etag")
 				.append(eTag).append(", ").append("last_access").append(lastAccessTime).append(", ")
-				.append("last_updated").append(lastUpdatedTime).append(",").append("_data").append(path).toString();
+				.append("last_updated").append(lastUpdatedTime).append(",").append("_data").append(path).append(", ")
+				.append("decode_count").append(decodeCount).append(", ").append("transcoded").append(transcoded)
+				.toString();
 	}
 
 	public static interface Columns extends Entry.Columns {
@@ -62,5 +80,7 @@ public class DownloadEntry extends Entry {
 		public static final String LAST_ACCESS = "last_access";
 		public static final String LAST_UPDATED = "last_updated";
 		public static final String DATA = "_data";
+		public static final String DECODE_COUNT = "decode_count";
+		public static final String TRANSCODED = "transcoded";
 	}
 }
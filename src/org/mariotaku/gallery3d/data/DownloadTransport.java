@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+// DownloadTransport fetches the body of a remote resource for DownloadCache.
+//
+// An implementation may pool connections, limit concurrency or serve canned
+// responses (e.g. an in-process fake), as long as open() gives up when the
+// JobContext is cancelled. The caller must close the returned Response, which
+// is also what releases any connection or slot held for it.
+public interface DownloadTransport {
+	public Response open(JobContext jc, URL url) throws IOException;
+
+	public interface Response extends Closeable {
+		// Returns the length of the body in bytes, or -1 if it is unknown.
+		public long getContentLength();
+
+		// Returns the MIME type reported by the server, or null.
+		public String getContentType();
+
+		public InputStream getInputStream();
+	}
+
+	public interface TransferListener {
+		// Called once per response when it is closed. firstByteTime and
+		// totalTime are in milliseconds from the start of open(); firstByteTime
+		// is -1 if no byte was received.
+		public void onTransferDone(URL url, long bytes, long firstByteTime, long totalTime, boolean completed);
+	}
+}
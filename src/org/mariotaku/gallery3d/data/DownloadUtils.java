@@ -47,6 +47,21 @@ public class DownloadUtils {
 		}
 	}
 
+	public static boolean download(final JobContext jc, final DownloadTransport transport, final URL url,
+			final OutputStream output) {
+		DownloadTransport.Response response = null;
+		try {
+			response = transport.open(jc, url);
+			dump(jc, response.getInputStream(), output);
+			return true;
+		} catch (final Throwable t) {
+			Log.w(TAG, "fail to download", t);
+			return false;
+		} finally {
+			Utils.closeSilently(response);
+		}
+	}
+
 	public static void dump(final JobContext jc, final InputStream is, final OutputStream os) throws IOException {
 		final byte buffer[] = new byte[4096];
 		int rc = is.read(buffer, 0, buffer.length);
@@ -77,4 +92,17 @@ public class DownloadUtils {
 			Utils.closeSilently(fos);
 		}
 	}
+
+	public static boolean requestDownload(final JobContext jc, final DownloadTransport transport, final URL url,
+			final File file) {
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(file);
+			return download(jc, transport, url, fos);
+		} catch (final Throwable t) {
+			return false;
+		} finally {
+			Utils.closeSilently(fos);
+		}
+	}
 }
\ No newline at end of file
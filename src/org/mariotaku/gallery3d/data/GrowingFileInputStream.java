@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import org.mariotaku.gallery3d.common.Utils;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+// GrowingFileInputStream reads a download while it is still being written,
+// blocking until the bytes it wants are there. The download publishes its
+// progress through a Source: how much of the file is written, and at the end
+// either the body held in memory (for small downloads which never reach the
+// file) or a failure, which makes reads throw.
+//
+// The stream supports mark() and reset() at any distance, so the bounds and
+// the pixels of an image can be decoded from it in two passes. BitmapFactory
+// swallows read errors, so check hasFailed() after decoding from it.
+public class GrowingFileInputStream extends InputStream {
+	// How often a blocked read checks whether its job was cancelled.
+	private static final long POLL_INTERVAL = 100; // ms
+
+	private final Source mSource;
+	private final JobContext mJobContext;
+	private FileInputStream mInput;
+	private long mInputPosition;
+	private long mPosition;
+	private long mMark;
+	private volatile boolean mFailed;
+
+	public GrowingFileInputStream(final Source source, final JobContext jc) {
+		mSource = Utils.checkNotNull(source);
+		mJobContext = jc;
+	}
+
+	@Override
+	public void close() throws IOException {
+		Utils.closeSilently(mInput);
+		mInput = null;
+	}
+
+	// Returns true if a read has failed, because the download failed or the
+	// job was cancelled.
+	public boolean hasFailed() {
+		return mFailed;
+	}
+
+	@Override
+	public synchronized void mark(final int readLimit) {
+		mMark = mPosition;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final byte[] buffer = new byte[1];
+		return read(buffer, 0, 1) == 1 ? buffer[0] & 0xff : -1;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+		if (count == 0) return 0;
+		final byte[] data;
+		final File file;
+		final long length;
+		synchronized (mSource) {
+			try {
+				mSource.waitFor(mJobContext, mPosition);
+			} catch (final IOException e) {
+				mFailed = true;
+				throw e;
+			}
+			data = mSource.mData;
+			file = mSource.mFile;
+			length = data != null ? data.length : mSource.mFileLength;
+		}
+		if (mPosition >= length) return -1;
+		final int n = (int) Math.min(count, length - mPosition);
+		if (data != null) {
+			System.arraycopy(data, (int) mPosition, buffer, offset, n);
+			mPosition += n;
+			return n;
+		}
+		try {
+			if (mInput == null) {
+				mInput = new FileInputStream(file);
+				mInputPosition = 0;
+			}
+			if (mInputPosition != mPosition) {
+				mInput.getChannel().position(mPosition);
+				mInputPosition = mPosition;
+			}
+			final int read = mInput.read(buffer, offset, n);
+			if (read > 0) {
+				mPosition += read;
+				mInputPosition = mPosition;
+			}
+			return read;
+		} catch (final IOException e) {
+			mFailed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		mPosition = mMark;
+	}
+
+	@Override
+	public long skip(final long count) throws IOException {
+		final long n = Math.max(0, count);
+		mPosition += n;
+		return n;
+	}
+
+	// The progress of a download, as written by DownloadCache and read by the
+	// streams opened on it.
+	static class Source {
+		private File mFile;
+		private long mFileLength;
+		private byte[] mData;
+		private boolean mDone;
+		private boolean mFailed;
+
+		public synchronized boolean isDone() {
+			return mDone || mFailed;
+		}
+
+		public synchronized void onFailed() {
+			mFailed = true;
+			notifyAll();
+		}
+
+		// The download is complete. data is its body if it was kept in
+		// memory, or null if it is all in the file.
+		public synchronized void onFinished(final byte[] data) {
+			mData = data;
+			mDone = true;
+			notifyAll();
+		}
+
+		public synchronized void onWritten(final long fileLength) {
+			mFileLength = fileLength;
+			notifyAll();
+		}
+
+		public synchronized void setFile(final File file) {
+			mFile = file;
+		}
+
+		// Waits until there is something to read at the position, or the
+		// download is over. Called with the lock held.
+		private void waitFor(final JobContext jc, final long position) throws IOException {
+			while (!mDone && !mFailed && mFileLength <= position) {
+				if (jc != null && jc.isCancelled()) throw new InterruptedIOException("cancelled");
+				try {
+					wait(POLL_INTERVAL);
+				} catch (final InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (mFailed) throw new IOException("download failed");
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+
+import org.mariotaku.gallery3d.common.Utils;
+import org.mariotaku.gallery3d.util.ThreadPool.CancelListener;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+import android.os.SystemClock;
+
+// The default DownloadTransport, built on HttpURLConnection.
+//
+// HttpURLConnection keeps idle keep-alive sockets in a pool keyed by host and
+// hands them out again as long as every body is read to the end and closed
+// (never disconnect()ed). Capping the connections per host keeps their number
+// within that pool, so a tweet with four photos on the same CDN host reuses
+// warm connections instead of opening four cold ones.
+public class HttpDownloadTransport implements DownloadTransport {
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000; // 15 seconds
+	public static final int DEFAULT_READ_TIMEOUT = 30 * 1000; // 30 seconds
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
+
+	private static final String ACCEPT_WEBP = "image/webp,image/*;q=0.8,*/*;q=0.5";
+
+	private final HashMap<String, HostSlot> mHostSlots = new HashMap<String, HostSlot>();
+	private final String mUserAgent;
+	private final int mConnectTimeout;
+	private final int mReadTimeout;
+	private final int mMaxConnectionsPerHost;
+
+	private volatile TransferListener mTransferListener;
+	private volatile boolean mAcceptWebp;
+
+	public HttpDownloadTransport(final String userAgent) {
+		this(userAgent, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	public HttpDownloadTransport(final String userAgent, final int connectTimeout, final int readTimeout,
+			final int maxConnectionsPerHost) {
+		Utils.assertTrue(maxConnectionsPerHost > 0);
+		mUserAgent = userAgent;
+		mConnectTimeout = connectTimeout;
+		mReadTimeout = readTimeout;
+		mMaxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	@Override
+	public Response open(final JobContext jc, final URL url) throws IOException {
+		final HostSlot slot = acquireSlot(jc, url.getAuthority());
+		final long startTime = SystemClock.elapsedRealtime();
+		HttpURLConnection connection = null;
+		HttpResponse response = null;
+		try {
+			final URLConnection conn = url.openConnection();
+			if (!(conn instanceof HttpURLConnection)) throw new IOException("unsupported url: " + url);
+			connection = (HttpURLConnection) conn;
+			connection.setConnectTimeout(mConnectTimeout);
+			connection.setReadTimeout(mReadTimeout);
+			connection.setInstanceFollowRedirects(true);
+			if (mUserAgent != null) {
+				connection.setRequestProperty("User-Agent", mUserAgent);
+			}
+			if (mAcceptWebp) {
+				connection.setRequestProperty("Accept", ACCEPT_WEBP);
+			}
+			onPrepareConnection(connection);
+			final int code = connection.getResponseCode();
+			if (code != HttpURLConnection.HTTP_OK) throw new IOException("unexpected response " + code + ": " + url);
+			response = new HttpResponse(url, connection, slot, startTime);
+			return response;
+		} finally {
+			// The response owns the slot from here on.
+			if (response == null) {
+				if (connection != null) {
+					connection.disconnect();
+				}
+				releaseSlot(slot);
+			}
+		}
+	}
+
+	// Tells servers that negotiate on the Accept header that WebP is
+	// preferred. Off by default, since not every decoder in use can handle
+	// it.
+	public void setAcceptWebp(final boolean acceptWebp) {
+		mAcceptWebp = acceptWebp;
+	}
+
+	public void setTransferListener(final TransferListener listener) {
+		mTransferListener = listener;
+	}
+
+	// Subclasses may add request headers here. Called before the request is
+	// sent.
+	protected void onPrepareConnection(final HttpURLConnection connection) {
+	}
+
+	private HostSlot acquireSlot(final JobContext jc, final String host) throws InterruptedIOException {
+		final HostSlot slot;
+		synchronized (mHostSlots) {
+			HostSlot s = mHostSlots.get(host);
+			if (s == null) {
+				s = new HostSlot();
+				mHostSlots.put(host, s);
+			}
+			slot = s;
+		}
+		jc.setCancelListener(new CancelListener() {
+			@Override
+			public void onCancel() {
+				synchronized (slot) {
+					slot.notifyAll();
+				}
+			}
+		});
+		try {
+			synchronized (slot) {
+				while (slot.active >= mMaxConnectionsPerHost) {
+					if (jc.isCancelled()) throw new InterruptedIOException();
+					Utils.waitWithoutInterrupt(slot);
+				}
+				if (jc.isCancelled()) throw new InterruptedIOException();
+				slot.active++;
+			}
+		} finally {
+			jc.setCancelListener(null);
+		}
+		return slot;
+	}
+
+	private static void releaseSlot(final HostSlot slot) {
+		synchronized (slot) {
+			slot.active--;
+			slot.notifyAll();
+		}
+	}
+
+	private static class HostSlot {
+		public int active;
+	}
+
+	private class HttpResponse implements Response {
+		private final URL mUrl;
+		private final HttpURLConnection mConnection;
+		private final HostSlot mSlot;
+		private final long mStartTime;
+		private final CountingInputStream mInput;
+		private boolean mClosed;
+
+		public HttpResponse(final URL url, final HttpURLConnection connection, final HostSlot slot,
+				final long startTime) throws IOException {
+			mUrl = url;
+			mConnection = connection;
+			mSlot = slot;
+			mStartTime = startTime;
+			mInput = new CountingInputStream(connection.getInputStream());
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (mClosed) return;
+			mClosed = true;
+			try {
+				// Closing (rather than disconnecting) a fully read body puts
+				// the socket back into the keep-alive pool.
+				mInput.close();
+			} finally {
+				releaseSlot(mSlot);
+				final TransferListener listener = mTransferListener;
+				if (listener != null) {
+					final long firstByteTime = mInput.mFirstByteTime < 0 ? -1 : mInput.mFirstByteTime - mStartTime;
+					listener.onTransferDone(mUrl, mInput.mCount, firstByteTime, SystemClock.elapsedRealtime()
+							- mStartTime, mInput.mReachedEnd);
+				}
+			}
+		}
+
+		@Override
+		public long getContentLength() {
+			return mConnection.getContentLength();
+		}
+
+		@Override
+		public String getContentType() {
+			return mConnection.getContentType();
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return mInput;
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		long mCount;
+		long mFirstByteTime = -1;
+		boolean mReachedEnd;
+
+		CountingInputStream(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			onRead(b < 0 ? -1 : 1);
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+			final int rc = super.read(buffer, offset, count);
+			onRead(rc);
+			return rc;
+		}
+
+		private void onRead(final int rc) {
+			if (rc < 0) {
+				mReachedEnd = true;
+			} else if (rc > 0) {
+				if (mFirstByteTime < 0) {
+					mFirstByteTime = SystemClock.elapsedRealtime();
+				}
+				mCount += rc;
+			}
+		}
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import android.net.Uri;
+
+// ImageVariantResolver maps the URI of a remote image to a reduced rendition
+// served by the same host (e.g. the ":small" or ":medium" sizes of a media
+// CDN). UriImage uses it to show a screen nail without fetching the original,
+// which is then only downloaded once the user zooms past the reduced size.
+public interface ImageVariantResolver {
+	// Returns the URI of the smallest rendition of uri whose longer side is
+	// at least targetSize pixels (or which is the whole image if that is
+	// smaller), or null if no such rendition exists and the original should
+	// be used.
+	public Uri resolve(Uri uri, int targetSize);
+}
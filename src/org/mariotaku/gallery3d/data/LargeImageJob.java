@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import org.mariotaku.gallery3d.common.BitmapUtils;
+import org.mariotaku.gallery3d.common.Utils;
+import org.mariotaku.gallery3d.util.ThreadPool.Job;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+
+// LargeImageJob opens the region decoder of an item and decodes the screen
+// nail from it, with one sampled decodeRegion() over the whole image. The file
+// is opened and its header parsed once for both, instead of once by
+// requestImage() and again by requestLargeImage().
+//
+// The decoder goes through the RegionDecoderCache, so a later request for the
+// full image of the item is served from there. The Result holds a reference
+// to it, which the receiver must release() to the cache.
+public class LargeImageJob implements Job<LargeImageJob.Result> {
+	private static final String TAG = "LargeImageJob";
+
+	private final RegionDecoderCache mCache;
+	private final MediaItem mItem;
+	private final int mTargetSize;
+
+	// The screen nail is decoded with its longer side no larger than
+	// targetSize.
+	public LargeImageJob(final RegionDecoderCache cache, final MediaItem item, final int targetSize) {
+		mCache = cache;
+		mItem = item;
+		mTargetSize = targetSize;
+	}
+
+	// Returns null if the decoder can't be opened, the screen nail can't be
+	// decoded, or the job is cancelled.
+	@Override
+	public Result run(final JobContext jc) {
+		final BitmapRegionDecoder decoder = mCache.requestLargeImage(mItem).run(jc);
+		if (decoder == null) return null;
+		final Bitmap screenNail = decodeScreenNail(jc, decoder);
+		if (screenNail == null) {
+			mCache.release(decoder);
+			return null;
+		}
+		return new Result(decoder, screenNail);
+	}
+
+	private Bitmap decodeScreenNail(final JobContext jc, final BitmapRegionDecoder decoder) {
+		if (jc.isCancelled()) return null;
+
+		final int width = decoder.getWidth();
+		final int height = decoder.getHeight();
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		final float scale = (float) mTargetSize / Math.max(width, height);
+		options.inSampleSize = Utils.prevPowerOf2(BitmapUtils.computeSampleSizeLarger(scale));
+		DecodeUtils.applyPreferredConfig(options, mItem.isOpaque());
+		Bitmap bitmap;
+		try {
+			// The decoder may be shared through the cache.
+			synchronized (decoder) {
+				bitmap = decoder.decodeRegion(new Rect(0, 0, width, height), options);
+			}
+		} catch (final IllegalStateException e) {
+			Log.w(TAG, "fail to decode screen nail", e);
+			return null;
+		}
+		if (bitmap == null) return null;
+		if (jc.isCancelled()) {
+			bitmap.recycle();
+			return null;
+		}
+		bitmap = BitmapUtils.resizeDownBySideLength(bitmap, mTargetSize, true);
+		return DecodeUtils.ensureGLCompatibleBitmap(bitmap);
+	}
+
+	public static class Result {
+		public final BitmapRegionDecoder decoder;
+		public final Bitmap screenNail;
+
+		public Result(final BitmapRegionDecoder decoder, final Bitmap screenNail) {
+			this.decoder = decoder;
+			this.screenNail = screenNail;
+		}
+	}
+}
@@ -16,7 +16,10 @@
 
 package org.mariotaku.gallery3d.data;
 
+import java.io.File;
+
 import org.mariotaku.gallery3d.common.ApiHelper;
+import org.mariotaku.gallery3d.common.GifDecoder;
 import org.mariotaku.gallery3d.ui.ScreenNail;
 import org.mariotaku.gallery3d.util.ThreadPool.Job;
 
@@ -82,6 +85,13 @@ public abstract class MediaItem extends MediaObject {
 		return null;
 	}
 
+	// Returns the number of bytes that must still be downloaded before the
+	// image can be decoded: 0 if it is local or downloaded already, or -1 if
+	// it must be downloaded and its size is not known.
+	public long getPendingDownloadBytes() {
+		return 0;
+	}
+
 	public long getSize() {
 		return 0;
 	}
@@ -90,10 +100,48 @@ public abstract class MediaItem extends MediaObject {
 	// Returns 0, 0 if the information is not available.
 	public abstract int getWidth();
 
+	// Returns true if requestImage(TYPE_THUMBNAIL) is served from a reduced
+	// rendition, so callers can defer requestLargeImage() until the user
+	// actually zooms in.
+	public boolean hasReducedImage() {
+		return false;
+	}
+
+	// Returns true if the image is known to have no alpha channel, so it can
+	// be decoded to an opaque config. Only meaningful once the image has been
+	// loaded.
+	public boolean isOpaque() {
+		return false;
+	}
+
+	// Returns the file holding the tile pyramid of the image, see
+	// TilePyramid, or null if it can't have one. The file may not exist.
+	public File getTilePyramidFile() {
+		return null;
+	}
+
+	// Asks for the tile pyramid file of the image to be written in the
+	// background, if it can have one. Called once the user zooms in.
+	public void prepareTilePyramidFile() {
+	}
+
 	public abstract Job<Bitmap> requestImage(int type);
 
 	public abstract Job<BitmapRegionDecoder> requestLargeImage();
 
+	// Returns a job tiling the full image in software, for when
+	// requestLargeImage() fails, or null if the item can't do that. The job
+	// returns the opened pyramid, see TilePyramid and SoftwareTileSource.
+	public Job<TilePyramid> requestTilePyramid(final int tileSize, final int borderSize) {
+		return null;
+	}
+
+	// Returns a job opening the frames of an animated image, or null if the
+	// item can't be animated. The job returns null for still images.
+	public Job<GifDecoder> requestAnimation() {
+		return null;
+	}
+
 	public static BytesBufferPool getBytesBufferPool() {
 		return sMicroThumbBufferPool;
 	}
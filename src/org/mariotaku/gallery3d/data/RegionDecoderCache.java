@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.mariotaku.gallery3d.common.Utils;
+import org.mariotaku.gallery3d.util.ThreadPool.Job;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.BitmapRegionDecoder;
+
+// RegionDecoderCache keeps recently opened BitmapRegionDecoders, so going back
+// to a large image doesn't mean opening and parsing it again. Decoders are
+// keyed by the Path and data version of their item, and evicted in LRU order
+// once their estimated cost goes over the capacity.
+//
+// Decoders are reference counted: every decoder handed out by
+// requestLargeImage() must be given back with release() once the caller no
+// longer draws from it. An evicted decoder is recycled as soon as no one
+// holds it, which frees its native memory without waiting for the GC.
+public class RegionDecoderCache {
+	// What a decoder holds besides its copy of the encoded image, per pixel
+	// of the image. This is a rough figure for the JPEG tile index.
+	private static final float COST_PER_PIXEL = 0.125f;
+
+	private final long mCapacity;
+	private long mSize;
+	private final LinkedHashMap<Path, Entry> mMap = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+	// Every decoder handed out and not yet recycled, cached or not.
+	private final IdentityHashMap<BitmapRegionDecoder, Entry> mEntries = new IdentityHashMap<BitmapRegionDecoder, Entry>();
+
+	public RegionDecoderCache(final long capacity) {
+		mCapacity = capacity;
+	}
+
+	public synchronized void clear() {
+		for (final Entry entry : mMap.values()) {
+			evict(entry);
+		}
+		mMap.clear();
+		mSize = 0;
+	}
+
+	// Gives back a decoder returned by requestLargeImage() or held by a
+	// LargeImageJob.Result.
+	public void release(final BitmapRegionDecoder decoder) {
+		synchronized (this) {
+			final Entry entry = mEntries.get(decoder);
+			Utils.assertTrue(entry != null && entry.refCount > 0);
+			if (--entry.refCount > 0 || !entry.evicted) return;
+			mEntries.remove(decoder);
+		}
+		recycle(decoder);
+	}
+
+	// Returns a job like item.requestLargeImage(), which looks in the cache
+	// first and adds the decoder it opens to the cache. The caller holds a
+	// reference to the decoder it returns, see release().
+	public Job<BitmapRegionDecoder> requestLargeImage(final MediaItem item) {
+		return new Job<BitmapRegionDecoder>() {
+			@Override
+			public BitmapRegionDecoder run(final JobContext jc) {
+				final Path path = item.getPath();
+				final long version = item.getDataVersion();
+				final BitmapRegionDecoder cached = acquire(path, version);
+				if (cached != null) return cached;
+				final BitmapRegionDecoder decoder = item.requestLargeImage().run(jc);
+				if (decoder != null) {
+					// The item knows its encoded size once it is opened.
+					put(path, version, decoder, item.getSize());
+				}
+				return decoder;
+			}
+		};
+	}
+
+	// Releases decoders as the system asks, see
+	// ComponentCallbacks2.onTrimMemory().
+	public synchronized void trimMemory(final int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			clear();
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			trimToSize(mCapacity / 2);
+		}
+	}
+
+	// Returns the decoder opened for the given version of the item with a
+	// reference held, or null.
+	private synchronized BitmapRegionDecoder acquire(final Path path, final long version) {
+		final Entry entry = mMap.get(path);
+		if (entry == null) return null;
+		if (entry.version != version) {
+			mMap.remove(path);
+			mSize -= entry.cost;
+			evict(entry);
+			return null;
+		}
+		entry.refCount++;
+		return entry.decoder;
+	}
+
+	// Called with the lock held. The decoder is recycled now if no one holds
+	// it, or else by the last release().
+	private void evict(final Entry entry) {
+		entry.evicted = true;
+		if (entry.refCount > 0) return;
+		mEntries.remove(entry.decoder);
+		recycle(entry.decoder);
+	}
+
+	// Adds a newly opened decoder, with a reference held by the caller.
+	private synchronized void put(final Path path, final long version, final BitmapRegionDecoder decoder,
+			final long encodedSize) {
+		final long cost = Math.max(0, encodedSize) + (long) (COST_PER_PIXEL * decoder.getWidth() * decoder.getHeight());
+		final Entry entry = new Entry(version, decoder, cost);
+		entry.refCount = 1;
+		mEntries.put(decoder, entry);
+		if (cost > mCapacity) {
+			// Never cached, recycled once released.
+			entry.evicted = true;
+			return;
+		}
+		final Entry old = mMap.put(path, entry);
+		if (old != null) {
+			mSize -= old.cost;
+			evict(old);
+		}
+		mSize += cost;
+		trimToSize(mCapacity);
+	}
+
+	private void trimToSize(final long size) {
+		final Iterator<Entry> iterator = mMap.values().iterator();
+		while (mSize > size && iterator.hasNext()) {
+			final Entry entry = iterator.next();
+			iterator.remove();
+			mSize -= entry.cost;
+			evict(entry);
+		}
+	}
+
+	// Waits for a decodeRegion() in progress, as they are made with the
+	// decoder locked.
+	private static void recycle(final BitmapRegionDecoder decoder) {
+		synchronized (decoder) {
+			decoder.recycle();
+		}
+	}
+
+	private static class Entry {
+		public final long version;
+		public final BitmapRegionDecoder decoder;
+		public final long cost;
+		public int refCount;
+		public boolean evicted;
+
+		public Entry(final long version, final BitmapRegionDecoder decoder, final long cost) {
+			this.version = version;
+			this.decoder = decoder;
+			this.cost = cost;
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.mariotaku.gallery3d.common.Utils;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+
+// SoftwareTileSource feeds TilePyramid.write() with images BitmapRegionDecoder
+// can't handle, such as GIF and BMP, so that they can be tiled and zoomed
+// like any other image.
+//
+// Uncompressed BMPs are read row by row straight from the file, so the memory
+// needed does not depend on the size of the image. Other images are decoded
+// once, down sampled as needed to stay within MAX_DECODE_PIXELS. Levels finer
+// than that sample size hold no more detail, so they are left out of the
+// pyramid and TileImageView scales up the first level it has.
+public abstract class SoftwareTileSource implements TilePyramid.Source {
+	private static final String TAG = "SoftwareTileSource";
+
+	private static final int MAX_DECODE_PIXELS = 4 * 1024 * 1024;
+
+	// Returns the finest level worth writing to the pyramid, see
+	// TilePyramid.write().
+	public int getFirstLevel() {
+		return 0;
+	}
+
+	// Releases the memory held by the source.
+	public void recycle() {
+	}
+
+	// Creates a source for the image in fd, or in data if fd is null. Returns
+	// null if the image can't be decoded.
+	public static SoftwareTileSource create(final JobContext jc, final FileDescriptor fd, final byte[] data) {
+		if (fd != null) {
+			// On Android, a stream created from a descriptor doesn't close it.
+			final FileChannel channel = new FileInputStream(fd).getChannel();
+			try {
+				final SoftwareTileSource source = BmpSource.open(channel);
+				if (source != null) return source;
+			} catch (final IOException e) {
+				Log.w(TAG, "fail to read bmp", e);
+			}
+		}
+		return SampledSource.decode(jc, fd, data);
+	}
+
+	// Reads uncompressed 8, 24 and 32 bit BMPs. Rows are read with positional
+	// reads, so the descriptor's offset is left alone.
+	private static class BmpSource extends SoftwareTileSource {
+		private static final int HEADER_SIZE = 54;
+		private static final int BI_RGB = 0;
+
+		private final FileChannel mChannel;
+		private final int mWidth;
+		private final int mHeight;
+		private final boolean mTopDown;
+		private final int mBytesPerPixel;
+		private final long mDataOffset;
+		private final long mStride;
+		private final int[] mPalette;
+		private byte[] mRow;
+		private int[] mPixels;
+
+		private BmpSource(final FileChannel channel, final ByteBuffer header, final int[] palette) {
+			mChannel = channel;
+			mWidth = header.getInt(18);
+			final int height = header.getInt(22);
+			mHeight = Math.abs(height);
+			mTopDown = height < 0;
+			final int bitCount = header.getShort(28);
+			mBytesPerPixel = bitCount / 8;
+			mDataOffset = header.getInt(10) & 0xffffffffL;
+			mStride = ((long) bitCount * mWidth + 31) / 32 * 4;
+			mPalette = palette;
+		}
+
+		@Override
+		public Bitmap decodeRegion(final Rect rect, final int sampleSize) {
+			final int width = (rect.width() + sampleSize - 1) / sampleSize;
+			final int height = (rect.height() + sampleSize - 1) / sampleSize;
+			final int span = rect.width() * mBytesPerPixel;
+			if (mRow == null || mRow.length < span) {
+				mRow = new byte[span];
+			}
+			if (mPixels == null || mPixels.length < width) {
+				mPixels = new int[width];
+			}
+			final byte[] row = mRow;
+			final int[] pixels = mPixels;
+			final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			try {
+				for (int y = 0; y < height; y++) {
+					final int sy = rect.top + y * sampleSize;
+					final long fileRow = mTopDown ? sy : mHeight - 1 - sy;
+					final long position = mDataOffset + fileRow * mStride + (long) rect.left * mBytesPerPixel;
+					TilePyramid.readFully(mChannel, ByteBuffer.wrap(row, 0, span), position);
+					for (int x = 0, i = 0; x < width; x++, i += sampleSize * mBytesPerPixel) {
+						if (mPalette != null) {
+							pixels[x] = mPalette[row[i] & 0xff];
+						} else {
+							// BGR, the fourth byte of 32 bit pixels is unused.
+							pixels[x] = 0xff000000 | (row[i + 2] & 0xff) << 16 | (row[i + 1] & 0xff) << 8
+									| row[i] & 0xff;
+						}
+					}
+					bitmap.setPixels(pixels, 0, width, 0, y, width, 1);
+				}
+			} catch (final IOException e) {
+				Log.w(TAG, "fail to read bmp rows", e);
+				bitmap.recycle();
+				return null;
+			}
+			return bitmap;
+		}
+
+		@Override
+		public int getHeight() {
+			return mHeight;
+		}
+
+		@Override
+		public int getWidth() {
+			return mWidth;
+		}
+
+		@Override
+		public boolean hasAlpha() {
+			return false;
+		}
+
+		// Returns null if the file is not a BMP this class can read.
+		public static BmpSource open(final FileChannel channel) throws IOException {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			if (channel.read(header, 0) < HEADER_SIZE) return null;
+			if (header.get(0) != 'B' || header.get(1) != 'M') return null;
+			final int infoSize = header.getInt(14);
+			final int width = header.getInt(18);
+			final int height = header.getInt(22);
+			final int bitCount = header.getShort(28);
+			final int compression = header.getInt(30);
+			if (infoSize < 40 || width <= 0 || height == 0 || height == Integer.MIN_VALUE || compression != BI_RGB)
+				return null;
+			if (bitCount != 8 && bitCount != 24 && bitCount != 32) return null;
+
+			int[] palette = null;
+			if (bitCount == 8) {
+				final int colorsUsed = header.getInt(46);
+				final int count = colorsUsed > 0 && colorsUsed < 256 ? colorsUsed : 256;
+				final ByteBuffer table = ByteBuffer.allocate(count * 4).order(ByteOrder.LITTLE_ENDIAN);
+				TilePyramid.readFully(channel, table, 14 + infoSize);
+				// Indices past the table read as black.
+				palette = new int[256];
+				for (int i = 0; i < count; i++) {
+					palette[i] = 0xff000000 | table.getInt(i * 4) & 0xffffff;
+				}
+				for (int i = count; i < 256; i++) {
+					palette[i] = 0xff000000;
+				}
+			}
+			return new BmpSource(channel, header, palette);
+		}
+	}
+
+	// Serves regions from the whole image, decoded once.
+	private static class SampledSource extends SoftwareTileSource {
+		private final Bitmap mBitmap;
+		private final int mWidth;
+		private final int mHeight;
+		private final int mSampleSize;
+		// The pixels of mBitmap per pixel of the image.
+		private final float mScale;
+		private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		private final Rect mSource = new Rect();
+		private final RectF mTarget = new RectF();
+
+		private SampledSource(final Bitmap bitmap, final int width, final int height, final int sampleSize) {
+			mBitmap = bitmap;
+			mWidth = width;
+			mHeight = height;
+			mSampleSize = sampleSize;
+			mScale = (float) bitmap.getWidth() / width;
+		}
+
+		@Override
+		public Bitmap decodeRegion(final Rect rect, final int sampleSize) {
+			final int width = (rect.width() + sampleSize - 1) / sampleSize;
+			final int height = (rect.height() + sampleSize - 1) / sampleSize;
+			final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			mSource.set((int) (rect.left * mScale), (int) (rect.top * mScale),
+					(int) Math.ceil(rect.right * mScale), (int) Math.ceil(rect.bottom * mScale));
+			mTarget.set(0, 0, (float) rect.width() / sampleSize, (float) rect.height() / sampleSize);
+			new Canvas(bitmap).drawBitmap(mBitmap, mSource, mTarget, mPaint);
+			return bitmap;
+		}
+
+		@Override
+		public int getFirstLevel() {
+			return Utils.floorLog2(mSampleSize);
+		}
+
+		@Override
+		public int getHeight() {
+			return mHeight;
+		}
+
+		@Override
+		public int getWidth() {
+			return mWidth;
+		}
+
+		@Override
+		public boolean hasAlpha() {
+			return mBitmap.hasAlpha();
+		}
+
+		@Override
+		public void recycle() {
+			mBitmap.recycle();
+		}
+
+		public static SampledSource decode(final JobContext jc, final FileDescriptor fd, final byte[] data) {
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			if (fd != null) {
+				DecodeUtils.decodeBounds(jc, fd, options);
+			} else {
+				DecodeUtils.decodeBounds(jc, data, 0, data.length, options);
+			}
+			final int width = options.outWidth;
+			final int height = options.outHeight;
+			if (jc.isCancelled() || width <= 0 || height <= 0) return null;
+
+			int sampleSize = 1;
+			while ((long) (width / sampleSize) * (height / sampleSize) > MAX_DECODE_PIXELS) {
+				sampleSize <<= 1;
+			}
+			options.inSampleSize = sampleSize;
+			options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+			final Bitmap bitmap = fd != null ? DecodeUtils.decode(jc, fd, options) : DecodeUtils.decode(jc, data,
+					options);
+			if (bitmap == null) return null;
+			return new SampledSource(bitmap, width, height, sampleSize);
+		}
+	}
+}
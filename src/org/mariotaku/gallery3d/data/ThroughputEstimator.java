@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+// ThroughputEstimator keeps an exponentially weighted estimate of the
+// effective download throughput (including connection setup and
+// time-to-first-byte) and of the typical body size, from the downloads
+// DownloadCache completes.
+public class ThroughputEstimator {
+	// Samples smaller than this are dominated by latency and would make the
+	// link look slower than it is for the image sized bodies we care about.
+	private static final long MIN_SAMPLE_BYTES = 16 * 1024;
+	private static final float SMOOTHING = 0.3f;
+
+	private float mBytesPerMillis = -1;
+	private float mAverageBytes = -1;
+
+	public synchronized void addSample(final long bytes, final long elapsedMillis) {
+		if (bytes <= 0) return;
+		mAverageBytes = mAverageBytes < 0 ? bytes : mAverageBytes + SMOOTHING * (bytes - mAverageBytes);
+		if (bytes < MIN_SAMPLE_BYTES) return;
+		final float sample = (float) bytes / Math.max(1, elapsedMillis);
+		mBytesPerMillis = mBytesPerMillis < 0 ? sample : mBytesPerMillis + SMOOTHING * (sample - mBytesPerMillis);
+	}
+
+	// Returns the estimated time in milliseconds to download the given number
+	// of bytes, or -1 if there is no estimate yet.
+	public synchronized long estimateMillis(final long bytes) {
+		if (mBytesPerMillis <= 0) return -1;
+		return (long) (bytes / mBytesPerMillis);
+	}
+
+	// Returns the smoothed size of downloaded bodies, or -1 if nothing has
+	// been downloaded yet.
+	public synchronized long getAverageBytes() {
+		return (long) mAverageBytes;
+	}
+
+	// Returns the estimated throughput in bytes per millisecond, or -1 if
+	// there is no estimate yet.
+	public synchronized float getBytesPerMillis() {
+		return mBytesPerMillis;
+	}
+}
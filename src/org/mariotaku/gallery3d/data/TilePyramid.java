@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.mariotaku.gallery3d.common.BitmapUtils;
+import org.mariotaku.gallery3d.common.Utils;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.util.Log;
+
+// TilePyramid is a file holding the tiles TileImageView asks for, for every
+// level of an image, already encoded. Reading a tile from it is one
+// positional read and a small decode, instead of a region decode of the
+// original at the level's sample size.
+//
+// The layout is a header, an index of (offset, length) for every tile, and
+// the tiles themselves:
+//
+//   int magic, int version, int width, int height, int tileSize,
+//   int borderSize, int firstLevel, int levelCount
+//   for each level from firstLevel on, row by row: long offset, int length
+//   tile data
+//
+// Levels finer than firstLevel are left out. They are served by the region
+// decoder, or scaled up from firstLevel when the image can't be decoded at
+// a finer level anyway.
+//
+// Tile (tx, ty) at a level covers the same pixels as
+// TileImageView.Model.getTile(level, tx * (tileSize << level),
+// ty * (tileSize << level), tileSize, borderSize), that is tileSize pixels
+// plus a border on every side. The parts outside the image are black, or
+// transparent if the image has alpha.
+//
+// Tiles of opaque images are JPEG, those of images with alpha are PNG.
+// Reading is safe from multiple threads.
+public class TilePyramid {
+	private static final String TAG = "TilePyramid";
+
+	private static final int MAGIC = 0x47505952; // "GPYR"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 8 * 4;
+	private static final int INDEX_ENTRY_SIZE = 8 + 4;
+	private static final int TILE_QUALITY = 90;
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mTileSize;
+	private final int mBorderSize;
+	private final int mFirstLevel;
+	private final int mLevelCount;
+	// The index of the first tile of each level, from mFirstLevel on.
+	private final int[] mLevelStart;
+	private final long[] mOffsets;
+	private final int[] mLengths;
+	private final int mMaxTileLength;
+
+	private TilePyramid(final RandomAccessFile file, final ByteBuffer header) throws IOException {
+		mFile = file;
+		mChannel = file.getChannel();
+		mWidth = header.getInt();
+		mHeight = header.getInt();
+		mTileSize = header.getInt();
+		mBorderSize = header.getInt();
+		mFirstLevel = header.getInt();
+		mLevelCount = header.getInt();
+		if (mWidth <= 0 || mHeight <= 0 || mTileSize <= 0 || mBorderSize < 0 || mLevelCount <= 0
+				|| mLevelCount > 31 || mFirstLevel < 0 || mFirstLevel >= mLevelCount)
+			throw new IOException("bad header");
+
+		mLevelStart = new int[mLevelCount + 1];
+		for (int level = mFirstLevel; level < mLevelCount; level++) {
+			mLevelStart[level + 1] = mLevelStart[level] + getColumnCount(level) * getRowCount(level);
+		}
+		final int tileCount = mLevelStart[mLevelCount];
+		final ByteBuffer index = ByteBuffer.allocate(tileCount * INDEX_ENTRY_SIZE);
+		readFully(mChannel, index, HEADER_SIZE);
+		index.flip();
+
+		mOffsets = new long[tileCount];
+		mLengths = new int[tileCount];
+		final long fileLength = file.length();
+		int maxLength = 0;
+		for (int i = 0; i < tileCount; i++) {
+			mOffsets[i] = index.getLong();
+			mLengths[i] = index.getInt();
+			if (mLengths[i] <= 0 || mOffsets[i] + mLengths[i] > fileLength) throw new IOException("bad index");
+			maxLength = Math.max(maxLength, mLengths[i]);
+		}
+		mMaxTileLength = maxLength;
+	}
+
+	public void close() {
+		Utils.closeSilently(mFile);
+	}
+
+	public int getBorderSize() {
+		return mBorderSize;
+	}
+
+	// The finest level the pyramid holds.
+	public int getFirstLevel() {
+		return mFirstLevel;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public int getLevelCount() {
+		return mLevelCount;
+	}
+
+	// The size of the largest tile, a buffer of this size can hold any tile.
+	public int getMaxTileLength() {
+		return mMaxTileLength;
+	}
+
+	public int getTileSize() {
+		return mTileSize;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	// Returns true if the tile TileImageView asks for with these arguments is
+	// in the pyramid.
+	public boolean hasTile(final int level, final int x, final int y, final int tileSize, final int borderSize) {
+		if (tileSize != mTileSize || borderSize != mBorderSize || level < mFirstLevel || level >= mLevelCount)
+			return false;
+		final int size = tileSize << level;
+		return x >= 0 && y >= 0 && x % size == 0 && y % size == 0 && x < mWidth && y < mHeight;
+	}
+
+	// Reads the encoded tile at (x, y) of the level into buffer and returns
+	// its length. The tile must be in the pyramid, see hasTile().
+	public int readTile(final int level, final int x, final int y, final byte[] buffer) throws IOException {
+		final int size = mTileSize << level;
+		final int i = mLevelStart[level] + y / size * getColumnCount(level) + x / size;
+		final int length = mLengths[i];
+		readFully(mChannel, ByteBuffer.wrap(buffer, 0, length), mOffsets[i]);
+		return length;
+	}
+
+	private int getColumnCount(final int level) {
+		final int size = mTileSize << level;
+		return (mWidth + size - 1) / size;
+	}
+
+	private int getRowCount(final int level) {
+		final int size = mTileSize << level;
+		return (mHeight + size - 1) / size;
+	}
+
+	// Returns the number of levels needed for the image, the last one being
+	// the first level that fits in a single tile.
+	public static int getLevelCount(final int width, final int height, final int tileSize) {
+		int count = 1;
+		while ((Math.max(width, height) >> count - 1) > tileSize) {
+			count++;
+		}
+		return count;
+	}
+
+	// Opens the pyramid in the file, or returns null if there is no valid one.
+	public static TilePyramid open(final File file) {
+		if (!file.isFile()) return null;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(raf.getChannel(), header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) throw new IOException("bad magic");
+			final TilePyramid pyramid = new TilePyramid(raf, header);
+			raf = null;
+			return pyramid;
+		} catch (final IOException e) {
+			Log.w(TAG, "fail to open " + file, e);
+			return null;
+		} finally {
+			Utils.closeSilently(raf);
+		}
+	}
+
+	// Writes the levels from firstLevel on of the pyramid of the image in
+	// source to target. Returns false if the image could not be decoded, has
+	// no level that coarse, or the job was cancelled, in which case target is
+	// not created.
+	public static boolean write(final JobContext jc, final File source, final File target, final int tileSize,
+			final int borderSize, final int firstLevel) throws IOException {
+		final BitmapRegionDecoder decoder = DecodeUtils.createBitmapRegionDecoder(jc, source.getAbsolutePath(),
+				false);
+		if (decoder == null) return false;
+		try {
+			return write(jc, new RegionDecoderSource(decoder), target, tileSize, borderSize, firstLevel);
+		} finally {
+			decoder.recycle();
+		}
+	}
+
+	// Writes the levels from firstLevel on of the pyramid of the image source
+	// decodes to target. Tiles are JPEG unless the image has alpha, in which
+	// case they are PNG and the parts outside the image are transparent.
+	public static boolean write(final JobContext jc, final Source source, final File target, final int tileSize,
+			final int borderSize, final int firstLevel) throws IOException {
+		Utils.assertTrue(firstLevel >= 0);
+		final int levelCount = getLevelCount(source.getWidth(), source.getHeight(), tileSize);
+		if (firstLevel >= levelCount) return false;
+		final File tempFile = File.createTempFile("pyramid", ".tmp", target.getParentFile());
+		RandomAccessFile raf = null;
+		Bitmap tile = null;
+		try {
+			final int width = source.getWidth();
+			final int height = source.getHeight();
+			int tileCount = 0;
+			for (int level = firstLevel; level < levelCount; level++) {
+				final int size = tileSize << level;
+				tileCount += ((width + size - 1) / size) * ((height + size - 1) / size);
+			}
+
+			final ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + tileCount * INDEX_ENTRY_SIZE);
+			index.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(tileSize).putInt(borderSize)
+					.putInt(firstLevel).putInt(levelCount);
+
+			raf = new RandomAccessFile(tempFile, "rw");
+			raf.setLength(0);
+			raf.seek(index.capacity());
+			long offset = index.capacity();
+
+			final boolean hasAlpha = source.hasAlpha();
+			final Bitmap.CompressFormat format = hasAlpha ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+			final int bitmapSize = tileSize + 2 * borderSize;
+			tile = Bitmap.createBitmap(bitmapSize, bitmapSize, Bitmap.Config.ARGB_8888);
+			final Canvas canvas = new Canvas(tile);
+			final Rect wantRegion = new Rect();
+			final Rect overlapRegion = new Rect();
+			final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+			final OutputStream output = new RandomAccessFileOutput(raf);
+
+			for (int level = firstLevel; level < levelCount; level++) {
+				final int size = tileSize << level;
+				final int b = borderSize << level;
+				for (int y = 0; y < height; y += size) {
+					for (int x = 0; x < width; x += size) {
+						if (jc.isCancelled()) return false;
+						wantRegion.set(x - b, y - b, x + size + b, y + size + b);
+						overlapRegion.set(0, 0, width, height);
+						overlapRegion.intersect(wantRegion);
+						final Bitmap region = source.decodeRegion(overlapRegion, 1 << level);
+						if (region == null) return false;
+						tile.eraseColor(hasAlpha ? Color.TRANSPARENT : Color.BLACK);
+						canvas.drawBitmap(region, overlapRegion.left - wantRegion.left >> level,
+								overlapRegion.top - wantRegion.top >> level, null);
+						region.recycle();
+
+						encoded.reset();
+						if (!tile.compress(format, TILE_QUALITY, encoded)) return false;
+						encoded.writeTo(output);
+						index.putLong(offset).putInt(encoded.size());
+						offset += encoded.size();
+					}
+				}
+			}
+
+			raf.seek(0);
+			raf.write(index.array());
+			raf.close();
+			raf = null;
+			return tempFile.renameTo(target);
+		} finally {
+			Utils.closeSilently(raf);
+			BitmapUtils.recycleSilently(tile);
+			tempFile.delete();
+		}
+	}
+
+	static void readFully(final FileChannel channel, final ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			final int count = channel.read(buffer, position);
+			if (count < 0) throw new IOException("unexpected end of file");
+			position += count;
+		}
+	}
+
+	// Lets ByteArrayOutputStream.writeTo() write to the file without copying
+	// the tile out of the stream first.
+	private static class RandomAccessFileOutput extends OutputStream {
+		private final RandomAccessFile mFile;
+
+		public RandomAccessFileOutput(final RandomAccessFile file) {
+			mFile = file;
+		}
+
+		@Override
+		public void write(final byte[] buffer, final int offset, final int count) throws IOException {
+			mFile.write(buffer, offset, count);
+		}
+
+		@Override
+		public void write(final int oneByte) throws IOException {
+			mFile.write(oneByte);
+		}
+	}
+
+	// The image a pyramid is written from.
+	public interface Source {
+		public int getHeight();
+
+		public int getWidth();
+
+		public boolean hasAlpha();
+
+		// Decodes the rectangle of the image down sampled by sampleSize, a
+		// power of 2, or returns null if it fails.
+		public Bitmap decodeRegion(Rect rect, int sampleSize);
+	}
+
+	private static class RegionDecoderSource implements Source {
+		private final BitmapRegionDecoder mDecoder;
+		private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+
+		public RegionDecoderSource(final BitmapRegionDecoder decoder) {
+			mDecoder = decoder;
+			mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		}
+
+		@Override
+		public Bitmap decodeRegion(final Rect rect, final int sampleSize) {
+			mOptions.inSampleSize = sampleSize;
+			return mDecoder.decodeRegion(rect, mOptions);
+		}
+
+		@Override
+		public int getHeight() {
+			return mDecoder.getHeight();
+		}
+
+		@Override
+		public int getWidth() {
+			return mDecoder.getWidth();
+		}
+
+		// Only opaque images are written through a region decoder.
+		@Override
+		public boolean hasAlpha() {
+			return false;
+		}
+	}
+}
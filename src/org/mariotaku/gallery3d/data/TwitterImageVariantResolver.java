@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import android.net.Uri;
+
+// Resolves the size variants of pbs.twimg.com media. The host scales the
+// picture to fit in a square box for each variant name, and serves the
+// original size if the picture is already smaller than the box. Both the
+// legacy suffix form (".../media/<id>.jpg:small") and the query form
+// (".../media/<id>?format=jpg&name=small") are understood.
+public class TwitterImageVariantResolver implements ImageVariantResolver {
+	private static final String HOST = "pbs.twimg.com";
+	private static final String MEDIA_PATH_PREFIX = "/media/";
+	private static final String QUERY_NAME = "name";
+	private static final String QUERY_FORMAT = "format";
+
+	// Ordered from the smallest to the largest box.
+	private static final String[] VARIANT_NAMES = { "small", "medium", "large" };
+	private static final int[] VARIANT_SIZES = { 680, 1200, 2048 };
+
+	@Override
+	public Uri resolve(final Uri uri, final int targetSize) {
+		if (!HOST.equalsIgnoreCase(uri.getHost())) return null;
+		final String path = uri.getEncodedPath();
+		if (path == null || !path.startsWith(MEDIA_PATH_PREFIX)) return null;
+		for (int i = 0, j = VARIANT_NAMES.length; i < j; i++) {
+			if (VARIANT_SIZES[i] >= targetSize) return withVariant(uri, path, VARIANT_NAMES[i]);
+		}
+		return null;
+	}
+
+	private static Uri withVariant(final Uri uri, final String path, final String name) {
+		if (uri.getQueryParameter(QUERY_FORMAT) != null) {
+			final StringBuilder query = new StringBuilder();
+			for (final String param : uri.getEncodedQuery().split("&")) {
+				if (param.length() == 0 || param.startsWith(QUERY_NAME + "=")) {
+					continue;
+				}
+				query.append(param).append('&');
+			}
+			query.append(QUERY_NAME).append('=').append(name);
+			return uri.buildUpon().encodedQuery(query.toString()).build();
+		}
+		final int slash = path.lastIndexOf('/');
+		final int colon = path.indexOf(':', slash);
+		final String base = colon < 0 ? path : path.substring(0, colon);
+		return uri.buildUpon().encodedPath(base + ":" + name).build();
+	}
+}
@@ -16,22 +16,29 @@
 
 package org.mariotaku.gallery3d.data;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.mariotaku.gallery3d.app.GalleryApp;
 import org.mariotaku.gallery3d.common.BitmapUtils;
+import org.mariotaku.gallery3d.common.GifDecoder;
 import org.mariotaku.gallery3d.common.Utils;
+import org.mariotaku.gallery3d.ui.AnimatedScreenNail;
+import org.mariotaku.gallery3d.util.ThreadPool;
 import org.mariotaku.gallery3d.util.ThreadPool.CancelListener;
 import org.mariotaku.gallery3d.util.ThreadPool.Job;
 import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
 
 import android.content.ContentResolver;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory.Options;
 import android.graphics.BitmapRegionDecoder;
 import android.net.Uri;
@@ -46,23 +53,51 @@ public class UriImage extends MediaItem {
 	private static final int STATE_DOWNLOADED = 2;
 	private static final int STATE_ERROR = -1;
 
+	// Pyramids of images that are not in the download cache are written
+	// here. Only the latest one is kept.
+	private static final String TILE_FOLDER = "tiles";
+	private static final String PYRAMID_SUFFIX = ".pyr";
+	private static final String PYRAMID_TEMP_PREFIX = "pyramid";
+	private static final String PYRAMID_TEMP_SUFFIX = ".tmp";
+	// Pyramids of other images are deleted only once they are this old, so
+	// that those of neighbouring photos survive, and temp files only once no
+	// job can still be writing them.
+	private static final long PYRAMID_MIN_AGE = 60 * 1000; // 1 minute
+	private static final long PYRAMID_TEMP_MIN_AGE = 60 * 60 * 1000; // 1 hour
+
+	// Larger GIFs are shown as still images.
+	private static final int MAX_ANIMATION_BYTES = 16 * 1024 * 1024;
+
 	private final Uri mUri;
 	private final String mContentType;
+	private final ImageVariantResolver mVariantResolver;
 
 	private DownloadCache.Entry mCacheEntry;
 	private ParcelFileDescriptor mFileDescriptor;
+	// Set instead of mFileDescriptor if the download is held in memory.
+	private byte[] mData;
 	private int mState = STATE_INIT;
-	private int mWidth;
-	private int mHeight;
+	// Known once the image has been opened.
+	private volatile int mWidth;
+	private volatile int mHeight;
+	private volatile long mSize;
 	private int mRotation;
+	// Sniffed from the image data once it is available.
+	private volatile boolean mOpaque;
 
 	private final GalleryApp mApplication;
 
 	public UriImage(final GalleryApp application, final Path path, final Uri uri, final String contentType) {
+		this(application, path, uri, contentType, null);
+	}
+
+	public UriImage(final GalleryApp application, final Path path, final Uri uri, final String contentType,
+			final ImageVariantResolver resolver) {
 		super(path, nextVersionNumber());
 		mUri = uri;
 		mApplication = Utils.checkNotNull(application);
 		mContentType = contentType;
+		mVariantResolver = resolver;
 	}
 
 	@Override
@@ -72,7 +107,7 @@ public class UriImage extends MediaItem {
 
 	@Override
 	public int getHeight() {
-		return 0;
+		return mHeight;
 	}
 
 	@Override
@@ -85,6 +120,15 @@ public class UriImage extends MediaItem {
 		return mContentType;
 	}
 
+	@Override
+	public long getPendingDownloadBytes() {
+		if (isLocalUri()) return 0;
+		synchronized (this) {
+			if (mState == STATE_DOWNLOADED) return 0;
+		}
+		return mSize > 0 ? mSize : -1;
+	}
+
 	@Override
 	public int getRotation() {
 		return mRotation;
@@ -95,9 +139,43 @@ public class UriImage extends MediaItem {
 		return SUPPORT_FULL_IMAGE;
 	}
 
+	@Override
+	public File getTilePyramidFile() {
+		final DownloadCache.Entry entry = mCacheEntry;
+		return entry != null ? entry.getPyramidFile() : null;
+	}
+
+	@Override
+	public long getSize() {
+		return mSize;
+	}
+
 	@Override
 	public int getWidth() {
-		return 0;
+		return mWidth;
+	}
+
+	@Override
+	public boolean hasReducedImage() {
+		return getReducedImageUri(TYPE_THUMBNAIL) != null;
+	}
+
+	@Override
+	public boolean isOpaque() {
+		return mOpaque;
+	}
+
+	@Override
+	public void prepareTilePyramidFile() {
+		final DownloadCache.Entry entry = mCacheEntry;
+		if (entry != null) {
+			mApplication.getDownloadCache().requestPyramid(entry);
+		}
+	}
+
+	@Override
+	public Job<GifDecoder> requestAnimation() {
+		return new AnimationJob();
 	}
 
 	@Override
@@ -110,6 +188,11 @@ public class UriImage extends MediaItem {
 		return new RegionDecoderJob();
 	}
 
+	@Override
+	public Job<TilePyramid> requestTilePyramid(final int tileSize, final int borderSize) {
+		return new TilePyramidJob(tileSize, borderSize);
+	}
+
 	@Override
 	protected void finalize() throws Throwable {
 		try {
@@ -139,6 +222,127 @@ public class UriImage extends MediaItem {
 	// return details;
 	// }
 
+	// Decodes from data if it is not null, or from fd otherwise.
+	private Bitmap decodeImage(final JobContext jc, final byte[] data, final FileDescriptor fd, final int type,
+			final boolean opaque) {
+		final int targetSize = MediaItem.getTargetSize(type);
+		final Options options = new Options();
+		DecodeUtils.applyPreferredConfig(options, opaque);
+		final Bitmap bitmap = data != null ? DecodeUtils.decodeThumbnail(jc, data, options, targetSize, type)
+				: DecodeUtils.decodeThumbnail(jc, fd, mSize, options, targetSize, type);
+		return fitDecodedImage(jc, bitmap, type);
+	}
+
+	// Decodes the original while it is still being downloaded. Returns null if
+	// it is not being downloaded, or the download or the decode fails; the
+	// caller then falls back to the downloaded file.
+	private Bitmap decodeDownloadingImage(final JobContext jc, final int type) {
+		if (isLocalUri()) return null;
+		synchronized (this) {
+			if (mState != STATE_INIT && mState != STATE_DOWNLOADING) return null;
+		}
+		final GrowingFileInputStream is;
+		try {
+			is = mApplication.getDownloadCache().openStream(jc, new URI(mUri.toString()).toURL());
+		} catch (final Throwable t) {
+			Log.w(TAG, "fail to open stream: " + mUri, t);
+			return null;
+		}
+		if (is == null) return null;
+		Bitmap bitmap = null;
+		try {
+			// Don't hold back other decodes while waiting for the first
+			// bytes, which is most of the latency of a download.
+			jc.setMode(ThreadPool.MODE_NONE);
+			is.mark(Integer.MAX_VALUE);
+			final byte[] header = new byte[16];
+			final boolean opaque = BitmapUtils.isOpaqueFromHeader(header, Utils.readFully(is, header));
+			is.reset();
+			// The decode itself counts against the CPU limit.
+			if (!jc.setMode(ThreadPool.MODE_CPU)) return null;
+			final Options options = new Options();
+			DecodeUtils.applyPreferredConfig(options, opaque);
+			final int targetSize = MediaItem.getTargetSize(type);
+			bitmap = DecodeUtils.decodeThumbnail(jc, is, options, targetSize, type);
+			// The decoder doesn't see read errors, and returns what it got
+			// so far.
+			if (is.hasFailed()) {
+				BitmapUtils.recycleSilently(bitmap);
+				return null;
+			}
+			return fitDecodedImage(jc, bitmap, type);
+		} catch (final Throwable t) {
+			Log.w(TAG, "fail to decode while downloading: " + mUri, t);
+			return null;
+		} finally {
+			Utils.closeSilently(is);
+			jc.setMode(ThreadPool.MODE_CPU);
+		}
+	}
+
+	private Bitmap fitDecodedImage(final JobContext jc, Bitmap bitmap, final int type) {
+		if (jc.isCancelled() || bitmap == null) return null;
+
+		final int targetSize = MediaItem.getTargetSize(type);
+		if (type == MediaItem.TYPE_MICROTHUMBNAIL) {
+			bitmap = BitmapUtils.resizeAndCropCenter(bitmap, targetSize, true);
+		} else {
+			bitmap = BitmapUtils.resizeDownBySideLength(bitmap, targetSize, true);
+		}
+		return bitmap;
+	}
+
+	// Downloads a reduced rendition of the image and decodes it. Returns null
+	// if that fails, in which case the caller falls back to the original.
+	private Bitmap decodeReducedImage(final JobContext jc, final Uri uri, final int type) {
+		ParcelFileDescriptor fd = null;
+		try {
+			final URL url = new URI(uri.toString()).toURL();
+			final DownloadCache.Entry entry = mApplication.getDownloadCache().download(jc, url);
+			if (entry == null || jc.isCancelled()) return null;
+			if (MIME_TYPE_JPEG.equalsIgnoreCase(mContentType)) {
+				mRotation = readRotation(entry);
+			}
+			final boolean opaque = isOpaque(openEntry(entry));
+			if (entry.data != null) return decodeImage(jc, entry.data, null, type, opaque);
+			fd = ParcelFileDescriptor.open(entry.cacheFile, ParcelFileDescriptor.MODE_READ_ONLY);
+			final Bitmap bitmap = decodeImage(jc, null, fd.getFileDescriptor(), type, opaque);
+			if (bitmap != null) {
+				mApplication.getDownloadCache().recordDecode(entry);
+			}
+			return bitmap;
+		} catch (final Throwable t) {
+			Log.w(TAG, "fail to load reduced image: " + uri, t);
+			return null;
+		} finally {
+			Utils.closeSilently(fd);
+		}
+	}
+
+	// Returns the URI of a reduced rendition that is large enough for the
+	// given thumbnail type, or null if the original should be decoded.
+	private Uri getReducedImageUri(final int type) {
+		if (mVariantResolver == null || isLocalUri()) return null;
+		synchronized (this) {
+			// Once the original is here, decoding it is cheaper than
+			// downloading anything else.
+			if (mState == STATE_DOWNLOADED) return null;
+		}
+		return mVariantResolver.resolve(mUri, MediaItem.getTargetSize(type));
+	}
+
+	private void recordDecode() {
+		if (mCacheEntry != null) {
+			mApplication.getDownloadCache().recordDecode(mCacheEntry);
+		}
+	}
+
+	private boolean isLocalUri() {
+		final String scheme = mUri.getScheme();
+		return ContentResolver.SCHEME_CONTENT.equals(scheme) || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(scheme)
+				|| ContentResolver.SCHEME_FILE.equals(scheme);
+	}
+
 	private void openFileOrDownloadTempFile(final JobContext jc) {
 		final int state = openOrDownloadInner(jc);
 		synchronized (this) {
@@ -148,25 +352,28 @@ public class UriImage extends MediaItem {
 					Utils.closeSilently(mFileDescriptor);
 					mFileDescriptor = null;
 				}
+				mData = null;
 			}
 			notifyAll();
 		}
 	}
 
 	private int openOrDownloadInner(final JobContext jc) {
-		final String scheme = mUri.getScheme();
-		if (ContentResolver.SCHEME_CONTENT.equals(scheme) || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(scheme)
-				|| ContentResolver.SCHEME_FILE.equals(scheme)) {
+		if (isLocalUri()) {
 			try {
 				if (MIME_TYPE_JPEG.equalsIgnoreCase(mContentType)) {
 					final InputStream is = mApplication.getContentResolver().openInputStream(mUri);
 					mRotation = Exif.getOrientation(is);
 					Utils.closeSilently(is);
 				}
+				mOpaque = isOpaque(mApplication.getContentResolver().openInputStream(mUri));
 				mFileDescriptor = mApplication.getContentResolver().openFileDescriptor(mUri, "r");
+				if (mFileDescriptor == null) return STATE_ERROR;
 				if (jc.isCancelled()) return STATE_INIT;
+				mSize = Math.max(0, mFileDescriptor.getStatSize());
+				readBounds(jc);
 				return STATE_DOWNLOADED;
-			} catch (final FileNotFoundException e) {
+			} catch (final IOException e) {
 				Log.w(TAG, "fail to open: " + mUri, e);
 				return STATE_ERROR;
 			}
@@ -179,12 +386,22 @@ public class UriImage extends MediaItem {
 					Log.w(TAG, "download failed " + url);
 					return STATE_ERROR;
 				}
+				// This is what gets zoomed into, keep it lossless.
+				mApplication.getDownloadCache().keepOriginal(mCacheEntry);
 				if (MIME_TYPE_JPEG.equalsIgnoreCase(mContentType)) {
-					final InputStream is = new FileInputStream(mCacheEntry.cacheFile);
-					mRotation = Exif.getOrientation(is);
-					Utils.closeSilently(is);
+					mRotation = readRotation(mCacheEntry);
 				}
-				mFileDescriptor = ParcelFileDescriptor.open(mCacheEntry.cacheFile, ParcelFileDescriptor.MODE_READ_ONLY);
+				mOpaque = isOpaque(openEntry(mCacheEntry));
+				if (mCacheEntry.data != null) {
+					// Small download, decode straight from memory.
+					mData = mCacheEntry.data;
+					mSize = mData.length;
+				} else {
+					mFileDescriptor = ParcelFileDescriptor.open(mCacheEntry.cacheFile,
+							ParcelFileDescriptor.MODE_READ_ONLY);
+					mSize = mCacheEntry.cacheFile.length();
+				}
+				readBounds(jc);
 				return STATE_DOWNLOADED;
 			} catch (final Throwable t) {
 				Log.w(TAG, "download error", t);
@@ -193,6 +410,21 @@ public class UriImage extends MediaItem {
 		}
 	}
 
+	// Reads the dimensions of the opened image, so the cost of decoding it
+	// can be estimated before it is decoded.
+	private void readBounds(final JobContext jc) {
+		final Options options = new Options();
+		if (mData != null) {
+			DecodeUtils.decodeBounds(jc, mData, 0, mData.length, options);
+		} else {
+			DecodeUtils.decodeBounds(jc, mFileDescriptor.getFileDescriptor(), options);
+		}
+		if (options.outWidth > 0 && options.outHeight > 0) {
+			mWidth = options.outWidth;
+			mHeight = options.outHeight;
+		}
+	}
+
 	private boolean prepareInputFile(final JobContext jc) {
 		jc.setCancelListener(new CancelListener() {
 			@Override
@@ -227,6 +459,81 @@ public class UriImage extends MediaItem {
 		}
 	}
 
+	// Reads the header of the image and closes the stream.
+	// Returns false if the stream is null, which content providers may return.
+	private static boolean isOpaque(final InputStream is) throws IOException {
+		if (is == null) return false;
+		try {
+			final byte[] header = new byte[16];
+			return BitmapUtils.isOpaqueFromHeader(header, Utils.readFully(is, header));
+		} finally {
+			Utils.closeSilently(is);
+		}
+	}
+
+	private static InputStream openEntry(final DownloadCache.Entry entry) throws IOException {
+		return entry.data != null ? new ByteArrayInputStream(entry.data) : new FileInputStream(entry.cacheFile);
+	}
+
+	private static int readRotation(final DownloadCache.Entry entry) throws IOException {
+		final InputStream is = openEntry(entry);
+		try {
+			return Exif.getOrientation(is);
+		} finally {
+			Utils.closeSilently(is);
+		}
+	}
+
+	// Deletes the pyramids in dir other than the one named keepName once
+	// they are PYRAMID_MIN_AGE old, and the temp files of pyramid jobs once
+	// they are PYRAMID_TEMP_MIN_AGE old. Package private for the test.
+	static void deleteStalePyramids(final File dir, final String keepName, final long now) {
+		final File[] files = dir.listFiles();
+		if (files == null) return;
+		for (final File file : files) {
+			final String fileName = file.getName();
+			final long age = now - file.lastModified();
+			if (fileName.endsWith(PYRAMID_SUFFIX) ? !fileName.equals(keepName) && age > PYRAMID_MIN_AGE
+					: fileName.startsWith(PYRAMID_TEMP_PREFIX) && fileName.endsWith(PYRAMID_TEMP_SUFFIX)
+							&& age > PYRAMID_TEMP_MIN_AGE) {
+				file.delete();
+			}
+		}
+	}
+
+	private class AnimationJob implements Job<GifDecoder> {
+		@Override
+		public GifDecoder run(final JobContext jc) {
+			if (!prepareInputFile(jc)) return null;
+			try {
+				final byte[] data = mData != null ? mData : readFile(mFileDescriptor.getFileDescriptor());
+				if (data == null || data.length < 3 || data[0] != 'G' || data[1] != 'I' || data[2] != 'F')
+					return null;
+				final GifDecoder decoder = new GifDecoder(data);
+				// Frames too large to play are left to software tiling, before
+				// the decoder allocates its canvas.
+				if ((long) decoder.getWidth() * decoder.getHeight() > AnimatedScreenNail.MAX_PIXELS) return null;
+				if (jc.isCancelled() || decoder.countFrames() < 2) return null;
+				return decoder;
+			} catch (final IOException e) {
+				Log.w(TAG, "fail to open animation of " + mUri, e);
+				return null;
+			}
+		}
+
+		// Returns the content of the file, or null if it is too large. The
+		// descriptor's offset is left alone.
+		private byte[] readFile(final FileDescriptor fd) throws IOException {
+			// On Android, a stream created from a descriptor doesn't close it.
+			final FileChannel channel = new FileInputStream(fd).getChannel();
+			final long size = channel.size();
+			if (size > MAX_ANIMATION_BYTES) return null;
+			final byte[] data = new byte[(int) size];
+			TilePyramid.readFully(channel, ByteBuffer.wrap(data), 0);
+			return data;
+		}
+	}
+
 	private class BitmapJob implements Job<Bitmap> {
 		private final int mType;
 
@@ -236,30 +543,101 @@ public class UriImage extends MediaItem {
 
 		@Override
 		public Bitmap run(final JobContext jc) {
+			final Uri reducedUri = getReducedImageUri(mType);
+			if (reducedUri != null) {
+				final Bitmap bitmap = decodeReducedImage(jc, reducedUri, mType);
+				if (bitmap != null || jc.isCancelled()) return bitmap;
+			}
+			final Bitmap streamed = decodeDownloadingImage(jc, mType);
+			if (streamed != null || jc.isCancelled()) return streamed;
 			if (!prepareInputFile(jc)) return null;
-			final int targetSize = MediaItem.getTargetSize(mType);
-			final Options options = new Options();
-			options.inPreferredConfig = Config.ARGB_8888;
-			Bitmap bitmap = DecodeUtils.decodeThumbnail(jc, mFileDescriptor.getFileDescriptor(), options, targetSize,
-					mType);
-
-			if (jc.isCancelled() || bitmap == null) return null;
-
-			if (mType == MediaItem.TYPE_MICROTHUMBNAIL) {
-				bitmap = BitmapUtils.resizeAndCropCenter(bitmap, targetSize, true);
+			final Bitmap bitmap;
+			if (mData != null) {
+				bitmap = decodeImage(jc, mData, null, mType, mOpaque);
 			} else {
-				bitmap = BitmapUtils.resizeDownBySideLength(bitmap, targetSize, true);
+				bitmap = decodeImage(jc, null, mFileDescriptor.getFileDescriptor(), mType, mOpaque);
+			}
+			if (bitmap != null) {
+				recordDecode();
 			}
 			return bitmap;
 		}
 	}
 
+	private class TilePyramidJob implements Job<TilePyramid> {
+		private final int mTileSize;
+		private final int mBorderSize;
+
+		public TilePyramidJob(final int tileSize, final int borderSize) {
+			mTileSize = tileSize;
+			mBorderSize = borderSize;
+		}
+
+		@Override
+		public TilePyramid run(final JobContext jc) {
+			if (!prepareInputFile(jc)) return null;
+			final DownloadCache.Entry entry = mCacheEntry;
+			final boolean inCache = entry != null && mData == null;
+			final File file = inCache ? entry.getPyramidFile() : getLocalPyramidFile();
+			if (file == null) return null;
+
+			final TilePyramid pyramid = TilePyramid.open(file);
+			if (pyramid != null) {
+				if (pyramid.getTileSize() == mTileSize && pyramid.getBorderSize() == mBorderSize) return pyramid;
+				pyramid.close();
+			}
+
+			final SoftwareTileSource source = SoftwareTileSource.create(jc,
+					mFileDescriptor != null ? mFileDescriptor.getFileDescriptor() : null, mData);
+			if (source == null) return null;
+			File tempFile = null;
+			try {
+				tempFile = File.createTempFile(PYRAMID_TEMP_PREFIX, PYRAMID_TEMP_SUFFIX, file.getParentFile());
+				final int levelCount = TilePyramid.getLevelCount(source.getWidth(), source.getHeight(), mTileSize);
+				final int firstLevel = Math.min(source.getFirstLevel(), levelCount - 1);
+				if (!TilePyramid.write(jc, source, tempFile, mTileSize, mBorderSize, firstLevel)) return null;
+				final boolean stored = inCache ? mApplication.getDownloadCache().addPyramidFile(entry, tempFile)
+						: tempFile.renameTo(file);
+				if (!stored) return null;
+				tempFile = null;
+				mWidth = source.getWidth();
+				mHeight = source.getHeight();
+				return TilePyramid.open(file);
+			} catch (final IOException e) {
+				Log.w(TAG, "fail to write tiles of " + mUri, e);
+				return null;
+			} finally {
+				source.recycle();
+				if (tempFile != null) {
+					tempFile.delete();
+				}
+			}
+		}
+
+		// Returns the file for the pyramid of an image outside the download
+		// cache, after deleting the old pyramids of other images and the temp
+		// files left by jobs which didn't finish.
+		private File getLocalPyramidFile() {
+			final File dir = new File(mApplication.getAndroidContext().getCacheDir(), TILE_FOLDER);
+			if (!dir.isDirectory() && !dir.mkdirs()) return null;
+			final String name = Long.toHexString(Utils.crc64Long(mUri.toString())) + PYRAMID_SUFFIX;
+			deleteStalePyramids(dir, name, System.currentTimeMillis());
+			return new File(dir, name);
+		}
+	}
+
 	private class RegionDecoderJob implements Job<BitmapRegionDecoder> {
 		@Override
 		public BitmapRegionDecoder run(final JobContext jc) {
 			if (!prepareInputFile(jc)) return null;
-			final BitmapRegionDecoder decoder = DecodeUtils.createBitmapRegionDecoder(jc,
-					mFileDescriptor.getFileDescriptor(), false);
+			final BitmapRegionDecoder decoder;
+			if (mData != null) {
+				decoder = DecodeUtils.createBitmapRegionDecoder(jc, mData, 0, mData.length, false);
+			} else {
+				decoder = DecodeUtils.createBitmapRegionDecoder(jc, mFileDescriptor.getFileDescriptor(), false);
+			}
+			if (decoder == null) return null;
+			recordDecode();
 			mWidth = decoder.getWidth();
 			mHeight = decoder.getHeight();
 			return decoder;
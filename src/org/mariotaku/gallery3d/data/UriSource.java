@@ -34,10 +34,16 @@ class UriSource extends MediaSource {
 	private static final String CHARSET_UTF_8 = "utf-8";
 
 	private final GalleryApp mApplication;
+	private final ImageVariantResolver mVariantResolver;
 
 	public UriSource(final GalleryApp context) {
+		this(context, new TwitterImageVariantResolver());
+	}
+
+	public UriSource(final GalleryApp context, final ImageVariantResolver resolver) {
 		super("uri");
 		mApplication = context;
+		mVariantResolver = resolver;
 	}
 
 	@Override
@@ -47,7 +53,7 @@ class UriSource extends MediaSource {
 		try {
 			final String uri = URLDecoder.decode(segment[1], CHARSET_UTF_8);
 			final String type = URLDecoder.decode(segment[2], CHARSET_UTF_8);
-			return new UriImage(mApplication, path, Uri.parse(uri), type);
+			return new UriImage(mApplication, path, Uri.parse(uri), type, mVariantResolver);
 		} catch (final UnsupportedEncodingException e) {
 			throw new AssertionError(e);
 		}
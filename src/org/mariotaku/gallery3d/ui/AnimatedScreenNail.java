@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.ui;
+
+import java.util.ArrayDeque;
+
+import org.mariotaku.gallery3d.common.GifDecoder;
+import org.mariotaku.gallery3d.util.Future;
+import org.mariotaku.gallery3d.util.ThreadPool;
+import org.mariotaku.gallery3d.util.ThreadPool.CancelListener;
+import org.mariotaku.gallery3d.util.ThreadPool.Job;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.os.SystemClock;
+
+// AnimatedScreenNail plays an animated GIF. Frames are decoded ahead by a
+// worker into a small ring of bitmaps, bounded by FRAME_CACHE_BYTES, and each
+// one is handed to the UploadScheduler when its delay is up. Frames are never
+// skipped: if decoding or uploading falls behind, the animation slows down
+// and picks up the original cadence again from where it is.
+//
+// The worker decodes as many frames ahead as the measured decode time needs
+// to keep up with the frame delays, as far as the ring allows.
+//
+// Except for create(), methods must be called on the GL thread.
+public class AnimatedScreenNail implements ScreenNail {
+	private static final int FRAME_CACHE_BYTES = 12 * 1024 * 1024;
+	// The frame shown, the one waiting for upload and the one being decoded.
+	private static final int MIN_FRAMES = 3;
+	// The largest animation we play, in pixels per frame. Larger ones are
+	// shown as still images.
+	public static final int MAX_PIXELS = FRAME_CACHE_BYTES / MIN_FRAMES / 4;
+	private static final int MAX_FRAMES = 8;
+	private static final float SMOOTHING = 0.2f;
+
+	private final GifDecoder mDecoder;
+	private final GLRoot mGLRoot;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mMaxFrames;
+	private final FrameTexture mTexture = new FrameTexture();
+	private Future<Void> mTask;
+
+	// Accessed on the GL thread only.
+	private Bitmap mShown;
+
+	// Guarded by this.
+	private final ArrayDeque<Frame> mReady = new ArrayDeque<Frame>();
+	private final ArrayDeque<Bitmap> mFree = new ArrayDeque<Bitmap>();
+	private int mFrameCount;
+	// The frame scheduled for upload.
+	private Frame mPending;
+	// When the next frame is to be shown, in uptime milliseconds.
+	private long mDueTime;
+	private boolean mEnded;
+	private boolean mRecycled;
+	private float mAverageDecodeTime;
+	private float mAverageDelay;
+
+	private final UploadScheduler.Uploader mUploader = new UploadScheduler.Uploader() {
+		@Override
+		public boolean uploadOne(final GLCanvas canvas) {
+			final Frame frame;
+			synchronized (AnimatedScreenNail.this) {
+				if (mRecycled || mPending == null) return false;
+				frame = mPending;
+			}
+			final Bitmap old = mShown;
+			mShown = frame.bitmap;
+			mTexture.setContent(frame.bitmap);
+			mTexture.updateContent(canvas);
+			synchronized (AnimatedScreenNail.this) {
+				mPending = null;
+				mFree.addLast(old);
+				final long now = SystemClock.uptimeMillis();
+				mDueTime = now - mDueTime > frame.delay ? now + frame.delay : mDueTime + frame.delay;
+				AnimatedScreenNail.this.notifyAll();
+			}
+			mGLRoot.requestRender();
+			return false;
+		}
+	};
+
+	private AnimatedScreenNail(final GifDecoder decoder, final GLRoot root, final int maxFrames) {
+		mDecoder = decoder;
+		mGLRoot = root;
+		mWidth = decoder.getWidth();
+		mHeight = decoder.getHeight();
+		mMaxFrames = maxFrames;
+		mTexture.setOpaque(false);
+	}
+
+	@Override
+	public void draw(final GLCanvas canvas, final int x, final int y, final int width, final int height) {
+		mTexture.draw(canvas, x, y, width, height);
+	}
+
+	@Override
+	public void draw(final GLCanvas canvas, final RectF source, final RectF dest) {
+		canvas.drawTexture(mTexture, source, dest);
+	}
+
+	@Override
+	public int getHeight() {
+		return mHeight;
+	}
+
+	@Override
+	public int getWidth() {
+		return mWidth;
+	}
+
+	@Override
+	public void noDraw() {
+	}
+
+	@Override
+	public void recycle() {
+		synchronized (this) {
+			if (mRecycled) return;
+			mRecycled = true;
+			notifyAll();
+		}
+		mTask.cancel();
+		mTask.waitDone();
+		mGLRoot.getUploadScheduler().cancel(mUploader);
+		mTexture.recycle();
+		mShown.recycle();
+		for (final Frame frame : mReady) {
+			frame.bitmap.recycle();
+		}
+		mReady.clear();
+		if (mPending != null) {
+			mPending.bitmap.recycle();
+			mPending = null;
+		}
+		for (final Bitmap bitmap : mFree) {
+			bitmap.recycle();
+		}
+		mFree.clear();
+	}
+
+	// Returns the number of frames to decode ahead. Called with the lock held.
+	private int getDecodeAhead() {
+		if (mAverageDelay <= 0) return 1;
+		final int ahead = (int) Math.ceil(mAverageDecodeTime / mAverageDelay) + 1;
+		return Math.max(1, Math.min(ahead, mMaxFrames - 2));
+	}
+
+	// Returns a bitmap to decode into, or null if all of them are in use.
+	// Called with the lock held.
+	private Bitmap obtainBitmap() {
+		if (!mFree.isEmpty()) return mFree.removeFirst();
+		if (mFrameCount >= mMaxFrames) return null;
+		mFrameCount++;
+		return Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+	}
+
+	// Shows the first frame of the decoder and starts playing. Returns null if
+	// the frames are too large for the cache or the first one can't be
+	// decoded. It may be called on any thread.
+	public static AnimatedScreenNail create(final GifDecoder decoder, final GLRoot root, final ThreadPool threadPool) {
+		final long pixels = (long) decoder.getWidth() * decoder.getHeight();
+		if (pixels > MAX_PIXELS) return null;
+		final int maxFrames = (int) Math.min(MAX_FRAMES, FRAME_CACHE_BYTES / (pixels * 4));
+		final int delay = decoder.nextFrame();
+		if (delay < 0) return null;
+
+		final AnimatedScreenNail nail = new AnimatedScreenNail(decoder, root, maxFrames);
+		final Bitmap first = nail.obtainBitmap();
+		first.setPixels(decoder.getPixels(), 0, nail.mWidth, 0, 0, nail.mWidth, nail.mHeight);
+		nail.mShown = first;
+		nail.mTexture.setContent(first);
+		nail.mDueTime = SystemClock.uptimeMillis() + delay;
+		nail.mAverageDelay = delay;
+		nail.mTask = threadPool.submitLongRunning(nail.new FrameDecoder());
+		return nail;
+	}
+
+	private static class Frame {
+		public final Bitmap bitmap;
+		public final int delay;
+
+		public Frame(final Bitmap bitmap, final int delay) {
+			this.bitmap = bitmap;
+			this.delay = delay;
+		}
+	}
+
+	// Decodes frames ahead and schedules each one for upload when it is due.
+	private class FrameDecoder implements Job<Void> {
+		// Accessed on the worker thread only.
+		private boolean mScheduleNeeded;
+		private final CancelListener mNotifier = new CancelListener() {
+			@Override
+			public void onCancel() {
+				synchronized (AnimatedScreenNail.this) {
+					AnimatedScreenNail.this.notifyAll();
+				}
+			}
+		};
+
+		@Override
+		public Void run(final JobContext jc) {
+			jc.setMode(ThreadPool.MODE_NONE);
+			jc.setCancelListener(mNotifier);
+			int loop = 1;
+			while (true) {
+				final Bitmap target = waitForWork(jc);
+				if (mScheduleNeeded) {
+					// Not under our lock, as the uploader takes it.
+					mScheduleNeeded = false;
+					mGLRoot.getUploadScheduler().schedule(mUploader, UploadScheduler.PRIORITY_SCREEN_NAIL);
+					continue;
+				}
+				if (target == null) return null;
+
+				// Decoding counts against the CPU limit like any other decode,
+				// but the job gives it back while it waits for the next one.
+				if (!jc.setMode(ThreadPool.MODE_CPU)) {
+					synchronized (AnimatedScreenNail.this) {
+						mFree.addLast(target);
+					}
+					return null;
+				}
+				final long startTime = SystemClock.uptimeMillis();
+				int delay = mDecoder.nextFrame();
+				if (delay < 0) {
+					final int loopCount = mDecoder.getLoopCount();
+					if (loopCount == 0 || loop < loopCount) {
+						loop++;
+						mDecoder.rewind();
+						delay = mDecoder.nextFrame();
+					}
+				}
+				if (delay >= 0) {
+					target.setPixels(mDecoder.getPixels(), 0, mWidth, 0, 0, mWidth, mHeight);
+				}
+				final long decodeTime = SystemClock.uptimeMillis() - startTime;
+				jc.setMode(ThreadPool.MODE_NONE);
+
+				synchronized (AnimatedScreenNail.this) {
+					if (delay < 0) {
+						mEnded = true;
+						mFree.addLast(target);
+					} else {
+						mReady.addLast(new Frame(target, delay));
+						mAverageDecodeTime += SMOOTHING * (decodeTime - mAverageDecodeTime);
+						mAverageDelay += SMOOTHING * (delay - mAverageDelay);
+					}
+				}
+			}
+		}
+
+		// Waits until there is work: sets mScheduleNeeded once the next frame
+		// is due and pending, for the caller to schedule its upload, or
+		// returns a bitmap to decode into once another frame is needed.
+		// Returns null otherwise, if the job is cancelled or the animation
+		// has ended.
+		private Bitmap waitForWork(final JobContext jc) {
+			synchronized (AnimatedScreenNail.this) {
+				while (true) {
+					if (jc.isCancelled() || mRecycled) return null;
+					final long now = SystemClock.uptimeMillis();
+					if (mPending == null && !mReady.isEmpty() && now >= mDueTime) {
+						mPending = mReady.removeFirst();
+						mScheduleNeeded = true;
+						return null;
+					}
+					if (!mEnded && mReady.size() < getDecodeAhead()) {
+						final Bitmap bitmap = obtainBitmap();
+						if (bitmap != null) return bitmap;
+					}
+					if (mEnded && mReady.isEmpty() && mPending == null) return null;
+					final long timeout = mPending == null && !mReady.isEmpty() ? mDueTime - now : 0;
+					try {
+						AnimatedScreenNail.this.wait(timeout);
+					} catch (final InterruptedException e) {
+						// Check the state again.
+					}
+				}
+			}
+		}
+	}
+
+	private static class FrameTexture extends UploadedTexture {
+		private Bitmap mContent;
+
+		public void setContent(final Bitmap bitmap) {
+			mContent = bitmap;
+			invalidateContent();
+		}
+
+		@Override
+		protected void onFreeBitmap(final Bitmap bitmap) {
+			// The bitmaps are owned by AnimatedScreenNail.
+		}
+
+		@Override
+		protected Bitmap onGetBitmap() {
+			return mContent;
+		}
+	}
+}
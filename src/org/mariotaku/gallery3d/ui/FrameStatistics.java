@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.ui;
+
+// FrameStatistics collects frame timings on the GL thread: a histogram of
+// frame times, the time spent in each phase of a frame, the number of janky
+// frames, and the upload work done in idle time broken down by the
+// UploadScheduler priority class it came from, next to the uploads made while
+// rendering, and the draw calls and GL state changes each frame needed.
+//
+// A frame's time is the time spent drawing it plus the idle work done on the
+// GL thread since the previous frame, since both delay the next frame.
+//
+// Recording happens on the GL thread; snapshot() and reset() may be called
+// from any thread.
+public class FrameStatistics {
+	public static final int PHASE_DELETE_RESOURCES = 0;
+	public static final int PHASE_LAYOUT = 1;
+	public static final int PHASE_RENDER = 2;
+	public static final int PHASE_IDLE = 3;
+	public static final int PHASE_COUNT = 4;
+
+	// Indexed by UploadScheduler priority, or UPLOAD_SOURCE_IN_FRAME for the
+	// uploads made while rendering, which are part of PHASE_RENDER.
+	public static final int UPLOAD_SOURCE_IN_FRAME = 4;
+	public static final int UPLOAD_SOURCE_COUNT = 5;
+
+	// The histogram has buckets of BUCKET_WIDTH ms, the last one holds every
+	// frame longer than that.
+	public static final int BUCKET_WIDTH = 2; // ms
+	public static final int BUCKET_COUNT = 33;
+
+	private static final long JANK_THRESHOLD = 16667000; // ns, one frame at 60fps
+	private static final long BIG_JANK_THRESHOLD = 33333000; // ns, two frames
+
+	private final Snapshot mData = new Snapshot();
+	private long mPhaseStartTime;
+	private long mFrameStartTime;
+	private long mPendingIdleTime;
+
+	// Called by GLRootView when a frame starts and ends.
+	public void beginFrame() {
+		mFrameStartTime = System.nanoTime();
+	}
+
+	// Starts timing a phase of the frame or of the idle work.
+	public void beginPhase() {
+		mPhaseStartTime = System.nanoTime();
+	}
+
+	public void endFrame() {
+		final long frameTime = System.nanoTime() - mFrameStartTime + mPendingIdleTime;
+		mPendingIdleTime = 0;
+		final int bucket = (int) Math.min(BUCKET_COUNT - 1, frameTime / (BUCKET_WIDTH * 1000000L));
+		synchronized (mData) {
+			mData.frameCount++;
+			mData.totalFrameTime += frameTime;
+			mData.histogram[bucket]++;
+			if (frameTime > JANK_THRESHOLD) {
+				mData.jankCount++;
+			}
+			if (frameTime > BIG_JANK_THRESHOLD) {
+				mData.bigJankCount++;
+			}
+			if (frameTime > mData.maxFrameTime) {
+				mData.maxFrameTime = frameTime;
+			}
+		}
+	}
+
+	public void endPhase(final int phase) {
+		final long elapsed = System.nanoTime() - mPhaseStartTime;
+		if (phase == PHASE_IDLE) {
+			mPendingIdleTime += elapsed;
+		}
+		synchronized (mData) {
+			mData.phaseTime[phase] += elapsed;
+		}
+	}
+
+	// Called by GLRootView at the end of every frame with the counts of the
+	// GLCanvas.
+	public void recordDrawCalls(final int drawCalls, final int stateChanges) {
+		synchronized (mData) {
+			mData.drawCallCount += drawCalls;
+			mData.stateChangeCount += stateChanges;
+			if (drawCalls > mData.maxDrawCalls) {
+				mData.maxDrawCalls = drawCalls;
+			}
+		}
+	}
+
+	// Called by UploadScheduler for every unit of work it runs, and for every
+	// upload made while rendering.
+	public void recordUpload(final int source, final long nanos) {
+		synchronized (mData) {
+			mData.uploadCount[source]++;
+			mData.uploadTime[source] += nanos;
+		}
+	}
+
+	public void reset() {
+		synchronized (mData) {
+			mData.clear();
+		}
+	}
+
+	public Snapshot snapshot() {
+		final Snapshot result = new Snapshot();
+		synchronized (mData) {
+			result.set(mData);
+		}
+		return result;
+	}
+
+	public static class Snapshot {
+		public int frameCount;
+		// Frames longer than 16.6 ms and 33.3 ms.
+		public int jankCount;
+		public int bigJankCount;
+		public long totalFrameTime; // ns
+		public long maxFrameTime; // ns
+		public final int[] histogram = new int[BUCKET_COUNT];
+		public final long[] phaseTime = new long[PHASE_COUNT]; // ns
+		public final int[] uploadCount = new int[UPLOAD_SOURCE_COUNT];
+		public final long[] uploadTime = new long[UPLOAD_SOURCE_COUNT]; // ns
+		// Summed over the frames.
+		public long drawCallCount;
+		public long stateChangeCount;
+		public int maxDrawCalls;
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder();
+			sb.append("frames: ").append(frameCount).append(", jank: ").append(jankCount).append('/')
+					.append(bigJankCount).append(", avg: ")
+					.append(frameCount == 0 ? 0 : totalFrameTime / frameCount / 1000).append("us, max: ")
+					.append(maxFrameTime / 1000).append("us, phases(us): ");
+			for (int i = 0; i < PHASE_COUNT; i++) {
+				sb.append(i == 0 ? "" : "/").append(phaseTime[i] / 1000);
+			}
+			sb.append(", uploads: ");
+			for (int i = 0; i < UPLOAD_SOURCE_COUNT; i++) {
+				sb.append(i == 0 ? "" : "/").append(uploadCount[i]).append('(').append(uploadTime[i] / 1000)
+						.append("us)");
+			}
+			sb.append(", draws: ").append(frameCount == 0 ? 0 : drawCallCount / frameCount).append(", max: ")
+					.append(maxDrawCalls).append(", state changes: ")
+					.append(frameCount == 0 ? 0 : stateChangeCount / frameCount);
+			return sb.toString();
+		}
+
+		void clear() {
+			frameCount = 0;
+			jankCount = 0;
+			bigJankCount = 0;
+			totalFrameTime = 0;
+			maxFrameTime = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				histogram[i] = 0;
+			}
+			for (int i = 0; i < PHASE_COUNT; i++) {
+				phaseTime[i] = 0;
+			}
+			for (int i = 0; i < UPLOAD_SOURCE_COUNT; i++) {
+				uploadCount[i] = 0;
+				uploadTime[i] = 0;
+			}
+			drawCallCount = 0;
+			stateChangeCount = 0;
+			maxDrawCalls = 0;
+		}
+
+		void set(final Snapshot other) {
+			frameCount = other.frameCount;
+			jankCount = other.jankCount;
+			bigJankCount = other.bigJankCount;
+			totalFrameTime = other.totalFrameTime;
+			maxFrameTime = other.maxFrameTime;
+			System.arraycopy(other.histogram, 0, histogram, 0, BUCKET_COUNT);
+			System.arraycopy(other.phaseTime, 0, phaseTime, 0, PHASE_COUNT);
+			System.arraycopy(other.uploadCount, 0, uploadCount, 0, UPLOAD_SOURCE_COUNT);
+			System.arraycopy(other.uploadTime, 0, uploadTime, 0, UPLOAD_SOURCE_COUNT);
+			drawCallCount = other.drawCallCount;
+			stateChangeCount = other.stateChangeCount;
+			maxDrawCalls = other.maxDrawCalls;
+		}
+	}
+}
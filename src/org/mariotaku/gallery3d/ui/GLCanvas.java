@@ -84,17 +84,30 @@ public interface GLCanvas {
 	// Fills the specified rectangle with the specified color.
 	public void fillRect(float x, float y, float width, float height, int color);
 
+	// Draws what has been batched so far. Textured rectangles drawn without
+	// rotation may be batched; everything else flushes the batch first, so
+	// this is only needed at the end of a frame.
+	public void flush();
+
 	public float getAlpha();
 
+	// The number of draw calls and of GL state changes, such as texture
+	// binds and blending changes, made since resetStatistics().
+	public int getDrawCallCount();
+
 	// Gets the underlying GL instance. This is used only when direct access to
-	// GL is needed.
+	// GL is needed. The batched drawing is flushed first.
 	public GL11 getGLInstance();
 
+	public int getStateChangeCount();
+
 	// (current alpha) = (current alpha) * alpha
 	public void multiplyAlpha(float alpha);
 
 	public void multiplyMatrix(float[] mMatrix, int offset);
 
+	public void resetStatistics();
+
 	// Pops from the top of the stack as current configuration state (matrix,
 	// alpha, and clip). This call balances a previous call to save(), and is
 	// used to remove all modifications to the configuration state since the
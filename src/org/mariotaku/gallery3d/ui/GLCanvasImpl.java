@@ -83,6 +83,21 @@ public class GLCanvasImpl implements GLCanvas {
 
 	private RawTexture mTargetTexture;
 
+	// The textured rectangles waiting to be drawn, see flush().
+	private final QuadBatch mBatch = new QuadBatch();
+	private final float[] mBatchXY = new float[QuadBatch.MAX_QUADS * QuadBatch.FLOATS_PER_QUAD];
+	private final float[] mBatchUV = new float[QuadBatch.MAX_QUADS * QuadBatch.FLOATS_PER_QUAD];
+	private final float[] mBatchRect = new float[8];
+	private final float[] mBatchMatrix = new float[16];
+	private FloatBuffer mBatchXYBuffer;
+	private FloatBuffer mBatchUVBuffer;
+	// Whether the vertex and texture coordinate pointers point into
+	// mBoxCoords, rather than the batch buffers.
+	private boolean mBoxCoordsBound = true;
+
+	// Per-frame statistics, see resetStatistics().
+	private int mDrawCallCount;
+
 	// Drawing statistics
 	int mCountDrawLine;
 	int mCountFillRect;
@@ -107,6 +122,7 @@ public class GLCanvasImpl implements GLCanvas {
 
 	@Override
 	public void beginRenderTarget(final RawTexture texture) {
+		flush();
 		save(); // save matrix and alpha
 		mTargetStack.add(mTargetTexture);
 		setRenderTarget(texture);
@@ -119,6 +135,7 @@ public class GLCanvasImpl implements GLCanvas {
 
 	@Override
 	public void clearBuffer(final float[] argb) {
+		flush();
 		if (argb != null && argb.length == 4) {
 			mGL.glClearColor(argb[1], argb[2], argb[3], argb[0]);
 		} else {
@@ -136,11 +153,14 @@ public class GLCanvasImpl implements GLCanvas {
 
 	@Override
 	public void deleteRecycledResources() {
+		// The pending quads may use a texture about to be deleted.
+		flush();
 		synchronized (mUnboundTextures) {
 			IntArray ids = mUnboundTextures;
 			if (ids.size() > 0) {
 				GLId.glDeleteTextures(mGL, ids.size(), ids.getInternalArray(), 0);
 				ids.clear();
+				mGLState.invalidateTextureBinding();
 			}
 
 			ids = mDeleteBuffers;
@@ -153,6 +173,7 @@ public class GLCanvasImpl implements GLCanvas {
 
 	@Override
 	public void drawLine(final float x1, final float y1, final float x2, final float y2, final GLPaint paint) {
+		beginDirectDraw();
 		final GL11 gl = mGL;
 
 		mGLState.setColorMode(paint.getColor(), mAlpha);
@@ -167,11 +188,13 @@ public class GLCanvasImpl implements GLCanvas {
 
 		restoreTransform();
 		mCountDrawLine++;
+		mDrawCallCount++;
 	}
 
 	@Override
 	public void drawMesh(final BasicTexture tex, final int x, final int y, final int xyBuffer, final int uvBuffer,
 			final int indexBuffer, final int indexCount) {
+		beginDirectDraw();
 		final float alpha = mAlpha;
 		if (!bindTexture(tex)) return;
 
@@ -202,6 +225,7 @@ public class GLCanvasImpl implements GLCanvas {
 
 		restoreTransform();
 		mCountDrawMesh++;
+		mDrawCallCount++;
 	}
 
 	@Override
@@ -222,6 +246,7 @@ public class GLCanvasImpl implements GLCanvas {
 			return;
 		}
 
+		beginDirectDraw();
 		final float alpha = mAlpha;
 
 		// Copy the input to avoid changing it.
@@ -246,6 +271,7 @@ public class GLCanvasImpl implements GLCanvas {
 
 	@Override
 	public void drawRect(final float x, final float y, final float width, final float height, final GLPaint paint) {
+		beginDirectDraw();
 		final GL11 gl = mGL;
 
 		mGLState.setColorMode(paint.getColor(), mAlpha);
@@ -260,11 +286,13 @@ public class GLCanvasImpl implements GLCanvas {
 
 		restoreTransform();
 		mCountDrawLine++;
+		mDrawCallCount++;
 	}
 
 	@Override
 	public void drawTexture(final BasicTexture texture, final float[] mTextureTransform, final int x, final int y,
 			final int w, final int h) {
+		beginDirectDraw();
 		mGLState.setBlendEnabled(mBlendEnabled && (!texture.isOpaque() || mAlpha < OPAQUE_ALPHA));
 		if (!bindTexture(texture)) return;
 		setTextureCoords(mTextureTransform);
@@ -287,9 +315,31 @@ public class GLCanvasImpl implements GLCanvas {
 		source = mDrawTextureSourceRect;
 		target = mDrawTextureTargetRect;
 
-		mGLState.setBlendEnabled(mBlendEnabled && (!texture.isOpaque() || mAlpha < OPAQUE_ALPHA));
-		if (!bindTexture(texture)) return;
+		if (!texture.onBind(this)) return;
+		final boolean blendEnabled = mBlendEnabled && (!texture.isOpaque() || mAlpha < OPAQUE_ALPHA);
 		convertCoordinate(source, target, texture);
+
+		// Without rotation the rectangle can join the pending ones, which is
+		// what makes the tiles of a TiledTexture page a single draw call.
+		if (QuadBatch.isMatrix2D(mMatrixValues)) {
+			final QuadBatch batch = mBatch;
+			final int id = texture.getId();
+			final int glTarget = texture.getTarget();
+			if (!batch.canAdd(id, glTarget, blendEnabled, mAlpha)) {
+				flush();
+				batch.reset(id, glTarget, blendEnabled, mAlpha);
+			}
+			batch.add(mMatrixValues, source.left, source.top, source.right, source.bottom, target.left, target.top,
+					target.right, target.bottom);
+			if (batch.isFull()) {
+				flush();
+			}
+			return;
+		}
+
+		beginDirectDraw();
+		mGLState.setBlendEnabled(blendEnabled);
+		mGLState.bindTexture(texture.getTarget(), texture.getId());
 		setTextureCoords(source);
 		mGLState.setTextureAlpha(mAlpha);
 		textureRect(target.left, target.top, target.width(), target.height());
@@ -309,6 +359,7 @@ public class GLCanvasImpl implements GLCanvas {
 
 	@Override
 	public void endRenderTarget() {
+		flush();
 		final RawTexture texture = mTargetStack.remove(mTargetStack.size() - 1);
 		setRenderTarget(texture);
 		restore(); // restore matrix and alpha
@@ -316,6 +367,7 @@ public class GLCanvasImpl implements GLCanvas {
 
 	@Override
 	public void fillRect(final float x, final float y, final float width, final float height, final int color) {
+		beginDirectDraw();
 		mGLState.setColorMode(color, mAlpha);
 		final GL11 gl = mGL;
 
@@ -328,6 +380,54 @@ public class GLCanvasImpl implements GLCanvas {
 
 		restoreTransform();
 		mCountFillRect++;
+		mDrawCallCount++;
+	}
+
+	// Draws the pending quads. The batch is kept as a single quad drawn with
+	// the box coordinates when there is only one, so that flushing never
+	// costs more than drawing the rectangle directly.
+	@Override
+	public void flush() {
+		final QuadBatch batch = mBatch;
+		final int count = batch.getCount();
+		if (count == 0) return;
+		final GL11 gl = mGL;
+
+		mGLState.setBlendEnabled(batch.isBlendEnabled());
+		mGLState.bindTexture(batch.getTarget(), batch.getTextureId());
+		mGLState.setTextureAlpha(batch.getAlpha());
+		if (count == 1) {
+			final float[] r = mBatchRect;
+			batch.getRect(0, r);
+			bindBoxCoords();
+			setTextureCoords(r[4], r[5], r[6], r[7]);
+			final float[] m = mBatchMatrix;
+			m[0] = r[2] - r[0];
+			m[5] = r[3] - r[1];
+			m[12] = r[0];
+			m[13] = r[1];
+			gl.glLoadMatrixf(m, 0);
+			gl.glDrawArrays(GL11.GL_TRIANGLE_STRIP, OFFSET_FILL_RECT, 4);
+			mCountTextureRect++;
+		} else {
+			final int vertices = batch.getVertices(mBatchXY, mBatchUV);
+			final int floats = vertices * 2;
+			mBatchXYBuffer.put(mBatchXY, 0, floats).position(0);
+			mBatchUVBuffer.put(mBatchUV, 0, floats).position(0);
+			if (mBoxCoordsBound) {
+				gl.glBindBuffer(GL11.GL_ARRAY_BUFFER, 0);
+				mBoxCoordsBound = false;
+			}
+			gl.glVertexPointer(2, GL11.GL_FLOAT, 0, mBatchXYBuffer);
+			gl.glTexCoordPointer(2, GL11.GL_FLOAT, 0, mBatchUVBuffer);
+			// The texture coordinates and vertices are final already.
+			setTextureCoords(0, 0, 1, 1);
+			gl.glLoadIdentity();
+			gl.glDrawArrays(GL11.GL_TRIANGLES, 0, vertices);
+			mCountTextureRect += count;
+		}
+		mDrawCallCount++;
+		batch.clear();
 	}
 
 	@Override
@@ -335,11 +435,25 @@ public class GLCanvasImpl implements GLCanvas {
 		return mAlpha;
 	}
 
+	@Override
+	public int getDrawCallCount() {
+		return mDrawCallCount;
+	}
+
+	// The caller may draw or bind textures on its own, so the pending quads
+	// are drawn first and the texture binding is not known anymore.
 	@Override
 	public GL11 getGLInstance() {
+		flush();
+		mGLState.invalidateTextureBinding();
 		return mGL;
 	}
 
+	@Override
+	public int getStateChangeCount() {
+		return mGLState.mChangeCount;
+	}
+
 	@Override
 	public void multiplyAlpha(final float alpha) {
 		Utils.assertTrue(alpha >= 0 && alpha <= 1);
@@ -353,6 +467,12 @@ public class GLCanvasImpl implements GLCanvas {
 		System.arraycopy(temp, 0, mMatrixValues, 0, 16);
 	}
 
+	@Override
+	public void resetStatistics() {
+		mDrawCallCount = 0;
+		mGLState.mChangeCount = 0;
+	}
+
 	@Override
 	public void restore() {
 		if (mRestoreStack.isEmpty()) throw new IllegalStateException();
@@ -408,6 +528,7 @@ public class GLCanvasImpl implements GLCanvas {
 	@Override
 	public void setSize(final int width, final int height) {
 		Utils.assertTrue(width >= 0 && height >= 0);
+		flush();
 
 		if (mTargetTexture == null) {
 			mScreenWidth = width;
@@ -462,11 +583,25 @@ public class GLCanvasImpl implements GLCanvas {
 		}
 	}
 
+	// Draws the pending quads and makes the box coordinates current again,
+	// before anything is drawn without the batch.
+	private void beginDirectDraw() {
+		flush();
+		bindBoxCoords();
+	}
+
+	private void bindBoxCoords() {
+		if (mBoxCoordsBound) return;
+		final GL11 gl = mGL;
+		gl.glBindBuffer(GL11.GL_ARRAY_BUFFER, mBoxCoords);
+		gl.glVertexPointer(2, GL11.GL_FLOAT, 0, 0);
+		gl.glTexCoordPointer(2, GL11.GL_FLOAT, 0, 0);
+		mBoxCoordsBound = true;
+	}
+
 	private boolean bindTexture(final BasicTexture texture) {
 		if (!texture.onBind(this)) return false;
-		final int target = texture.getTarget();
-		mGLState.setTextureTarget(target);
-		mGL.glBindTexture(target, texture.getId());
+		mGLState.bindTexture(texture.getTarget(), texture.getId());
 		return true;
 	}
 
@@ -493,6 +628,7 @@ public class GLCanvasImpl implements GLCanvas {
 			if (width > 0 && height > 0) {
 				((GL11Ext) mGL).glDrawTexiOES(x, y, 0, width, height);
 				mCountTextureOES++;
+				mDrawCallCount++;
 			}
 		}
 	}
@@ -508,6 +644,7 @@ public class GLCanvasImpl implements GLCanvas {
 			return;
 		}
 
+		beginDirectDraw();
 		mGLState.setBlendEnabled(mBlendEnabled
 				&& (!from.isOpaque() || !Utils.isOpaque(toColor) || alpha < OPAQUE_ALPHA));
 
@@ -525,6 +662,7 @@ public class GLCanvasImpl implements GLCanvas {
 			final float alpha) {
 		if (width <= 0 || height <= 0) return;
 
+		beginDirectDraw();
 		mGLState.setBlendEnabled(mBlendEnabled && (!texture.isOpaque() || alpha < OPAQUE_ALPHA));
 		if (!bindTexture(texture)) return;
 		mGLState.setTextureAlpha(alpha);
@@ -561,6 +699,11 @@ public class GLCanvasImpl implements GLCanvas {
 		gl.glClientActiveTexture(GL11.GL_TEXTURE0);
 		gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
 
+		final int batchSize = QuadBatch.MAX_QUADS * QuadBatch.FLOATS_PER_QUAD * Float.SIZE / Byte.SIZE;
+		mBatchXYBuffer = allocateDirectNativeOrderBuffer(batchSize).asFloatBuffer();
+		mBatchUVBuffer = allocateDirectNativeOrderBuffer(batchSize).asFloatBuffer();
+		Matrix.setIdentityM(mBatchMatrix, 0);
+
 		// mMatrixValues and mAlpha will be initialized in setSize()
 	}
 
@@ -624,6 +767,7 @@ public class GLCanvasImpl implements GLCanvas {
 		setTextureColor((toColor >>> 16 & 0xff) * colorScale, (toColor >>> 8 & 0xff) * colorScale, (toColor & 0xff)
 				* colorScale, combo);
 		final GL11 gl = mGL;
+		mGLState.mChangeCount++;
 		gl.glTexEnvfv(GL11.GL_TEXTURE_ENV, GL11.GL_TEXTURE_ENV_COLOR, mTextureColor, 0);
 
 		gl.glTexEnvf(GL11.GL_TEXTURE_ENV, GL11.GL_COMBINE_RGB, GL11.GL_INTERPOLATE);
@@ -714,6 +858,7 @@ public class GLCanvasImpl implements GLCanvas {
 
 		restoreTransform();
 		mCountTextureRect++;
+		mDrawCallCount++;
 	}
 
 	private static ByteBuffer allocateDirectNativeOrderBuffer(final int size) {
@@ -804,6 +949,11 @@ public class GLCanvasImpl implements GLCanvas {
 
 		private final GL11 mGL;
 
+		// The number of state changes sent to GL, see
+		// GLCanvas.getStateChangeCount().
+		int mChangeCount;
+
+		private int mBoundTexture;
 		private int mTexEnvMode = GL11.GL_REPLACE;
 		private float mTextureAlpha = 1.0f;
 		private int mTextureTarget = GL11.GL_TEXTURE_2D;
@@ -836,9 +986,23 @@ public class GLCanvasImpl implements GLCanvas {
 			gl.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, 2);
 		}
 
+		public void bindTexture(final int target, final int id) {
+			setTextureTarget(target);
+			if (mBoundTexture == id) return;
+			mBoundTexture = id;
+			mGL.glBindTexture(target, id);
+			mChangeCount++;
+		}
+
+		// Called when the texture may have been bound without bindTexture().
+		public void invalidateTextureBinding() {
+			mBoundTexture = 0;
+		}
+
 		public void setBlendEnabled(final boolean enabled) {
 			if (mBlendEnabled == enabled) return;
 			mBlendEnabled = enabled;
+			mChangeCount++;
 			if (enabled) {
 				mGL.glEnable(GL11.GL_BLEND);
 			} else {
@@ -855,6 +1019,7 @@ public class GLCanvasImpl implements GLCanvas {
 
 			setTextureTarget(0);
 
+			mChangeCount++;
 			final float prealpha = (color >>> 24) * alpha * 65535f / 255f / 255f;
 			mGL.glColor4x(Math.round((color >> 16 & 0xFF) * prealpha), Math.round((color >> 8 & 0xFF) * prealpha),
 					Math.round((color & 0xFF) * prealpha), Math.round(255 * prealpha));
@@ -863,18 +1028,21 @@ public class GLCanvasImpl implements GLCanvas {
 		public void setLineWidth(final float width) {
 			if (mLineWidth == width) return;
 			mLineWidth = width;
+			mChangeCount++;
 			mGL.glLineWidth(width);
 		}
 
 		public void setTexEnvMode(final int mode) {
 			if (mTexEnvMode == mode) return;
 			mTexEnvMode = mode;
+			mChangeCount++;
 			mGL.glTexEnvf(GL11.GL_TEXTURE_ENV, GL11.GL_TEXTURE_ENV_MODE, mode);
 		}
 
 		public void setTextureAlpha(final float alpha) {
 			if (mTextureAlpha == alpha) return;
 			mTextureAlpha = alpha;
+			mChangeCount++;
 			if (alpha >= OPAQUE_ALPHA) {
 				// The alpha is need for those texture without alpha channel
 				mGL.glColor4f(1, 1, 1, 1);
@@ -889,6 +1057,7 @@ public class GLCanvasImpl implements GLCanvas {
 		// disabled.
 		public void setTextureTarget(final int target) {
 			if (mTextureTarget == target) return;
+			mChangeCount++;
 			if (mTextureTarget != 0) {
 				mGL.glDisable(mTextureTarget);
 			}
@@ -35,6 +35,8 @@ public interface GLRoot {
 
 	public int getDisplayRotation();
 
+	public UploadScheduler getUploadScheduler();
+
 	public void lockRenderThread();
 
 	public void registerLaunchedAnimation(CanvasAnimation animation);
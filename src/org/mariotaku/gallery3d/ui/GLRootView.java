@@ -68,6 +68,10 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
 
 	private static final boolean false_SLOW_ONLY = false;
 
+	// Frame statistics can be turned on without rebuilding with
+	// "adb shell setprop log.tag.FrameStatistics DEBUG".
+	private static final String TAG_FRAME_STATISTICS = "FrameStatistics";
+
 	private static final int FLAG_INITIALIZED = 1;
 	private static final int FLAG_NEED_LAYOUT = 2;
 
@@ -95,6 +99,9 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
 
 	private final IdleRunner mIdleRunner = new IdleRunner();
 
+	private final UploadScheduler mUploadScheduler = new UploadScheduler(this);
+	private volatile FrameStatistics mFrameStatistics;
+
 	private final ReentrantLock mRenderLock = new ReentrantLock();
 	private final Condition mFreezeCondition = mRenderLock.newCondition();
 	private boolean mFreeze;
@@ -126,6 +133,10 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
 			getHolder().setFormat(PixelFormat.RGB_565);
 		}
 
+		if (Log.isLoggable(TAG_FRAME_STATISTICS, Log.DEBUG)) {
+			setFrameStatisticsEnabled(true);
+		}
+
 		// Uncomment this to enable gl error check.
 		// setDebugFlags(DEBUG_CHECK_GL_ERROR);
 	}
@@ -187,6 +198,18 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
 		return mDisplayRotation;
 	}
 
+	// Returns the frame statistics collected since they were enabled or last
+	// reset, or null if they are disabled.
+	public FrameStatistics.Snapshot getFrameStatistics() {
+		final FrameStatistics stats = mFrameStatistics;
+		return stats == null ? null : stats.snapshot();
+	}
+
+	@Override
+	public UploadScheduler getUploadScheduler() {
+		return mUploadScheduler;
+	}
+
 	@Override
 	public void lockRenderThread() {
 		mRenderLock.lock();
@@ -276,6 +299,9 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
 			mGL = gl;
 			mCanvas = new GLCanvasImpl(gl);
 			BasicTexture.invalidateAllTextures();
+			final String extensions = gl.glGetString(GL10.GL_EXTENSIONS);
+			UploadedTexture.setETC1Supported(extensions != null
+					&& extensions.contains("GL_OES_compressed_ETC1_RGB8_texture"));
 		} finally {
 			mRenderLock.unlock();
 		}
@@ -371,6 +397,19 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
 		setSystemUiVisibility(flags);
 	}
 
+	public void resetFrameStatistics() {
+		final FrameStatistics stats = mFrameStatistics;
+		if (stats != null) {
+			stats.reset();
+		}
+	}
+
+	public void setFrameStatisticsEnabled(final boolean enabled) {
+		if (enabled == (mFrameStatistics != null)) return;
+		mFrameStatistics = enabled ? new FrameStatistics() : null;
+		mUploadScheduler.setFrameStatistics(mFrameStatistics);
+	}
+
 	@Override
 	public void setOrientationSource(final OrientationSource source) {
 		mOrientationSource = source;
@@ -483,24 +522,53 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
 			outputFps();
 		}
 
+		final FrameStatistics stats = mFrameStatistics;
+		if (stats != null) {
+			stats.beginFrame();
+			stats.beginPhase();
+		}
+
+		// The counts of the idle work done since the last frame are not part
+		// of this frame.
+		mCanvas.resetStatistics();
+
 		// release the unbound textures and deleted buffers.
 		mCanvas.deleteRecycledResources();
 
+		if (stats != null) {
+			stats.endPhase(FrameStatistics.PHASE_DELETE_RESOURCES);
+		}
+
 		// reset texture upload limit
-		UploadedTexture.resetUploadLimit();
+		mUploadScheduler.onFrameStart();
+		UploadedTexture.resetUploadLimit(mUploadScheduler);
 
 		mRenderRequested = false;
 
 		if ((mFlags & FLAG_NEED_LAYOUT) != 0) {
+			if (stats != null) {
+				stats.beginPhase();
+			}
 			layoutContentPane();
+			if (stats != null) {
+				stats.endPhase(FrameStatistics.PHASE_LAYOUT);
+			}
 		}
 
+		if (stats != null) {
+			stats.beginPhase();
+		}
 		mCanvas.save(GLCanvas.SAVE_FLAG_ALL);
 		rotateCanvas(-mCompensation);
 		if (mContentView != null) {
 			mContentView.render(mCanvas);
 		}
 		mCanvas.restore();
+		mCanvas.flush();
+		mUploadScheduler.onFrameEnd();
+		if (stats != null) {
+			stats.endPhase(FrameStatistics.PHASE_RENDER);
+		}
 
 		if (!mAnimations.isEmpty()) {
 			final long now = AnimationTime.get();
@@ -528,6 +596,11 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
 		if (DEBUG_DRAWING_STAT) {
 			mCanvas.dumpStatisticsAndClear();
 		}
+
+		if (stats != null) {
+			stats.recordDrawCalls(mCanvas.getDrawCallCount(), mCanvas.getStateChangeCount());
+			stats.endFrame();
+		}
 	}
 
 	private void outputFps() {
@@ -581,9 +654,17 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
 				listener = mIdleListeners.removeFirst();
 			}
 			mRenderLock.lock();
+			final FrameStatistics stats = mFrameStatistics;
 			boolean keepInQueue;
 			try {
+				if (stats != null) {
+					stats.beginPhase();
+				}
 				keepInQueue = listener.onGLIdle(mCanvas, mRenderRequested);
+				mCanvas.flush();
+				if (stats != null) {
+					stats.endPhase(FrameStatistics.PHASE_IDLE);
+				}
 			} finally {
 				mRenderLock.unlock();
 			}
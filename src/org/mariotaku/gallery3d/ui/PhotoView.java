@@ -109,6 +109,9 @@ public class PhotoView extends GLView {
 
 	private int mCompensation = 0;
 	private boolean mFullScreenCamera;
+	// Whether the current picture is shown above the resolution of what the
+	// model gave us, in which case we ask the model for the full image.
+	private boolean mMagnified;
 	private final Rect mCameraRelativeFrame = new Rect();
 	private final Rect mCameraRect = new Rect();
 	// [mPrevBound, mNextBound] is the range of index for all pictures in the
@@ -252,6 +255,9 @@ public class PhotoView extends GLView {
 	public void notifyDataChange(final int[] fromIndex, final int prevBound, final int nextBound) {
 		mPrevBound = prevBound;
 		mNextBound = nextBound;
+		// The current picture may have changed; it is checked again when
+		// rendering.
+		mMagnified = false;
 
 		// Update mTouchBoxIndex
 		if (mTouchBoxIndex != Integer.MAX_VALUE) {
@@ -436,6 +442,14 @@ public class PhotoView extends GLView {
 
 		renderChild(canvas, mEdgeView);
 
+		final boolean magnified = mPositionController.isMagnified();
+		if (magnified != mMagnified) {
+			mMagnified = magnified;
+			if (mModel != null) {
+				mModel.setMagnified(magnified);
+			}
+		}
+
 		mPositionController.advanceAnimation();
 		checkFocusSwitching();
 	}
@@ -779,6 +793,10 @@ public class PhotoView extends GLView {
 		// Returns true if the item can be deleted.
 		public boolean isDeletable(int offset);
 
+		// Called when the current picture is zoomed in past its fit scale and
+		// its resolution, or back out.
+		public void setMagnified(boolean magnified);
+
 		// Set this to true if we need the model to provide full images.
 		public void setNeedFullImage(boolean enabled);
 	}
@@ -1401,6 +1419,7 @@ public class PhotoView extends GLView {
 				default:
 					throw new RuntimeException(String.valueOf(mRotation));
 			}
+			mTileView.setInMotion(mPositionController.isScrolling() || mPositionController.isInScale());
 			mTileView.setPosition(x, y, scale, mRotation);
 		}
 
@@ -81,6 +81,14 @@ class PositionController {
 	private static final float SCALE_MIN_EXTRA = 0.7f;
 	private static final float SCALE_MAX_EXTRA = 1.4f;
 
+	// Two image sizes whose aspect ratios differ by less than this are taken
+	// as renditions of the same picture.
+	private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+
+	// How far past both the fit scale and 1:1 the picture must be zoomed for
+	// isMagnified(), so that animations settling on the fit scale don't count.
+	private static final float MAGNIFIED_MARGIN = 1.05f;
+
 	// Setting this true makes the extra scaling range permanent (until this is
 	// set to false again).
 	private boolean mExtraScalingRange = false;
@@ -405,6 +413,13 @@ class PositionController {
 		return isAlmostEqual(b.mCurrentScale, b.mScaleMin);
 	}
 
+	// Returns true if the current picture is zoomed in beyond the scale that
+	// fits it to the view, and shown larger than its pixels.
+	public boolean isMagnified() {
+		final Box b = mBoxes.get(0);
+		return b.mCurrentScale > Math.max(1f, b.mScaleMin) * MAGNIFIED_MARGIN;
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Start an animations for the focused box
 	// //////////////////////////////////////////////////////////////////////////
@@ -414,6 +429,10 @@ class PositionController {
 		return mPlatform.mCurrentX == mPlatform.mDefaultX && b.mCurrentY == 0;
 	}
 
+	public boolean isInScale() {
+		return mInScale;
+	}
+
 	public boolean isScrolling() {
 		return mPlatform.mAnimationStartTime != NO_ANIMATION && mPlatform.mCurrentX != mPlatform.mToX;
 	}
@@ -1232,6 +1251,12 @@ class PositionController {
 		// what camera preview does.
 		final float ratio = width > height ? (float) b.mImageW / width : (float) b.mImageH / height;
 
+		// A sharper rendition of the same picture (e.g. the full image
+		// replacing a reduced one) must not reset what the user is looking
+		// at, even in fullscreen.
+		final boolean sameAspect = !wasViewSize && b.mImageW > 0 && b.mImageH > 0
+				&& Math.abs((float) width * b.mImageH / ((float) height * b.mImageW) - 1f) < ASPECT_RATIO_TOLERANCE;
+
 		b.mImageW = width;
 		b.mImageH = height;
 
@@ -1240,7 +1265,7 @@ class PositionController {
 		// we change the scale directly. Otherwise adjust the scales by a ratio,
 		// and snapback will animate the scale into the min/max bounds if
 		// necessary.
-		if (wasViewSize && !isViewSize || !mFilmMode) {
+		if (wasViewSize && !isViewSize || !mFilmMode && !sameAspect) {
 			b.mCurrentScale = getMinimalScale(b);
 			b.mAnimationStartTime = NO_ANIMATION;
 		} else {
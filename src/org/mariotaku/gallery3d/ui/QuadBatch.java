@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.ui;
+
+// QuadBatch collects the textured rectangles drawn with the same texture and
+// state, so that they can be drawn with one call.
+//
+// The rectangles are mapped by the transform current when they are added, so
+// the transform may change before the batch is drawn. Only a transform made
+// of a scale and a translation can be applied on the CPU that way, see
+// isMatrix2D().
+class QuadBatch {
+	public static final int MAX_QUADS = 64;
+
+	// A quad is drawn as two triangles of two coordinates per vertex.
+	public static final int VERTICES_PER_QUAD = 6;
+	public static final int FLOATS_PER_QUAD = VERTICES_PER_QUAD * 2;
+
+	// For each quad: the mapped x0, y0, x1, y1 and then u0, v0, u1, v1.
+	private static final int RECT_SIZE = 8;
+
+	private final float[] mRects = new float[MAX_QUADS * RECT_SIZE];
+	private int mCount;
+
+	private int mTextureId;
+	private int mTarget;
+	private boolean mBlendEnabled;
+	private float mAlpha;
+
+	// Adds the source rectangle, in texture coordinates, drawn to the target
+	// rectangle transformed by the matrix. The matrix must pass isMatrix2D().
+	public void add(final float[] m, final float u0, final float v0, final float u1, final float v1,
+			final float x0, final float y0, final float x1, final float y1) {
+		final float[] r = mRects;
+		final int i = mCount * RECT_SIZE;
+		r[i] = m[0] * x0 + m[12];
+		r[i + 1] = m[5] * y0 + m[13];
+		r[i + 2] = m[0] * x1 + m[12];
+		r[i + 3] = m[5] * y1 + m[13];
+		r[i + 4] = u0;
+		r[i + 5] = v0;
+		r[i + 6] = u1;
+		r[i + 7] = v1;
+		mCount++;
+	}
+
+	// Whether a quad drawn with the given texture and state can join the
+	// batch.
+	public boolean canAdd(final int textureId, final int target, final boolean blendEnabled, final float alpha) {
+		return mCount > 0 && mCount < MAX_QUADS && mTextureId == textureId && mTarget == target
+				&& mBlendEnabled == blendEnabled && mAlpha == alpha;
+	}
+
+	public void clear() {
+		mCount = 0;
+	}
+
+	public float getAlpha() {
+		return mAlpha;
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	// Copies the mapped rectangle and the texture coordinates of a quad to
+	// out, in the order x0, y0, x1, y1, u0, v0, u1, v1.
+	public void getRect(final int index, final float[] out) {
+		System.arraycopy(mRects, index * RECT_SIZE, out, 0, RECT_SIZE);
+	}
+
+	public int getTarget() {
+		return mTarget;
+	}
+
+	public int getTextureId() {
+		return mTextureId;
+	}
+
+	// Writes the triangles of all quads to xy and uv, FLOATS_PER_QUAD floats
+	// per quad each, and returns the number of vertices.
+	public int getVertices(final float[] xy, final float[] uv) {
+		final float[] r = mRects;
+		for (int q = 0; q < mCount; q++) {
+			final int i = q * RECT_SIZE;
+			final int j = q * FLOATS_PER_QUAD;
+			putQuad(xy, j, r[i], r[i + 1], r[i + 2], r[i + 3]);
+			putQuad(uv, j, r[i + 4], r[i + 5], r[i + 6], r[i + 7]);
+		}
+		return mCount * VERTICES_PER_QUAD;
+	}
+
+	public boolean isBlendEnabled() {
+		return mBlendEnabled;
+	}
+
+	public boolean isEmpty() {
+		return mCount == 0;
+	}
+
+	public boolean isFull() {
+		return mCount == MAX_QUADS;
+	}
+
+	// Empties the batch and starts a new one with the given texture and state.
+	public void reset(final int textureId, final int target, final boolean blendEnabled, final float alpha) {
+		mCount = 0;
+		mTextureId = textureId;
+		mTarget = target;
+		mBlendEnabled = blendEnabled;
+		mAlpha = alpha;
+	}
+
+	// Returns true if the matrix only scales and translates in the plane z = 0
+	// and keeps w = 1, so that a point drawn with it can be mapped on the CPU
+	// and drawn with the identity matrix instead.
+	public static boolean isMatrix2D(final float[] m) {
+		return m[1] == 0 && m[2] == 0 && m[3] == 0 && m[4] == 0 && m[6] == 0 && m[7] == 0 && m[14] == 0
+				&& m[15] == 1;
+	}
+
+	// Two triangles covering the rectangle, in the same winding as the
+	// triangle strip GLCanvasImpl draws a rectangle with.
+	private static void putQuad(final float[] out, final int offset, final float x0, final float y0, final float x1,
+			final float y1) {
+		out[offset] = x0;
+		out[offset + 1] = y0;
+		out[offset + 2] = x1;
+		out[offset + 3] = y0;
+		out[offset + 4] = x0;
+		out[offset + 5] = y1;
+		out[offset + 6] = x0;
+		out[offset + 7] = y1;
+		out[offset + 8] = x1;
+		out[offset + 9] = y0;
+		out[offset + 10] = x1;
+		out[offset + 11] = y1;
+	}
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.ui;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+
+import javax.microedition.khronos.opengles.GL11;
+import javax.microedition.khronos.opengles.GL11Ext;
+import javax.microedition.khronos.opengles.GL11ExtensionPack;
+
+import org.mariotaku.gallery3d.common.Utils;
+
+import android.graphics.RectF;
+import android.opengl.Matrix;
+
+// RecordingGLCanvas records what is drawn on it as a list of commands, so the
+// render path can be inspected and measured without a GPU. It keeps its own
+// matrix and alpha, and maps every drawn rectangle to canvas coordinates.
+//
+// If a delegate is given, every call is forwarded to it as well, so a frame
+// can be recorded while it is drawn for real. Without a delegate nothing is
+// drawn, textures are never bound by the canvas, and getGLInstance() returns
+// a GL11 that ignores every call, so the textures uploaded by the views
+// themselves go through the motions without a GL context.
+//
+// Besides the commands, each frame (between beginFrame() and endFrame())
+// reports the CPU time spent, an overdraw estimate (the drawn area divided
+// by the canvas area) and the number of draw calls and state changes
+// GLCanvasImpl would issue for it. The draw calls follow the batching rules
+// of GLCanvasImpl through the same QuadBatch, the state changes are an
+// estimate of one per batch or unbatched draw.
+public class RecordingGLCanvas implements GLCanvas {
+	public static final int COMMAND_DRAW_TEXTURE = 0;
+	public static final int COMMAND_DRAW_MIXED = 1;
+	public static final int COMMAND_DRAW_MESH = 2;
+	public static final int COMMAND_FILL_RECT = 3;
+	public static final int COMMAND_DRAW_LINE = 4;
+	public static final int COMMAND_DRAW_RECT = 5;
+	public static final int COMMAND_SAVE = 6;
+	public static final int COMMAND_RESTORE = 7;
+	public static final int COMMAND_CLEAR = 8;
+	// Direct access to GL through getGLInstance(), which is how textures
+	// are uploaded.
+	public static final int COMMAND_GL_ACCESS = 9;
+	public static final int COMMAND_BEGIN_RENDER_TARGET = 10;
+	public static final int COMMAND_END_RENDER_TARGET = 11;
+	private static final int COMMAND_TYPE_COUNT = 12;
+
+	private static final float OPAQUE_ALPHA = 0.95f;
+
+	// Returns the default value of the return type of every GL call.
+	private static final GL11 sNullGL = (GL11) Proxy.newProxyInstance(GL11.class.getClassLoader(), new Class<?>[] {
+			GL11.class, GL11Ext.class, GL11ExtensionPack.class }, new InvocationHandler() {
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) {
+			final Class<?> type = method.getReturnType();
+			if (type == boolean.class) return Boolean.FALSE;
+			if (type == int.class) return 0;
+			return null;
+		}
+	});
+
+	private final GLCanvas mDelegate;
+
+	private final ArrayList<Command> mCommands = new ArrayList<Command>();
+	private int mCommandCount;
+	private final int[] mCommandCounts = new int[COMMAND_TYPE_COUNT];
+
+	private final float[] mMatrix = new float[16];
+	private final float[] mTempMatrix = new float[32];
+	private final ArrayList<float[]> mMatrixStack = new ArrayList<float[]>();
+	private final ArrayList<Float> mAlphaStack = new ArrayList<Float>();
+	private float mAlpha = 1f;
+	private int mWidth;
+	private int mHeight;
+
+	private long mFrameStartTime;
+	private long mFrameTime;
+	private float mDrawnArea;
+
+	// The batch GLCanvasImpl would be building, see appendBatch().
+	private final QuadBatch mBatch = new QuadBatch();
+	private int mDrawCallCount;
+	private int mStateChangeCount;
+
+	public RecordingGLCanvas() {
+		this(null);
+	}
+
+	public RecordingGLCanvas(final GLCanvas delegate) {
+		mDelegate = delegate;
+		Matrix.setIdentityM(mMatrix, 0);
+	}
+
+	// Clears the recording and starts timing a frame.
+	public void beginFrame() {
+		mCommandCount = 0;
+		for (int i = 0; i < COMMAND_TYPE_COUNT; i++) {
+			mCommandCounts[i] = 0;
+		}
+		mDrawnArea = 0;
+		mFrameTime = 0;
+		resetStatistics();
+		mFrameStartTime = System.nanoTime();
+	}
+
+	@Override
+	public void beginRenderTarget(final RawTexture texture) {
+		flush();
+		record(COMMAND_BEGIN_RENDER_TARGET, texture);
+		save();
+		if (mDelegate != null) {
+			mDelegate.beginRenderTarget(texture);
+		}
+	}
+
+	@Override
+	public void clearBuffer() {
+		clearBuffer(null);
+	}
+
+	@Override
+	public void clearBuffer(final float[] argb) {
+		flush();
+		record(COMMAND_CLEAR, null);
+		mDrawCallCount++;
+		if (mDelegate != null) {
+			mDelegate.clearBuffer(argb);
+		}
+	}
+
+	@Override
+	public void deleteBuffer(final int bufferId) {
+		if (mDelegate != null) {
+			mDelegate.deleteBuffer(bufferId);
+		}
+	}
+
+	@Override
+	public void deleteRecycledResources() {
+		flush();
+		if (mDelegate != null) {
+			mDelegate.deleteRecycledResources();
+		}
+	}
+
+	@Override
+	public void drawLine(final float x1, final float y1, final float x2, final float y2, final GLPaint paint) {
+		flush();
+		mStateChangeCount++;
+		recordDraw(COMMAND_DRAW_LINE, null, x1, y1, x2 - x1, y2 - y1, paint.getColor(), true);
+		if (mDelegate != null) {
+			mDelegate.drawLine(x1, y1, x2, y2, paint);
+		}
+	}
+
+	@Override
+	public void drawMesh(final BasicTexture tex, final int x, final int y, final int xyBuffer, final int uvBuffer,
+			final int indexBuffer, final int indexCount) {
+		flush();
+		// The extent of a mesh is not known here, so it is not counted as
+		// drawn area.
+		record(COMMAND_DRAW_MESH, tex);
+		mStateChangeCount++;
+		mDrawCallCount++;
+		if (mDelegate != null) {
+			mDelegate.drawMesh(tex, x, y, xyBuffer, uvBuffer, indexBuffer, indexCount);
+		}
+	}
+
+	@Override
+	public void drawMixed(final BasicTexture from, final int toColor, final float ratio, final int x, final int y,
+			final int w, final int h) {
+		flush();
+		mStateChangeCount++;
+		recordDraw(COMMAND_DRAW_MIXED, from, x, y, w, h, toColor, true);
+		if (mDelegate != null) {
+			mDelegate.drawMixed(from, toColor, ratio, x, y, w, h);
+		}
+	}
+
+	@Override
+	public void drawMixed(final BasicTexture from, final int toColor, final float ratio, final RectF src,
+			final RectF target) {
+		flush();
+		mStateChangeCount++;
+		recordDraw(COMMAND_DRAW_MIXED, from, target.left, target.top, target.width(), target.height(), toColor, true);
+		if (mDelegate != null) {
+			mDelegate.drawMixed(from, toColor, ratio, src, target);
+		}
+	}
+
+	@Override
+	public void drawRect(final float x, final float y, final float width, final float height, final GLPaint paint) {
+		flush();
+		mStateChangeCount++;
+		recordDraw(COMMAND_DRAW_RECT, null, x, y, width, height, paint.getColor(), true);
+		if (mDelegate != null) {
+			mDelegate.drawRect(x, y, width, height, paint);
+		}
+	}
+
+	@Override
+	public void drawTexture(final BasicTexture texture, final float[] textureTransform, final int x, final int y,
+			final int w, final int h) {
+		flush();
+		mStateChangeCount++;
+		recordDraw(COMMAND_DRAW_TEXTURE, texture, x, y, w, h, 0, true);
+		if (mDelegate != null) {
+			mDelegate.drawTexture(texture, textureTransform, x, y, w, h);
+		}
+	}
+
+	@Override
+	public void drawTexture(final BasicTexture texture, final int x, final int y, final int width, final int height) {
+		if (width <= 0 || height <= 0) return;
+		flush();
+		mStateChangeCount++;
+		recordDraw(COMMAND_DRAW_TEXTURE, texture, x, y, width, height, 0, true);
+		if (mDelegate != null) {
+			mDelegate.drawTexture(texture, x, y, width, height);
+		}
+	}
+
+	@Override
+	public void drawTexture(final BasicTexture texture, final RectF source, final RectF target) {
+		if (target.width() <= 0 || target.height() <= 0) return;
+		// This is the call GLCanvasImpl batches.
+		appendBatch(texture, source, target);
+		final Command command = recordDraw(COMMAND_DRAW_TEXTURE, texture, target.left, target.top, target.width(),
+				target.height(), 0, false);
+		command.source.set(source);
+		if (mDelegate != null) {
+			mDelegate.drawTexture(texture, source, target);
+		}
+	}
+
+	@Override
+	public void dumpStatisticsAndClear() {
+		if (mDelegate != null) {
+			mDelegate.dumpStatisticsAndClear();
+		}
+	}
+
+	@Override
+	public void endRenderTarget() {
+		flush();
+		record(COMMAND_END_RENDER_TARGET, null);
+		if (mDelegate != null) {
+			mDelegate.endRenderTarget();
+		}
+		restore();
+	}
+
+	// Stops timing the frame started by beginFrame().
+	public void endFrame() {
+		flush();
+		mFrameTime = System.nanoTime() - mFrameStartTime;
+	}
+
+	@Override
+	public void fillRect(final float x, final float y, final float width, final float height, final int color) {
+		flush();
+		mStateChangeCount++;
+		recordDraw(COMMAND_FILL_RECT, null, x, y, width, height, color, true);
+		if (mDelegate != null) {
+			mDelegate.fillRect(x, y, width, height, color);
+		}
+	}
+
+	@Override
+	public void flush() {
+		if (!mBatch.isEmpty()) {
+			mBatch.clear();
+			mDrawCallCount++;
+		}
+		if (mDelegate != null) {
+			mDelegate.flush();
+		}
+	}
+
+	@Override
+	public float getAlpha() {
+		return mAlpha;
+	}
+
+	public Command getCommand(final int index) {
+		Utils.assertTrue(index < mCommandCount);
+		return mCommands.get(index);
+	}
+
+	public int getCommandCount() {
+		return mCommandCount;
+	}
+
+	public int getCommandCount(final int type) {
+		return mCommandCounts[type];
+	}
+
+	@Override
+	public int getDrawCallCount() {
+		return mDrawCallCount;
+	}
+
+	// Returns the CPU time in nanoseconds between beginFrame() and
+	// endFrame().
+	public long getFrameTime() {
+		return mFrameTime;
+	}
+
+	@Override
+	public GL11 getGLInstance() {
+		flush();
+		record(COMMAND_GL_ACCESS, null);
+		return mDelegate == null ? sNullGL : mDelegate.getGLInstance();
+	}
+
+	// Returns how many times the canvas area has been drawn over in this
+	// frame, counting only what falls on the canvas. 1 means every pixel was
+	// drawn once on average.
+	public float getOverdraw() {
+		if (mWidth <= 0 || mHeight <= 0) return 0;
+		return mDrawnArea / ((float) mWidth * mHeight);
+	}
+
+	@Override
+	public int getStateChangeCount() {
+		return mStateChangeCount;
+	}
+
+	@Override
+	public void multiplyAlpha(final float alpha) {
+		Utils.assertTrue(alpha >= 0 && alpha <= 1);
+		mAlpha *= alpha;
+		if (mDelegate != null) {
+			mDelegate.multiplyAlpha(alpha);
+		}
+	}
+
+	@Override
+	public void multiplyMatrix(final float[] matrix, final int offset) {
+		Matrix.multiplyMM(mTempMatrix, 0, mMatrix, 0, matrix, offset);
+		System.arraycopy(mTempMatrix, 0, mMatrix, 0, 16);
+		if (mDelegate != null) {
+			mDelegate.multiplyMatrix(matrix, offset);
+		}
+	}
+
+	@Override
+	public void resetStatistics() {
+		mDrawCallCount = 0;
+		mStateChangeCount = 0;
+		if (mDelegate != null) {
+			mDelegate.resetStatistics();
+		}
+	}
+
+	@Override
+	public void restore() {
+		if (mMatrixStack.isEmpty()) throw new IllegalStateException();
+		record(COMMAND_RESTORE, null);
+		final int last = mMatrixStack.size() - 1;
+		final float[] matrix = mMatrixStack.remove(last);
+		final Float alpha = mAlphaStack.remove(last);
+		if (matrix != null) {
+			System.arraycopy(matrix, 0, mMatrix, 0, 16);
+		}
+		if (alpha != null) {
+			mAlpha = alpha;
+		}
+		if (mDelegate != null) {
+			mDelegate.restore();
+		}
+	}
+
+	@Override
+	public void rotate(final float angle, final float x, final float y, final float z) {
+		if (angle != 0) {
+			Matrix.setRotateM(mTempMatrix, 0, angle, x, y, z);
+			Matrix.multiplyMM(mTempMatrix, 16, mMatrix, 0, mTempMatrix, 0);
+			System.arraycopy(mTempMatrix, 16, mMatrix, 0, 16);
+		}
+		if (mDelegate != null) {
+			mDelegate.rotate(angle, x, y, z);
+		}
+	}
+
+	@Override
+	public void save() {
+		save(SAVE_FLAG_ALL);
+	}
+
+	@Override
+	public void save(final int saveFlags) {
+		record(COMMAND_SAVE, null);
+		mMatrixStack.add((saveFlags & SAVE_FLAG_MATRIX) != 0 ? mMatrix.clone() : null);
+		mAlphaStack.add((saveFlags & SAVE_FLAG_ALPHA) != 0 ? Float.valueOf(mAlpha) : null);
+		if (mDelegate != null) {
+			mDelegate.save(saveFlags);
+		}
+	}
+
+	@Override
+	public void scale(final float sx, final float sy, final float sz) {
+		Matrix.scaleM(mMatrix, 0, sx, sy, sz);
+		if (mDelegate != null) {
+			mDelegate.scale(sx, sy, sz);
+		}
+	}
+
+	@Override
+	public void setAlpha(final float alpha) {
+		Utils.assertTrue(alpha >= 0 && alpha <= 1);
+		mAlpha = alpha;
+		if (mDelegate != null) {
+			mDelegate.setAlpha(alpha);
+		}
+	}
+
+	@Override
+	public void setSize(final int width, final int height) {
+		Utils.assertTrue(width >= 0 && height >= 0);
+		flush();
+		mWidth = width;
+		mHeight = height;
+		mAlpha = 1f;
+		Matrix.setIdentityM(mMatrix, 0);
+		if (mDelegate != null) {
+			mDelegate.setSize(width, height);
+		}
+	}
+
+	@Override
+	public void translate(final float x, final float y) {
+		Matrix.translateM(mMatrix, 0, x, y, 0);
+		if (mDelegate != null) {
+			mDelegate.translate(x, y);
+		}
+	}
+
+	@Override
+	public void translate(final float x, final float y, final float z) {
+		Matrix.translateM(mMatrix, 0, x, y, z);
+		if (mDelegate != null) {
+			mDelegate.translate(x, y, z);
+		}
+	}
+
+	@Override
+	public boolean unloadTexture(final BasicTexture texture) {
+		return mDelegate != null && mDelegate.unloadTexture(texture);
+	}
+
+	// Follows the batching rule of GLCanvasImpl: consecutive quads with the
+	// same texture, blending and alpha are one draw call, as long as the
+	// matrix passes QuadBatch.isMatrix2D(). The texture is told apart by
+	// identity, since it may not have a GL name without a delegate.
+	private void appendBatch(final BasicTexture texture, final RectF source, final RectF target) {
+		if (!QuadBatch.isMatrix2D(mMatrix)) {
+			flush();
+			mStateChangeCount++;
+			mDrawCallCount++;
+			return;
+		}
+		final QuadBatch batch = mBatch;
+		final int key = System.identityHashCode(texture);
+		final boolean blendEnabled = !texture.isOpaque() || mAlpha < OPAQUE_ALPHA;
+		if (!batch.canAdd(key, 0, blendEnabled, mAlpha)) {
+			flush();
+			batch.reset(key, 0, blendEnabled, mAlpha);
+			mStateChangeCount++;
+		}
+		batch.add(mMatrix, source.left, source.top, source.right, source.bottom, target.left, target.top,
+				target.right, target.bottom);
+		if (batch.isFull()) {
+			flush();
+		}
+	}
+
+	private Command record(final int type, final BasicTexture texture) {
+		Command command;
+		if (mCommandCount < mCommands.size()) {
+			command = mCommands.get(mCommandCount);
+		} else {
+			command = new Command();
+			mCommands.add(command);
+		}
+		mCommandCount++;
+		mCommandCounts[type]++;
+		command.type = type;
+		command.texture = texture;
+		command.alpha = mAlpha;
+		command.color = 0;
+		command.bounds.setEmpty();
+		command.source.setEmpty();
+		return command;
+	}
+
+	private Command recordDraw(final int type, final BasicTexture texture, final float x, final float y,
+			final float width, final float height, final int color, final boolean isDrawCall) {
+		final Command command = record(type, texture);
+		command.color = color;
+		final RectF bounds = command.bounds;
+		mapRect(bounds, x, y, width, height);
+		// Only the part on the canvas counts as drawn.
+		final float w = Math.min(bounds.right, mWidth) - Math.max(bounds.left, 0);
+		final float h = Math.min(bounds.bottom, mHeight) - Math.max(bounds.top, 0);
+		if (w > 0 && h > 0) {
+			mDrawnArea += w * h;
+		}
+		if (isDrawCall) {
+			mDrawCallCount++;
+		}
+		return command;
+	}
+
+	// Maps the rectangle by the current matrix and stores the bounding box of
+	// the result in out.
+	private void mapRect(final RectF out, final float x, final float y, final float width, final float height) {
+		final float[] m = mMatrix;
+		final float x0 = m[0] * x + m[4] * y + m[12], y0 = m[1] * x + m[5] * y + m[13];
+		final float dxw = m[0] * width, dyw = m[1] * width;
+		final float dxh = m[4] * height, dyh = m[5] * height;
+		final float left = x0 + Math.min(0, dxw) + Math.min(0, dxh);
+		final float right = x0 + Math.max(0, dxw) + Math.max(0, dxh);
+		final float top = y0 + Math.min(0, dyw) + Math.min(0, dyh);
+		final float bottom = y0 + Math.max(0, dyw) + Math.max(0, dyh);
+		out.set(left, top, right, bottom);
+	}
+
+	public static class Command {
+		public int type;
+		// The texture drawn, or null.
+		public BasicTexture texture;
+		// The drawn area in canvas coordinates.
+		public final RectF bounds = new RectF();
+		// The source rectangle of drawTexture(texture, source, target).
+		public final RectF source = new RectF();
+		public float alpha;
+		public int color;
+	}
+}
@@ -16,10 +16,12 @@
 
 package org.mariotaku.gallery3d.ui;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 
 import org.mariotaku.gallery3d.app.GalleryContext;
 import org.mariotaku.gallery3d.common.ApiHelper;
+import org.mariotaku.gallery3d.common.ETC1Encoder;
 import org.mariotaku.gallery3d.common.LongSparseArray;
 import org.mariotaku.gallery3d.common.Utils;
 import org.mariotaku.gallery3d.data.BitmapPool;
@@ -30,6 +32,7 @@ import org.mariotaku.gallery3d.util.ThreadPool;
 import org.mariotaku.gallery3d.util.ThreadPool.CancelListener;
 import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
 
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.Rect;
@@ -47,10 +50,24 @@ public class TileImageView extends GLView {
 	private static int TILE_SIZE;
 	private static final int TILE_BORDER = 1;
 	private static int BITMAP_SIZE;
-	private static final int UPLOAD_LIMIT = 1;
 
 	private static BitmapPool sTilePool;
 
+	// The memory we are willing to spend on tiles outside the active range,
+	// counting both their textures and their decoded content.
+	private static final int TILE_CACHE_BYTES = 16 * 1024 * 1024;
+
+	// How far the scale may go past the bounds of the current level during a
+	// gesture or animation before we switch to the next one. A level is
+	// normally used for a relative scale (scale * 2^level) in (0.5, 1]; in
+	// motion it is kept in (0.5 / LEVEL_HYSTERESIS, LEVEL_HYSTERESIS]. Once the
+	// motion stops we go back to the exact level.
+	private static final float LEVEL_HYSTERESIS = 1.15f;
+
+	// Compressed tiles with a lower peak signal-to-noise ratio (in dB) are
+	// uploaded uncompressed instead.
+	private static final double MIN_COMPRESSED_PSNR = 32;
+
 	/*
 	 * This is the tile state in the CPU side. Life of a Tile: ACTIVATED
 	 * (initial state) --> IN_QUEUE - by queueForDecode() --> RECYCLED - by
@@ -72,6 +89,8 @@ public class TileImageView extends GLView {
 	private Model mModel;
 	private ScreenNail mScreenNail;
 	protected int mLevelCount; // cache the value of mScaledBitmaps.length
+	// The finest level the model has tiles for, see Model.getFirstLevel().
+	private int mFirstLevel;
 
 	// The mLevel variable indicates which level of bitmap we should use.
 	// Level 0 means the original full-sized bitmap, and a larger value means
@@ -86,18 +105,29 @@ public class TileImageView extends GLView {
 	private int mOffsetX;
 	private int mOffsetY;
 
-	private int mUploadQuota;
+	private UploadScheduler mUploadScheduler;
 	private boolean mRenderComplete;
 
 	private final RectF mSourceRect = new RectF();
 	private final RectF mTargetRect = new RectF();
 
 	private final LongSparseArray<Tile> mActiveTiles = new LongSparseArray<Tile>();
+	private final TileCache mTileCache = new TileCache();
+
+	// Statistics of the tile cache and of the decoder.
+	private int mTileCacheHitCount;
+	private int mTileCacheMissCount;
+	private volatile int mTileDecodeCount;
 
-	// The following three queue is guarded by TileImageView.this
+	// The following four queue is guarded by TileImageView.this
 	private final TileQueue mRecycledQueue = new TileQueue();
+	// Tiles of the level on display, and of the other kept level.
 	private final TileQueue mUploadQueue = new TileQueue();
+	private final TileQueue mBackgroundUploadQueue = new TileQueue();
 	private final TileQueue mDecodeQueue = new TileQueue();
+	// Draft tiles waiting to be decoded again at full quality. They are only
+	// decoded when mDecodeQueue is empty.
+	private final TileQueue mRefineQueue = new TileQueue();
 
 	// The width and height of the full-sized bitmap
 	protected int mImageWidth = SIZE_UNKNOWN;
@@ -110,23 +140,33 @@ public class TileImageView extends GLView {
 
 	// Temp variables to avoid memory allocation
 	private final Rect mTileRange = new Rect();
-	private final Rect mActiveRange[] = { new Rect(), new Rect() };
+	private final Rect mActiveRange[] = { new Rect(), new Rect(), new Rect() };
 
-	private final TileUploader mTileUploader = new TileUploader();
+	private final TileUploader mTileUploader = new TileUploader(mUploadQueue);
+	private final TileUploader mBackgroundTileUploader = new TileUploader(mBackgroundUploadQueue);
 	private boolean mIsTextureFreed;
 	private Future<Void> mTileDecoder;
 	private final ThreadPool mThreadPool;
 	private boolean mBackgroundTileUploaded;
 
+	// While the view is flung, scrolled or scaled, tiles are on screen for a
+	// few frames only, so they are decoded as drafts (see Model.getTile) and
+	// refined once the motion stops.
+	private volatile boolean mInMotion;
+
+	// If enabled, decoded tiles are compressed to ETC1 on the decoder thread
+	// when the GL context supports it, which takes an eighth of the upload
+	// bandwidth and texture memory. The encoder and its pixel buffer are used
+	// by the decoder thread only.
+	private volatile boolean mTileCompressionEnabled;
+	private final ETC1Encoder mEncoder = new ETC1Encoder();
+	private int[] mPixels;
+
 	public TileImageView(final GalleryContext context) {
 		mThreadPool = context.getThreadPool();
-		mTileDecoder = mThreadPool.submit(new TileDecoder());
+		mTileDecoder = mThreadPool.submitLongRunning(new TileDecoder());
 		if (TILE_SIZE == 0) {
-			if (GalleryUtils.isHighResolution(context.getAndroidContext())) {
-				TILE_SIZE = 510;
-			} else {
-				TILE_SIZE = 254;
-			}
+			TILE_SIZE = getTileSize(context.getAndroidContext());
 			BITMAP_SIZE = TILE_SIZE + TILE_BORDER * 2;
 			sTilePool = ApiHelper.HAS_REUSING_BITMAP_IN_BITMAP_REGION_DECODER ? new BitmapPool(BITMAP_SIZE,
 					BITMAP_SIZE, 128) : null;
@@ -146,16 +186,31 @@ public class TileImageView extends GLView {
 		if (tile != null) {
 			if (!tile.isContentValid()) {
 				if (tile.mTileState == STATE_DECODED) {
-					if (mUploadQuota > 0) {
-						--mUploadQuota;
+					if (mUploadScheduler.canUploadInFrame()) {
+						final long startTime = System.nanoTime();
 						tile.updateContent(canvas);
+						mUploadScheduler.recordUploadInFrame(startTime);
+						onTileUpdated(tile);
 					} else {
 						mRenderComplete = false;
 					}
 				} else if (tile.mTileState != STATE_DECODE_FAIL) {
 					mRenderComplete = false;
 					queueForDecode(tile);
+					// The decoder takes the last queued tile first, so the
+					// parent (which covers four tiles) comes before it.
+					final Tile parent = tile.getParentTile();
+					if (parent != null && !parent.isContentValid()) {
+						queueForDecode(parent);
+					}
 				}
+			} else if (tile.mTileState == STATE_DECODED && mUploadScheduler.canUploadInFrame()) {
+				// A refined tile, possibly dropped from the upload queue by
+				// layoutTiles().
+				final long startTime = System.nanoTime();
+				tile.invalidateContent();
+				tile.updateContent(canvas);
+				mUploadScheduler.recordUploadInFrame(startTime);
 			}
 			if (drawTile(tile, canvas, source, target)) return;
 		}
@@ -184,10 +239,13 @@ public class TileImageView extends GLView {
 		}
 		mActiveTiles.clear();
 		mTileRange.set(0, 0, 0, 0);
+		mTileCache.clear();
 
 		synchronized (this) {
 			mUploadQueue.clean();
+			mBackgroundUploadQueue.clean();
 			mDecodeQueue.clean();
+			mRefineQueue.clean();
 			Tile tile = mRecycledQueue.pop();
 			while (tile != null) {
 				tile.recycle();
@@ -224,6 +282,18 @@ public class TileImageView extends GLView {
 		center.y = Math.round(viewH / 2f + distH * mScale);
 	}
 
+	public int getTileCacheHitCount() {
+		return mTileCacheHitCount;
+	}
+
+	public int getTileCacheMissCount() {
+		return mTileCacheMissCount;
+	}
+
+	public int getTileDecodeCount() {
+		return mTileDecodeCount;
+	}
+
 	public void notifyModelInvalidated() {
 		invalidateTiles();
 		if (mModel == null) {
@@ -231,11 +301,13 @@ public class TileImageView extends GLView {
 			mImageWidth = 0;
 			mImageHeight = 0;
 			mLevelCount = 0;
+			mFirstLevel = 0;
 		} else {
 			setScreenNail(mModel.getScreenNail());
 			mImageWidth = mModel.getImageWidth();
 			mImageHeight = mModel.getImageHeight();
 			mLevelCount = mModel.getLevelCount();
+			mFirstLevel = Math.min(mModel.getFirstLevel(), mLevelCount);
 		}
 		layoutTiles(mCenterX, mCenterY, mScale, mRotation);
 		invalidate();
@@ -243,7 +315,7 @@ public class TileImageView extends GLView {
 
 	public void prepareTextures() {
 		if (mTileDecoder == null) {
-			mTileDecoder = mThreadPool.submit(new TileDecoder());
+			mTileDecoder = mThreadPool.submitLongRunning(new TileDecoder());
 		}
 		if (mIsTextureFreed) {
 			layoutTiles(mCenterX, mCenterY, mScale, mRotation);
@@ -270,13 +342,33 @@ public class TileImageView extends GLView {
 		return true;
 	}
 
+	public void setTileCompressionEnabled(final boolean enabled) {
+		mTileCompressionEnabled = enabled;
+	}
+
+	public void setInMotion(final boolean inMotion) {
+		if (mInMotion == inMotion) return;
+		mInMotion = inMotion;
+		if (inMotion) return;
+		if (mModel != null && chooseLevel(mScale) != mLevel) {
+			layoutTiles(mCenterX, mCenterY, mScale, mRotation);
+			invalidate();
+		}
+		final int n = mActiveTiles.size();
+		for (int i = 0; i < n; i++) {
+			queueForRefine(mActiveTiles.valueAt(i));
+		}
+	}
+
 	public void setScreenNail(final ScreenNail s) {
 		mScreenNail = s;
 	}
 
 	protected synchronized void invalidateTiles() {
 		mDecodeQueue.clean();
+		mRefineQueue.clean();
 		mUploadQueue.clean();
+		mBackgroundUploadQueue.clean();
 
 		// TODO disable decoder
 		final int n = mActiveTiles.size();
@@ -285,6 +377,7 @@ public class TileImageView extends GLView {
 			recycleTile(tile);
 		}
 		mActiveTiles.clear();
+		mTileCache.clear();
 	}
 
 	@Override
@@ -297,7 +390,7 @@ public class TileImageView extends GLView {
 
 	@Override
 	protected void render(final GLCanvas canvas) {
-		mUploadQuota = UPLOAD_LIMIT;
+		mUploadScheduler = getGLRoot().getUploadScheduler();
 		mRenderComplete = true;
 
 		final int level = mLevel;
@@ -362,9 +455,17 @@ public class TileImageView extends GLView {
 			if (tile.mTileState == STATE_IN_QUEUE) {
 				tile.mTileState = STATE_ACTIVATED;
 			}
+			queueForRefine(tile);
 			return;
 		}
-		tile = obtainTile(x, y, level);
+		tile = mTileCache.remove(key);
+		if (tile != null) {
+			mTileCacheHitCount++;
+			queueForRefine(tile);
+		} else {
+			mTileCacheMissCount++;
+			tile = obtainTile(x, y, level);
+		}
 		mActiveTiles.put(key, tile);
 	}
 
@@ -377,14 +478,23 @@ public class TileImageView extends GLView {
 	private void getRange(final Rect out, final int cX, final int cY, final int level, final float scale,
 			final int rotation) {
 
-		final double radians = Math.toRadians(-rotation);
-		final double w = getWidth();
-		final double h = getHeight();
-
-		final double cos = Math.cos(radians);
-		final double sin = Math.sin(radians);
-		final int width = (int) Math.ceil(Math.max(Math.abs(cos * w - sin * h), Math.abs(cos * w + sin * h)));
-		final int height = (int) Math.ceil(Math.max(Math.abs(sin * w + cos * h), Math.abs(sin * w - cos * h)));
+		final int width, height;
+		if (rotation % 180 == 0) {
+			width = getWidth();
+			height = getHeight();
+		} else if (rotation % 90 == 0) {
+			width = getHeight();
+			height = getWidth();
+		} else {
+			final double radians = Math.toRadians(-rotation);
+			final double w = getWidth();
+			final double h = getHeight();
+
+			final double cos = Math.cos(radians);
+			final double sin = Math.sin(radians);
+			width = (int) Math.ceil(Math.max(Math.abs(cos * w - sin * h), Math.abs(cos * w + sin * h)));
+			height = (int) Math.ceil(Math.max(Math.abs(sin * w + cos * h), Math.abs(sin * w - cos * h)));
+		}
 
 		int left = (int) FloatMath.floor(cX - width / (2f * scale));
 		int top = (int) FloatMath.floor(cY - height / (2f * scale));
@@ -413,6 +523,17 @@ public class TileImageView extends GLView {
 		return mScreenNail instanceof TiledScreenNail && ((TiledScreenNail) mScreenNail).isAnimating();
 	}
 
+	// Returns the level to display at the given scale. While in motion we stay
+	// at the current level within the LEVEL_HYSTERESIS band.
+	private int chooseLevel(final float scale) {
+		final int level = Utils.clamp(Utils.floorLog2(1f / scale), mFirstLevel, mLevelCount);
+		if (!mInMotion || level == mLevel || mLevel > mLevelCount || mLevel < mFirstLevel) return level;
+		final float relativeScale = scale * (1 << mLevel);
+		if ((mLevel == mFirstLevel || relativeScale <= LEVEL_HYSTERESIS)
+				&& (mLevel == mLevelCount || relativeScale > 0.5f / LEVEL_HYSTERESIS)) return mLevel;
+		return level;
+	}
+
 	// Prepare the tiles we want to use for display.
 	//
 	// 1. Decide the tile level we want to use for display.
@@ -430,12 +551,16 @@ public class TileImageView extends GLView {
 		int fromLevel;
 		int endLevel;
 
-		// We want to use a texture larger than or equal to the display size.
-		mLevel = Utils.clamp(Utils.floorLog2(1f / scale), 0, mLevelCount);
+		// We want to use a texture larger than or equal to the display size,
+		// but while in motion we don't switch levels as soon as the scale
+		// crosses a level boundary, see chooseLevel().
+		mLevel = chooseLevel(scale);
 
 		// We want to keep one more tile level as texture in addition to what
 		// we use for display. So it can be faster when the scale moves to the
-		// next level. We choose a level closer to the current scale.
+		// next level. We choose a level closer to the current scale. The
+		// parent level is kept as well, so drawTile() can fall back to it
+		// instead of the screen nail while tiles of mLevel are decoded.
 		if (mLevel != mLevelCount) {
 			final Rect range = mTileRange;
 			getRange(range, centerX, centerY, mLevel, scale, rotation);
@@ -449,12 +574,17 @@ public class TileImageView extends GLView {
 			mOffsetY = Math.round(height / 2f - centerY * scale);
 		}
 
-		fromLevel = Math.max(0, Math.min(fromLevel, mLevelCount - 2));
-		endLevel = Math.min(fromLevel + 2, mLevelCount);
+		fromLevel = Math.max(mFirstLevel, Math.min(fromLevel, mLevelCount - 2));
+		endLevel = Math.min(Math.max(fromLevel, mLevel) + 2, mLevelCount);
 
 		final Rect range[] = mActiveRange;
 		for (int i = fromLevel; i < endLevel; ++i) {
-			getRange(range[i - fromLevel], centerX, centerY, i, rotation);
+			if (i > mLevel) {
+				// The parent level only needs to cover what is on screen.
+				getRange(range[i - fromLevel], centerX, centerY, i, scale, rotation);
+			} else {
+				getRange(range[i - fromLevel], centerX, centerY, i, rotation);
+			}
 		}
 
 		// If rotation is transient, don't update the tile.
@@ -462,21 +592,35 @@ public class TileImageView extends GLView {
 
 		synchronized (this) {
 			mDecodeQueue.clean();
+			mRefineQueue.clean();
 			mUploadQueue.clean();
+			mBackgroundUploadQueue.clean();
 			mBackgroundTileUploaded = false;
 
-			// Recycle unused tiles: if the level of the active tile is outside
-			// the
-			// range [fromLevel, endLevel) or not in the visible range.
+			// Deactivate unused tiles: if the level of the active tile is
+			// outside the range [fromLevel, endLevel) or not in the visible
+			// range. Tiles with content are kept in mTileCache, the others
+			// are recycled.
 			int n = mActiveTiles.size();
 			for (int i = 0; i < n; i++) {
 				final Tile tile = mActiveTiles.valueAt(i);
 				final int level = tile.mTileLevel;
 				if (level < fromLevel || level >= endLevel || !range[level - fromLevel].contains(tile.mX, tile.mY)) {
+					final long key = mActiveTiles.keyAt(i);
 					mActiveTiles.removeAt(i);
 					i--;
 					n--;
-					recycleTile(tile);
+					final int state = tile.mTileState;
+					if (state == STATE_DECODED || state != STATE_DECODING && tile.isContentValid()) {
+						if (state == STATE_IN_QUEUE) {
+							// Drop a pending refinement, it is queued
+							// again when the tile is reactivated.
+							tile.mTileState = STATE_ACTIVATED;
+						}
+						mTileCache.put(key, tile);
+					} else {
+						recycleTile(tile);
+					}
 				}
 			}
 		}
@@ -518,6 +662,7 @@ public class TileImageView extends GLView {
 		synchronized (this) {
 			if (tile.mTileState != STATE_IN_QUEUE) return false;
 			tile.mTileState = STATE_DECODING;
+			mTileDecodeCount++;
 		}
 		final boolean decodeComplete = tile.decode();
 		synchronized (this) {
@@ -529,6 +674,7 @@ public class TileImageView extends GLView {
 					}
 					tile.mDecodedTile = null;
 				}
+				tile.mHasCompressedTile = false;
 				mRecycledQueue.push(tile);
 				return false;
 			}
@@ -537,6 +683,11 @@ public class TileImageView extends GLView {
 		}
 	}
 
+	// The level on display. Package private for the replay test.
+	int getLevel() {
+		return mLevel;
+	}
+
 	synchronized void queueForDecode(final Tile tile) {
 		if (tile.mTileState == STATE_ACTIVATED) {
 			tile.mTileState = STATE_IN_QUEUE;
@@ -546,12 +697,37 @@ public class TileImageView extends GLView {
 		}
 	}
 
+	// Queues a tile showing a draft for decoding at full quality, unless the
+	// view is still moving. The draft stays on screen until the new content
+	// is uploaded.
+	synchronized void queueForRefine(final Tile tile) {
+		if (mInMotion || !tile.mDraft || !tile.isContentValid()) return;
+		if (tile.mTileState == STATE_ACTIVATED) {
+			tile.mTileState = STATE_IN_QUEUE;
+			if (mRefineQueue.push(tile)) {
+				notifyAll();
+			}
+		}
+	}
+
 	void queueForUpload(final Tile tile) {
+		final boolean visible;
 		synchronized (this) {
-			mUploadQueue.push(tile);
+			visible = tile.mTileLevel == mLevel;
+			(visible ? mUploadQueue : mBackgroundUploadQueue).push(tile);
 		}
-		if (mTileUploader.mActive.compareAndSet(false, true)) {
-			getGLRoot().addOnGLIdleListener(mTileUploader);
+		final GLRoot root = getGLRoot();
+		if (root == null) return;
+		if (visible) {
+			root.getUploadScheduler().schedule(mTileUploader, UploadScheduler.PRIORITY_VISIBLE);
+		} else {
+			root.getUploadScheduler().schedule(mBackgroundTileUploader, UploadScheduler.PRIORITY_BACKGROUND);
+		}
+	}
+
+	void onTileUpdated(final Tile tile) {
+		if (tile.mDraft) {
+			queueForRefine(tile);
 		}
 	}
 
@@ -567,9 +743,19 @@ public class TileImageView extends GLView {
 			}
 			tile.mDecodedTile = null;
 		}
+		tile.mHasCompressedTile = false;
 		mRecycledQueue.push(tile);
 	}
 
+	public static int getTileBorder() {
+		return TILE_BORDER;
+	}
+
+	// The size of the tiles asked from the model, not counting the border.
+	public static int getTileSize(final Context context) {
+		return GalleryUtils.isHighResolution(context) ? 510 : 254;
+	}
+
 	private static long makeTileKey(final int x, final int y, final int level) {
 		long result = x;
 		result = result << 16 | y;
@@ -608,6 +794,10 @@ public class TileImageView extends GLView {
 	}
 
 	public static interface Model {
+		// Returns the finest level there are tiles for. Finer levels are
+		// drawn by scaling up the tiles of this one.
+		public int getFirstLevel();
+
 		public int getImageHeight();
 
 		public int getImageWidth();
@@ -628,7 +818,11 @@ public class TileImageView extends GLView {
 		// still refers to the coordinate on the original image.
 		//
 		// The method would be called in another thread.
-		public Bitmap getTile(int level, int x, int y, int tileSize, int borderSize, BitmapPool pool);
+		//
+		// If draft is true, the tile is going to be on screen for a short time
+		// only and should be decoded with the faster settings, even at some
+		// loss of quality. It is decoded again without draft later.
+		public Bitmap getTile(int level, int x, int y, int tileSize, int borderSize, BitmapPool pool, boolean draft);
 	}
 
 	private class Tile extends UploadedTexture {
@@ -638,6 +832,16 @@ public class TileImageView extends GLView {
 		public Tile mNext;
 		public Bitmap mDecodedTile;
 		public volatile int mTileState = STATE_ACTIVATED;
+		// Whether the last decoded content of the tile is a draft.
+		public volatile boolean mDraft;
+		// The decoded content compressed to ETC1, valid if mHasCompressedTile
+		// is set. The buffer is kept for the next decodes of the tile.
+		public ByteBuffer mCompressedTile;
+		public boolean mHasCompressedTile;
+		// Links of TileCache, from the least recently used tile.
+		public Tile mCachePrev;
+		public Tile mCacheNext;
+		public int mCacheBytes;
 
 		public Tile(final int x, final int y, final int level) {
 			mX = x;
@@ -676,6 +880,7 @@ public class TileImageView extends GLView {
 			mX = x;
 			mY = y;
 			mTileLevel = level;
+			mDraft = false;
 			invalidateContent();
 		}
 
@@ -689,29 +894,155 @@ public class TileImageView extends GLView {
 		@Override
 		protected Bitmap onGetBitmap() {
 			Utils.assertTrue(mTileState == STATE_DECODED);
+			setTileSize();
 
-			// We need to override the width and height, so that we won't
-			// draw beyond the boundaries.
+			final Bitmap bitmap = mDecodedTile;
+			mDecodedTile = null;
+			mTileState = STATE_ACTIVATED;
+			return bitmap;
+		}
+
+		@Override
+		protected Buffer onGetCompressedContent() {
+			if (!mHasCompressedTile) return null;
+			Utils.assertTrue(mTileState == STATE_DECODED);
+			setTileSize();
+
+			mHasCompressedTile = false;
+			mTileState = STATE_ACTIVATED;
+			return mCompressedTile;
+		}
+
+		// We need to override the width and height, so that we won't draw
+		// beyond the boundaries.
+		private void setTileSize() {
 			final int rightEdge = (mImageWidth - mX >> mTileLevel) + TILE_BORDER;
 			final int bottomEdge = (mImageHeight - mY >> mTileLevel) + TILE_BORDER;
 			setSize(Math.min(BITMAP_SIZE, rightEdge), Math.min(BITMAP_SIZE, bottomEdge));
+		}
 
+		// Replaces mDecodedTile with its ETC1 encoding, unless the encoding
+		// loses too much quality. The tile is drawn opaque, so alpha is lost
+		// either way.
+		private void compress() {
 			final Bitmap bitmap = mDecodedTile;
+			final int w = bitmap.getWidth(), h = bitmap.getHeight();
+			if (w != getTextureWidth() || h != getTextureHeight() || !ETC1Encoder.canEncode(w, h)) return;
+			if (mPixels == null || mPixels.length < w * h) {
+				mPixels = new int[w * h];
+			}
+			bitmap.getPixels(mPixels, 0, w, 0, 0, w, h);
+			final int size = ETC1Encoder.getEncodedSize(w, h);
+			if (mCompressedTile == null || mCompressedTile.capacity() < size) {
+				mCompressedTile = ByteBuffer.allocateDirect(size);
+			}
+			mCompressedTile.clear();
+			final long error = mEncoder.encode(mPixels, w, h, mCompressedTile);
+			mCompressedTile.flip();
+			if (ETC1Encoder.getPSNR(error, w * h) < MIN_COMPRESSED_PSNR) return;
+			if (sTilePool != null) {
+				sTilePool.recycle(bitmap);
+			}
 			mDecodedTile = null;
-			mTileState = STATE_ACTIVATED;
-			return bitmap;
+			mHasCompressedTile = true;
 		}
 
 		boolean decode() {
 			// Get a tile from the original image. The tile is down-scaled
 			// by (1 << mTilelevel) from a region in the original image.
+			final boolean draft = mInMotion;
 			try {
 				mDecodedTile = DecodeUtils.ensureGLCompatibleBitmap(mModel.getTile(mTileLevel, mX, mY, TILE_SIZE,
-						TILE_BORDER, sTilePool));
+						TILE_BORDER, sTilePool, draft));
 			} catch (final Throwable t) {
 				Log.w(TAG, "fail to decode tile", t);
 			}
-			return mDecodedTile != null;
+			if (mDecodedTile == null) return false;
+			// Drafts are short-lived, don't spend time compressing them.
+			if (!draft && mTileCompressionEnabled && UploadedTexture.isETC1Supported()) {
+				compress();
+			}
+			mDraft = draft;
+			return true;
+		}
+	}
+
+	// TileCache keeps the tiles that recently left the active range, with
+	// their uploaded texture or decoded bitmap, so panning back to them does
+	// not decode them again. The least recently deactivated tiles are recycled
+	// when the cache grows over TILE_CACHE_BYTES. It is used on the GL thread
+	// only.
+	private class TileCache {
+		private final LongSparseArray<Tile> mTiles = new LongSparseArray<Tile>();
+		private Tile mOldest;
+		private Tile mNewest;
+		private int mBytes;
+
+		public void clear() {
+			Tile tile = mOldest;
+			while (tile != null) {
+				final Tile next = tile.mCacheNext;
+				tile.mCachePrev = tile.mCacheNext = null;
+				recycleTile(tile);
+				tile = next;
+			}
+			mOldest = mNewest = null;
+			mTiles.clear();
+			mBytes = 0;
+		}
+
+		public void put(final long key, final Tile tile) {
+			mTiles.put(key, tile);
+			tile.mCachePrev = mNewest;
+			tile.mCacheNext = null;
+			if (mNewest != null) {
+				mNewest.mCacheNext = tile;
+			} else {
+				mOldest = tile;
+			}
+			mNewest = tile;
+			tile.mCacheBytes = getTileBytes(tile);
+			mBytes += tile.mCacheBytes;
+			while (mBytes > TILE_CACHE_BYTES && mOldest != null) {
+				final Tile oldest = mOldest;
+				mTiles.delete(makeTileKey(oldest.mX, oldest.mY, oldest.mTileLevel));
+				unlink(oldest);
+				recycleTile(oldest);
+			}
+		}
+
+		public Tile remove(final long key) {
+			final Tile tile = mTiles.get(key);
+			if (tile == null) return null;
+			mTiles.delete(key);
+			unlink(tile);
+			return tile;
+		}
+
+		private void unlink(final Tile tile) {
+			if (tile.mCachePrev != null) {
+				tile.mCachePrev.mCacheNext = tile.mCacheNext;
+			} else {
+				mOldest = tile.mCacheNext;
+			}
+			if (tile.mCacheNext != null) {
+				tile.mCacheNext.mCachePrev = tile.mCachePrev;
+			} else {
+				mNewest = tile.mCachePrev;
+			}
+			tile.mCachePrev = tile.mCacheNext = null;
+			mBytes -= tile.mCacheBytes;
+		}
+
+		// The texture, plus the decoded content waiting to be uploaded.
+		private int getTileBytes(final Tile tile) {
+			int bytes = tile.getStorageSize();
+			if (tile.mDecodedTile != null) {
+				bytes += tile.mDecodedTile.getRowBytes() * tile.mDecodedTile.getHeight();
+			} else if (tile.mHasCompressedTile) {
+				bytes += tile.mCompressedTile.remaining();
+			}
+			return bytes;
 		}
 	}
 
@@ -734,6 +1065,9 @@ public class TileImageView extends GLView {
 				Tile tile = null;
 				synchronized (TileImageView.this) {
 					tile = mDecodeQueue.pop();
+					if (tile == null) {
+						tile = mRefineQueue.pop();
+					}
 					if (tile == null && !jc.isCancelled()) {
 						Utils.waitWithoutInterrupt(TileImageView.this);
 					}
@@ -772,37 +1106,34 @@ public class TileImageView extends GLView {
 		}
 	}
 
-	private class TileUploader implements GLRoot.OnGLIdleListener {
-		AtomicBoolean mActive = new AtomicBoolean(false);
+	private class TileUploader implements UploadScheduler.Uploader {
+		private final TileQueue mQueue;
+
+		public TileUploader(final TileQueue queue) {
+			mQueue = queue;
+		}
 
 		@Override
-		public boolean onGLIdle(final GLCanvas canvas, final boolean renderRequested) {
-			// Skips uploading if there is a pending rendering request.
-			// Returns true to keep uploading in next rendering loop.
-			if (renderRequested) return true;
-			int quota = UPLOAD_LIMIT;
-			Tile tile = null;
-			while (quota > 0) {
-				synchronized (TileImageView.this) {
-					tile = mUploadQueue.pop();
-				}
-				if (tile == null) {
-					break;
-				}
-				if (!tile.isContentValid()) {
-					final boolean hasBeenLoaded = tile.isLoaded();
-					Utils.assertTrue(tile.mTileState == STATE_DECODED);
-					tile.updateContent(canvas);
-					if (!hasBeenLoaded) {
-						tile.draw(canvas, 0, 0);
-					}
-					--quota;
-				}
+		public boolean uploadOne(final GLCanvas canvas) {
+			final Tile tile;
+			synchronized (TileImageView.this) {
+				tile = mQueue.pop();
 			}
-			if (tile == null) {
-				mActive.set(false);
+			if (tile == null) return false;
+			if (tile.isContentValid() && tile.mTileState == STATE_DECODED) {
+				// The tile has been refined, replace the draft on screen.
+				tile.invalidateContent();
+			}
+			if (!tile.isContentValid()) {
+				final boolean hasBeenLoaded = tile.isLoaded();
+				Utils.assertTrue(tile.mTileState == STATE_DECODED);
+				tile.updateContent(canvas);
+				if (!hasBeenLoaded) {
+					tile.draw(canvas, 0, 0);
+				}
+				onTileUpdated(tile);
 			}
-			return tile != null;
+			return true;
 		}
 	}
 }
@@ -16,9 +16,15 @@
 
 package org.mariotaku.gallery3d.ui;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.mariotaku.gallery3d.common.ApiHelper;
 import org.mariotaku.gallery3d.common.Utils;
 import org.mariotaku.gallery3d.data.BitmapPool;
+import org.mariotaku.gallery3d.data.DecodeCostModel;
+import org.mariotaku.gallery3d.data.DecodeUtils;
+import org.mariotaku.gallery3d.data.TilePyramid;
 
 import android.annotation.TargetApi;
 import android.graphics.Bitmap;
@@ -31,12 +37,32 @@ import android.util.Log;
 
 public class TileImageViewAdapter implements TileImageView.Model {
 	private static final String TAG = "TileImageViewAdapter";
+
+	// getTile() runs once per tile on the decoder threads, so the objects it
+	// needs are kept per thread instead of being allocated for every tile.
+	private static final ThreadLocal<DecodeScratch> sDecodeScratch = new ThreadLocal<DecodeScratch>() {
+		@Override
+		protected DecodeScratch initialValue() {
+			return new DecodeScratch();
+		}
+	};
+
 	protected ScreenNail mScreenNail;
 	protected boolean mOwnScreenNail;
 	protected BitmapRegionDecoder mRegionDecoder;
 	protected int mImageWidth;
 	protected int mImageHeight;
 	protected int mLevelCount;
+	// Whether the image has no alpha channel, see DecodeUtils.getPreferredConfig().
+	protected boolean mOpaque;
+	// The MIME type of the image, under which tile decodes are recorded into
+	// the DecodeCostModel.
+	protected String mMimeType;
+	// The tile pyramid of the image, see TilePyramid. It is opened by the
+	// first getTile() call, on a decoder thread.
+	private File mTilePyramidFile;
+	private boolean mTilePyramidOpened;
+	private TilePyramid mTilePyramid;
 
 	public TileImageViewAdapter() {
 	}
@@ -47,6 +73,16 @@ public class TileImageViewAdapter implements TileImageView.Model {
 		mImageHeight = 0;
 		mLevelCount = 0;
 		mRegionDecoder = null;
+		mOpaque = false;
+		mMimeType = null;
+		setTilePyramidFile(null);
+	}
+
+	// Levels finer than what the pyramid holds are served by the region
+	// decoder, if there is one.
+	@Override
+	public synchronized int getFirstLevel() {
+		return mRegionDecoder == null && mTilePyramid != null ? mTilePyramid.getFirstLevel() : 0;
 	}
 
 	@Override
@@ -80,58 +116,81 @@ public class TileImageViewAdapter implements TileImageView.Model {
 	//
 	// As a result, we should decode region (50-6, 50-6, 250+6, 250+6) or
 	// (44, 44, 256, 256) from the original photo and down sample it to 106.
+	//
+	// A draft tile is decoded with the faster, lower quality decoder.
+	//
+	// If the image has a tile pyramid holding the tile, it is read from
+	// there instead.
 	@TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
 	@Override
 	public Bitmap getTile(final int level, final int x, final int y, final int tileSize, final int borderSize,
-			final BitmapPool pool) {
+			final BitmapPool pool, final boolean draft) {
+		final TilePyramid pyramid = getTilePyramid();
+		if (pyramid != null && pyramid.hasTile(level, x, y, tileSize, borderSize)) {
+			final Bitmap bitmap = getTileFromPyramid(pyramid, level, x, y, pool, draft);
+			if (bitmap != null) return bitmap;
+		}
+
 		if (!ApiHelper.HAS_REUSING_BITMAP_IN_BITMAP_REGION_DECODER)
-			return getTileWithoutReusingBitmap(level, x, y, tileSize, borderSize);
+			return getTileWithoutReusingBitmap(level, x, y, tileSize, borderSize, draft);
 
 		final int b = borderSize << level;
 		final int t = tileSize << level;
 
-		final Rect wantRegion = new Rect(x - b, y - b, x + t + b, y + t + b);
+		final DecodeScratch scratch = sDecodeScratch.get();
+		final Rect wantRegion = scratch.wantRegion;
+		wantRegion.set(x - b, y - b, x + t + b, y + t + b);
 
 		boolean needClear;
 		BitmapRegionDecoder regionDecoder = null;
+		Config config;
+		String mimeType;
 
 		synchronized (this) {
 			regionDecoder = mRegionDecoder;
 			if (regionDecoder == null) return null;
+			config = DecodeUtils.getPreferredConfig(mOpaque);
+			mimeType = mMimeType;
 
 			// We need to clear a reused bitmap, if wantRegion is not fully
 			// within the image.
-			needClear = !new Rect(0, 0, mImageWidth, mImageHeight).contains(wantRegion);
+			scratch.imageRegion.set(0, 0, mImageWidth, mImageHeight);
+			needClear = !scratch.imageRegion.contains(wantRegion);
 		}
 
-		Bitmap bitmap = pool == null ? null : pool.getBitmap();
+		Bitmap bitmap = pool == null ? null : pool.getBitmap(config);
 		if (bitmap != null) {
 			if (needClear) {
 				bitmap.eraseColor(0);
 			}
 		} else {
 			final int s = tileSize + 2 * borderSize;
-			bitmap = Bitmap.createBitmap(s, s, Config.ARGB_8888);
+			bitmap = Bitmap.createBitmap(s, s, config);
 		}
 
-		final BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inPreferredConfig = Config.ARGB_8888;
-		options.inPreferQualityOverSpeed = true;
-		options.inSampleSize = 1 << level;
+		final BitmapFactory.Options options = scratch.prepareOptions(level, draft, config);
 		options.inBitmap = bitmap;
 
 		try {
 			// In CropImage, we may call the decodeRegion() concurrently.
 			synchronized (regionDecoder) {
-				bitmap = regionDecoder.decodeRegion(wantRegion, options);
+				// The adapter may have given the decoder back meanwhile.
+				if (regionDecoder.isRecycled()) {
+					bitmap = null;
+				} else {
+					final long startTime = System.nanoTime();
+					bitmap = regionDecoder.decodeRegion(wantRegion, options);
+					recordDecode(mimeType, wantRegion, bitmap, startTime);
+				}
 			}
 		} finally {
 			if (options.inBitmap != bitmap && options.inBitmap != null) {
 				if (pool != null) {
 					pool.recycle(options.inBitmap);
 				}
-				options.inBitmap = null;
 			}
+			// Don't keep the tile alive through the scratch options.
+			options.inBitmap = null;
 		}
 
 		if (bitmap == null) {
@@ -140,6 +199,37 @@ public class TileImageViewAdapter implements TileImageView.Model {
 		return bitmap;
 	}
 
+	public synchronized void setMimeType(final String mimeType) {
+		mMimeType = mimeType;
+	}
+
+	public synchronized void setOpaque(final boolean opaque) {
+		mOpaque = opaque;
+	}
+
+	// Serves the image from the tile pyramid alone, for images the region
+	// decoder can't handle. The screen nail must have been set. The adapter
+	// closes the pyramid once it is done with it.
+	public synchronized void setTilePyramid(final TilePyramid pyramid) {
+		setTilePyramidFile(null);
+		mTilePyramid = Utils.checkNotNull(pyramid);
+		mTilePyramidOpened = true;
+		mImageWidth = pyramid.getWidth();
+		mImageHeight = pyramid.getHeight();
+		mLevelCount = calculateLevelCount();
+	}
+
+	// Sets the file the tile pyramid of the image is looked for in, or null
+	// if it has none.
+	public synchronized void setTilePyramidFile(final File file) {
+		if (mTilePyramid != null) {
+			mTilePyramid.close();
+			mTilePyramid = null;
+		}
+		mTilePyramidFile = file;
+		mTilePyramidOpened = false;
+	}
+
 	public synchronized void setRegionDecoder(final BitmapRegionDecoder decoder) {
 		mRegionDecoder = Utils.checkNotNull(decoder);
 		mImageWidth = decoder.getWidth();
@@ -161,31 +251,109 @@ public class TileImageViewAdapter implements TileImageView.Model {
 		return Math.max(0, Utils.ceilLog2((float) mImageWidth / mScreenNail.getWidth()));
 	}
 
+	@TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
+	private Bitmap getTileFromPyramid(final TilePyramid pyramid, final int level, final int x, final int y,
+			final BitmapPool pool, final boolean draft) {
+		final DecodeScratch scratch = sDecodeScratch.get();
+		final byte[] data = scratch.getTileData(pyramid.getMaxTileLength());
+		final int length;
+		try {
+			length = pyramid.readTile(level, x, y, data);
+		} catch (final IOException e) {
+			// The pyramid may have been closed by clear() meanwhile.
+			Log.w(TAG, "fail in reading tile", e);
+			return null;
+		}
+
+		final Config config;
+		synchronized (this) {
+			config = DecodeUtils.getPreferredConfig(mOpaque);
+		}
+		final BitmapFactory.Options options = scratch.prepareOptions(0, draft, config);
+		// The tile goes back to the pool once it is recycled.
+		DecodeUtils.setOptionsMutable(options);
+		final Bitmap reused = pool == null ? null : pool.getBitmap(config);
+		if (reused != null) {
+			options.inBitmap = reused;
+		}
+		Bitmap bitmap = null;
+		try {
+			bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+		} catch (final IllegalArgumentException e) {
+			// The pooled bitmap can't be reused for this tile.
+			options.inBitmap = null;
+			bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+		} finally {
+			if (reused != null && reused != bitmap) {
+				pool.recycle(reused);
+			}
+			if (reused != null) {
+				options.inBitmap = null;
+			}
+			if (ApiHelper.HAS_OPTIONS_IN_MUTABLE) {
+				options.inMutable = false;
+			}
+		}
+		if (bitmap == null) {
+			Log.w(TAG, "fail in decoding tile");
+		}
+		return bitmap;
+	}
+
+	// Returns the tile pyramid of the image, or null if it has none or if
+	// it is being opened by another thread.
+	private TilePyramid getTilePyramid() {
+		final File file;
+		synchronized (this) {
+			if (mTilePyramidOpened || mTilePyramidFile == null) return mTilePyramid;
+			mTilePyramidOpened = true;
+			file = mTilePyramidFile;
+		}
+		final TilePyramid pyramid = TilePyramid.open(file);
+		if (pyramid == null) return null;
+		synchronized (this) {
+			// Drop it if the image has changed or does not match the pyramid.
+			if (mTilePyramidFile != file || pyramid.getWidth() != mImageWidth
+					|| pyramid.getHeight() != mImageHeight) {
+				pyramid.close();
+				return null;
+			}
+			mTilePyramid = pyramid;
+			return pyramid;
+		}
+	}
+
 	private Bitmap getTileWithoutReusingBitmap(final int level, final int x, final int y, final int tileSize,
-			final int borderSize) {
+			final int borderSize, final boolean draft) {
 		final int b = borderSize << level;
 		final int t = tileSize << level;
-		final Rect wantRegion = new Rect(x - b, y - b, x + t + b, y + t + b);
+		final DecodeScratch scratch = sDecodeScratch.get();
+		final Rect wantRegion = scratch.wantRegion;
+		wantRegion.set(x - b, y - b, x + t + b, y + t + b);
 
 		BitmapRegionDecoder regionDecoder;
-		Rect overlapRegion;
+		final Rect overlapRegion = scratch.imageRegion;
+		Config config;
+		String mimeType;
 
 		synchronized (this) {
 			regionDecoder = mRegionDecoder;
 			if (regionDecoder == null) return null;
-			overlapRegion = new Rect(0, 0, mImageWidth, mImageHeight);
+			config = DecodeUtils.getPreferredConfig(mOpaque);
+			mimeType = mMimeType;
+			overlapRegion.set(0, 0, mImageWidth, mImageHeight);
 			Utils.assertTrue(overlapRegion.intersect(wantRegion));
 		}
 
-		final BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inPreferredConfig = Config.ARGB_8888;
-		options.inPreferQualityOverSpeed = true;
-		options.inSampleSize = 1 << level;
+		final BitmapFactory.Options options = scratch.prepareOptions(level, draft, config);
 		Bitmap bitmap = null;
 
 		// In CropImage, we may call the decodeRegion() concurrently.
 		synchronized (regionDecoder) {
+			if (regionDecoder.isRecycled()) return null;
+			final long startTime = System.nanoTime();
 			bitmap = regionDecoder.decodeRegion(overlapRegion, options);
+			recordDecode(mimeType, overlapRegion, bitmap, startTime);
 		}
 
 		if (bitmap == null) {
@@ -195,10 +363,50 @@ public class TileImageViewAdapter implements TileImageView.Model {
 		if (wantRegion.equals(overlapRegion)) return bitmap;
 
 		final int s = tileSize + 2 * borderSize;
-		final Bitmap result = Bitmap.createBitmap(s, s, Config.ARGB_8888);
+		final Bitmap result = Bitmap.createBitmap(s, s, config);
 		final Canvas canvas = new Canvas(result);
 		canvas.drawBitmap(bitmap, overlapRegion.left - wantRegion.left >> level,
 				overlapRegion.top - wantRegion.top >> level, null);
 		return result;
 	}
+
+	private static void recordDecode(final String mimeType, final Rect region, final Bitmap bitmap,
+			final long startTime) {
+		final DecodeCostModel model = DecodeUtils.getCostModel();
+		if (model == null || bitmap == null) return;
+		final float millis = (System.nanoTime() - startTime) / 1000000f;
+		final long sourcePixels = (long) region.width() * region.height();
+		final long decodedPixels = (long) bitmap.getWidth() * bitmap.getHeight();
+		model.record(mimeType, DecodeCostModel.OP_REGION_DECODE, sourcePixels, decodedPixels, 0, millis);
+	}
+
+	private static class DecodeScratch {
+		final Rect wantRegion = new Rect();
+		final Rect imageRegion = new Rect();
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		private byte[] mTileData;
+
+		// Returns a buffer holding at least length bytes.
+		byte[] getTileData(final int length) {
+			if (mTileData == null || mTileData.length < length) {
+				mTileData = new byte[length];
+			}
+			return mTileData;
+		}
+
+		// Resets the fields getTile() relies on; the out fields are written
+		// by every decode. Draft tiles keep the config of the final ones
+		// since they share the pooled bitmaps and the tile textures.
+		@TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
+		BitmapFactory.Options prepareOptions(final int level, final boolean draft, final Config config) {
+			options.inPreferredConfig = config;
+			options.inDither = DecodeUtils.isDitherEnabled();
+			options.inPreferQualityOverSpeed = !draft;
+			options.inSampleSize = 1 << level;
+			if (ApiHelper.HAS_REUSING_BITMAP_IN_BITMAP_REGION_DECODER) {
+				options.inBitmap = null;
+			}
+			return options;
+		}
+	}
 }
@@ -58,10 +58,17 @@ public class TiledScreenNail implements ScreenNail {
 	private static boolean mDrawPlaceholder = true;
 
 	public TiledScreenNail(final Bitmap bitmap) {
-		mWidth = bitmap.getWidth();
-		mHeight = bitmap.getHeight();
+		this(bitmap, 0);
+	}
+
+	// The bitmap is drawn rotated clockwise by rotation degrees, a multiple
+	// of 90, and the size of the screen nail is that of the rotated bitmap.
+	public TiledScreenNail(final Bitmap bitmap, final int rotation) {
 		mBitmap = bitmap;
 		mTexture = new TiledTexture(bitmap);
+		mTexture.setRotation(rotation);
+		mWidth = mTexture.getWidth();
+		mHeight = mTexture.getHeight();
 	}
 
 	public TiledScreenNail(final int width, final int height) {
@@ -19,7 +19,8 @@ package org.mariotaku.gallery3d.ui;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 
-import org.mariotaku.gallery3d.ui.GLRoot.OnGLIdleListener;
+import javax.microedition.khronos.opengles.GL11;
+import javax.microedition.khronos.opengles.GL11Ext;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
@@ -29,24 +30,35 @@ import android.graphics.Paint;
 import android.graphics.PorterDuff.Mode;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
-import android.os.SystemClock;
+import android.opengl.GLUtils;
 
 // This class is similar to BitmapTexture, except the bitmap is
 // split into tiles. By doing so, we may increase the time required to
 // upload the whole bitmap but we reduce the time of uploading each tile
 // so it make the animation more smooth and prevents jank.
+//
+// The tiles are uploaded into pages, textures holding a block of the tile
+// grid, so that the tiles of a page are drawn with a single draw call, see
+// GLCanvasImpl.flush(). A page has a power of 2 number of slots along each
+// side, up to PAGE_SLOTS, which keeps it free of unused space.
+//
+// The texture may be drawn rotated by a multiple of 90 degrees, see
+// setRotation(). The rotation is applied as a canvas transform, so the bitmap
+// doesn't have to be rotated before upload. The size and the source
+// rectangles given to the draw methods are those of the rotated texture.
 public class TiledTexture implements Texture {
 	private static final int CONTENT_SIZE = 254;
 	private static final int BORDER_SIZE = 1;
 	private static final int TILE_SIZE = CONTENT_SIZE + 2 * BORDER_SIZE;
 	private static final int INIT_CAPACITY = 8;
+	private static final int PAGE_SLOTS = 4;
 
-	// We are targeting at 60fps, so we have 16ms for each frame.
-	// In this 16ms, we use about 4~8 ms to upload tiles.
-	private static final long UPLOAD_TILE_LIMIT = 4; // ms
-
-	private static Tile sFreeTileHead = null;
-	private static final Object sFreeTileLock = new Object();
+	// Free pages keep their GL storage, so that the next texture with pages
+	// of the same size doesn't have to define it again.
+	private static final int MAX_FREE_PAGES = 8;
+	private static Page sFreePageHead = null;
+	private static int sFreePageCount = 0;
+	private static final Object sFreePageLock = new Object();
 
 	private static Bitmap sUploadBitmap;
 	private static Canvas sCanvas;
@@ -55,38 +67,160 @@ public class TiledTexture implements Texture {
 
 	private int mUploadIndex = 0;
 
+	// The bitmap is kept until all tiles are uploaded.
+	private Bitmap mBitmap;
 	private final Tile[] mTiles;
+	private final Page[] mPages;
 	private final int mWidth;
 	private final int mHeight;
+	private int mRotation;
 	private final RectF mSrcRect = new RectF();
 	private final RectF mDestRect = new RectF();
+	private final RectF mRotatedSource = new RectF();
+	private final RectF mRotatedTarget = new RectF();
 
 	public TiledTexture(final Bitmap bitmap) {
 		mWidth = bitmap.getWidth();
 		mHeight = bitmap.getHeight();
-		final ArrayList<Tile> list = new ArrayList<Tile>();
-
-		for (int x = 0, w = mWidth; x < w; x += CONTENT_SIZE) {
-			for (int y = 0, h = mHeight; y < h; y += CONTENT_SIZE) {
-				final Tile tile = obtainTile();
-				tile.offsetX = x;
-				tile.offsetY = y;
-				tile.bitmap = bitmap;
-				tile.setSize(Math.min(CONTENT_SIZE, mWidth - x), Math.min(CONTENT_SIZE, mHeight - y));
-				list.add(tile);
+		mBitmap = bitmap;
+		final ArrayList<Tile> tiles = new ArrayList<Tile>();
+		final ArrayList<Page> pages = new ArrayList<Page>();
+
+		// The tiles of a page are listed together, so that they are drawn
+		// one after another.
+		final int cols = (mWidth + CONTENT_SIZE - 1) / CONTENT_SIZE;
+		final int rows = (mHeight + CONTENT_SIZE - 1) / CONTENT_SIZE;
+		for (int col0 = 0; col0 < cols;) {
+			final int pageCols = getPageSlots(cols - col0);
+			for (int row0 = 0; row0 < rows;) {
+				final int pageRows = getPageSlots(rows - row0);
+				final Page page = obtainPage(pageCols, pageRows);
+				pages.add(page);
+				for (int i = 0; i < pageCols; i++) {
+					for (int j = 0; j < pageRows; j++) {
+						final Tile tile = new Tile();
+						tile.page = page;
+						tile.slotX = i * TILE_SIZE;
+						tile.slotY = j * TILE_SIZE;
+						tile.offsetX = (col0 + i) * CONTENT_SIZE;
+						tile.offsetY = (row0 + j) * CONTENT_SIZE;
+						tile.contentWidth = Math.min(CONTENT_SIZE, mWidth - tile.offsetX);
+						tile.contentHeight = Math.min(CONTENT_SIZE, mHeight - tile.offsetY);
+						tiles.add(tile);
+					}
+				}
+				row0 += pageRows;
 			}
+			col0 += pageCols;
 		}
-		mTiles = list.toArray(new Tile[list.size()]);
+		mTiles = tiles.toArray(new Tile[tiles.size()]);
+		mPages = pages.toArray(new Page[pages.size()]);
 	}
 
 	@Override
 	public void draw(final GLCanvas canvas, final int x, final int y) {
-		draw(canvas, x, y, mWidth, mHeight);
+		draw(canvas, x, y, getWidth(), getHeight());
 	}
 
 	// Draws the texture on to the specified rectangle.
 	@Override
 	public void draw(final GLCanvas canvas, final int x, final int y, final int width, final int height) {
+		if (mRotation == 0) {
+			drawTiles(canvas, x, y, width, height);
+			return;
+		}
+		final boolean swap = mRotation % 180 != 0;
+		final int w = swap ? height : width;
+		final int h = swap ? width : height;
+		canvas.save(GLCanvas.SAVE_FLAG_MATRIX);
+		rotateAround(canvas, x + width / 2f, y + height / 2f, w, h);
+		drawTiles(canvas, 0, 0, w, h);
+		canvas.restore();
+	}
+
+	// Draws a sub region of this texture on to the specified rectangle.
+	public void draw(final GLCanvas canvas, final RectF source, final RectF target) {
+		if (mRotation == 0) {
+			drawRegion(canvas, source, target);
+			return;
+		}
+		// Map the source back onto the texture as uploaded.
+		final RectF src = mRotatedSource;
+		final float w = mWidth, h = mHeight;
+		switch (mRotation) {
+			case 90:
+				src.set(source.top, h - source.right, source.bottom, h - source.left);
+				break;
+			case 180:
+				src.set(w - source.right, h - source.bottom, w - source.left, h - source.top);
+				break;
+			default:
+				src.set(w - source.bottom, source.left, w - source.top, source.right);
+				break;
+		}
+		final boolean swap = mRotation % 180 != 0;
+		final RectF dest = mRotatedTarget;
+		dest.set(0, 0, swap ? target.height() : target.width(), swap ? target.width() : target.height());
+		canvas.save(GLCanvas.SAVE_FLAG_MATRIX);
+		rotateAround(canvas, target.centerX(), target.centerY(), dest.width(), dest.height());
+		drawRegion(canvas, src, dest);
+		canvas.restore();
+	}
+
+	// Draws a mixed color of this texture and a specified color onto the
+	// a rectangle. The used color is: from * (1 - ratio) + to * ratio.
+	public void drawMixed(final GLCanvas canvas, final int color, final float ratio, final int x, final int y,
+			final int width, final int height) {
+		if (mRotation == 0) {
+			drawTilesMixed(canvas, color, ratio, x, y, width, height);
+			return;
+		}
+		final boolean swap = mRotation % 180 != 0;
+		final int w = swap ? height : width;
+		final int h = swap ? width : height;
+		canvas.save(GLCanvas.SAVE_FLAG_MATRIX);
+		rotateAround(canvas, x + width / 2f, y + height / 2f, w, h);
+		drawTilesMixed(canvas, color, ratio, 0, 0, w, h);
+		canvas.restore();
+	}
+
+	@Override
+	public int getHeight() {
+		return mRotation % 180 != 0 ? mWidth : mHeight;
+	}
+
+	public int getRotation() {
+		return mRotation;
+	}
+
+	@Override
+	public int getWidth() {
+		return mRotation % 180 != 0 ? mHeight : mWidth;
+	}
+
+	@Override
+	public boolean isOpaque() {
+		return false;
+	}
+
+	public boolean isReady() {
+		return mUploadIndex == mTiles.length;
+	}
+
+	public void recycle() {
+		mBitmap = null;
+		for (int i = 0, n = mPages.length; i < n; ++i) {
+			freePage(mPages[i]);
+		}
+	}
+
+	// Sets the clockwise rotation the texture is drawn with, in degrees. It
+	// must be a multiple of 90.
+	public void setRotation(final int rotation) {
+		mRotation = (rotation % 360 + 360) % 360;
+	}
+
+	private void drawTiles(final GLCanvas canvas, final int x, final int y, final int width, final int height) {
 		final RectF src = mSrcRect;
 		final RectF dest = mDestRect;
 		final float scaleX = (float) width / mWidth;
@@ -96,13 +230,12 @@ public class TiledTexture implements Texture {
 			src.set(0, 0, t.contentWidth, t.contentHeight);
 			src.offset(t.offsetX, t.offsetY);
 			mapRect(dest, src, 0, 0, x, y, scaleX, scaleY);
-			src.offset(BORDER_SIZE - t.offsetX, BORDER_SIZE - t.offsetY);
-			canvas.drawTexture(t, mSrcRect, mDestRect);
+			src.offset(t.slotX + BORDER_SIZE - t.offsetX, t.slotY + BORDER_SIZE - t.offsetY);
+			canvas.drawTexture(t.page, mSrcRect, mDestRect);
 		}
 	}
 
-	// Draws a sub region of this texture on to the specified rectangle.
-	public void draw(final GLCanvas canvas, final RectF source, final RectF target) {
+	private void drawRegion(final GLCanvas canvas, final RectF source, final RectF target) {
 		final RectF src = mSrcRect;
 		final RectF dest = mDestRect;
 		final float x0 = source.left;
@@ -120,15 +253,13 @@ public class TiledTexture implements Texture {
 				continue;
 			}
 			mapRect(dest, src, x0, y0, x, y, scaleX, scaleY);
-			src.offset(BORDER_SIZE - t.offsetX, BORDER_SIZE - t.offsetY);
-			canvas.drawTexture(t, src, dest);
+			src.offset(t.slotX + BORDER_SIZE - t.offsetX, t.slotY + BORDER_SIZE - t.offsetY);
+			canvas.drawTexture(t.page, src, dest);
 		}
 	}
 
-	// Draws a mixed color of this texture and a specified color onto the
-	// a rectangle. The used color is: from * (1 - ratio) + to * ratio.
-	public void drawMixed(final GLCanvas canvas, final int color, final float ratio, final int x, final int y,
-			final int width, final int height) {
+	private void drawTilesMixed(final GLCanvas canvas, final int color, final float ratio, final int x,
+			final int y, final int width, final int height) {
 		final RectF src = mSrcRect;
 		final RectF dest = mDestRect;
 		final float scaleX = (float) width / mWidth;
@@ -138,34 +269,18 @@ public class TiledTexture implements Texture {
 			src.set(0, 0, t.contentWidth, t.contentHeight);
 			src.offset(t.offsetX, t.offsetY);
 			mapRect(dest, src, 0, 0, x, y, scaleX, scaleY);
-			src.offset(BORDER_SIZE - t.offsetX, BORDER_SIZE - t.offsetY);
-			canvas.drawMixed(t, color, ratio, mSrcRect, mDestRect);
+			src.offset(t.slotX + BORDER_SIZE - t.offsetX, t.slotY + BORDER_SIZE - t.offsetY);
+			canvas.drawMixed(t.page, color, ratio, mSrcRect, mDestRect);
 		}
 	}
 
-	@Override
-	public int getHeight() {
-		return mHeight;
-	}
-
-	@Override
-	public int getWidth() {
-		return mWidth;
-	}
-
-	@Override
-	public boolean isOpaque() {
-		return false;
-	}
-
-	public boolean isReady() {
-		return mUploadIndex == mTiles.length;
-	}
-
-	public void recycle() {
-		for (int i = 0, n = mTiles.length; i < n; ++i) {
-			freeTile(mTiles[i]);
-		}
+	// Rotates the canvas about (centerX, centerY), and moves the origin so
+	// that a width x height rectangle drawn at it is centered there.
+	private void rotateAround(final GLCanvas canvas, final float centerX, final float centerY, final float width,
+			final float height) {
+		canvas.translate(centerX, centerY);
+		canvas.rotate(mRotation, 0, 0, 1);
+		canvas.translate(-width / 2, -height / 2);
 	}
 
 	private boolean uploadNextTile(final GLCanvas canvas) {
@@ -173,21 +288,26 @@ public class TiledTexture implements Texture {
 
 		final Tile next = mTiles[mUploadIndex++];
 
-		// Make sure tile has not already been recycled by the time
+		// Make sure the texture has not already been recycled by the time
 		// this is called (race condition in onGLIdle)
-		if (next.bitmap != null) {
-			final boolean hasBeenLoad = next.isLoaded();
-			next.updateContent(canvas);
+		final Bitmap bitmap = mBitmap;
+		if (bitmap != null) {
+			final Page page = next.page;
+			final boolean hasBeenLoad = page.isLoaded();
+			drawTile(bitmap, next);
+			page.uploadSlot(canvas, next.slotX, next.slotY);
 
 			// It will take some time for a texture to be drawn for the first
 			// time. When scrolling, we need to draw several tiles on the screen
 			// at the same time. It may cause a UI jank even these textures has
 			// been uploaded.
 			if (!hasBeenLoad) {
-				next.draw(canvas, 0, 0);
+				page.draw(canvas, 0, 0, 1, 1);
 			}
 		}
-		return mUploadIndex == mTiles.length;
+		if (mUploadIndex < mTiles.length) return false;
+		mBitmap = null;
+		return true;
 	}
 
 	public static void freeResources() {
@@ -207,13 +327,45 @@ public class TiledTexture implements Texture {
 		sPaint.setColor(Color.TRANSPARENT);
 	}
 
-	private static void freeTile(final Tile tile) {
-		tile.invalidateContent();
-		tile.bitmap = null;
-		synchronized (sFreeTileLock) {
-			tile.nextFreeTile = sFreeTileHead;
-			sFreeTileHead = tile;
+	// Draws the content of a tile and its border into sUploadBitmap.
+	private static void drawTile(final Bitmap bitmap, final Tile tile) {
+		final int x = BORDER_SIZE - tile.offsetX;
+		final int y = BORDER_SIZE - tile.offsetY;
+		final int r = bitmap.getWidth() + x;
+		final int b = bitmap.getHeight() + y;
+		sCanvas.drawBitmap(bitmap, x, y, sBitmapPaint);
+
+		// draw borders if need
+		if (x > 0) {
+			sCanvas.drawLine(x - 1, 0, x - 1, TILE_SIZE, sPaint);
+		}
+		if (y > 0) {
+			sCanvas.drawLine(0, y - 1, TILE_SIZE, y - 1, sPaint);
+		}
+		if (r < CONTENT_SIZE) {
+			sCanvas.drawLine(r, 0, r, TILE_SIZE, sPaint);
 		}
+		if (b < CONTENT_SIZE) {
+			sCanvas.drawLine(0, b, TILE_SIZE, b, sPaint);
+		}
+	}
+
+	private static void freePage(final Page page) {
+		synchronized (sFreePageLock) {
+			if (sFreePageCount < MAX_FREE_PAGES) {
+				page.nextFreePage = sFreePageHead;
+				sFreePageHead = page;
+				sFreePageCount++;
+				return;
+			}
+		}
+		page.recycle();
+	}
+
+	// Returns the number of slots along a side of the next page, for a grid
+	// with the given number of tiles left along that side.
+	private static int getPageSlots(final int remaining) {
+		return remaining >= PAGE_SLOTS ? PAGE_SLOTS : Integer.highestOneBit(remaining);
 	}
 
 	// We want to draw the "source" on the "target".
@@ -235,108 +387,151 @@ public class TiledTexture implements Texture {
 				+ (src.bottom - y0) * scaleY);
 	}
 
-	private static Tile obtainTile() {
-		synchronized (sFreeTileLock) {
-			final Tile result = sFreeTileHead;
-			if (result == null) return new Tile();
-			sFreeTileHead = result.nextFreeTile;
-			result.nextFreeTile = null;
-			return result;
+	private static Page obtainPage(final int cols, final int rows) {
+		synchronized (sFreePageLock) {
+			Page prev = null;
+			for (Page page = sFreePageHead; page != null; page = page.nextFreePage) {
+				if (page.cols == cols && page.rows == rows) {
+					if (prev == null) {
+						sFreePageHead = page.nextFreePage;
+					} else {
+						prev.nextFreePage = page.nextFreePage;
+					}
+					page.nextFreePage = null;
+					sFreePageCount--;
+					return page;
+				}
+				prev = page;
+			}
 		}
+		return new Page(cols, rows);
 	}
 
-	public static class Uploader implements OnGLIdleListener {
-		private final ArrayDeque<TiledTexture> mTextures = new ArrayDeque<TiledTexture>(INIT_CAPACITY);
-
+	// Queues TiledTextures for upload through the UploadScheduler. The
+	// current screen nail is uploaded before those of the neighbours.
+	public static class Uploader {
 		private final GLRoot mGlRoot;
-		private boolean mIsQueued = false;
+		private final TextureQueue mCurrent = new TextureQueue();
+		private final TextureQueue mNeighbours = new TextureQueue();
 
 		public Uploader(final GLRoot glRoot) {
 			mGlRoot = glRoot;
 		}
 
-		public synchronized void addTexture(final TiledTexture t) {
-			if (t.isReady()) return;
-			mTextures.addLast(t);
+		public void addTexture(final TiledTexture t) {
+			addTexture(t, true);
+		}
 
-			if (mIsQueued) return;
-			mIsQueued = true;
-			mGlRoot.addOnGLIdleListener(this);
+		public void addTexture(final TiledTexture t, final boolean isCurrent) {
+			if (t.isReady()) return;
+			final TextureQueue queue = isCurrent ? mCurrent : mNeighbours;
+			synchronized (queue) {
+				queue.mTextures.addLast(t);
+			}
+			mGlRoot.getUploadScheduler().schedule(queue,
+					isCurrent ? UploadScheduler.PRIORITY_SCREEN_NAIL : UploadScheduler.PRIORITY_NEIGHBOUR);
 		}
 
-		public synchronized void clear() {
-			mTextures.clear();
+		public void clear() {
+			mCurrent.clear();
+			mNeighbours.clear();
 		}
 
-		@Override
-		public boolean onGLIdle(final GLCanvas canvas, final boolean renderRequested) {
-			final ArrayDeque<TiledTexture> deque = mTextures;
-			synchronized (this) {
-				long now = SystemClock.uptimeMillis();
-				final long dueTime = now + UPLOAD_TILE_LIMIT;
-				while (now < dueTime && !deque.isEmpty()) {
-					final TiledTexture t = deque.peekFirst();
-					if (t.uploadNextTile(canvas)) {
-						deque.removeFirst();
-						mGlRoot.requestRender();
-					}
-					now = SystemClock.uptimeMillis();
-				}
-				mIsQueued = !mTextures.isEmpty();
+		private class TextureQueue implements UploadScheduler.Uploader {
+			final ArrayDeque<TiledTexture> mTextures = new ArrayDeque<TiledTexture>(INIT_CAPACITY);
 
-				// return true to keep this listener in the queue
-				return mIsQueued;
+			public synchronized void clear() {
+				mTextures.clear();
+			}
+
+			@Override
+			public synchronized boolean uploadOne(final GLCanvas canvas) {
+				final TiledTexture t = mTextures.peekFirst();
+				if (t == null) return false;
+				if (t.uploadNextTile(canvas)) {
+					mTextures.removeFirst();
+					mGlRoot.requestRender();
+				}
+				return true;
 			}
 		}
 	}
 
-	private static class Tile extends UploadedTexture {
-		public int offsetX;
-		public int offsetY;
-		public Bitmap bitmap;
-		public Tile nextFreeTile;
-		public int contentWidth;
-		public int contentHeight;
+	// A texture holding cols x rows tiles. Like the UploadedTexture the tiles
+	// used to be, it is drawn without blending unless the alpha asks for it.
+	private static class Page extends BasicTexture {
+		private static final int[] sTextureId = new int[1];
+		private static final float[] sCropRect = new float[4];
+
+		public final int cols;
+		public final int rows;
+		public Page nextFreePage;
+
+		public Page(final int cols, final int rows) {
+			this.cols = cols;
+			this.rows = rows;
+			setSize(cols * TILE_SIZE, rows * TILE_SIZE);
+		}
 
 		@Override
-		public void setSize(final int width, final int height) {
-			contentWidth = width;
-			contentHeight = height;
-			mWidth = width + 2 * BORDER_SIZE;
-			mHeight = height + 2 * BORDER_SIZE;
-			mTextureWidth = TILE_SIZE;
-			mTextureHeight = TILE_SIZE;
+		public boolean isOpaque() {
+			return true;
+		}
+
+		// Uploads sUploadBitmap to the slot at (x, y), defining the storage
+		// of the page first if needed.
+		public void uploadSlot(final GLCanvas canvas, final int x, final int y) {
+			final GL11 gl = canvas.getGLInstance();
+			if (!isLoaded()) {
+				sCropRect[0] = 0;
+				sCropRect[1] = mHeight;
+				sCropRect[2] = mWidth;
+				sCropRect[3] = -mHeight;
+
+				GLId.glGenTextures(1, sTextureId, 0);
+				gl.glBindTexture(GL11.GL_TEXTURE_2D, sTextureId[0]);
+				gl.glTexParameterfv(GL11.GL_TEXTURE_2D, GL11Ext.GL_TEXTURE_CROP_RECT_OES, sCropRect, 0);
+				gl.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL11.GL_CLAMP_TO_EDGE);
+				gl.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL11.GL_CLAMP_TO_EDGE);
+				gl.glTexParameterf(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
+				gl.glTexParameterf(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
+				gl.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA, getTextureWidth(), getTextureHeight(), 0,
+						GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, null);
+
+				mId = sTextureId[0];
+				mState = STATE_LOADED;
+				setAssociatedCanvas(canvas);
+			} else {
+				gl.glBindTexture(GL11.GL_TEXTURE_2D, mId);
+			}
+			GLUtils.texSubImage2D(GL11.GL_TEXTURE_2D, 0, x, y, sUploadBitmap);
 		}
 
 		@Override
-		protected void onFreeBitmap(final Bitmap bitmap) {
-			// do nothing
+		public void yield() {
+			// we cannot free the texture because we have no backup.
 		}
 
 		@Override
-		protected Bitmap onGetBitmap() {
-			final int x = BORDER_SIZE - offsetX;
-			final int y = BORDER_SIZE - offsetY;
-			final int r = bitmap.getWidth() + x;
-			final int b = bitmap.getHeight() + y;
-			sCanvas.drawBitmap(bitmap, x, y, sBitmapPaint);
-			bitmap = null;
-
-			// draw borders if need
-			if (x > 0) {
-				sCanvas.drawLine(x - 1, 0, x - 1, TILE_SIZE, sPaint);
-			}
-			if (y > 0) {
-				sCanvas.drawLine(0, y - 1, TILE_SIZE, y - 1, sPaint);
-			}
-			if (r < CONTENT_SIZE) {
-				sCanvas.drawLine(r, 0, r, TILE_SIZE, sPaint);
-			}
-			if (b < CONTENT_SIZE) {
-				sCanvas.drawLine(0, b, TILE_SIZE, b, sPaint);
-			}
+		protected int getTarget() {
+			return GL11.GL_TEXTURE_2D;
+		}
 
-			return sUploadBitmap;
+		@Override
+		protected boolean onBind(final GLCanvas canvas) {
+			return isLoaded();
 		}
 	}
+
+	private static class Tile {
+		public Page page;
+		// The origin of the tile's slot in the page.
+		public int slotX;
+		public int slotY;
+		// The origin of the tile's content in the bitmap.
+		public int offsetX;
+		public int offsetY;
+		public int contentWidth;
+		public int contentHeight;
+	}
 }
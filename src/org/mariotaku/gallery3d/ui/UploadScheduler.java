@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.ui;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import org.mariotaku.gallery3d.ui.GLRoot.OnGLIdleListener;
+
+// UploadScheduler spreads texture uploads over frames. The tiles of
+// TileImageView, the tiles of TiledTextures and the throttled UploadedTextures
+// uploaded while rendering all draw from the same per-frame budget.
+//
+// The budget is what is left of a 60fps frame interval after rendering, as
+// measured over the last frames, clamped to [MIN_BUDGET, MAX_BUDGET]. When no
+// frame is pending (the view is idle) uploads may use IDLE_BUDGET instead so
+// they catch up faster. Work is done in order of priority class; within a
+// class, uploaders take turns.
+//
+// Except for schedule(), cancel() and setFrameStatistics(), methods must be
+// called on the GL thread.
+public class UploadScheduler implements OnGLIdleListener {
+	public static final int PRIORITY_VISIBLE = 0;
+	public static final int PRIORITY_SCREEN_NAIL = 1;
+	public static final int PRIORITY_NEIGHBOUR = 2;
+	public static final int PRIORITY_BACKGROUND = 3;
+	private static final int PRIORITY_COUNT = 4;
+
+	private static final long FRAME_INTERVAL = 16666667; // ns
+	// Leave some room for the compositor and for jitter in render time.
+	private static final long FRAME_MARGIN = 2000000; // ns
+	private static final long MIN_BUDGET = 2000000; // ns
+	private static final long MAX_BUDGET = 8000000; // ns
+	private static final long IDLE_BUDGET = 12000000; // ns
+	private static final float SMOOTHING = 0.2f;
+
+	private final GLRoot mGLRoot;
+	private final ArrayList<ArrayDeque<Uploader>> mQueues = new ArrayList<ArrayDeque<Uploader>>(PRIORITY_COUNT);
+	private boolean mIsQueued;
+	private volatile FrameStatistics mFrameStatistics;
+
+	private long mAverageRenderTime = -1;
+	private long mBudget = MAX_BUDGET;
+	private long mFrameStartTime;
+	private int mFrameUploadCount;
+	private boolean mInFrame;
+
+	public UploadScheduler(final GLRoot root) {
+		mGLRoot = root;
+		for (int i = 0; i < PRIORITY_COUNT; i++) {
+			mQueues.add(new ArrayDeque<Uploader>());
+		}
+	}
+
+	// Returns true if an upload made while rendering the current frame still
+	// fits in the budget. The first one in every frame is always allowed, so
+	// rendering makes progress however slow the device is.
+	public boolean canUploadInFrame() {
+		if (!mInFrame) return true;
+		if (mFrameUploadCount++ == 0) return true;
+		return System.nanoTime() - mFrameStartTime < mBudget;
+	}
+
+	public synchronized void cancel(final Uploader uploader) {
+		for (int i = 0; i < PRIORITY_COUNT; i++) {
+			mQueues.get(i).remove(uploader);
+		}
+	}
+
+	// Returns the current per-frame upload budget in nanoseconds.
+	public long getFrameBudget() {
+		return mBudget;
+	}
+
+	// Uploaders are called without the lock held, so that they may take
+	// their own locks, and schedule() is not held up by uploads.
+	@Override
+	public boolean onGLIdle(final GLCanvas canvas, final boolean renderRequested) {
+		final long dueTime = System.nanoTime() + (renderRequested ? mBudget : IDLE_BUDGET);
+		final FrameStatistics stats = mFrameStatistics;
+		while (System.nanoTime() < dueTime) {
+			final Uploader uploader;
+			final int priority;
+			synchronized (this) {
+				priority = nextPriority();
+				if (priority < 0) return keepQueued();
+				uploader = mQueues.get(priority).removeFirst();
+			}
+			final long startTime = stats != null ? System.nanoTime() : 0;
+			final boolean hasMore = uploader.uploadOne(canvas);
+			if (stats != null) {
+				stats.recordUpload(priority, System.nanoTime() - startTime);
+			}
+			if (hasMore) {
+				synchronized (this) {
+					final ArrayDeque<Uploader> queue = mQueues.get(priority);
+					if (!queue.contains(uploader)) {
+						queue.addLast(uploader);
+					}
+				}
+			}
+		}
+		synchronized (this) {
+			return keepQueued();
+		}
+	}
+
+	// Called by GLRootView after the content has been rendered.
+	public void onFrameEnd() {
+		mInFrame = false;
+		final long renderTime = System.nanoTime() - mFrameStartTime;
+		mAverageRenderTime = mAverageRenderTime < 0 ? renderTime : mAverageRenderTime
+				+ (long) (SMOOTHING * (renderTime - mAverageRenderTime));
+		mBudget = Math.max(MIN_BUDGET, Math.min(MAX_BUDGET, FRAME_INTERVAL - FRAME_MARGIN - mAverageRenderTime));
+	}
+
+	// Called by GLRootView before the content is rendered.
+	public void onFrameStart() {
+		mInFrame = true;
+		mFrameStartTime = System.nanoTime();
+		mFrameUploadCount = 0;
+	}
+
+	// Called after an upload allowed by canUploadInFrame(), which started at
+	// startTime.
+	public void recordUploadInFrame(final long startTime) {
+		final FrameStatistics stats = mFrameStatistics;
+		if (stats != null) {
+			stats.recordUpload(FrameStatistics.UPLOAD_SOURCE_IN_FRAME, System.nanoTime() - startTime);
+		}
+	}
+
+	// Upload work, in idle time and in frames, is reported to stats if it is
+	// not null.
+	public void setFrameStatistics(final FrameStatistics stats) {
+		mFrameStatistics = stats;
+	}
+
+	// Queues the uploader in the given priority class. It is called on the GL
+	// thread until it reports that it has nothing left to upload.
+	public synchronized void schedule(final Uploader uploader, final int priority) {
+		final ArrayDeque<Uploader> queue = mQueues.get(priority);
+		if (!queue.contains(uploader)) {
+			queue.addLast(uploader);
+		}
+		if (mIsQueued) return;
+		mIsQueued = true;
+		mGLRoot.addOnGLIdleListener(this);
+	}
+
+	// Called with the lock held.
+	private boolean keepQueued() {
+		for (int i = 0; i < PRIORITY_COUNT; i++) {
+			if (!mQueues.get(i).isEmpty()) return true;
+		}
+		mIsQueued = false;
+		return false;
+	}
+
+	// Returns the highest priority class with work queued, or -1. Called with
+	// the lock held.
+	private int nextPriority() {
+		for (int i = 0; i < PRIORITY_COUNT; i++) {
+			if (!mQueues.get(i).isEmpty()) return i;
+		}
+		return -1;
+	}
+
+	public static interface Uploader {
+		// Uploads the next piece of work, typically one tile. Returns false if
+		// there was nothing left to upload.
+		public boolean uploadOne(GLCanvas canvas);
+	}
+}
@@ -16,11 +16,13 @@
 
 package org.mariotaku.gallery3d.ui;
 
-import java.util.HashMap;
+import java.nio.Buffer;
 
 import javax.microedition.khronos.opengles.GL11;
 import javax.microedition.khronos.opengles.GL11Ext;
 
+import org.mariotaku.gallery3d.common.ETC1Encoder;
+import org.mariotaku.gallery3d.common.LongSparseArray;
 import org.mariotaku.gallery3d.common.Utils;
 
 import android.graphics.Bitmap;
@@ -46,8 +48,8 @@ abstract class UploadedTexture extends BasicTexture {
 	// To prevent keeping allocation the borders, we store those used borders
 	// here.
 	// Since the length will be power of two, it won't use too much memory.
-	private static HashMap<BorderKey, Bitmap> sBorderLines = new HashMap<BorderKey, Bitmap>();
-	private static BorderKey sBorderKey = new BorderKey();
+	// The key packs the length, config and orientation, see getBorderKey().
+	private static LongSparseArray<Bitmap> sBorderLines = new LongSparseArray<Bitmap>();
 
 	@SuppressWarnings("unused")
 	private static final String TAG = "Texture";
@@ -57,11 +59,20 @@ abstract class UploadedTexture extends BasicTexture {
 	private boolean mIsUploading = false;
 	private boolean mOpaque = true;
 	private boolean mThrottled = false;
-	private static int sUploadedCount;
-	private static final int UPLOAD_LIMIT = 100;
+	// Throttled textures are uploaded while rendering only as long as the
+	// frame's upload budget lasts.
+	private static UploadScheduler sUploadScheduler;
+	private static boolean sUploadLimitReached;
+	// Set by GLRootView when the GL context supports ETC1 textures.
+	private static volatile boolean sETC1Supported;
 
 	protected Bitmap mBitmap;
 	private int mBorder;
+	// The format and type the storage of the texture was last defined with.
+	// A tile texture may receive content of another format, for example an
+	// ETC1 tile after an RGB_565 one.
+	private int mFormat;
+	private int mType;
 
 	static int[] sTextureId = new int[1];
 
@@ -107,6 +118,31 @@ abstract class UploadedTexture extends BasicTexture {
 		return mOpaque;
 	}
 
+	// Whether the content on GPU is ETC1 compressed.
+	public boolean isCompressed() {
+		return mFormat == ETC1Encoder.ETC1_RGB8_OES;
+	}
+
+	// Returns the bytes taken by the texture on the GPU, or 0 if it is not
+	// loaded.
+	public int getStorageSize() {
+		if (!isLoaded()) return 0;
+		if (isCompressed()) return ETC1Encoder.getEncodedSize(getTextureWidth(), getTextureHeight());
+		final int pixels = getTextureWidth() * getTextureHeight();
+		// The packed 16-bit types, such as RGB_565.
+		if (mType != GL11.GL_UNSIGNED_BYTE) return pixels * 2;
+		switch (mFormat) {
+			case GL11.GL_RGBA:
+				return pixels * 4;
+			case GL11.GL_RGB:
+				return pixels * 3;
+			case GL11.GL_LUMINANCE_ALPHA:
+				return pixels * 2;
+			default:
+				return pixels;
+		}
+	}
+
 	public boolean isUploading() {
 		return mIsUploading;
 	}
@@ -130,13 +166,26 @@ abstract class UploadedTexture extends BasicTexture {
 	 */
 	public void updateContent(final GLCanvas canvas) {
 		if (!isLoaded()) {
-			if (mThrottled && ++sUploadedCount > UPLOAD_LIMIT) return;
-			uploadToCanvas(canvas);
+			if (mThrottled && sUploadScheduler != null && !sUploadScheduler.canUploadInFrame()) {
+				sUploadLimitReached = true;
+				return;
+			}
+			if (!uploadCompressed(canvas)) {
+				uploadToCanvas(canvas);
+			}
 		} else if (!mContentValid) {
+			if (uploadCompressed(canvas)) return;
 			final Bitmap bitmap = getBitmap();
 			final int format = GLUtils.getInternalFormat(bitmap);
 			final int type = GLUtils.getType(bitmap);
 			canvas.getGLInstance().glBindTexture(GL11.GL_TEXTURE_2D, mId);
+			if (format != mFormat || type != mType) {
+				// Define the storage again for the new format.
+				canvas.getGLInstance().glTexImage2D(GL11.GL_TEXTURE_2D, 0, format, getTextureWidth(),
+						getTextureHeight(), 0, format, type, null);
+				mFormat = format;
+				mType = type;
+			}
 			GLUtils.texSubImage2D(GL11.GL_TEXTURE_2D, 0, mBorder, mBorder, bitmap, format, type);
 			freeBitmap();
 			mContentValid = true;
@@ -167,6 +216,14 @@ abstract class UploadedTexture extends BasicTexture {
 
 	protected abstract Bitmap onGetBitmap();
 
+	// Returns the content compressed to ETC1, covering the whole texture, or
+	// null to upload the bitmap from onGetBitmap() instead. A subclass that
+	// returns data must have set the size of the texture. The data is only
+	// read before updateContent() returns.
+	protected Buffer onGetCompressedContent() {
+		return null;
+	}
+
 	protected void setIsUploading(final boolean uploading) {
 		mIsUploading = uploading;
 	}
@@ -181,6 +238,36 @@ abstract class UploadedTexture extends BasicTexture {
 		mBitmap = null;
 	}
 
+	private boolean uploadCompressed(final GLCanvas canvas) {
+		final Buffer data = onGetCompressedContent();
+		if (data == null) return false;
+		final GL11 gl = canvas.getGLInstance();
+		if (!isLoaded()) {
+			sCropRect[0] = mBorder;
+			sCropRect[1] = mBorder + mHeight;
+			sCropRect[2] = mWidth;
+			sCropRect[3] = -mHeight;
+			GLId.glGenTextures(1, sTextureId, 0);
+			gl.glBindTexture(GL11.GL_TEXTURE_2D, sTextureId[0]);
+			gl.glTexParameterfv(GL11.GL_TEXTURE_2D, GL11Ext.GL_TEXTURE_CROP_RECT_OES, sCropRect, 0);
+			gl.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL11.GL_CLAMP_TO_EDGE);
+			gl.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL11.GL_CLAMP_TO_EDGE);
+			gl.glTexParameterf(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
+			gl.glTexParameterf(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
+			setAssociatedCanvas(canvas);
+			mId = sTextureId[0];
+			mState = STATE_LOADED;
+		} else {
+			gl.glBindTexture(GL11.GL_TEXTURE_2D, mId);
+		}
+		gl.glCompressedTexImage2D(GL11.GL_TEXTURE_2D, 0, ETC1Encoder.ETC1_RGB8_OES, getTextureWidth(),
+				getTextureHeight(), 0, data.remaining(), data);
+		mFormat = ETC1Encoder.ETC1_RGB8_OES;
+		mType = 0;
+		mContentValid = true;
+		return true;
+	}
+
 	private Bitmap getBitmap() {
 		if (mBitmap == null) {
 			mBitmap = onGetBitmap();
@@ -207,6 +294,8 @@ abstract class UploadedTexture extends BasicTexture {
 				final int texHeight = getTextureHeight();
 
 				Utils.assertTrue(bWidth <= texWidth && bHeight <= texHeight);
+				mFormat = GLUtils.getInternalFormat(bitmap);
+				mType = GLUtils.getType(bitmap);
 
 				// Define a vertically flipped crop rectangle for
 				// OES_draw_texture.
@@ -272,52 +361,35 @@ abstract class UploadedTexture extends BasicTexture {
 		}
 	}
 
-	public static void resetUploadLimit() {
-		sUploadedCount = 0;
+	public static boolean isETC1Supported() {
+		return sETC1Supported;
+	}
+
+	public static void setETC1Supported(final boolean supported) {
+		sETC1Supported = supported;
+	}
+
+	public static void resetUploadLimit(final UploadScheduler scheduler) {
+		sUploadScheduler = scheduler;
+		sUploadLimitReached = false;
 	}
 
 	public static boolean uploadLimitReached() {
-		return sUploadedCount > UPLOAD_LIMIT;
+		return sUploadLimitReached;
 	}
 
-	private static Bitmap getBorderLine(final boolean vertical, final Config config, final int length) {
-		final BorderKey key = sBorderKey;
-		key.vertical = vertical;
-		key.config = config;
-		key.length = length;
+	// Package private for the allocation test.
+	static Bitmap getBorderLine(final boolean vertical, final Config config, final int length) {
+		final long key = getBorderKey(vertical, config, length);
 		Bitmap bitmap = sBorderLines.get(key);
 		if (bitmap == null) {
 			bitmap = vertical ? Bitmap.createBitmap(1, length, config) : Bitmap.createBitmap(length, 1, config);
-			sBorderLines.put(key.clone(), bitmap);
+			sBorderLines.put(key, bitmap);
 		}
 		return bitmap;
 	}
 
-	private static class BorderKey implements Cloneable {
-		public boolean vertical;
-		public Config config;
-		public int length;
-
-		@Override
-		public BorderKey clone() {
-			try {
-				return (BorderKey) super.clone();
-			} catch (final CloneNotSupportedException e) {
-				throw new AssertionError(e);
-			}
-		}
-
-		@Override
-		public boolean equals(final Object object) {
-			if (!(object instanceof BorderKey)) return false;
-			final BorderKey o = (BorderKey) object;
-			return vertical == o.vertical && config == o.config && length == o.length;
-		}
-
-		@Override
-		public int hashCode() {
-			final int x = config.hashCode() ^ length;
-			return vertical ? x : -x;
-		}
+	private static long getBorderKey(final boolean vertical, final Config config, final int length) {
+		return (long) length << 8 | config.ordinal() << 1 | (vertical ? 1 : 0);
 	}
 }
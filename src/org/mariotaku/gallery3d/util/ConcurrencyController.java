@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.util;
+
+import org.mariotaku.gallery3d.common.Utils;
+
+// ConcurrencyController decides how many jobs of one resource type of the
+// ThreadPool may run at once, by additive increase and multiplicative
+// decrease on what the jobs achieve.
+//
+// Every job reports how long it held the resource. Once a window of reports
+// is in, we compare the average time against the best window seen lately:
+// if it grew by more than LATENCY_TOLERANCE, the jobs are slowing each other
+// down (memory bandwidth, GC, thermal throttling, a congested link) and the
+// limit is cut by DECREASE. Otherwise, if jobs had to wait for the resource,
+// the limit grows by one. The step is taken back unless the throughput of the
+// next window grows by at least MIN_GAIN of what one more job would add if it
+// ran without slowing the others down: once the resource is busy, more jobs
+// only queue inside it.
+//
+// Times are passed in rather than read from a clock, so the controller can be
+// driven by a simulation as well.
+class ConcurrencyController {
+	private static final float LATENCY_TOLERANCE = 0.5f;
+	private static final float DECREASE = 0.75f;
+	// How much the best latency is let go of every window, so that a change
+	// in the kind of jobs is eventually taken as the new normal.
+	private static final float BASELINE_DECAY = 1.02f;
+	private static final float MIN_GAIN = 0.5f;
+	private static final int MIN_WINDOW = 4;
+
+	private final int mMinLimit;
+	private final int mMaxLimit;
+	private int mLimit;
+
+	private long mWindowStart = -1;
+	private int mWindowCount;
+	private long mWindowLatency;
+	private boolean mWindowSaturated;
+
+	private float mBaseLatency;
+	private float mLastThroughput;
+	private boolean mJustIncreased;
+
+	public ConcurrencyController(final int initialLimit, final int minLimit, final int maxLimit) {
+		mMinLimit = minLimit;
+		mMaxLimit = Math.max(minLimit, maxLimit);
+		mLimit = Utils.clamp(initialLimit, mMinLimit, mMaxLimit);
+	}
+
+	public synchronized int getLimit() {
+		return mLimit;
+	}
+
+	// Reports a job which held the resource for latency ns until now. The
+	// resource is saturated if other jobs were waiting for it when this one
+	// released it. Returns true if the limit changed.
+	public synchronized boolean onSample(final long now, final long latency, final boolean saturated) {
+		if (mWindowStart < 0) {
+			mWindowStart = now - latency;
+		}
+		mWindowCount++;
+		mWindowLatency += latency;
+		mWindowSaturated |= saturated;
+		if (mWindowCount < Math.max(MIN_WINDOW, mLimit * 2)) return false;
+
+		final float latencyAverage = (float) mWindowLatency / mWindowCount;
+		final float throughput = mWindowCount / (float) Math.max(1, now - mWindowStart);
+		final boolean saturatedWindow = mWindowSaturated;
+		mWindowStart = now;
+		mWindowCount = 0;
+		mWindowLatency = 0;
+		mWindowSaturated = false;
+
+		final int oldLimit = mLimit;
+		if (mBaseLatency <= 0 || latencyAverage < mBaseLatency) {
+			mBaseLatency = latencyAverage;
+		} else {
+			mBaseLatency *= BASELINE_DECAY;
+		}
+		if (latencyAverage > mBaseLatency * (1 + LATENCY_TOLERANCE)) {
+			mLimit = Math.max(mMinLimit, (int) (mLimit * DECREASE));
+			mJustIncreased = false;
+		} else if (mJustIncreased && throughput < mLastThroughput * (1 + MIN_GAIN / (mLimit - 1))) {
+			mLimit = Math.max(mMinLimit, mLimit - 1);
+			mJustIncreased = false;
+		} else if (saturatedWindow && mLimit < mMaxLimit) {
+			mLimit++;
+			mJustIncreased = true;
+		} else {
+			mJustIncreased = false;
+		}
+		mLastThroughput = throughput;
+		return mLimit != oldLimit;
+	}
+}
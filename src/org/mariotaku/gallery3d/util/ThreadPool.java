@@ -18,18 +18,29 @@ package org.mariotaku.gallery3d.util;
 
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.mariotaku.gallery3d.common.Utils;
+
 import android.util.Log;
 
 public class ThreadPool {
 	@SuppressWarnings("unused")
 	private static final String TAG = "ThreadPool";
-	private static final int CORE_POOL_SIZE = 4;
-	private static final int MAX_POOL_SIZE = 8;
 	private static final int KEEP_ALIVE_TIME = 10; // 10 seconds
 
+	// The number of CPU and network jobs which may run at once starts from
+	// the old fixed value and is adjusted by a ConcurrencyController, up to
+	// the number of cores for CPU jobs.
+	private static final int INITIAL_CONCURRENCY = 2;
+	private static final int MAX_CPU_CONCURRENCY = 8;
+	private static final int MAX_NETWORK_CONCURRENCY = 4;
+	// Threads left for the jobs doing disk I/O or waiting for a stream in
+	// MODE_NONE, besides those the limits may take.
+	private static final int IO_THREADS = 2;
+
 	// Resource type
 	public static final int MODE_NONE = 0;
 	public static final int MODE_CPU = 1;
@@ -37,19 +48,34 @@ public class ThreadPool {
 
 	public static final JobContext JOB_CONTEXT_STUB = new JobContextStub();
 
-	ResourceCounter mCpuCounter = new ResourceCounter(2);
-	ResourceCounter mNetworkCounter = new ResourceCounter(2);
+	final ResourceCounter mCpuCounter;
+	final ResourceCounter mNetworkCounter;
 
 	private final Executor mExecutor;
+	private final Executor mLongRunningExecutor;
 
 	public ThreadPool() {
-		this(CORE_POOL_SIZE, MAX_POOL_SIZE);
+		this(getMaxCpuConcurrency() + MAX_NETWORK_CONCURRENCY + IO_THREADS);
 	}
 
-	public ThreadPool(final int initPoolSize, final int maxPoolSize) {
-		mExecutor = new ThreadPoolExecutor(initPoolSize, maxPoolSize, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+	// With an unbounded queue the pool never grows past its core size, so it
+	// has a fixed number of threads. A job holds its thread while it waits
+	// for a resource and while it runs in MODE_NONE, so the limits are capped
+	// at what the pool can run at once, leaving IO_THREADS for the rest.
+	// Jobs which never end on their own use submitLongRunning() instead.
+	public ThreadPool(final int poolSize) {
+		final int maxCpu = Utils.clamp(poolSize - MAX_NETWORK_CONCURRENCY - IO_THREADS, 1, getMaxCpuConcurrency());
+		final int maxNetwork = Utils.clamp(poolSize - maxCpu - IO_THREADS, 1, MAX_NETWORK_CONCURRENCY);
+		mCpuCounter = new ResourceCounter(new ConcurrencyController(Math.min(INITIAL_CONCURRENCY, maxCpu), 1,
+				maxCpu));
+		mNetworkCounter = new ResourceCounter(new ConcurrencyController(
+				Math.min(INITIAL_CONCURRENCY, maxNetwork), 1, maxNetwork));
+		mExecutor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
 				new LinkedBlockingQueue<Runnable>(), new PriorityThreadFactory("thread-pool",
 						android.os.Process.THREAD_PRIORITY_BACKGROUND));
+		mLongRunningExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new PriorityThreadFactory("thread-pool-long",
+						android.os.Process.THREAD_PRIORITY_BACKGROUND));
 	}
 
 	public <T> Future<T> submit(final Job<T> job) {
@@ -64,6 +90,20 @@ public class ThreadPool {
 		return w;
 	}
 
+	// Submits a job which runs until it is cancelled, waiting for work in
+	// MODE_NONE most of the time, such as a decoder thread. It gets a thread
+	// of its own rather than one of the pool's, and takes a resource with
+	// setMode() only while it has work.
+	public <T> Future<T> submitLongRunning(final Job<T> job) {
+		final Worker<T> w = new Worker<T>(job, null);
+		mLongRunningExecutor.execute(w);
+		return w;
+	}
+
+	private static int getMaxCpuConcurrency() {
+		return Math.min(Runtime.getRuntime().availableProcessors(), MAX_CPU_CONCURRENCY);
+	}
+
 	public interface CancelListener {
 		public void onCancel();
 	}
@@ -97,11 +137,15 @@ public class ThreadPool {
 		}
 	}
 
+	// Counts the jobs holding and waiting for a resource. The number which
+	// may hold it is given by the controller.
 	private static class ResourceCounter {
-		public int value;
+		public final ConcurrencyController controller;
+		public int inUse;
+		public int waiting;
 
-		public ResourceCounter(final int v) {
-			value = v;
+		public ResourceCounter(final ConcurrencyController controller) {
+			this.controller = controller;
 		}
 	}
 
@@ -115,6 +159,8 @@ public class ThreadPool {
 		private boolean mIsDone;
 		private T mResult;
 		private int mMode;
+		// When the resource of mMode was acquired, in ns.
+		private long mAcquireTime;
 
 		public Worker(final Job<T> job, final FutureListener<T> listener) {
 			mJob = job;
@@ -230,14 +276,17 @@ public class ThreadPool {
 				}
 
 				synchronized (counter) {
-					if (counter.value > 0) {
-						counter.value--;
+					if (counter.inUse < counter.controller.getLimit()) {
+						counter.inUse++;
 						break;
 					} else {
+						counter.waiting++;
 						try {
 							counter.wait();
 						} catch (final InterruptedException ex) {
 							// ignore.
+						} finally {
+							counter.waiting--;
 						}
 					}
 				}
@@ -246,6 +295,7 @@ public class ThreadPool {
 			synchronized (this) {
 				mWaitOnResource = null;
 			}
+			mAcquireTime = System.nanoTime();
 
 			return true;
 		}
@@ -260,8 +310,13 @@ public class ThreadPool {
 		}
 
 		private void releaseResource(final ResourceCounter counter) {
+			final long now = System.nanoTime();
 			synchronized (counter) {
-				counter.value++;
+				// Only jobs actually waiting are demand for a higher limit.
+				// Merely using every unit of it says nothing about whether
+				// one more would be used.
+				counter.inUse--;
+				counter.controller.onSample(now, now - mAcquireTime, counter.waiting > 0);
 				counter.notifyAll();
 			}
 		}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.app;
+
+import org.mariotaku.gallery3d.data.ThroughputEstimator;
+
+import junit.framework.TestCase;
+
+// Checks the order PrefetchController gives PhotoDataAdapter, and how much of
+// the budget it spends, for a few links and albums. A fetch is written as
+// its offset followed by S for the screen nail or F for the full image.
+public class PrefetchControllerTest extends TestCase {
+	private static final int MAX_OFFSET = 3;
+	private static final int SN = PhotoDataAdapter.BIT_SCREEN_NAIL;
+	private static final int FULL = PhotoDataAdapter.BIT_FULL_IMAGE;
+
+	public void testClassicOrderWithoutEstimate() {
+		// Nothing downloaded yet, so there is no throughput to cost with.
+		final PrefetchController controller = new PrefetchController(new ThroughputEstimator(), MAX_OFFSET);
+		controller.update(new Sizes(PrefetchController.UNKNOWN_SIZE));
+		assertSequence(controller, "0S 1S -1S 2S -2S 3S -3S 0F 1F -1F");
+	}
+
+	public void testClassicOrderWhenEverythingFits() {
+		// 100 KB at 1 MB/s is 100 ms per neighbour, 600 ms in all.
+		final PrefetchController controller = new PrefetchController(link(1000), MAX_OFFSET);
+		controller.update(new Sizes(100 * 1000));
+		assertSequence(controller, "0S 1S -1S 2S -2S 3S -3S 0F 1F -1F");
+	}
+
+	public void testBudgetOnSlowLink() {
+		// At 100 KB/s: 1000 ms for the next pictures, 500 ms for the previous
+		// one, which goes first at its distance.
+		final Sizes sizes = new Sizes(100 * 1000);
+		sizes.set(-1, 50 * 1000);
+		final PrefetchController controller = new PrefetchController(link(100), MAX_OFFSET);
+		controller.update(sizes);
+		// -1 and 1 take 1500 ms, 2 brings it to 2500 ms, and -2 would exceed
+		// the 3000 ms budget.
+		assertSequence(controller, "0S 0F -1S 1S 2S 1F -1F");
+	}
+
+	public void testKnownSizesAreUsed() {
+		// Downloaded neighbours are free, so everything fits but the one
+		// unknown picture, costed at the average size of past downloads.
+		final Sizes sizes = new Sizes(0);
+		sizes.set(2, PrefetchController.UNKNOWN_SIZE);
+		final ThroughputEstimator estimator = link(100);
+		final PrefetchController controller = new PrefetchController(estimator, MAX_OFFSET);
+		controller.update(sizes);
+		assertSequence(controller, "0S 1S -1S 2S -2S 3S -3S 0F 1F -1F");
+
+		// A neighbour whose size is known is costed with it: 400 KB is 4 s,
+		// more than the budget, and prefetch stops at its distance.
+		sizes.set(2, 400 * 1000);
+		controller.update(sizes);
+		assertSequence(controller, "0S 0F 1S -1S -2S 1F -1F");
+	}
+
+	public void testMissingNeighbours() {
+		// The first picture of the album has no previous ones. Missing
+		// pictures are neither fetched nor taken first.
+		final Sizes sizes = new Sizes(150 * 1000);
+		sizes.set(-1, PrefetchController.NO_ITEM);
+		sizes.set(-2, PrefetchController.NO_ITEM);
+		sizes.set(-3, PrefetchController.NO_ITEM);
+		final PrefetchController slow = new PrefetchController(link(100), MAX_OFFSET);
+		slow.update(sizes);
+		assertSequence(slow, "0S 0F 1S 2S 1F");
+
+		final PrefetchController fast = new PrefetchController(link(1000), MAX_OFFSET);
+		fast.update(sizes);
+		assertSequence(fast, "0S 1S 2S 3S 0F 1F");
+	}
+
+	public void testPaused() {
+		final PrefetchController controller = new PrefetchController(link(1000), MAX_OFFSET);
+		controller.setPaused(true);
+		controller.update(new Sizes(100 * 1000));
+		assertSequence(controller, "0S 0F");
+
+		controller.setPaused(false);
+		controller.update(new Sizes(100 * 1000));
+		assertSequence(controller, "0S 1S -1S 2S -2S 3S -3S 0F 1F -1F");
+	}
+
+	private static void assertSequence(final PrefetchController controller, final String expected) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0, n = controller.getCount(); i < n; ++i) {
+			final PhotoDataAdapter.ImageFetch fetch = controller.getImageFetch(i);
+			if (i > 0) {
+				sb.append(' ');
+			}
+			sb.append(fetch.indexOffset).append(fetch.imageBit == SN ? 'S' : fetch.imageBit == FULL ? 'F' : '?');
+		}
+		assertEquals(expected, sb.toString());
+	}
+
+	// Returns an estimator which has seen downloads at the given throughput.
+	private static ThroughputEstimator link(final long bytesPerMillis) {
+		final ThroughputEstimator estimator = new ThroughputEstimator();
+		estimator.addSample(bytesPerMillis * 1000, 1000);
+		return estimator;
+	}
+
+	// The same size for every neighbour unless set otherwise, and no decode
+	// cost.
+	private static class Sizes implements PrefetchController.SizeEstimator {
+		private final long[] mBytes = new long[MAX_OFFSET * 2 + 1];
+
+		public Sizes(final long bytes) {
+			for (int i = 0; i < mBytes.length; ++i) {
+				mBytes[i] = bytes;
+			}
+		}
+
+		@Override
+		public long getEstimatedBytes(final int offset) {
+			return mBytes[offset + MAX_OFFSET];
+		}
+
+		@Override
+		public float getEstimatedDecodeMillis(final int offset) {
+			return 0;
+		}
+
+		public void set(final int offset, final long bytes) {
+			mBytes[offset + MAX_OFFSET] = bytes;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.common;
+
+import junit.framework.TestCase;
+
+public class BitmapUtilsTest extends TestCase {
+	private static final byte[] JPEG = { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 0x10, 'J', 'F',
+			'I', 'F', 0, 1, 1, 0, 0, 1 };
+	private static final byte[] PNG = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 0, 0, 0, 0x0d, 'I',
+			'H', 'D', 'R' };
+	private static final byte[] GIF = { 'G', 'I', 'F', '8', '9', 'a', 1, 0, 1, 0, 0, 0, 0, 0, 0, 0 };
+	private static final byte[] WEBP_LOSSY = webp('V', 'P', '8', ' ');
+	private static final byte[] WEBP_LOSSLESS = webp('V', 'P', '8', 'L');
+	// The extended format, which may carry an alpha chunk.
+	private static final byte[] WEBP_EXTENDED = webp('V', 'P', '8', 'X');
+
+	public void testGetMimeTypeFromHeader() {
+		assertEquals("image/jpeg", BitmapUtils.getMimeTypeFromHeader(JPEG, JPEG.length));
+		assertEquals("image/png", BitmapUtils.getMimeTypeFromHeader(PNG, PNG.length));
+		assertEquals("image/gif", BitmapUtils.getMimeTypeFromHeader(GIF, GIF.length));
+		assertEquals("image/webp", BitmapUtils.getMimeTypeFromHeader(WEBP_LOSSLESS, WEBP_LOSSLESS.length));
+		assertNull(BitmapUtils.getMimeTypeFromHeader(new byte[16], 16));
+		// Not enough bytes to tell.
+		assertNull(BitmapUtils.getMimeTypeFromHeader(WEBP_LOSSY, 8));
+	}
+
+	// Only the formats which cannot have an alpha channel are opaque; the
+	// others are decoded to ARGB_8888 whatever their content.
+	public void testIsOpaqueFromHeader() {
+		assertTrue(BitmapUtils.isOpaqueFromHeader(JPEG, JPEG.length));
+		assertTrue(BitmapUtils.isOpaqueFromHeader(JPEG, 3));
+		assertTrue(BitmapUtils.isOpaqueFromHeader(WEBP_LOSSY, WEBP_LOSSY.length));
+		assertFalse(BitmapUtils.isOpaqueFromHeader(WEBP_LOSSLESS, WEBP_LOSSLESS.length));
+		assertFalse(BitmapUtils.isOpaqueFromHeader(WEBP_EXTENDED, WEBP_EXTENDED.length));
+		assertFalse(BitmapUtils.isOpaqueFromHeader(PNG, PNG.length));
+		assertFalse(BitmapUtils.isOpaqueFromHeader(GIF, GIF.length));
+		assertFalse(BitmapUtils.isOpaqueFromHeader(new byte[16], 16));
+		// A lossy WebP is only known to be one with all 16 bytes.
+		assertFalse(BitmapUtils.isOpaqueFromHeader(WEBP_LOSSY, 15));
+		assertFalse(BitmapUtils.isOpaqueFromHeader(new byte[0], 0));
+	}
+
+	private static byte[] webp(final char a, final char b, final char c, final char d) {
+		return new byte[] { 'R', 'I', 'F', 'F', 0x24, 0, 0, 0, 'W', 'E', 'B', 'P', (byte) a, (byte) b, (byte) c,
+				(byte) d };
+	}
+}
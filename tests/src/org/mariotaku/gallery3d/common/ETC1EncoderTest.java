@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.common;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+// Encodes synthetic tiles with ETC1Encoder, decodes them back and checks the
+// error the encoder reports against the decoded pixels. Smooth content has to
+// stay above the PSNR TileImageView requires for compressed tiles, noise has
+// to fall below it.
+public class ETC1EncoderTest extends TestCase {
+	private static final int SIZE = 64;
+
+	// The same threshold as TileImageView.MIN_COMPRESSED_PSNR.
+	private static final double MIN_COMPRESSED_PSNR = 32;
+
+	public void testEncodedSize() {
+		assertTrue(ETC1Encoder.canEncode(4, 4));
+		assertFalse(ETC1Encoder.canEncode(6, 4));
+		assertFalse(ETC1Encoder.canEncode(0, 4));
+		assertEquals(SIZE * SIZE / 2, ETC1Encoder.getEncodedSize(SIZE, SIZE));
+
+		final ByteBuffer out = ByteBuffer.allocate(ETC1Encoder.getEncodedSize(SIZE, SIZE) + 3);
+		out.position(3);
+		new ETC1Encoder().encode(gradient(), SIZE, SIZE, out);
+		assertEquals(out.capacity(), out.position());
+	}
+
+	public void testRejectsBadArguments() {
+		final ETC1Encoder encoder = new ETC1Encoder();
+		try {
+			encoder.encode(new int[36], 6, 6, ByteBuffer.allocate(64));
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			encoder.encode(new int[SIZE * SIZE], SIZE, SIZE, ByteBuffer.allocate(16));
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testReportedErrorMatchesDecoded() {
+		final int[][] images = { flat(0xFF336699), gradient(), noise(new Random(1)) };
+		for (final int[] pixels : images) {
+			final ByteBuffer out = ByteBuffer.allocate(ETC1Encoder.getEncodedSize(SIZE, SIZE));
+			final long error = new ETC1Encoder().encode(pixels, SIZE, SIZE, out);
+			assertEquals(error, decodedError(pixels, out));
+		}
+	}
+
+	public void testFlatColorPSNR() {
+		final double psnr = getPSNR(flat(0xFF336699));
+		assertTrue("flat " + psnr, psnr > MIN_COMPRESSED_PSNR + 6);
+	}
+
+	public void testGradientPSNR() {
+		final double psnr = getPSNR(gradient());
+		assertTrue("gradient " + psnr, psnr > MIN_COMPRESSED_PSNR);
+	}
+
+	public void testNoisePSNR() {
+		final double psnr = getPSNR(noise(new Random(2)));
+		assertTrue("noise " + psnr, psnr < MIN_COMPRESSED_PSNR);
+	}
+
+	public void testPSNR() {
+		assertEquals(Double.POSITIVE_INFINITY, ETC1Encoder.getPSNR(0, 16), 0);
+		// An error of 1 in every channel.
+		assertEquals(10 * Math.log10(255 * 255), ETC1Encoder.getPSNR(48, 16), 1e-9);
+	}
+
+	private static long decodedError(final int[] pixels, final ByteBuffer encoded) {
+		encoded.rewind();
+		final int[] decoded = new int[pixels.length];
+		ETC1Encoder.decode(encoded, SIZE, SIZE, decoded);
+		long error = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			for (int shift = 0; shift < 24; shift += 8) {
+				final int d = (pixels[i] >> shift & 0xFF) - (decoded[i] >> shift & 0xFF);
+				error += d * d;
+			}
+		}
+		return error;
+	}
+
+	private static int[] flat(final int color) {
+		final int[] pixels = new int[SIZE * SIZE];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = color;
+		}
+		return pixels;
+	}
+
+	private static double getPSNR(final int[] pixels) {
+		final ByteBuffer out = ByteBuffer.allocate(ETC1Encoder.getEncodedSize(SIZE, SIZE));
+		new ETC1Encoder().encode(pixels, SIZE, SIZE, out);
+		return ETC1Encoder.getPSNR(decodedError(pixels, out), pixels.length);
+	}
+
+	// A smooth two-dimensional gradient, like a photo of the sky.
+	private static int[] gradient() {
+		final int[] pixels = new int[SIZE * SIZE];
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				final int r = 40 + x * 2;
+				final int g = 80 + y;
+				final int b = 200 - (x + y) / 2;
+				pixels[y * SIZE + x] = 0xFF000000 | r << 16 | g << 8 | b;
+			}
+		}
+		return pixels;
+	}
+
+	private static int[] noise(final Random random) {
+		final int[] pixels = new int[SIZE * SIZE];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.common;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+// Builds small GIFs by hand and checks how GifDecoder composes their frames:
+// offsets, transparency, the three disposal methods, interlacing, delays and
+// loop counts, and that broken or oversized files end the animation instead
+// of throwing.
+public class GifDecoderTest extends TestCase {
+	private static final int RED = 0xffff0000;
+	private static final int GREEN = 0xff00ff00;
+	private static final int BLUE = 0xff0000ff;
+
+	public void testBadHeader() {
+		assertNotGif(new byte[] { 'P', 'N', 'G' });
+		assertNotGif(new byte[13]);
+		final byte[] empty = new GifWriter(4, 4).toByteArray();
+		empty[6] = empty[7] = 0;
+		assertNotGif(empty);
+	}
+
+	public void testDisposal() throws IOException {
+		final GifWriter writer = new GifWriter(4, 4);
+		writer.addFrame(0, 0, 4, 4, GifWriter.DISPOSE_NONE, 5, -1, fill(16, 1));
+		// A green square with a transparent corner, cleared to the background
+		// once shown.
+		writer.addFrame(1, 1, 2, 2, GifWriter.DISPOSE_BACKGROUND, 1, 3, new byte[] { 3, 2, 2, 2 });
+		// A blue pixel, restored to what was under it once shown.
+		writer.addFrame(0, 0, 1, 1, GifWriter.DISPOSE_PREVIOUS, 0, -1, new byte[] { 3 });
+		writer.addFrame(3, 3, 1, 1, GifWriter.DISPOSE_NONE, 10, -1, new byte[] { 2 });
+		final GifDecoder decoder = new GifDecoder(writer.toByteArray());
+		assertEquals(4, decoder.getWidth());
+		assertEquals(4, decoder.getHeight());
+		assertEquals(4, decoder.countFrames());
+		assertEquals(1, decoder.getLoopCount());
+
+		assertEquals(50, decoder.nextFrame());
+		assertCanvas(decoder, "RRRR", "RRRR", "RRRR", "RRRR");
+		// Delays under 20ms are shown for 100ms, like browsers do.
+		assertEquals(100, decoder.nextFrame());
+		assertCanvas(decoder, "RRRR", "RRGR", "RGGR", "RRRR");
+		assertEquals(100, decoder.nextFrame());
+		assertCanvas(decoder, "BRRR", "R..R", "R..R", "RRRR");
+		assertEquals(100, decoder.nextFrame());
+		assertCanvas(decoder, "RRRR", "R..R", "R..R", "RRRG");
+		assertEquals(-1, decoder.nextFrame());
+		assertEquals(-1, decoder.nextFrame());
+
+		decoder.rewind();
+		assertEquals(50, decoder.nextFrame());
+		assertCanvas(decoder, "RRRR", "RRRR", "RRRR", "RRRR");
+	}
+
+	public void testInterlaced() throws IOException {
+		final int height = 11;
+		final byte[] pixels = new byte[height];
+		for (int y = 0; y < height; y++) {
+			pixels[y] = (byte) (y % 4);
+		}
+		final GifWriter writer = new GifWriter(1, height);
+		writer.addInterlacedFrame(pixels);
+		final GifDecoder decoder = new GifDecoder(writer.toByteArray());
+		assertTrue(decoder.nextFrame() > 0);
+		final int[] canvas = decoder.getPixels();
+		for (int y = 0; y < height; y++) {
+			assertEquals("row " + y, GifWriter.PALETTE[y % 4], canvas[y]);
+		}
+	}
+
+	public void testLoopCount() throws IOException {
+		final GifWriter writer = new GifWriter(2, 2);
+		writer.setLoopCount(3);
+		writer.addFrame(0, 0, 2, 2, GifWriter.DISPOSE_NONE, 5, -1, fill(4, 1));
+		writer.addFrame(0, 0, 2, 2, GifWriter.DISPOSE_NONE, 5, -1, fill(4, 2));
+		final GifDecoder decoder = new GifDecoder(writer.toByteArray());
+		assertEquals(2, decoder.countFrames());
+		assertTrue(decoder.nextFrame() > 0);
+		assertEquals(3, decoder.getLoopCount());
+	}
+
+	// A header may claim up to 65535 x 65535. The canvas is only allocated by
+	// the first frame, so callers can refuse the size before.
+	public void testOversizedCanvas() throws IOException {
+		final GifWriter writer = new GifWriter(65535, 65535);
+		writer.addFrame(0, 0, 1, 1, GifWriter.DISPOSE_NONE, 5, -1, new byte[] { 1 });
+		final GifDecoder decoder = new GifDecoder(writer.toByteArray());
+		assertEquals(65535, decoder.getWidth());
+		assertNull(decoder.getPixels());
+		assertEquals(-1, decoder.nextFrame());
+		assertNull(decoder.getPixels());
+	}
+
+	// A frame much larger than the canvas ends the animation.
+	public void testOversizedFrame() throws IOException {
+		final GifWriter writer = new GifWriter(2, 2);
+		writer.addFrame(0, 0, 2, 2, GifWriter.DISPOSE_NONE, 5, -1, fill(4, 1));
+		writer.addFrame(0, 0, 5, 5, GifWriter.DISPOSE_NONE, 5, -1, fill(25, 2));
+		final GifDecoder decoder = new GifDecoder(writer.toByteArray());
+		assertEquals(50, decoder.nextFrame());
+		assertEquals(-1, decoder.nextFrame());
+	}
+
+	public void testTruncated() throws IOException {
+		final GifWriter writer = new GifWriter(4, 4);
+		writer.addFrame(0, 0, 4, 4, GifWriter.DISPOSE_NONE, 5, -1, fill(16, 1));
+		writer.addFrame(0, 0, 4, 4, GifWriter.DISPOSE_NONE, 5, -1, fill(16, 2));
+		final byte[] data = writer.toByteArray();
+		// The header and the global color table.
+		final int headerLength = 13 + GifWriter.PALETTE.length * 3;
+		for (int length = 0; length < data.length; length++) {
+			final byte[] truncated = new byte[length];
+			System.arraycopy(data, 0, truncated, 0, length);
+			if (length < headerLength) {
+				assertNotGif(truncated);
+				continue;
+			}
+			final GifDecoder decoder = new GifDecoder(truncated);
+			assertTrue(decoder.countFrames() <= 2);
+			int frames = 0;
+			while (decoder.nextFrame() >= 0) {
+				frames++;
+				assertTrue("length " + length, frames <= 2);
+			}
+		}
+	}
+
+	private static void assertCanvas(final GifDecoder decoder, final String... rows) {
+		final int[] canvas = decoder.getPixels();
+		for (int y = 0; y < rows.length; y++) {
+			for (int x = 0; x < rows[y].length(); x++) {
+				final int expected;
+				switch (rows[y].charAt(x)) {
+					case 'R':
+						expected = RED;
+						break;
+					case 'G':
+						expected = GREEN;
+						break;
+					case 'B':
+						expected = BLUE;
+						break;
+					default:
+						expected = 0;
+						break;
+				}
+				assertEquals("(" + x + ", " + y + ")", Integer.toHexString(expected),
+						Integer.toHexString(canvas[y * rows[y].length() + x]));
+			}
+		}
+	}
+
+	private static void assertNotGif(final byte[] data) {
+		try {
+			new GifDecoder(data);
+			fail("decoded a bad header");
+		} catch (final IOException e) {
+			// Expected.
+		}
+	}
+
+	private static byte[] fill(final int count, final int index) {
+		final byte[] pixels = new byte[count];
+		for (int i = 0; i < count; i++) {
+			pixels[i] = (byte) index;
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.common;
+
+import java.io.ByteArrayOutputStream;
+
+// Writes GIF89a files for the tests, with the four colors of PALETTE. The
+// image data is LZW with a clear code before every other pixel, so the codes
+// stay 3 bits wide and the table never grows.
+public class GifWriter {
+	public static final int[] PALETTE = { 0xff000000, 0xffff0000, 0xff00ff00, 0xff0000ff };
+
+	public static final int DISPOSE_NONE = 1;
+	public static final int DISPOSE_BACKGROUND = 2;
+	public static final int DISPOSE_PREVIOUS = 3;
+
+	private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+	public GifWriter(final int width, final int height) {
+		writeBytes('G', 'I', 'F', '8', '9', 'a');
+		writeShort(width);
+		writeShort(height);
+		// A global table of 4 colors.
+		writeBytes(0x80 | 1, 0, 0);
+		for (final int color : PALETTE) {
+			writeBytes(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff);
+		}
+	}
+
+	public void addFrame(final int x, final int y, final int width, final int height, final int disposal,
+			final int delay, final int transparentIndex, final byte[] pixels) {
+		writeBytes(0x21, 0xF9, 4, disposal << 2 | (transparentIndex >= 0 ? 1 : 0));
+		writeShort(delay);
+		writeBytes(Math.max(0, transparentIndex), 0);
+		writeImage(x, y, width, height, false, pixels);
+	}
+
+	// Adds a frame one pixel wide, with its rows in interlaced order.
+	public void addInterlacedFrame(final byte[] column) {
+		final byte[] pixels = new byte[column.length];
+		int i = 0;
+		final int[][] passes = { { 0, 8 }, { 4, 8 }, { 2, 4 }, { 1, 2 } };
+		for (final int[] pass : passes) {
+			for (int y = pass[0]; y < column.length; y += pass[1]) {
+				pixels[i++] = column[y];
+			}
+		}
+		writeImage(0, 0, 1, column.length, true, pixels);
+	}
+
+	public void setLoopCount(final int count) {
+		writeBytes(0x21, 0xFF, 11, 'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0', 3, 1);
+		writeShort(count);
+		writeBytes(0);
+	}
+
+	public byte[] toByteArray() {
+		final byte[] body = mOut.toByteArray();
+		final byte[] data = new byte[body.length + 1];
+		System.arraycopy(body, 0, data, 0, body.length);
+		data[body.length] = 0x3B;
+		return data;
+	}
+
+	private void writeBytes(final int... bytes) {
+		for (final int b : bytes) {
+			mOut.write(b);
+		}
+	}
+
+	private void writeImage(final int x, final int y, final int width, final int height,
+			final boolean interlaced, final byte[] pixels) {
+		writeBytes(0x2C);
+		writeShort(x);
+		writeShort(y);
+		writeShort(width);
+		writeShort(height);
+		writeBytes(interlaced ? 0x40 : 0);
+		// The LZW minimum code size, with 4 the clear code and 5 the end.
+		writeBytes(2);
+		final ByteArrayOutputStream codes = new ByteArrayOutputStream();
+		int datum = 0, bits = 0;
+		for (int i = 0; i <= pixels.length; i++) {
+			final int[] group = i == pixels.length ? new int[] { 5 } : i % 2 == 0 ? new int[] { 4, pixels[i] }
+					: new int[] { pixels[i] };
+			for (final int code : group) {
+				datum |= code << bits;
+				bits += 3;
+				while (bits >= 8) {
+					codes.write(datum & 0xff);
+					datum >>= 8;
+					bits -= 8;
+				}
+			}
+		}
+		if (bits > 0) {
+			codes.write(datum & 0xff);
+		}
+		final byte[] data = codes.toByteArray();
+		for (int offset = 0; offset < data.length; offset += 255) {
+			final int size = Math.min(255, data.length - offset);
+			writeBytes(size);
+			mOut.write(data, offset, size);
+		}
+		writeBytes(0);
+	}
+
+	private void writeShort(final int value) {
+		writeBytes(value & 0xff, value >> 8 & 0xff);
+	}
+}
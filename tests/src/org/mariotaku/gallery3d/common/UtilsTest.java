@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+public class UtilsTest extends TestCase {
+	// The header of a lossy WebP, which is opaque only if all 16 bytes are
+	// seen.
+	private static final byte[] WEBP_HEADER = { 'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P', 'V', 'P', '8',
+			' ', 0, 0 };
+
+	public void testReadFullyShortReads() throws IOException {
+		final byte[] header = new byte[16];
+		assertEquals(16, Utils.readFully(new TrickleInputStream(WEBP_HEADER), header));
+		for (int i = 0; i < header.length; i++) {
+			assertEquals(WEBP_HEADER[i], header[i]);
+		}
+		assertTrue(BitmapUtils.isOpaqueFromHeader(header, 16));
+	}
+
+	public void testReadFullyEndOfStream() throws IOException {
+		final byte[] header = new byte[16];
+		assertEquals(3, Utils.readFully(new TrickleInputStream(new byte[] { 1, 2, 3 }), header));
+		assertEquals(0, Utils.readFully(new ByteArrayInputStream(new byte[0]), header));
+	}
+
+	// Returns a byte per read(), like a download that has just started.
+	private static class TrickleInputStream extends InputStream {
+		private final byte[] mData;
+		private int mPosition;
+
+		public TrickleInputStream(final byte[] data) {
+			mData = data;
+		}
+
+		@Override
+		public int read() {
+			return mPosition < mData.length ? mData[mPosition++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int count) {
+			if (count == 0) return 0;
+			final int b = read();
+			if (b < 0) return -1;
+			buffer[offset] = (byte) b;
+			return 1;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+// Replays synthetic decode traces into DecodeCostModel and checks how well
+// it predicts them. The traces follow a known linear cost per format, with
+// noise, so the error the model reaches is bounded by the noise.
+public class DecodeCostModelTest extends TestCase {
+	private static final String JPEG = "image/jpeg";
+	private static final String PNG = "image/png";
+	private static final float NOISE = 0.1f;
+	private static final int TRACE_LENGTH = 400;
+
+	private File mFile;
+
+	public void testEstimatesDifferentFormats() {
+		final DecodeCostModel model = new DecodeCostModel(mFile);
+		replay(model, new Random(1), TRACE_LENGTH);
+		final float jpeg = model.estimateMillis(JPEG, DecodeCostModel.OP_DECODE, 50000000, 2000000, 0);
+		final float png = model.estimateMillis(PNG, DecodeCostModel.OP_DECODE, 2000000, 2000000, 0);
+		assertTrue(jpeg > 0 && png > 0);
+		assertTrue("50MP jpeg " + jpeg + " vs 2MP png " + png, jpeg > png * 3);
+	}
+
+	public void testGuessesPixelsFromBytes() {
+		final DecodeCostModel model = new DecodeCostModel(mFile);
+		replay(model, new Random(2), TRACE_LENGTH);
+		// A jpeg of 3 MB is about 10MP at 0.3 bytes per pixel.
+		final float guessed = model.estimateMillis(JPEG, DecodeCostModel.OP_DECODE, 0, 0, 3000000);
+		final float known = model.estimateMillis(JPEG, DecodeCostModel.OP_DECODE, 10000000, 0, 0);
+		assertEquals(known, guessed, known * 0.1f);
+	}
+
+	public void testNoEstimateWithoutData() {
+		final DecodeCostModel model = new DecodeCostModel(mFile);
+		assertEquals(-1f, model.estimateMillis(JPEG, DecodeCostModel.OP_DECODE, 1000000, 1000000, 0), 0);
+		assertEquals(-1f, model.getRelativeError(JPEG, DecodeCostModel.OP_DECODE), 0);
+		for (int i = 0; i < 4; i++) {
+			model.record(JPEG, DecodeCostModel.OP_DECODE, 1000000, 1000000, 0, 20);
+		}
+		assertEquals(-1f, model.estimateMillis(JPEG, DecodeCostModel.OP_DECODE, 1000000, 1000000, 0), 0);
+		// Other formats and ops don't borrow the samples.
+		model.record(JPEG, DecodeCostModel.OP_DECODE, 1000000, 1000000, 0, 20);
+		assertTrue(model.estimateMillis(JPEG, DecodeCostModel.OP_DECODE, 1000000, 1000000, 0) >= 0);
+		assertEquals(-1f, model.estimateMillis(PNG, DecodeCostModel.OP_DECODE, 1000000, 1000000, 0), 0);
+		assertEquals(-1f, model.estimateMillis(JPEG, DecodeCostModel.OP_REGION_DECODE, 1000000, 1000000, 0), 0);
+	}
+
+	public void testRelativeErrorOnTrace() {
+		final DecodeCostModel model = new DecodeCostModel(mFile);
+		replay(model, new Random(3), TRACE_LENGTH);
+		final float jpegError = model.getRelativeError(JPEG, DecodeCostModel.OP_DECODE);
+		final float pngError = model.getRelativeError(PNG, DecodeCostModel.OP_DECODE);
+		assertTrue("jpeg error " + jpegError, jpegError >= 0 && jpegError < NOISE * 2);
+		assertTrue("png error " + pngError, pngError >= 0 && pngError < NOISE * 2);
+	}
+
+	public void testSaveAndLoad() {
+		final DecodeCostModel model = new DecodeCostModel(mFile);
+		replay(model, new Random(4), TRACE_LENGTH);
+		model.save();
+		assertTrue(mFile.length() > 0);
+
+		final DecodeCostModel loaded = new DecodeCostModel(mFile);
+		final float expected = model.estimateMillis(JPEG, DecodeCostModel.OP_DECODE, 12000000, 3000000, 0);
+		final float actual = loaded.estimateMillis(JPEG, DecodeCostModel.OP_DECODE, 12000000, 3000000, 0);
+		assertEquals(expected, actual, expected * 1e-4f);
+		assertEquals(model.getRelativeError(JPEG, DecodeCostModel.OP_DECODE),
+				loaded.getRelativeError(JPEG, DecodeCostModel.OP_DECODE));
+	}
+
+	public void testIgnoresCorruptFile() throws IOException {
+		final FileOutputStream out = new FileOutputStream(mFile);
+		out.write(new byte[] { 1, 2, 3 });
+		out.close();
+		final DecodeCostModel model = new DecodeCostModel(mFile);
+		assertEquals(-1f, model.estimateMillis(JPEG, DecodeCostModel.OP_DECODE, 1000000, 1000000, 0), 0);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = File.createTempFile("cost", ".model");
+		mFile.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	// The ground truth: jpeg reads fast per source pixel, png is slow per
+	// pixel, and both pay for every decoded pixel.
+	private static float cost(final boolean jpeg, final float sourceMegapixels, final float decodedMegapixels) {
+		return jpeg ? 5 + 8 * sourceMegapixels + 12 * decodedMegapixels : 3 + 40 * sourceMegapixels + 10
+				* decodedMegapixels;
+	}
+
+	private static void replay(final DecodeCostModel model, final Random random, final int length) {
+		for (int i = 0; i < length; i++) {
+			final boolean jpeg = random.nextInt(3) != 0;
+			// Sources from 0.3MP to 50MP, sampled down by a power of two.
+			final float source = 0.3f + random.nextFloat() * (jpeg ? 50 : 8);
+			final int sample = 1 << random.nextInt(4);
+			final float decoded = source / (sample * sample);
+			final float millis = cost(jpeg, source, decoded) * (1 + (random.nextFloat() * 2 - 1) * NOISE);
+			final long sourcePixels = (long) (source * 1000000);
+			final long bytes = (long) (sourcePixels * (jpeg ? 0.3f : 1.5f));
+			model.record(jpeg ? JPEG : PNG, DecodeCostModel.OP_DECODE, sourcePixels, (long) (decoded * 1000000),
+					bytes, millis);
+		}
+	}
+}
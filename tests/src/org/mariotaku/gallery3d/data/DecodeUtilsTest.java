@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.ByteArrayOutputStream;
+
+import org.mariotaku.gallery3d.common.BitmapUtils;
+import org.mariotaku.gallery3d.util.ThreadPool;
+import org.mariotaku.gallery3d.util.ThreadPool.CancelListener;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+// Decodes a photo-like JPEG and a PNG with the config DecodeUtils picks for
+// them, and logs the memory and the time of the opaque mode against
+// ARGB_8888. Also decodes the thumbnail of an image just too large to
+// decode whole, which goes through the bands of decodeThumbnailInBands().
+public class DecodeUtilsTest extends AndroidTestCase {
+	private static final String TAG = "DecodeUtilsTest";
+	private static final int SIZE = 1024;
+	private static final int RUNS = 5;
+	// Over the 4M pixels decoded whole at a sample size of 1, which is what a
+	// target of BANDED_TARGET_SIZE gets.
+	private static final int BANDED_SIZE = 2100;
+	private static final int BANDED_TARGET_SIZE = 1100;
+	private static final int[] QUADRANT_COLORS = { Color.RED, Color.GREEN, Color.BLUE, Color.WHITE };
+
+	private boolean mOpaqueModeEnabled;
+
+	// The job is checked between bands, and a cancelled one gives up the
+	// bands instead of falling back to decoding the whole image.
+	public void testBandedThumbnailIsCancelled() {
+		final byte[] jpeg = compressQuadrants();
+		final JobContext jc = new JobContext() {
+			private int mChecks;
+
+			@Override
+			public boolean isCancelled() {
+				// After the bounds and two bands.
+				return ++mChecks > 3;
+			}
+
+			@Override
+			public void setCancelListener(final CancelListener listener) {
+			}
+
+			@Override
+			public boolean setMode(final int mode) {
+				return true;
+			}
+		};
+		assertNull(DecodeUtils.decodeThumbnail(jc, jpeg, null, BANDED_TARGET_SIZE, MediaItem.TYPE_THUMBNAIL));
+	}
+
+	// Every row of the thumbnail is covered by a band, in the right place.
+	public void testBandedThumbnailMatchesImage() {
+		final byte[] jpeg = compressQuadrants();
+		final long startTime = System.nanoTime();
+		final Bitmap thumbnail = DecodeUtils.decodeThumbnail(ThreadPool.JOB_CONTEXT_STUB, jpeg, null,
+				BANDED_TARGET_SIZE, MediaItem.TYPE_THUMBNAIL);
+		final long bandedTime = System.nanoTime() - startTime;
+		assertNotNull(thumbnail);
+		assertEquals(BANDED_TARGET_SIZE, thumbnail.getWidth());
+		assertEquals(BANDED_TARGET_SIZE, thumbnail.getHeight());
+		final int size = BANDED_TARGET_SIZE;
+		// JPEG and the scaling blur the edges of the quadrants.
+		final int margin = 4;
+		for (int y = 0; y < size; y++) {
+			if (Math.abs(y - size / 2) < margin) continue;
+			for (int x = size / 4; x < size; x += size / 2) {
+				final int expected = QUADRANT_COLORS[(x < size / 2 ? 0 : 1) + (y < size / 2 ? 0 : 2)];
+				final int actual = thumbnail.getPixel(x, y);
+				if (Math.abs(Color.red(expected) - Color.red(actual)) > 16
+						|| Math.abs(Color.green(expected) - Color.green(actual)) > 16
+						|| Math.abs(Color.blue(expected) - Color.blue(actual)) > 16) {
+					fail(String.format("(%d, %d) is %08x, expected %08x", x, y, actual, expected));
+				}
+			}
+		}
+		thumbnail.recycle();
+
+		final long wholeStartTime = System.nanoTime();
+		final Bitmap whole = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+		final long wholeTime = System.nanoTime() - wholeStartTime;
+		Log.i(TAG, String.format("%dx%d JPEG to %d: bands in %dus, whole decode in %dus (%d KB)", BANDED_SIZE,
+				BANDED_SIZE, BANDED_TARGET_SIZE, bandedTime / 1000, wholeTime / 1000,
+				whole.getRowBytes() * whole.getHeight() / 1024));
+		whole.recycle();
+	}
+
+	public void testOpaqueImageDecodesToRgb565() {
+		final byte[] jpeg = compress(CompressFormat.JPEG);
+		assertTrue(BitmapUtils.isOpaqueFromHeader(jpeg, 16));
+		final Bitmap opaque = decode(jpeg, true);
+		assertEquals(Config.RGB_565, opaque.getConfig());
+		final Bitmap full = decode(jpeg, false);
+		assertEquals(Config.ARGB_8888, full.getConfig());
+		assertEquals(full.getRowBytes() * full.getHeight(), 2 * opaque.getRowBytes() * opaque.getHeight());
+
+		final long opaqueTime = timeDecodes(jpeg, true);
+		final long fullTime = timeDecodes(jpeg, false);
+		Log.i(TAG, String.format("%dx%d JPEG: RGB_565 %d KB in %dus, ARGB_8888 %d KB in %dus", SIZE, SIZE,
+				opaque.getRowBytes() * opaque.getHeight() / 1024, opaqueTime / 1000,
+				full.getRowBytes() * full.getHeight() / 1024, fullTime / 1000));
+		opaque.recycle();
+		full.recycle();
+	}
+
+	public void testOpaqueModeDisabled() {
+		DecodeUtils.setOpaqueModeEnabled(false);
+		assertEquals(Config.ARGB_8888, DecodeUtils.getPreferredConfig(true));
+		final Bitmap bitmap = decode(compress(CompressFormat.JPEG), true);
+		assertEquals(Config.ARGB_8888, bitmap.getConfig());
+		bitmap.recycle();
+	}
+
+	public void testPngKeepsAlpha() {
+		final byte[] png = compress(CompressFormat.PNG);
+		assertFalse(BitmapUtils.isOpaqueFromHeader(png, 16));
+		assertEquals(Config.ARGB_8888, DecodeUtils.getPreferredConfig(false));
+		final Bitmap bitmap = decode(png, false);
+		assertEquals(Config.ARGB_8888, bitmap.getConfig());
+		bitmap.recycle();
+	}
+
+	// Tile bitmaps of both configs share a pool, and a decoder only gets the
+	// config it asks for.
+	public void testPoolKeepsConfigsApart() {
+		final BitmapPool pool = new BitmapPool(64, 64, 4);
+		final Bitmap rgb565 = Bitmap.createBitmap(64, 64, Config.RGB_565);
+		final Bitmap argb8888 = Bitmap.createBitmap(64, 64, Config.ARGB_8888);
+		pool.recycle(rgb565);
+		pool.recycle(argb8888);
+		assertSame(rgb565, pool.getBitmap(Config.RGB_565));
+		assertNull(pool.getBitmap(Config.RGB_565));
+		assertSame(argb8888, pool.getBitmap(Config.ARGB_8888));
+		assertNull(pool.getBitmap());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mOpaqueModeEnabled = DecodeUtils.getPreferredConfig(true) == Config.RGB_565;
+		DecodeUtils.setOpaqueModeEnabled(true);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		DecodeUtils.setOpaqueModeEnabled(mOpaqueModeEnabled);
+		super.tearDown();
+	}
+
+	// A gradient with a pattern, opaque.
+	private static byte[] compress(final CompressFormat format) {
+		final int[] pixels = new int[SIZE * SIZE];
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				final int r = x * 255 / SIZE;
+				final int g = y * 255 / SIZE;
+				final int b = (int) (127 + 120 * Math.sin((x + y) / 40.0));
+				pixels[y * SIZE + x] = 0xff000000 | r << 16 | g << 8 | b;
+			}
+		}
+		final Bitmap bitmap = Bitmap.createBitmap(pixels, SIZE, SIZE, Config.ARGB_8888);
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		bitmap.compress(format, 90, os);
+		bitmap.recycle();
+		return os.toByteArray();
+	}
+
+	// A BANDED_SIZE square of four flat quadrants, opaque.
+	private static byte[] compressQuadrants() {
+		final Bitmap bitmap = Bitmap.createBitmap(BANDED_SIZE, BANDED_SIZE, Config.RGB_565);
+		final Canvas canvas = new Canvas(bitmap);
+		final Paint paint = new Paint();
+		final int half = BANDED_SIZE / 2;
+		for (int i = 0; i < QUADRANT_COLORS.length; i++) {
+			paint.setColor(QUADRANT_COLORS[i]);
+			final int left = i % 2 * half;
+			final int top = i / 2 * half;
+			canvas.drawRect(left, top, left + half, top + half, paint);
+		}
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		bitmap.compress(CompressFormat.JPEG, 90, os);
+		bitmap.recycle();
+		return os.toByteArray();
+	}
+
+	private static Bitmap decode(final byte[] data, final boolean opaque) {
+		final Options options = new Options();
+		DecodeUtils.applyPreferredConfig(options, opaque);
+		final Bitmap bitmap = DecodeUtils.decode(ThreadPool.JOB_CONTEXT_STUB, data, options);
+		assertNotNull(bitmap);
+		assertEquals(SIZE, bitmap.getWidth());
+		return bitmap;
+	}
+
+	// Returns the best time of RUNS decodes, in ns.
+	private static long timeDecodes(final byte[] data, final boolean opaque) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < RUNS; i++) {
+			final long start = System.nanoTime();
+			final Bitmap bitmap = decode(data, opaque);
+			best = Math.min(best, System.nanoTime() - start);
+			bitmap.recycle();
+		}
+		return best;
+	}
+}
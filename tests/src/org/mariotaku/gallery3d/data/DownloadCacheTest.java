@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.mariotaku.gallery3d.app.GalleryApp;
+import org.mariotaku.gallery3d.common.ApiHelper;
+import org.mariotaku.gallery3d.common.BitmapUtils;
+import org.mariotaku.gallery3d.common.Utils;
+import org.mariotaku.gallery3d.util.ThreadPool;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+// Downloads through DownloadCache from a FakeDownloadTransport, with the
+// database and the files of the cache kept apart from the application's.
+// Runs on a device, since the cache keeps its entries in SQLite.
+public class DownloadCacheTest extends AndroidTestCase {
+	private static final long CAPACITY = 16 * 1024 * 1024;
+	private static final int SMALL_BODY = 8 * 1024;
+	private static final int LARGE_BODY = 512 * 1024;
+	// More than the entries DownloadCache keeps in its LRU.
+	private static final int OTHER_DOWNLOADS = 8;
+	private static final long TIMEOUT = 5000; // ms
+	// The name DownloadCache gives its database.
+	private static final String DATABASE_NAME = "download.db";
+
+	private Context mContext;
+	private File mRoot;
+	private ThreadPool mThreadPool;
+	private FakeDownloadTransport mTransport;
+	private DownloadCache mCache;
+
+	public void testDecodesOfMemoryEntryAreCounted() throws Exception {
+		final URL url = url("counted");
+		mTransport.put(url, FakeDownloadTransport.createBody(SMALL_BODY, 1));
+		final DownloadCache.Entry entry = mCache.download(ThreadPool.JOB_CONTEXT_STUB, url);
+		for (int i = 0; i < 3; i++) {
+			mCache.recordDecode(entry);
+		}
+		waitForPersist(entry);
+		// A cache opened afresh reads the count back from the database, once
+		// the jobs writing it are done.
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (true) {
+			final DownloadCache.Entry stored = newCache().download(ThreadPool.JOB_CONTEXT_STUB, url);
+			if (stored.mDecodeCount == 3) break;
+			assertTrue("decode count " + stored.mDecodeCount, System.currentTimeMillis() < deadline);
+			Thread.sleep(50);
+		}
+	}
+
+	public void testLargeBodyOnDisk() throws Exception {
+		final URL url = url("large");
+		final byte[] body = FakeDownloadTransport.createBody(LARGE_BODY, 2);
+		mTransport.put(url, body);
+		final DownloadCache.Entry entry = mCache.download(ThreadPool.JOB_CONTEXT_STUB, url);
+		assertNull(entry.data);
+		assertTrue(entry.mId != 0);
+		assertEquals(body.length, entry.cacheFile.length());
+	}
+
+	public void testMemoryEntryIsNotDownloadedTwice() throws Exception {
+		final URL url = url("pending");
+		mTransport.put(url, FakeDownloadTransport.createBody(SMALL_BODY, 3));
+		assertNotNull(mCache.download(ThreadPool.JOB_CONTEXT_STUB, url).data);
+		// Push it out of the LRU, and let go of it, while it may still be
+		// written behind.
+		for (int i = 0; i < OTHER_DOWNLOADS; i++) {
+			final URL other = url("other" + i);
+			mTransport.put(other, FakeDownloadTransport.createBody(SMALL_BODY, i));
+			mCache.download(ThreadPool.JOB_CONTEXT_STUB, other);
+		}
+		System.gc();
+		assertNotNull(mCache.download(ThreadPool.JOB_CONTEXT_STUB, url));
+		assertEquals(1, mTransport.getOpenCount(url));
+	}
+
+	// Hot entries are rewritten as WebP only by a cache with transcoding
+	// enabled, and never if they are marked as originals.
+	public void testTranscoding() throws Exception {
+		if (!ApiHelper.HAS_WEBP_TRANSCODING) return;
+		final byte[] jpeg = createJpeg();
+		assertTrue(DownloadEntry.isWorthTranscoding(DownloadEntry.TRANSCODE_MIN_DECODE_COUNT, jpeg.length));
+		final DownloadCache off = newCache();
+		mCache.setTranscodeEnabled(true);
+		final DownloadCache.Entry hot = downloadToDisk(mCache, "hot", jpeg);
+		final DownloadCache.Entry original = downloadToDisk(mCache, "original", jpeg);
+		mCache.keepOriginal(original);
+		final DownloadCache.Entry disabled = downloadToDisk(off, "disabled", jpeg);
+		for (int i = 0; i < DownloadEntry.TRANSCODE_MIN_DECODE_COUNT; i++) {
+			mCache.recordDecode(hot);
+			mCache.recordDecode(original);
+			off.recordDecode(disabled);
+		}
+
+		final long deadline = System.currentTimeMillis() + TIMEOUT * 2;
+		while (!"image/webp".equals(readMimeType(hot.cacheFile))) {
+			assertTrue("not transcoded", System.currentTimeMillis() < deadline);
+			Thread.sleep(50);
+		}
+		assertTrue(hot.cacheFile.length() < jpeg.length);
+		// Their jobs were submitted along with the one of the hot entry.
+		Thread.sleep(500);
+		assertEquals("image/jpeg", readMimeType(original.cacheFile));
+		assertEquals("image/jpeg", readMimeType(disabled.cacheFile));
+	}
+
+	public void testSmallBodyInMemory() throws Exception {
+		final URL url = url("small");
+		final byte[] body = FakeDownloadTransport.createBody(SMALL_BODY, 4);
+		mTransport.put(url, body);
+		final DownloadCache.Entry entry = mCache.download(ThreadPool.JOB_CONTEXT_STUB, url);
+		assertNotNull(entry.data);
+		assertEquals(body.length, entry.data.length);
+		waitForPersist(entry);
+		assertEquals(body.length, entry.cacheFile.length());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = new RenamingDelegatingContext(getContext(), "test.");
+		mContext.deleteDatabase(DATABASE_NAME);
+		mRoot = new File(getContext().getCacheDir(), "test-download");
+		deleteFiles(mRoot);
+		mThreadPool = new ThreadPool();
+		mTransport = new FakeDownloadTransport();
+		mCache = newCache();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mContext.deleteDatabase(DATABASE_NAME);
+		deleteFiles(mRoot);
+		super.tearDown();
+	}
+
+	// Downloads the body straight to a file, so that the entry is in the
+	// database right away.
+	private DownloadCache.Entry downloadToDisk(final DownloadCache cache, final String name, final byte[] body)
+			throws MalformedURLException {
+		final URL url = url(name);
+		mTransport.put(url, body);
+		cache.setMemoryBodyLimit(0);
+		final DownloadCache.Entry entry = cache.download(ThreadPool.JOB_CONTEXT_STUB, url);
+		assertTrue(entry.mId != 0);
+		return entry;
+	}
+
+	private DownloadCache newCache() {
+		return new DownloadCache(new TestApp(mContext, mThreadPool), mRoot, CAPACITY, mTransport);
+	}
+
+	// A JPEG of smooth content saved at full quality, which WebP shrinks.
+	private static byte[] createJpeg() {
+		final int size = 1024;
+		final int[] pixels = new int[size * size];
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				final int r = x * 255 / size;
+				final int g = y * 255 / size;
+				final int b = (int) (127 + 120 * Math.sin((x + y) / 40.0));
+				pixels[y * size + x] = 0xff000000 | r << 16 | g << 8 | b;
+			}
+		}
+		final Bitmap bitmap = Bitmap.createBitmap(pixels, size, size, Bitmap.Config.ARGB_8888);
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, 100, os);
+		bitmap.recycle();
+		return os.toByteArray();
+	}
+
+	private static void deleteFiles(final File dir) {
+		final File[] files = dir.listFiles();
+		if (files == null) return;
+		for (final File file : files) {
+			file.delete();
+		}
+	}
+
+	private static String readMimeType(final File file) throws IOException {
+		final byte[] header = new byte[16];
+		final FileInputStream is = new FileInputStream(file);
+		try {
+			return BitmapUtils.getMimeTypeFromHeader(header, Utils.readFully(is, header));
+		} finally {
+			Utils.closeSilently(is);
+		}
+	}
+
+	private static URL url(final String name) throws MalformedURLException {
+		return new URL("http://example.com/" + name + ".jpg");
+	}
+
+	// Waits until PersistJob has inserted the entry.
+	private static void waitForPersist(final DownloadCache.Entry entry) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (entry.mId == 0) {
+			assertTrue("not persisted", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	// Just what DownloadCache needs of the application.
+	static class TestApp implements GalleryApp {
+		private final Context mContext;
+		private final ThreadPool mThreadPool;
+
+		public TestApp(final Context context, final ThreadPool threadPool) {
+			mContext = context;
+			mThreadPool = threadPool;
+		}
+
+		@Override
+		public Context getAndroidContext() {
+			return mContext;
+		}
+
+		@Override
+		public ContentResolver getContentResolver() {
+			return mContext.getContentResolver();
+		}
+
+		@Override
+		public DataManager getDataManager() {
+			return null;
+		}
+
+		@Override
+		public DecodeCostModel getDecodeCostModel() {
+			return null;
+		}
+
+		@Override
+		public DownloadCache getDownloadCache() {
+			return null;
+		}
+
+		@Override
+		public ImageCacheService getImageCacheService() {
+			return null;
+		}
+
+		@Override
+		public Looper getMainLooper() {
+			return mContext.getMainLooper();
+		}
+
+		@Override
+		public RegionDecoderCache getRegionDecoderCache() {
+			return null;
+		}
+
+		@Override
+		public Resources getResources() {
+			return mContext.getResources();
+		}
+
+		@Override
+		public ThreadPool getThreadPool() {
+			return mThreadPool;
+		}
+	}
+}
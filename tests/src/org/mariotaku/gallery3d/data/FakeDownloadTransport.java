@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+// An in-process DownloadTransport serving canned bodies, which counts how
+// often each URL is fetched.
+public class FakeDownloadTransport implements DownloadTransport {
+	private final HashMap<String, byte[]> mBodies = new HashMap<String, byte[]>();
+	private final HashMap<String, Integer> mOpenCounts = new HashMap<String, Integer>();
+
+	// Returns a body of the given length with a JPEG signature, filled with
+	// a pattern depending on the seed.
+	public static byte[] createBody(final int length, final int seed) {
+		final byte[] body = new byte[length];
+		for (int i = 0; i < length; i++) {
+			body[i] = (byte) (i * 31 + seed);
+		}
+		body[0] = (byte) 0xff;
+		body[1] = (byte) 0xd8;
+		body[2] = (byte) 0xff;
+		return body;
+	}
+
+	public synchronized int getOpenCount(final URL url) {
+		final Integer count = mOpenCounts.get(url.toString());
+		return count == null ? 0 : count;
+	}
+
+	@Override
+	public Response open(final JobContext jc, final URL url) throws IOException {
+		final byte[] body;
+		synchronized (this) {
+			final String key = url.toString();
+			final Integer count = mOpenCounts.get(key);
+			mOpenCounts.put(key, count == null ? 1 : count + 1);
+			body = mBodies.get(key);
+		}
+		if (body == null) throw new FileNotFoundException(url.toString());
+		return new Response() {
+			private final InputStream mInput = new ByteArrayInputStream(body);
+
+			@Override
+			public void close() {
+			}
+
+			@Override
+			public long getContentLength() {
+				return body.length;
+			}
+
+			@Override
+			public String getContentType() {
+				return "image/jpeg";
+			}
+
+			@Override
+			public InputStream getInputStream() {
+				return mInput;
+			}
+		};
+	}
+
+	public synchronized void put(final URL url, final byte[] body) {
+		mBodies.put(url.toString(), body);
+	}
+}
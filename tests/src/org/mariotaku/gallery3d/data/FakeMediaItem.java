@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.IOException;
+
+import org.mariotaku.gallery3d.util.ThreadPool.Job;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+
+// A JPEG held in memory, under a path of its own. It counts how often its
+// region decoder is opened, and remembers the last one. The size it reports
+// is given, so that tests can set the cost of its decoder.
+public class FakeMediaItem extends MediaItem {
+	private static int sPathCount;
+
+	private final byte[] mJpeg;
+	private final int mWidth;
+	private final int mHeight;
+	private final long mSize;
+	private long mVersion;
+	private int mOpenCount;
+	private BitmapRegionDecoder mLastDecoder;
+
+	public FakeMediaItem(final byte[] jpeg, final int width, final int height, final long size) {
+		super(newPath(), nextVersionNumber());
+		mJpeg = jpeg;
+		mWidth = width;
+		mHeight = height;
+		mSize = size;
+		mVersion = super.getDataVersion();
+	}
+
+	@Override
+	public long getDataVersion() {
+		return mVersion;
+	}
+
+	@Override
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public synchronized BitmapRegionDecoder getLastDecoder() {
+		return mLastDecoder;
+	}
+
+	@Override
+	public String getMimeType() {
+		return "image/jpeg";
+	}
+
+	public synchronized int getOpenCount() {
+		return mOpenCount;
+	}
+
+	@Override
+	public long getSize() {
+		return mSize;
+	}
+
+	@Override
+	public int getWidth() {
+		return mWidth;
+	}
+
+	@Override
+	public boolean isOpaque() {
+		return true;
+	}
+
+	@Override
+	public Job<Bitmap> requestImage(final int type) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Job<BitmapRegionDecoder> requestLargeImage() {
+		return new Job<BitmapRegionDecoder>() {
+			@Override
+			public BitmapRegionDecoder run(final JobContext jc) {
+				try {
+					final BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(mJpeg, 0, mJpeg.length,
+							false);
+					synchronized (FakeMediaItem.this) {
+						mOpenCount++;
+						mLastDecoder = decoder;
+					}
+					return decoder;
+				} catch (final IOException e) {
+					return null;
+				}
+			}
+		};
+	}
+
+	public void setDataVersion(final long version) {
+		mVersion = version;
+	}
+
+	private static synchronized Path newPath() {
+		return Path.fromString("/test/fake-media-item/" + sPathCount++);
+	}
+}
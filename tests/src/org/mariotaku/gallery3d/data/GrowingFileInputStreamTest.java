@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+import org.mariotaku.gallery3d.util.ThreadPool.CancelListener;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+import junit.framework.TestCase;
+
+// Reads a GrowingFileInputStream while a writer thread publishes the file a
+// chunk at a time through its Source, the way DownloadCache's
+// MemoryFirstOutputStream does, and checks that the reader sees exactly the
+// bytes written, in two passes like a bounds decode and a pixel decode.
+public class GrowingFileInputStreamTest extends TestCase {
+	private static final int BODY_SIZE = 256 * 1024;
+	private static final int CHUNK_SIZE = 3000;
+	private static final int READ_SIZE = 4096;
+	private static final long JOIN_TIMEOUT = 10000; // ms
+
+	private File mFile;
+
+	public void testCancelWhileWaiting() throws Exception {
+		final GrowingFileInputStream.Source source = new GrowingFileInputStream.Source();
+		source.setFile(mFile);
+		final CancellableJobContext jc = new CancellableJobContext();
+		final GrowingFileInputStream is = new GrowingFileInputStream(source, jc);
+		new Thread() {
+			@Override
+			public void run() {
+				pause(200);
+				jc.cancel();
+			}
+		}.start();
+		try {
+			is.read(new byte[READ_SIZE], 0, READ_SIZE);
+			fail("read returned without data");
+		} catch (final InterruptedIOException e) {
+			// Expected.
+		}
+		assertTrue(is.hasFailed());
+		assertFalse(source.isDone());
+		is.close();
+	}
+
+	public void testFailureWhileReading() throws Exception {
+		final byte[] body = createBody(BODY_SIZE);
+		final GrowingFileInputStream.Source source = new GrowingFileInputStream.Source();
+		source.setFile(mFile);
+		// The download dies halfway.
+		final Writer writer = new Writer(source, body, BODY_SIZE / 2, false);
+		final GrowingFileInputStream is = new GrowingFileInputStream(source, null);
+		writer.start();
+		final byte[] buffer = new byte[READ_SIZE];
+		int total = 0;
+		try {
+			while (true) {
+				final int n = is.read(buffer, 0, buffer.length);
+				assertTrue(n > 0);
+				assertRange(body, total, buffer, n);
+				total += n;
+			}
+		} catch (final IOException e) {
+			// Expected.
+		}
+		assertTrue(is.hasFailed());
+		assertTrue("read " + total, total <= BODY_SIZE / 2);
+		is.close();
+		writer.join(JOIN_TIMEOUT);
+		assertNull(writer.mError);
+	}
+
+	public void testMemoryBody() throws Exception {
+		// A small body never reaches the file: the writer only publishes it
+		// when the download is finished.
+		final byte[] body = createBody(CHUNK_SIZE);
+		final GrowingFileInputStream.Source source = new GrowingFileInputStream.Source();
+		source.setFile(mFile);
+		final GrowingFileInputStream is = new GrowingFileInputStream(source, null);
+		new Thread() {
+			@Override
+			public void run() {
+				pause(200);
+				source.onFinished(body);
+			}
+		}.start();
+		assertEquals(body.length, readAll(is, body));
+		assertEquals(-1, is.read());
+		assertFalse(is.hasFailed());
+		is.close();
+	}
+
+	public void testReadWhileWriting() throws Exception {
+		final byte[] body = createBody(BODY_SIZE);
+		final GrowingFileInputStream.Source source = new GrowingFileInputStream.Source();
+		source.setFile(mFile);
+		final Writer writer = new Writer(source, body, BODY_SIZE, true);
+		final GrowingFileInputStream is = new GrowingFileInputStream(source, null);
+		writer.start();
+
+		// The bounds pass reads a header, then the pixel pass starts over.
+		is.mark(Integer.MAX_VALUE);
+		final byte[] header = new byte[16];
+		assertEquals(header.length, is.read(header, 0, header.length));
+		assertRange(body, 0, header, header.length);
+		is.reset();
+		assertEquals(BODY_SIZE, readAll(is, body));
+		assertEquals(-1, is.read());
+		assertFalse(is.hasFailed());
+
+		// A second stream opened once the download is done reads the file.
+		writer.join(JOIN_TIMEOUT);
+		assertNull(writer.mError);
+		final GrowingFileInputStream again = new GrowingFileInputStream(source, null);
+		assertEquals(BODY_SIZE, readAll(again, body));
+		again.close();
+		is.close();
+	}
+
+	public void testSkipAhead() throws Exception {
+		final byte[] body = createBody(BODY_SIZE);
+		final GrowingFileInputStream.Source source = new GrowingFileInputStream.Source();
+		source.setFile(mFile);
+		final Writer writer = new Writer(source, body, BODY_SIZE, true);
+		final GrowingFileInputStream is = new GrowingFileInputStream(source, null);
+		writer.start();
+		// Skipping past what is written must wait for the bytes there.
+		final long skip = BODY_SIZE - CHUNK_SIZE * 2;
+		assertEquals(skip, is.skip(skip));
+		final byte[] buffer = new byte[READ_SIZE];
+		int total = 0;
+		int n;
+		while ((n = is.read(buffer, 0, buffer.length)) > 0) {
+			assertRange(body, (int) skip + total, buffer, n);
+			total += n;
+		}
+		assertEquals(BODY_SIZE - skip, total);
+		is.close();
+		writer.join(JOIN_TIMEOUT);
+		assertNull(writer.mError);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = File.createTempFile("growing", ".tmp");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	private static void assertRange(final byte[] expected, final int offset, final byte[] actual, final int length) {
+		for (int i = 0; i < length; i++) {
+			if (expected[offset + i] != actual[i]) {
+				fail("byte " + (offset + i) + " differs");
+			}
+		}
+	}
+
+	private static byte[] createBody(final int length) {
+		final byte[] body = new byte[length];
+		new Random(length).nextBytes(body);
+		return body;
+	}
+
+	// Reads the stream to the end in odd sized reads, checking every byte,
+	// and returns how many were read.
+	private static int readAll(final GrowingFileInputStream is, final byte[] expected) throws IOException {
+		final byte[] buffer = new byte[READ_SIZE];
+		int total = 0;
+		int n;
+		while ((n = is.read(buffer, 0, READ_SIZE - total % 7)) > 0) {
+			assertRange(expected, total, buffer, n);
+			total += n;
+		}
+		return total;
+	}
+
+	private static void pause(final long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (final InterruptedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static class CancellableJobContext implements JobContext {
+		private volatile boolean mCancelled;
+
+		public void cancel() {
+			mCancelled = true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		@Override
+		public void setCancelListener(final CancelListener listener) {
+		}
+
+		@Override
+		public boolean setMode(final int mode) {
+			return true;
+		}
+	}
+
+	// Writes the first length bytes of the body to the file in chunks,
+	// publishing each one, and then finishes or fails the download.
+	private class Writer extends Thread {
+		private final GrowingFileInputStream.Source mSource;
+		private final byte[] mBody;
+		private final int mLength;
+		private final boolean mSucceed;
+		volatile Throwable mError;
+
+		public Writer(final GrowingFileInputStream.Source source, final byte[] body, final int length,
+				final boolean succeed) {
+			mSource = source;
+			mBody = body;
+			mLength = length;
+			mSucceed = succeed;
+		}
+
+		@Override
+		public void run() {
+			try {
+				final FileOutputStream os = new FileOutputStream(mFile);
+				try {
+					int written = 0;
+					while (written < mLength) {
+						final int n = Math.min(CHUNK_SIZE, mLength - written);
+						os.write(mBody, written, n);
+						os.flush();
+						written += n;
+						mSource.onWritten(written);
+						if (written / CHUNK_SIZE % 16 == 0) {
+							Thread.yield();
+						}
+					}
+				} finally {
+					os.close();
+				}
+				if (mSucceed) {
+					mSource.onFinished(null);
+				} else {
+					mSource.onFailed();
+				}
+			} catch (final Throwable e) {
+				mError = e;
+				mSource.onFailed();
+			}
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+
+import org.mariotaku.gallery3d.util.ThreadPool.CancelListener;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+import junit.framework.TestCase;
+
+// Runs HttpDownloadTransport against a small HTTP/1.1 server on the loopback
+// interface, which holds its responses until they are released, to check
+// the per-host connection cap, the reuse of keep-alive connections and
+// cancellation while waiting for a slot.
+public class HttpDownloadTransportTest extends TestCase {
+	private static final int BODY_LENGTH = 4096;
+	private static final long TIMEOUT = 5000; // ms
+
+	private Server mServer;
+
+	public void testAcceptHeader() throws IOException {
+		final HttpDownloadTransport transport = new HttpDownloadTransport("test");
+		mServer.release(2);
+		fetch(transport, new Job());
+		// The platform may send an Accept header of its own.
+		final String accept = mServer.getLastAccept();
+		assertTrue(accept == null || !accept.startsWith("image/webp"));
+		transport.setAcceptWebp(true);
+		fetch(transport, new Job());
+		assertTrue(mServer.getLastAccept().startsWith("image/webp"));
+	}
+
+	public void testCancelWhileWaitingForSlot() throws Exception {
+		final HttpDownloadTransport transport = new HttpDownloadTransport("test", 5000, 5000, 1);
+		final Fetcher first = new Fetcher(transport, new Job());
+		first.start();
+		mServer.waitForPending(1);
+
+		final Job job = new Job();
+		final Fetcher second = new Fetcher(transport, job);
+		second.start();
+		Thread.sleep(100);
+		assertEquals(1, mServer.getPending());
+		job.cancel();
+		second.join(TIMEOUT);
+		assertTrue(second.mError instanceof InterruptedIOException);
+
+		mServer.release(1);
+		first.join(TIMEOUT);
+		assertNull(first.mError);
+		assertEquals(1, mServer.getRequestCount());
+	}
+
+	public void testKeepAlive() throws IOException {
+		final HttpDownloadTransport transport = new HttpDownloadTransport("test");
+		final Listener listener = new Listener();
+		transport.setTransferListener(listener);
+		mServer.release(5);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(BODY_LENGTH, fetch(transport, new Job()));
+		}
+		// Bodies read to the end and closed give their socket back.
+		assertEquals(1, mServer.getConnectionCount());
+		assertEquals(5, listener.mCompleted);
+		assertEquals(5L * BODY_LENGTH, listener.mBytes);
+	}
+
+	public void testPerHostLimit() throws Exception {
+		final int limit = 2;
+		final HttpDownloadTransport transport = new HttpDownloadTransport("test", 5000, 5000, limit);
+		final ArrayList<Fetcher> fetchers = new ArrayList<Fetcher>();
+		for (int i = 0; i < limit * 3; i++) {
+			final Fetcher fetcher = new Fetcher(transport, new Job());
+			fetchers.add(fetcher);
+			fetcher.start();
+		}
+		mServer.waitForPending(limit);
+		Thread.sleep(100);
+		// The others wait for a slot and never reach the server.
+		assertEquals(limit, mServer.getPending());
+
+		mServer.release(fetchers.size());
+		for (final Fetcher fetcher : fetchers) {
+			fetcher.join(TIMEOUT);
+			assertNull(fetcher.mError);
+			assertEquals(BODY_LENGTH, fetcher.mLength);
+		}
+		assertEquals(limit, mServer.getMaxPending());
+		assertTrue(mServer.getConnectionCount() <= limit);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = new Server();
+		mServer.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.shutdown();
+		super.tearDown();
+	}
+
+	// Downloads the body and returns its length.
+	private long fetch(final HttpDownloadTransport transport, final JobContext jc) throws IOException {
+		final DownloadTransport.Response response = transport.open(jc, mServer.getUrl());
+		try {
+			final InputStream is = response.getInputStream();
+			final byte[] buffer = new byte[1024];
+			long length = 0;
+			int n;
+			while ((n = is.read(buffer)) > 0) {
+				length += n;
+			}
+			return length;
+		} finally {
+			response.close();
+		}
+	}
+
+	private class Fetcher extends Thread {
+		private final HttpDownloadTransport mTransport;
+		private final JobContext mJobContext;
+		volatile long mLength;
+		volatile Throwable mError;
+
+		public Fetcher(final HttpDownloadTransport transport, final JobContext jc) {
+			mTransport = transport;
+			mJobContext = jc;
+		}
+
+		@Override
+		public void run() {
+			try {
+				mLength = fetch(mTransport, mJobContext);
+			} catch (final Throwable t) {
+				mError = t;
+			}
+		}
+	}
+
+	private static class Job implements JobContext {
+		private CancelListener mListener;
+		private boolean mCancelled;
+
+		public void cancel() {
+			final CancelListener listener;
+			synchronized (this) {
+				mCancelled = true;
+				listener = mListener;
+			}
+			if (listener != null) {
+				listener.onCancel();
+			}
+		}
+
+		@Override
+		public synchronized boolean isCancelled() {
+			return mCancelled;
+		}
+
+		@Override
+		public synchronized void setCancelListener(final CancelListener listener) {
+			mListener = listener;
+			if (listener != null && mCancelled) {
+				listener.onCancel();
+			}
+		}
+
+		@Override
+		public boolean setMode(final int mode) {
+			return !isCancelled();
+		}
+	}
+
+	private static class Listener implements DownloadTransport.TransferListener {
+		int mCompleted;
+		long mBytes;
+
+		@Override
+		public synchronized void onTransferDone(final URL url, final long bytes, final long firstByteTime,
+				final long totalTime, final boolean completed) {
+			if (completed) {
+				mCompleted++;
+			}
+			mBytes += bytes;
+		}
+	}
+
+	// Answers every request with BODY_LENGTH bytes once release() allows it,
+	// keeping the connections open for further requests.
+	private static class Server extends Thread {
+		private final ServerSocket mSocket;
+		private final ArrayList<Socket> mClients = new ArrayList<Socket>();
+		private int mPermits;
+		private int mPending;
+		private int mMaxPending;
+		private int mRequests;
+		private String mLastAccept;
+
+		public Server() throws IOException {
+			mSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+		}
+
+		public synchronized int getConnectionCount() {
+			return mClients.size();
+		}
+
+		public synchronized String getLastAccept() {
+			return mLastAccept;
+		}
+
+		public synchronized int getMaxPending() {
+			return mMaxPending;
+		}
+
+		public synchronized int getPending() {
+			return mPending;
+		}
+
+		public synchronized int getRequestCount() {
+			return mRequests;
+		}
+
+		public URL getUrl() throws IOException {
+			return new URL("http://127.0.0.1:" + mSocket.getLocalPort() + "/image.jpg");
+		}
+
+		public synchronized void release(final int count) {
+			mPermits += count;
+			notifyAll();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Socket client = mSocket.accept();
+					synchronized (this) {
+						mClients.add(client);
+					}
+					new Thread() {
+						@Override
+						public void run() {
+							serve(client);
+						}
+					}.start();
+				}
+			} catch (final IOException e) {
+				// Shut down.
+			}
+		}
+
+		public void shutdown() throws IOException {
+			mSocket.close();
+			synchronized (this) {
+				for (final Socket client : mClients) {
+					client.close();
+				}
+				mPermits = Integer.MAX_VALUE / 2;
+				notifyAll();
+			}
+		}
+
+		public synchronized void waitForPending(final int count) throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (mPending < count) {
+				final long now = System.currentTimeMillis();
+				if (now >= deadline) throw new AssertionError("pending " + mPending + " < " + count);
+				wait(deadline - now);
+			}
+		}
+
+		private void serve(final Socket client) {
+			try {
+				final BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(),
+						"ISO-8859-1"));
+				final OutputStream os = client.getOutputStream();
+				final byte[] body = new byte[BODY_LENGTH];
+				while (true) {
+					final String requestLine = reader.readLine();
+					if (requestLine == null) return;
+					String accept = null;
+					String line;
+					while ((line = reader.readLine()) != null && line.length() > 0) {
+						if (line.regionMatches(true, 0, "Accept:", 0, 7)) {
+							accept = line.substring(7).trim();
+						}
+					}
+					synchronized (this) {
+						mRequests++;
+						mLastAccept = accept;
+						mPending++;
+						mMaxPending = Math.max(mMaxPending, mPending);
+						notifyAll();
+						while (mPermits == 0) {
+							wait();
+						}
+						mPermits--;
+						mPending--;
+					}
+					os.write(("HTTP/1.1 200 OK\r\nContent-Type: image/jpeg\r\nContent-Length: " + BODY_LENGTH
+							+ "\r\n\r\n").getBytes("ISO-8859-1"));
+					os.write(body);
+					os.flush();
+				}
+			} catch (final IOException e) {
+				// The client went away.
+			} catch (final InterruptedException e) {
+				// Shut down.
+			}
+		}
+	}
+}
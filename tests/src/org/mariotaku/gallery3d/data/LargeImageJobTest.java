@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.mariotaku.gallery3d.util.ThreadPool;
+import org.mariotaku.gallery3d.util.ThreadPool.CancelListener;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.graphics.BitmapRegionDecoder;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+// Runs LargeImageJob on a JPEG held by a FakeMediaItem and checks that the
+// image is opened once for both the screen nail and the full image, and that
+// the decoder goes back to the cache when the screen nail isn't wanted. Logs
+// the time of the job against opening the decoder and decoding the screen
+// nail separately.
+public class LargeImageJobTest extends TestCase {
+	private static final String TAG = "LargeImageJobTest";
+	private static final int WIDTH = 1600;
+	private static final int HEIGHT = 1200;
+	private static final int TARGET_SIZE = 640;
+	private static final long CACHE_CAPACITY = 16 * 1024 * 1024;
+
+	private static byte[] sJpeg;
+
+	private RegionDecoderCache mCache;
+
+	public void testCancelledJobReleasesDecoder() {
+		final FakeMediaItem item = createItem();
+		final JobContext cancelled = new JobContext() {
+			@Override
+			public boolean isCancelled() {
+				return true;
+			}
+
+			@Override
+			public void setCancelListener(final CancelListener listener) {
+			}
+
+			@Override
+			public boolean setMode(final int mode) {
+				return true;
+			}
+		};
+		assertNull(new LargeImageJob(mCache, item, TARGET_SIZE).run(cancelled));
+		final BitmapRegionDecoder decoder = item.getLastDecoder();
+		assertNotNull(decoder);
+		// No one holds it, so it goes with the cache.
+		mCache.clear();
+		assertTrue(decoder.isRecycled());
+	}
+
+	public void testOpensImageOnce() throws IOException {
+		final FakeMediaItem item = createItem();
+		final long startTime = System.nanoTime();
+		final LargeImageJob.Result result = new LargeImageJob(mCache, item, TARGET_SIZE)
+				.run(ThreadPool.JOB_CONTEXT_STUB);
+		final long jobTime = System.nanoTime() - startTime;
+		assertNotNull(result);
+		assertEquals(TARGET_SIZE, result.screenNail.getWidth());
+		assertEquals(TARGET_SIZE * HEIGHT / WIDTH, result.screenNail.getHeight());
+		assertEquals(DecodeUtils.getPreferredConfig(true), result.screenNail.getConfig());
+		result.screenNail.recycle();
+
+		// The full image that follows comes from the cache.
+		final BitmapRegionDecoder decoder = mCache.requestLargeImage(item).run(ThreadPool.JOB_CONTEXT_STUB);
+		assertSame(result.decoder, decoder);
+		assertEquals(1, item.getOpenCount());
+		mCache.release(decoder);
+		mCache.release(result.decoder);
+
+		final long separateStartTime = System.nanoTime();
+		final BitmapRegionDecoder separate = BitmapRegionDecoder.newInstance(sJpeg, 0, sJpeg.length, false);
+		final Options options = new Options();
+		options.inSampleSize = 2;
+		DecodeUtils.applyPreferredConfig(options, true);
+		final Bitmap screenNail = BitmapFactory.decodeByteArray(sJpeg, 0, sJpeg.length, options);
+		final long separateTime = System.nanoTime() - separateStartTime;
+		Log.i(TAG, String.format("%dx%d JPEG: one pass in %dus, decoder and screen nail apart in %dus", WIDTH,
+				HEIGHT, jobTime / 1000, separateTime / 1000));
+		screenNail.recycle();
+		separate.recycle();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		if (sJpeg == null) {
+			final int[] pixels = new int[WIDTH * HEIGHT];
+			for (int y = 0; y < HEIGHT; y++) {
+				for (int x = 0; x < WIDTH; x++) {
+					pixels[y * WIDTH + x] = 0xff000000 | (x & 0xff) << 16 | (y & 0xff) << 8 | (x + y) / 16 & 0xff;
+				}
+			}
+			final Bitmap bitmap = Bitmap.createBitmap(pixels, WIDTH, HEIGHT, Config.ARGB_8888);
+			final ByteArrayOutputStream os = new ByteArrayOutputStream();
+			bitmap.compress(CompressFormat.JPEG, 90, os);
+			bitmap.recycle();
+			sJpeg = os.toByteArray();
+		}
+		mCache = new RegionDecoderCache(CACHE_CAPACITY);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mCache.clear();
+		super.tearDown();
+	}
+
+	private static FakeMediaItem createItem() {
+		return new FakeMediaItem(sJpeg, WIDTH, HEIGHT, sJpeg.length);
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.ByteArrayOutputStream;
+
+import org.mariotaku.gallery3d.util.ThreadPool;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapRegionDecoder;
+
+import junit.framework.TestCase;
+
+// Opens real decoders on a small JPEG through FakeMediaItems, which count how
+// often they are opened, and checks what RegionDecoderCache keeps, evicts and
+// recycles. Each item costs a little over ITEM_SIZE, so the cache holds two.
+public class RegionDecoderCacheTest extends TestCase {
+	private static final int IMAGE_SIZE = 256;
+	private static final long ITEM_SIZE = 100 * 1024;
+	private static final long CAPACITY = ITEM_SIZE * 5 / 2;
+
+	private static byte[] sJpeg;
+
+	private RegionDecoderCache mCache;
+
+	public void testEvictedDecoderIsRecycledOnLastRelease() {
+		final FakeMediaItem item = createItem(ITEM_SIZE);
+		final BitmapRegionDecoder decoder = open(item);
+		assertSame(decoder, open(item));
+		mCache.clear();
+		assertFalse(decoder.isRecycled());
+		mCache.release(decoder);
+		assertFalse(decoder.isRecycled());
+		mCache.release(decoder);
+		assertTrue(decoder.isRecycled());
+	}
+
+	public void testHitReturnsOpenDecoder() {
+		final FakeMediaItem item = createItem(ITEM_SIZE);
+		final BitmapRegionDecoder decoder = open(item);
+		mCache.release(decoder);
+		assertFalse(decoder.isRecycled());
+		assertSame(decoder, open(item));
+		assertEquals(1, item.getOpenCount());
+		mCache.release(decoder);
+	}
+
+	// The least recently used decoder goes first, and is recycled at once as
+	// no one holds it.
+	public void testLruEviction() {
+		final FakeMediaItem a = createItem(ITEM_SIZE);
+		final FakeMediaItem b = createItem(ITEM_SIZE);
+		final FakeMediaItem c = createItem(ITEM_SIZE);
+		final BitmapRegionDecoder decoderA = open(a);
+		final BitmapRegionDecoder decoderB = open(b);
+		mCache.release(decoderA);
+		mCache.release(decoderB);
+		mCache.release(open(a));
+
+		final BitmapRegionDecoder decoderC = open(c);
+		assertTrue(decoderB.isRecycled());
+		assertFalse(decoderA.isRecycled());
+		assertSame(decoderA, open(a));
+		assertEquals(1, a.getOpenCount());
+		mCache.release(decoderA);
+		mCache.release(decoderC);
+
+		mCache.release(open(b));
+		assertEquals(2, b.getOpenCount());
+	}
+
+	public void testNewVersionReplacesDecoder() {
+		final FakeMediaItem item = createItem(ITEM_SIZE);
+		final BitmapRegionDecoder old = open(item);
+		mCache.release(old);
+		item.setDataVersion(item.getDataVersion() + 1);
+		final BitmapRegionDecoder decoder = open(item);
+		assertNotSame(old, decoder);
+		assertTrue(old.isRecycled());
+		assertEquals(2, item.getOpenCount());
+		mCache.release(decoder);
+	}
+
+	public void testTooLargeIsNeverCached() {
+		final FakeMediaItem item = createItem(CAPACITY * 2);
+		final BitmapRegionDecoder decoder = open(item);
+		mCache.release(decoder);
+		assertTrue(decoder.isRecycled());
+		mCache.release(open(item));
+		assertEquals(2, item.getOpenCount());
+	}
+
+	// Running low halves the cache, going to the background empties it.
+	public void testTrimMemory() {
+		final FakeMediaItem a = createItem(ITEM_SIZE);
+		final FakeMediaItem b = createItem(ITEM_SIZE);
+		final BitmapRegionDecoder decoderA = open(a);
+		final BitmapRegionDecoder decoderB = open(b);
+		mCache.release(decoderA);
+		mCache.release(decoderB);
+
+		mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+		assertTrue(decoderA.isRecycled());
+		assertFalse(decoderB.isRecycled());
+
+		mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+		assertTrue(decoderB.isRecycled());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		if (sJpeg == null) {
+			final Bitmap bitmap = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE, Config.RGB_565);
+			final ByteArrayOutputStream os = new ByteArrayOutputStream();
+			bitmap.compress(CompressFormat.JPEG, 90, os);
+			bitmap.recycle();
+			sJpeg = os.toByteArray();
+		}
+		mCache = new RegionDecoderCache(CAPACITY);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mCache.clear();
+		super.tearDown();
+	}
+
+	private FakeMediaItem createItem(final long size) {
+		return new FakeMediaItem(sJpeg, IMAGE_SIZE, IMAGE_SIZE, size);
+	}
+
+	private BitmapRegionDecoder open(final FakeMediaItem item) {
+		final BitmapRegionDecoder decoder = mCache.requestLargeImage(item).run(ThreadPool.JOB_CONTEXT_STUB);
+		assertNotNull(decoder);
+		assertFalse(decoder.isRecycled());
+		return decoder;
+	}
+}
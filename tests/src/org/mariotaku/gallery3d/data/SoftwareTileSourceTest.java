@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.mariotaku.gallery3d.util.ThreadPool;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.Color;
+import android.graphics.Rect;
+
+import junit.framework.TestCase;
+
+// Writes BMPs in the layouts SoftwareTileSource reads row by row, and checks
+// the regions it decodes from them pixel for pixel. Images BmpSource can't
+// read go through the sampled source, whose first level follows the sample
+// size of its decode.
+public class SoftwareTileSourceTest extends TestCase {
+	// Odd, so that the rows of 24 bit BMPs are padded.
+	private static final int WIDTH = 157;
+	private static final int HEIGHT = 93;
+	private static final Rect[] REGIONS = { new Rect(0, 0, WIDTH, HEIGHT), new Rect(10, 20, 74, 84),
+			new Rect(WIDTH - 33, HEIGHT - 17, WIDTH, HEIGHT) };
+	private static final int[] SAMPLE_SIZES = { 1, 2, 4 };
+
+	private File mFile;
+
+	public void testBmp8BitPalette() throws IOException {
+		checkBmp(8, false);
+	}
+
+	public void testBmp24BitBottomUp() throws IOException {
+		checkBmp(24, false);
+	}
+
+	public void testBmp24BitTopDown() throws IOException {
+		checkBmp(24, true);
+	}
+
+	public void testBmp32Bit() throws IOException {
+		checkBmp(32, false);
+	}
+
+	public void testLargeImageStartsAtSampledLevel() {
+		// Just over the pixels the sampled source decodes at full size.
+		final int size = 2100;
+		final Bitmap bitmap = Bitmap.createBitmap(size, size, Config.RGB_565);
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		bitmap.compress(CompressFormat.PNG, 100, os);
+		bitmap.recycle();
+		final SoftwareTileSource source = SoftwareTileSource.create(ThreadPool.JOB_CONTEXT_STUB, null,
+				os.toByteArray());
+		assertNotNull(source);
+		try {
+			assertEquals(size, source.getWidth());
+			assertEquals(size, source.getHeight());
+			assertEquals(1, source.getFirstLevel());
+			final Bitmap region = source.decodeRegion(new Rect(0, 0, 256, 256), 2);
+			assertEquals(128, region.getWidth());
+			assertEquals(128, region.getHeight());
+			region.recycle();
+		} finally {
+			source.recycle();
+		}
+	}
+
+	public void testSmallImageStartsAtLevelZero() {
+		final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Config.ARGB_8888);
+		bitmap.eraseColor(0x80ff0000);
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		bitmap.compress(CompressFormat.PNG, 100, os);
+		bitmap.recycle();
+		final SoftwareTileSource source = SoftwareTileSource.create(ThreadPool.JOB_CONTEXT_STUB, null,
+				os.toByteArray());
+		assertNotNull(source);
+		try {
+			assertEquals(0, source.getFirstLevel());
+			assertTrue(source.hasAlpha());
+			final Bitmap region = source.decodeRegion(REGIONS[1], 1);
+			assertEquals(REGIONS[1].width(), region.getWidth());
+			// Drawn premultiplied, so the color may be off by a little.
+			final int color = region.getPixel(region.getWidth() / 2, region.getHeight() / 2);
+			assertEquals(0x80, Color.alpha(color));
+			assertTrue(Integer.toHexString(color), Color.red(color) > 0xf0 && Color.green(color) < 0x10);
+			region.recycle();
+		} finally {
+			source.recycle();
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = File.createTempFile("source", ".bmp");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	private void checkBmp(final int bitCount, final boolean topDown) throws IOException {
+		writeBmp(bitCount, topDown);
+		final FileInputStream is = new FileInputStream(mFile);
+		try {
+			final SoftwareTileSource source = SoftwareTileSource.create(ThreadPool.JOB_CONTEXT_STUB, is.getFD(), null);
+			assertNotNull(source);
+			assertEquals(WIDTH, source.getWidth());
+			assertEquals(HEIGHT, source.getHeight());
+			assertEquals(0, source.getFirstLevel());
+			assertFalse(source.hasAlpha());
+			for (final Rect rect : REGIONS) {
+				for (final int sampleSize : SAMPLE_SIZES) {
+					final Bitmap region = source.decodeRegion(rect, sampleSize);
+					assertNotNull(region);
+					assertEquals((rect.width() + sampleSize - 1) / sampleSize, region.getWidth());
+					assertEquals((rect.height() + sampleSize - 1) / sampleSize, region.getHeight());
+					for (int y = 0; y < region.getHeight(); y++) {
+						for (int x = 0; x < region.getWidth(); x++) {
+							final int ix = rect.left + x * sampleSize;
+							final int iy = rect.top + y * sampleSize;
+							final int expected = bitCount == 8 ? getPaletteColor(getIndex(ix, iy)) : getColor(ix,
+									iy);
+							if (region.getPixel(x, y) != expected) {
+								fail(String.format("%d bit, %s, sample %d: (%d, %d) is %08x, expected %08x",
+										bitCount, rect, sampleSize, ix, iy, region.getPixel(x, y), expected));
+							}
+						}
+					}
+					region.recycle();
+				}
+			}
+			source.recycle();
+		} finally {
+			is.close();
+		}
+	}
+
+	// Writes an uncompressed BMP of WIDTH x HEIGHT with the pixels of
+	// getColor(), or with the palette indices of getIndex() if it is 8 bit.
+	private void writeBmp(final int bitCount, final boolean topDown) throws IOException {
+		final int paletteSize = bitCount == 8 ? 256 * 4 : 0;
+		final int stride = (bitCount * WIDTH + 31) / 32 * 4;
+		final int dataOffset = 54 + paletteSize;
+		final ByteBuffer buffer = ByteBuffer.allocate(dataOffset + stride * HEIGHT).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put((byte) 'B').put((byte) 'M').putInt(buffer.capacity()).putInt(0).putInt(dataOffset);
+		buffer.putInt(40).putInt(WIDTH).putInt(topDown ? -HEIGHT : HEIGHT).putShort((short) 1)
+				.putShort((short) bitCount).putInt(0).putInt(stride * HEIGHT).putInt(2835).putInt(2835).putInt(0)
+				.putInt(0);
+		for (int i = 0; i * 4 < paletteSize; i++) {
+			buffer.putInt(getPaletteColor(i) & 0xffffff);
+		}
+		for (int row = 0; row < HEIGHT; row++) {
+			final int y = topDown ? row : HEIGHT - 1 - row;
+			final int start = buffer.position();
+			for (int x = 0; x < WIDTH; x++) {
+				if (bitCount == 8) {
+					buffer.put((byte) getIndex(x, y));
+				} else {
+					final int color = getColor(x, y);
+					buffer.put((byte) color).put((byte) (color >> 8)).put((byte) (color >> 16));
+					if (bitCount == 32) {
+						buffer.put((byte) 0);
+					}
+				}
+			}
+			buffer.position(start + stride);
+		}
+		final FileOutputStream os = new FileOutputStream(mFile);
+		try {
+			os.write(buffer.array());
+		} finally {
+			os.close();
+		}
+	}
+
+	private static int getColor(final int x, final int y) {
+		return 0xff000000 | (x * 7 & 0xff) << 16 | (y * 5 & 0xff) << 8 | (x + y) * 3 & 0xff;
+	}
+
+	private static int getIndex(final int x, final int y) {
+		return x + y * 3 & 0xff;
+	}
+
+	private static int getPaletteColor(final int index) {
+		return 0xff000000 | index << 16 | 255 - index << 8 | index / 2;
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.mariotaku.gallery3d.common.BitmapUtils;
+import org.mariotaku.gallery3d.util.ThreadPool;
+import org.mariotaku.gallery3d.util.ThreadPool.CancelListener;
+import org.mariotaku.gallery3d.util.ThreadPool.JobContext;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.graphics.Rect;
+
+import junit.framework.TestCase;
+
+// Writes the pyramid of a synthetic image made of four flat quadrants, reads
+// it back, and checks which tiles are there and what they show. Also checks
+// which files UriImage cleans up from the tile folder.
+public class TilePyramidTest extends TestCase {
+	private static final int WIDTH = 600;
+	private static final int HEIGHT = 400;
+	private static final int TILE_SIZE = 64;
+	private static final int BORDER = 1;
+	private static final int FIRST_LEVEL = 1;
+	private static final int[] COLORS = { Color.RED, Color.GREEN, Color.BLUE, Color.WHITE };
+
+	private File mDir;
+	private File mFile;
+
+	public void testCancelledWriteLeavesNoFile() throws IOException {
+		final JobContext cancelled = new JobContext() {
+			@Override
+			public boolean isCancelled() {
+				return true;
+			}
+
+			@Override
+			public void setCancelListener(final CancelListener listener) {
+			}
+
+			@Override
+			public boolean setMode(final int mode) {
+				return true;
+			}
+		};
+		assertFalse(TilePyramid.write(cancelled, new QuadrantSource(false), mFile, TILE_SIZE, BORDER, FIRST_LEVEL));
+		assertFalse(mFile.exists());
+		assertEquals(0, mDir.list().length);
+	}
+
+	public void testOpenInvalidFile() throws IOException {
+		assertNull(TilePyramid.open(mFile));
+		final FileOutputStream os = new FileOutputStream(mFile);
+		os.write(new byte[64]);
+		os.close();
+		assertNull(TilePyramid.open(mFile));
+
+		// A pyramid cut short, like one from a full disk.
+		assertTrue(write(false));
+		final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+		raf.setLength(raf.length() / 2);
+		raf.close();
+		assertNull(TilePyramid.open(mFile));
+	}
+
+	public void testRoundTripOpaque() throws IOException {
+		assertTrue(write(false));
+		final TilePyramid pyramid = TilePyramid.open(mFile);
+		assertNotNull(pyramid);
+		try {
+			assertEquals(WIDTH, pyramid.getWidth());
+			assertEquals(HEIGHT, pyramid.getHeight());
+			assertEquals(TILE_SIZE, pyramid.getTileSize());
+			assertEquals(BORDER, pyramid.getBorderSize());
+			assertEquals(FIRST_LEVEL, pyramid.getFirstLevel());
+			assertEquals(TilePyramid.getLevelCount(WIDTH, HEIGHT, TILE_SIZE), pyramid.getLevelCount());
+			// The last level fits in a single tile.
+			assertTrue(WIDTH >> pyramid.getLevelCount() - 1 <= TILE_SIZE);
+
+			// Level 0 is left to the region decoder.
+			assertFalse(pyramid.hasTile(0, 0, 0, TILE_SIZE, BORDER));
+			assertTrue(pyramid.hasTile(1, 0, 0, TILE_SIZE, BORDER));
+			assertTrue(pyramid.hasTile(1, 128, 256, TILE_SIZE, BORDER));
+			assertFalse(pyramid.hasTile(1, 64, 0, TILE_SIZE, BORDER));
+			assertFalse(pyramid.hasTile(1, 640, 0, TILE_SIZE, BORDER));
+			assertFalse(pyramid.hasTile(1, 0, 0, TILE_SIZE * 2, BORDER));
+			assertFalse(pyramid.hasTile(1, 0, 0, TILE_SIZE, 0));
+			assertFalse(pyramid.hasTile(pyramid.getLevelCount(), 0, 0, TILE_SIZE, BORDER));
+
+			final byte[] buffer = new byte[pyramid.getMaxTileLength()];
+			for (int level = FIRST_LEVEL; level < pyramid.getLevelCount(); level++) {
+				final int size = TILE_SIZE << level;
+				for (int y = 0; y < HEIGHT; y += size) {
+					for (int x = 0; x < WIDTH; x += size) {
+						assertTrue(pyramid.hasTile(level, x, y, TILE_SIZE, BORDER));
+						final Bitmap tile = readTile(pyramid, level, x, y, buffer);
+						assertEquals("image/jpeg", BitmapUtils.getMimeTypeFromHeader(buffer, 16));
+						checkTile(tile, level, x, y, Color.BLACK);
+						tile.recycle();
+					}
+				}
+			}
+		} finally {
+			pyramid.close();
+		}
+	}
+
+	public void testRoundTripWithAlpha() throws IOException {
+		assertTrue(write(true));
+		final TilePyramid pyramid = TilePyramid.open(mFile);
+		assertNotNull(pyramid);
+		try {
+			final byte[] buffer = new byte[pyramid.getMaxTileLength()];
+			// The first tile, and the last one, which is mostly outside the
+			// image.
+			final int size = TILE_SIZE << FIRST_LEVEL;
+			final int[][] tiles = { { 0, 0 }, { WIDTH / size * size, HEIGHT / size * size } };
+			for (final int[] t : tiles) {
+				final Bitmap tile = readTile(pyramid, FIRST_LEVEL, t[0], t[1], buffer);
+				assertEquals("image/png", BitmapUtils.getMimeTypeFromHeader(buffer, 16));
+				checkTile(tile, FIRST_LEVEL, t[0], t[1], Color.TRANSPARENT);
+				tile.recycle();
+			}
+		} finally {
+			pyramid.close();
+		}
+	}
+
+	// Only the pyramids of other images which are old enough, and the temp
+	// files of jobs which must have died, are deleted.
+	public void testStalePyramidCleanup() throws IOException {
+		final long now = System.currentTimeMillis();
+		final File current = createFile("current.pyr", now - 3600 * 1000);
+		final File oldPyramid = createFile("old.pyr", now - 120 * 1000);
+		final File neighbour = createFile("neighbour.pyr", now - 10 * 1000);
+		final File deadTemp = createFile("pyramid123.tmp", now - 2 * 3600 * 1000);
+		final File liveTemp = createFile("pyramid456.tmp", now - 10 * 60 * 1000);
+		final File other = createFile("other.tmp", now - 2 * 3600 * 1000);
+		UriImage.deleteStalePyramids(mDir, current.getName(), now);
+		assertTrue(current.exists());
+		assertFalse(oldPyramid.exists());
+		assertTrue(neighbour.exists());
+		assertFalse(deadTemp.exists());
+		assertTrue(liveTemp.exists());
+		assertTrue(other.exists());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDir = File.createTempFile("pyramids", "");
+		assertTrue(mDir.delete() && mDir.mkdir());
+		mFile = new File(mDir, "test.pyr");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (final File file : mDir.listFiles()) {
+			file.delete();
+		}
+		mDir.delete();
+		super.tearDown();
+	}
+
+	private File createFile(final String name, final long lastModified) throws IOException {
+		final File file = new File(mDir, name);
+		assertTrue(file.createNewFile());
+		assertTrue(file.setLastModified(lastModified));
+		return file;
+	}
+
+	private boolean write(final boolean hasAlpha) throws IOException {
+		return TilePyramid.write(ThreadPool.JOB_CONTEXT_STUB, new QuadrantSource(hasAlpha), mFile, TILE_SIZE,
+				BORDER, FIRST_LEVEL);
+	}
+
+	// Checks the pixels of a tile away from the edges of the quadrants
+	// against the image, and those outside the image against the given color.
+	private static void checkTile(final Bitmap tile, final int level, final int x, final int y, final int outside) {
+		final int length = TILE_SIZE + BORDER * 2;
+		assertEquals(length, tile.getWidth());
+		assertEquals(length, tile.getHeight());
+		for (int j = 0; j < length; j += 5) {
+			for (int i = 0; i < length; i += 5) {
+				final int ix = x + (i - BORDER << level);
+				final int iy = y + (j - BORDER << level);
+				// JPEG blurs a few pixels around the edges.
+				final int margin = 8 << level;
+				final int expected;
+				if (ix < -margin || iy < -margin || ix >= WIDTH + margin || iy >= HEIGHT + margin) {
+					expected = outside;
+				} else if (Math.abs(ix - WIDTH / 2) > margin && Math.abs(iy - HEIGHT / 2) > margin && ix > margin
+						&& iy > margin && ix < WIDTH - margin && iy < HEIGHT - margin) {
+					expected = getColor(ix, iy);
+				} else {
+					continue;
+				}
+				assertColor("level " + level + " (" + ix + ", " + iy + ")", expected, tile.getPixel(i, j));
+			}
+		}
+	}
+
+	private static void assertColor(final String message, final int expected, final int actual) {
+		final int tolerance = 16;
+		if (Color.alpha(expected) == 0) {
+			assertEquals(message, 0, Color.alpha(actual));
+			return;
+		}
+		if (Math.abs(Color.red(expected) - Color.red(actual)) > tolerance
+				|| Math.abs(Color.green(expected) - Color.green(actual)) > tolerance
+				|| Math.abs(Color.blue(expected) - Color.blue(actual)) > tolerance)
+			fail(message + ": expected " + Integer.toHexString(expected) + ", was " + Integer.toHexString(actual));
+	}
+
+	private static int getColor(final int x, final int y) {
+		return COLORS[(x < WIDTH / 2 ? 0 : 1) + (y < HEIGHT / 2 ? 0 : 2)];
+	}
+
+	private static Bitmap readTile(final TilePyramid pyramid, final int level, final int x, final int y,
+			final byte[] buffer) throws IOException {
+		final int length = pyramid.readTile(level, x, y, buffer);
+		final Bitmap tile = BitmapFactory.decodeByteArray(buffer, 0, length);
+		assertNotNull(tile);
+		return tile;
+	}
+
+	// The image, decoded region by region like BitmapRegionDecoder does.
+	private static class QuadrantSource implements TilePyramid.Source {
+		private final boolean mHasAlpha;
+
+		public QuadrantSource(final boolean hasAlpha) {
+			mHasAlpha = hasAlpha;
+		}
+
+		@Override
+		public Bitmap decodeRegion(final Rect rect, final int sampleSize) {
+			final int w = (rect.width() + sampleSize - 1) / sampleSize;
+			final int h = (rect.height() + sampleSize - 1) / sampleSize;
+			final int[] pixels = new int[w * h];
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					pixels[y * w + x] = getColor(rect.left + x * sampleSize, rect.top + y * sampleSize);
+				}
+			}
+			return Bitmap.createBitmap(pixels, w, h, Bitmap.Config.ARGB_8888);
+		}
+
+		@Override
+		public int getHeight() {
+			return HEIGHT;
+		}
+
+		@Override
+		public int getWidth() {
+			return WIDTH;
+		}
+
+		@Override
+		public boolean hasAlpha() {
+			return mHasAlpha;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.data;
+
+import android.net.Uri;
+
+import junit.framework.TestCase;
+
+// Walks the resolution ladder of TwitterImageVariantResolver for both URL
+// forms. Uses android.net.Uri, so it runs on a device.
+public class TwitterImageVariantResolverTest extends TestCase {
+	private static final String SUFFIX_URL = "https://pbs.twimg.com/media/ABCdef.jpg";
+	private static final String QUERY_URL = "https://pbs.twimg.com/media/ABCdef?format=jpg&name=orig";
+
+	private final TwitterImageVariantResolver mResolver = new TwitterImageVariantResolver();
+
+	public void testLadder() {
+		assertEquals(SUFFIX_URL + ":small", resolve(SUFFIX_URL, 200));
+		assertEquals(SUFFIX_URL + ":small", resolve(SUFFIX_URL, 680));
+		assertEquals(SUFFIX_URL + ":medium", resolve(SUFFIX_URL, 681));
+		assertEquals(SUFFIX_URL + ":large", resolve(SUFFIX_URL, 2048));
+		// Nothing reduced is large enough, the original is used.
+		assertNull(resolve(SUFFIX_URL, 2049));
+	}
+
+	public void testOtherUrls() {
+		assertNull(resolve("https://example.com/media/ABCdef.jpg", 200));
+		assertNull(resolve("https://pbs.twimg.com/profile_images/1/a.jpg", 200));
+	}
+
+	public void testQueryForm() {
+		assertEquals("https://pbs.twimg.com/media/ABCdef?format=jpg&name=small", resolve(QUERY_URL, 640));
+		assertEquals("https://pbs.twimg.com/media/ABCdef?format=jpg&name=large", resolve(QUERY_URL, 1600));
+	}
+
+	public void testReplacesSuffix() {
+		assertEquals(SUFFIX_URL + ":medium", resolve(SUFFIX_URL + ":orig", 1000));
+	}
+
+	private String resolve(final String url, final int targetSize) {
+		final Uri uri = mResolver.resolve(Uri.parse(url), targetSize);
+		return uri == null ? null : uri.toString();
+	}
+}
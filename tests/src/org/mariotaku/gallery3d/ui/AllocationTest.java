@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.ui;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.mariotaku.gallery3d.common.ApiHelper;
+import org.mariotaku.gallery3d.data.BitmapPool;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+// Counts the objects allocated on the paths that run for every tile, which
+// keep their temporaries in sDecodeScratch and key the border lines with a
+// long, so that nothing new creeps in. Runs on a device, since the counts
+// come from the VM.
+public class AllocationTest extends AndroidTestCase {
+	private static final int IMAGE_SIZE = 1024;
+	private static final int TILE_SIZE = 254;
+	private static final int BORDER_SIZE = 1;
+	private static final int TILES = 16;
+	private static final int WARM_UP = 4;
+
+	public void testBorderLineAllocations() {
+		// The first lookups create the lines and grow the array.
+		for (int i = 0; i < WARM_UP; i++) {
+			getBorderLines();
+		}
+		final int allocations = countAllocations(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < TILES; i++) {
+					getBorderLines();
+				}
+			}
+		});
+		assertEquals(0, allocations);
+	}
+
+	// getTile() may allocate no more than decoding the same regions into a
+	// reused bitmap does by itself.
+	public void testGetTileAllocations() throws IOException {
+		if (!ApiHelper.HAS_REUSING_BITMAP_IN_BITMAP_REGION_DECODER) return;
+		final byte[] jpeg = createJpeg();
+		final int size = TILE_SIZE + BORDER_SIZE * 2;
+		final BitmapPool pool = new BitmapPool(size, size, 2);
+
+		final TileImageViewAdapter adapter = new TileImageViewAdapter();
+		adapter.setScreenNail(new BitmapScreenNail(Bitmap.createBitmap(IMAGE_SIZE / 4, IMAGE_SIZE / 4,
+				Config.RGB_565)), IMAGE_SIZE, IMAGE_SIZE);
+		adapter.setRegionDecoder(BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, false));
+		adapter.setOpaque(true);
+		final Runnable getTiles = new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < TILES; i++) {
+					final Bitmap tile = adapter.getTile(0, i % 4 * TILE_SIZE, i / 4 * TILE_SIZE, TILE_SIZE,
+							BORDER_SIZE, pool, false);
+					assertNotNull(tile);
+					pool.recycle(tile);
+				}
+			}
+		};
+
+		final BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, false);
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Config.RGB_565;
+		options.inBitmap = Bitmap.createBitmap(size, size, Config.RGB_565);
+		final Rect region = new Rect();
+		final Runnable decodeRegions = new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < TILES; i++) {
+					final int x = i % 4 * TILE_SIZE;
+					final int y = i / 4 * TILE_SIZE;
+					region.set(x - BORDER_SIZE, y - BORDER_SIZE, x + TILE_SIZE + BORDER_SIZE, y + TILE_SIZE
+							+ BORDER_SIZE);
+					assertNotNull(decoder.decodeRegion(region, options));
+				}
+			}
+		};
+
+		getTiles.run();
+		decodeRegions.run();
+		final int baseline = countAllocations(decodeRegions);
+		final int allocations = countAllocations(getTiles);
+		decoder.recycle();
+		assertTrue("getTile: " + allocations + ", decodeRegion: " + baseline, allocations <= baseline);
+	}
+
+	private static int countAllocations(final Runnable runnable) {
+		Debug.startAllocCounting();
+		Debug.resetThreadAllocCount();
+		try {
+			runnable.run();
+			return Debug.getThreadAllocCount();
+		} finally {
+			Debug.stopAllocCounting();
+		}
+	}
+
+	private static byte[] createJpeg() {
+		final Bitmap bitmap = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE, Config.RGB_565);
+		bitmap.eraseColor(0xFF336699);
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, 90, os);
+		bitmap.recycle();
+		return os.toByteArray();
+	}
+
+	// The lines of a tile of each config, as UploadedTexture uploads them.
+	private static void getBorderLines() {
+		final int length = TILE_SIZE + BORDER_SIZE * 2;
+		UploadedTexture.getBorderLine(true, Config.ARGB_8888, length);
+		UploadedTexture.getBorderLine(false, Config.ARGB_8888, length);
+		UploadedTexture.getBorderLine(true, Config.RGB_565, length);
+		UploadedTexture.getBorderLine(false, Config.RGB_565, length);
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.ui;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.mariotaku.gallery3d.common.GifDecoder;
+import org.mariotaku.gallery3d.common.GifWriter;
+import org.mariotaku.gallery3d.util.ThreadPool;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+// Plays small GIFs through AnimatedScreenNail with a GLRootStub, running the
+// idle listeners the way GLRootView does, and counts the frames uploaded:
+// each upload asks for one render. The frames are bitmaps, so this runs on a
+// device.
+public class AnimatedScreenNailTest extends AndroidTestCase {
+	private static final int SIZE = 32;
+	private static final int FRAME_COUNT = 10;
+	private static final int DELAY = 30; // ms
+	// How early a frame may be shown, for the rounding of uptimeMillis().
+	private static final long SLACK = 5; // ms
+	private static final long TIMEOUT = 5000; // ms
+
+	private ThreadPool mThreadPool;
+	private GLRootStub mRoot;
+	private RecordingGLCanvas mCanvas;
+
+	// The first frame is shown by create(), the others are uploaded one by
+	// one, no sooner than their delays, and the animation stops after them.
+	public void testFramesFollowTheirDelays() throws IOException, InterruptedException {
+		final AnimatedScreenNail nail = create(0);
+		try {
+			final long startTime = SystemClock.uptimeMillis();
+			play(FRAME_COUNT - 1);
+			assertTrue(SystemClock.uptimeMillis() - startTime >= (FRAME_COUNT - 1) * DELAY - SLACK);
+			assertEnded();
+		} finally {
+			nail.recycle();
+		}
+	}
+
+	public void testLoopCount() throws IOException, InterruptedException {
+		final AnimatedScreenNail nail = create(2);
+		try {
+			play(FRAME_COUNT * 2 - 1);
+			assertEnded();
+		} finally {
+			nail.recycle();
+		}
+	}
+
+	// Animations too large for the frame cache are left to a still image,
+	// before anything is decoded.
+	public void testOversizedAnimationIsRefused() throws IOException {
+		final GifWriter writer = new GifWriter(2048, 2048);
+		writer.addFrame(0, 0, 1, 1, GifWriter.DISPOSE_NONE, 3, -1, new byte[] { 1 });
+		assertNull(AnimatedScreenNail.create(new GifDecoder(writer.toByteArray()), mRoot, mThreadPool));
+	}
+
+	// When the GL thread stalls, frames are not skipped to catch up: the
+	// one due is shown once it is back, and the rest keep their delays.
+	public void testStallDoesNotSkipFrames() throws IOException, InterruptedException {
+		final AnimatedScreenNail nail = create(0);
+		try {
+			play(3);
+			Thread.sleep(DELAY * 5);
+			final long resumeTime = SystemClock.uptimeMillis();
+			play(FRAME_COUNT - 1);
+			assertTrue(SystemClock.uptimeMillis() - resumeTime >= (FRAME_COUNT - 5) * DELAY - SLACK);
+			assertEnded();
+		} finally {
+			nail.recycle();
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mThreadPool = new ThreadPool();
+		mRoot = new GLRootStub(getContext());
+		mCanvas = new RecordingGLCanvas();
+	}
+
+	// Checks that no frame comes after the last one.
+	private void assertEnded() throws InterruptedException {
+		final int count = mRoot.getRenderRequestCount();
+		final long endTime = SystemClock.uptimeMillis() + DELAY * 4;
+		while (SystemClock.uptimeMillis() < endTime) {
+			mRoot.runIdle(mCanvas);
+			Thread.sleep(2);
+		}
+		assertEquals(count, mRoot.getRenderRequestCount());
+	}
+
+	// A GIF of FRAME_COUNT flat frames, each a different color from the one
+	// before.
+	private AnimatedScreenNail create(final int loopCount) throws IOException {
+		final GifWriter writer = new GifWriter(SIZE, SIZE);
+		if (loopCount != 0) {
+			writer.setLoopCount(loopCount);
+		}
+		final byte[] pixels = new byte[SIZE * SIZE];
+		for (int i = 0; i < FRAME_COUNT; i++) {
+			Arrays.fill(pixels, (byte) (i % 3 + 1));
+			writer.addFrame(0, 0, SIZE, SIZE, GifWriter.DISPOSE_NONE, DELAY / 10, -1, pixels);
+		}
+		final AnimatedScreenNail nail = AnimatedScreenNail.create(new GifDecoder(writer.toByteArray()), mRoot,
+				mThreadPool);
+		assertNotNull(nail);
+		assertEquals(SIZE, nail.getWidth());
+		return nail;
+	}
+
+	// Runs the idle listeners until count frames have been uploaded since
+	// the nail was created.
+	private void play(final int count) throws InterruptedException {
+		final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+		while (mRoot.getRenderRequestCount() < count) {
+			assertTrue("uploaded " + mRoot.getRenderRequestCount() + " of " + count + " frames",
+					SystemClock.uptimeMillis() < deadline);
+			mRoot.runIdle(mCanvas);
+			Thread.sleep(2);
+		}
+		assertEquals(count, mRoot.getRenderRequestCount());
+	}
+}
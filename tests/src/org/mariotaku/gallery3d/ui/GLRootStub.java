@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.ui;
+
+import java.util.ArrayList;
+
+import org.mariotaku.gallery3d.anim.CanvasAnimation;
+
+import android.content.Context;
+import android.graphics.Matrix;
+
+// A GLRoot without a GL thread: the test renders the frames itself and runs
+// the idle listeners between them with runIdle(), like GLRootView does.
+// Render requests may come from any thread, waitForRenderRequest() waits for
+// one and getRenderRequestCount() counts them all.
+public class GLRootStub implements GLRoot {
+	private final Context mContext;
+	private final UploadScheduler mUploadScheduler;
+	private final ArrayList<OnGLIdleListener> mIdleListeners = new ArrayList<OnGLIdleListener>();
+	private boolean mRenderRequested;
+	private int mRenderRequestCount;
+
+	public GLRootStub(final Context context) {
+		mContext = context;
+		mUploadScheduler = new UploadScheduler(this);
+	}
+
+	@Override
+	public synchronized void addOnGLIdleListener(final OnGLIdleListener listener) {
+		mIdleListeners.add(listener);
+	}
+
+	@Override
+	public void freeze() {
+	}
+
+	@Override
+	public int getCompensation() {
+		return 0;
+	}
+
+	@Override
+	public Matrix getCompensationMatrix() {
+		return null;
+	}
+
+	@Override
+	public Context getContext() {
+		return mContext;
+	}
+
+	@Override
+	public int getDisplayRotation() {
+		return 0;
+	}
+
+	public synchronized int getRenderRequestCount() {
+		return mRenderRequestCount;
+	}
+
+	@Override
+	public UploadScheduler getUploadScheduler() {
+		return mUploadScheduler;
+	}
+
+	@Override
+	public void lockRenderThread() {
+	}
+
+	@Override
+	public void registerLaunchedAnimation(final CanvasAnimation animation) {
+	}
+
+	@Override
+	public void requestLayoutContentPane() {
+	}
+
+	@Override
+	public synchronized void requestRender() {
+		mRenderRequested = true;
+		mRenderRequestCount++;
+		notifyAll();
+	}
+
+	@Override
+	public void requestRenderForced() {
+		requestRender();
+	}
+
+	// Runs every idle listener once, keeping those that ask for it.
+	public void runIdle(final GLCanvas canvas) {
+		final ArrayList<OnGLIdleListener> listeners;
+		final boolean renderRequested;
+		synchronized (this) {
+			listeners = new ArrayList<OnGLIdleListener>(mIdleListeners);
+			mIdleListeners.clear();
+			renderRequested = mRenderRequested;
+		}
+		for (final OnGLIdleListener listener : listeners) {
+			if (listener.onGLIdle(canvas, renderRequested)) {
+				addOnGLIdleListener(listener);
+			}
+		}
+		canvas.flush();
+	}
+
+	@Override
+	public void setContentPane(final GLView content) {
+	}
+
+	@Override
+	public void setLightsOutMode(final boolean enabled) {
+	}
+
+	@Override
+	public void setOrientationSource(final OrientationSource source) {
+	}
+
+	// Returns true and clears the request if a render has been requested
+	// since the last call.
+	public synchronized boolean takeRenderRequest() {
+		final boolean requested = mRenderRequested;
+		mRenderRequested = false;
+		return requested;
+	}
+
+	@Override
+	public void unfreeze() {
+	}
+
+	@Override
+	public void unlockRenderThread() {
+	}
+
+	// Waits up to timeout ms for a render request, and returns whether there
+	// is one.
+	public synchronized boolean waitForRenderRequest(final long timeout) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		long now = System.currentTimeMillis();
+		while (!mRenderRequested && now < deadline) {
+			wait(deadline - now);
+			now = System.currentTimeMillis();
+		}
+		return mRenderRequested;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.ui;
+
+import junit.framework.TestCase;
+
+// Checks the batching rules GLCanvasImpl relies on: which transforms can be
+// applied on the CPU, which quads may share a draw call, and that the
+// triangles drawn for a batch cover the same points as drawing each
+// rectangle with its own transform.
+public class QuadBatchTest extends TestCase {
+	private static final int TEXTURE = 1;
+	private static final int TARGET = 0x0DE1; // GL_TEXTURE_2D
+
+	public void testIsMatrix2D() {
+		assertTrue(QuadBatch.isMatrix2D(identity()));
+
+		// The screen matrix of GLCanvasImpl flips y around the height.
+		final float[] screen = identity();
+		screen[5] = -1;
+		screen[13] = 800;
+		assertTrue(QuadBatch.isMatrix2D(screen));
+
+		// A rotation of 90 degrees, as TiledTexture.setRotation() draws with.
+		final float[] rotated = identity();
+		rotated[0] = 0;
+		rotated[1] = 1;
+		rotated[4] = -1;
+		rotated[5] = 0;
+		assertFalse(QuadBatch.isMatrix2D(rotated));
+
+		final float[] depth = identity();
+		depth[14] = 1;
+		assertFalse(QuadBatch.isMatrix2D(depth));
+
+		final float[] perspective = identity();
+		perspective[3] = 0.001f;
+		assertFalse(QuadBatch.isMatrix2D(perspective));
+	}
+
+	public void testCanAdd() {
+		final QuadBatch batch = new QuadBatch();
+		assertFalse(batch.canAdd(TEXTURE, TARGET, false, 1));
+
+		batch.reset(TEXTURE, TARGET, false, 1);
+		// An empty batch is drawn by the next quad's reset() rather than joined.
+		assertFalse(batch.canAdd(TEXTURE, TARGET, false, 1));
+		batch.add(identity(), 0, 0, 1, 1, 0, 0, 10, 10);
+		assertTrue(batch.canAdd(TEXTURE, TARGET, false, 1));
+		assertFalse(batch.canAdd(TEXTURE + 1, TARGET, false, 1));
+		assertFalse(batch.canAdd(TEXTURE, TARGET + 1, false, 1));
+		assertFalse(batch.canAdd(TEXTURE, TARGET, true, 1));
+		assertFalse(batch.canAdd(TEXTURE, TARGET, false, 0.5f));
+
+		while (!batch.isFull()) {
+			batch.add(identity(), 0, 0, 1, 1, 0, 0, 10, 10);
+		}
+		assertEquals(QuadBatch.MAX_QUADS, batch.getCount());
+		assertFalse(batch.canAdd(TEXTURE, TARGET, false, 1));
+
+		batch.clear();
+		assertTrue(batch.isEmpty());
+	}
+
+	public void testAddMapsTarget() {
+		final float[] m = identity();
+		m[0] = 2;
+		m[5] = -1;
+		m[12] = 5;
+		m[13] = 800;
+		final QuadBatch batch = new QuadBatch();
+		batch.reset(TEXTURE, TARGET, false, 1);
+		batch.add(m, 0.25f, 0.5f, 0.75f, 1, 10, 20, 30, 60);
+
+		final float[] r = new float[8];
+		batch.getRect(0, r);
+		final float[] expected = { 25, 780, 65, 740, 0.25f, 0.5f, 0.75f, 1 };
+		for (int i = 0; i < 8; i++) {
+			assertEquals(expected[i], r[i], 0);
+		}
+	}
+
+	// The triangles of a batch must cover the points the triangle strip of
+	// GLCanvasImpl.textureRect() covers: the box (0, 0), (1, 0), (0, 1),
+	// (1, 1) transformed by the matrix, translated and scaled to the target.
+	public void testVerticesMatchStrip() {
+		final float[] m = identity();
+		m[0] = 1.5f;
+		m[5] = -1;
+		m[12] = 3;
+		m[13] = 480;
+		final float[][] targets = { { 0, 0, 254, 254 }, { 254, 0, 508, 254 }, { 0, 254, 254, 300 } };
+		final QuadBatch batch = new QuadBatch();
+		batch.reset(TEXTURE, TARGET, false, 1);
+		for (final float[] t : targets) {
+			batch.add(m, 0, 0, 0.5f, 0.5f, t[0], t[1], t[2], t[3]);
+		}
+		final float[] xy = new float[QuadBatch.MAX_QUADS * QuadBatch.FLOATS_PER_QUAD];
+		final float[] uv = new float[xy.length];
+		assertEquals(targets.length * QuadBatch.VERTICES_PER_QUAD, batch.getVertices(xy, uv));
+
+		final float[] box = { 0, 0, 1, 0, 0, 1, 1, 1 };
+		// The strip's triangles are (0, 1, 2) and (2, 1, 3).
+		final int[] order = { 0, 1, 2, 2, 1, 3 };
+		for (int q = 0; q < targets.length; q++) {
+			final float[] t = targets[q];
+			for (int v = 0; v < QuadBatch.VERTICES_PER_QUAD; v++) {
+				final float bx = box[order[v] * 2];
+				final float by = box[order[v] * 2 + 1];
+				final float x = t[0] + bx * (t[2] - t[0]);
+				final float y = t[1] + by * (t[3] - t[1]);
+				final int i = q * QuadBatch.FLOATS_PER_QUAD + v * 2;
+				assertEquals(m[0] * x + m[12], xy[i], 1e-3);
+				assertEquals(m[5] * y + m[13], xy[i + 1], 1e-3);
+				assertEquals(bx * 0.5f, uv[i], 1e-6);
+				assertEquals(by * 0.5f, uv[i + 1], 1e-6);
+			}
+		}
+	}
+
+	// A 4 x 4 page of TiledTexture tiles takes one draw call, the tiles of
+	// separate textures one each.
+	public void testDrawCalls() {
+		final QuadBatch batch = new QuadBatch();
+		assertEquals(1, countDrawCalls(batch, new int[] { 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7 }));
+		assertEquals(3, countDrawCalls(batch, new int[] { 7, 8, 9 }));
+		assertEquals(3, countDrawCalls(batch, new int[] { 7, 7, 8, 8, 7, 7 }));
+	}
+
+	// Adds a quad per texture id like GLCanvasImpl.drawTexture() does and
+	// counts the flushes.
+	private static int countDrawCalls(final QuadBatch batch, final int[] textures) {
+		int drawCalls = 0;
+		batch.clear();
+		for (final int id : textures) {
+			if (!batch.canAdd(id, TARGET, false, 1)) {
+				if (!batch.isEmpty()) {
+					drawCalls++;
+				}
+				batch.reset(id, TARGET, false, 1);
+			}
+			batch.add(identity(), 0, 0, 1, 1, 0, 0, 1, 1);
+			if (batch.isFull()) {
+				drawCalls++;
+				batch.clear();
+			}
+		}
+		return batch.isEmpty() ? drawCalls : drawCalls + 1;
+	}
+
+	private static float[] identity() {
+		final float[] m = new float[16];
+		m[0] = m[5] = m[10] = m[15] = 1;
+		return m;
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.ui;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mariotaku.gallery3d.app.GalleryContext;
+import org.mariotaku.gallery3d.common.Utils;
+import org.mariotaku.gallery3d.data.BitmapPool;
+import org.mariotaku.gallery3d.data.DataManager;
+import org.mariotaku.gallery3d.util.ThreadPool;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+// Replays scripted gestures on a TileImageView showing a synthetic image,
+// the way PhotoView positions it frame by frame, with a GLRootStub and a
+// RecordingGLCanvas in place of the GL thread. Every scenario logs the
+// command count, the draw calls, the overdraw and the CPU time of render()
+// per frame, and checks that the view settles to a single layer of tiles.
+//
+// The tiles are real bitmaps and their size depends on the display, so this
+// runs on a device; nothing is drawn.
+public class TileImageViewReplayTest extends AndroidTestCase {
+	private static final String TAG = "TileImageViewReplay";
+
+	private static final int VIEW_WIDTH = 720;
+	private static final int VIEW_HEIGHT = 1280;
+	private static final int IMAGE_WIDTH = 6000;
+	private static final int IMAGE_HEIGHT = 4000;
+	private static final int SCREEN_NAIL_WIDTH = 1024;
+	private static final int GESTURE_FRAMES = 60;
+	// Frames after a gesture to let the decoder finish.
+	private static final int MAX_SETTLE_FRAMES = 300;
+	private static final long SETTLE_TIMEOUT = 1000; // ms
+
+	private ThreadPool mThreadPool;
+	private GLRootStub mRoot;
+	private RecordingGLCanvas mCanvas;
+	private TileImageView mView;
+	private SyntheticModel mModel;
+	private Report mReport;
+
+	// Tiles decoded while the view moves are drafts, and are decoded again at
+	// full quality once it stops.
+	public void testDraftTilesAreRefined() throws InterruptedException {
+		mView.setInMotion(true);
+		position(IMAGE_WIDTH / 2, IMAGE_HEIGHT / 2, 1f);
+		settle();
+		final Map<Long, Boolean> drafts = mModel.getLastDecodes();
+		assertFalse(drafts.isEmpty());
+		for (final Boolean draft : drafts.values()) {
+			assertTrue(draft);
+		}
+
+		mView.setInMotion(false);
+		settle();
+		final Map<Long, Boolean> refined = mModel.getLastDecodes();
+		for (final Long key : drafts.keySet()) {
+			assertEquals("tile " + Long.toHexString(key), Boolean.FALSE, refined.get(key));
+		}
+		finish("refine");
+	}
+
+	public void testFling() throws InterruptedException {
+		final float scale = 1f;
+		mView.setInMotion(true);
+		for (int i = 0; i <= GESTURE_FRAMES; i++) {
+			// Decelerating like a fling.
+			final float t = 1 - (1 - (float) i / GESTURE_FRAMES) * (1 - (float) i / GESTURE_FRAMES);
+			position(IMAGE_WIDTH / 4 + Math.round(t * IMAGE_WIDTH / 2), IMAGE_HEIGHT / 2, scale);
+		}
+		mView.setInMotion(false);
+		settle();
+		finish("fling");
+	}
+
+	// While in motion the level only changes once the scale is
+	// LEVEL_HYSTERESIS past the bounds of the current one, so a pinch
+	// hovering around a level boundary does not flip levels every frame.
+	public void testLevelHysteresis() throws InterruptedException {
+		final int x = IMAGE_WIDTH / 2, y = IMAGE_HEIGHT / 2;
+		mView.setInMotion(true);
+		position(x, y, 1f);
+		assertEquals(0, mView.getLevel());
+		position(x, y, 0.45f);
+		assertEquals(0, mView.getLevel());
+		position(x, y, 0.42f);
+		assertEquals(1, mView.getLevel());
+		position(x, y, 0.55f);
+		assertEquals(1, mView.getLevel());
+		position(x, y, 0.6f);
+		assertEquals(0, mView.getLevel());
+
+		// Once the motion stops the level follows the scale.
+		position(x, y, 0.45f);
+		assertEquals(0, mView.getLevel());
+		mView.setInMotion(false);
+		assertEquals(1, mView.getLevel());
+		settle();
+
+		// An oscillating pinch around 0.5.
+		final int inMotion = countLevelChanges(true);
+		final int still = countLevelChanges(false);
+		Log.i(TAG, "level changes: " + inMotion + " in motion, " + still + " without");
+		assertEquals(0, inMotion);
+		assertEquals(GESTURE_FRAMES, still);
+		settle();
+		finish("hysteresis");
+	}
+
+	public void testPan() throws InterruptedException {
+		final float scale = 1f;
+		position(IMAGE_WIDTH / 4, IMAGE_HEIGHT / 4, scale);
+		settle();
+		for (int i = 0; i <= GESTURE_FRAMES; i++) {
+			// Right and down, then back again.
+			final int step = i <= GESTURE_FRAMES / 2 ? i : GESTURE_FRAMES - i;
+			position(IMAGE_WIDTH / 4 + step * 20, IMAGE_HEIGHT / 4 + step * 10, scale);
+		}
+		settle();
+		finish("pan");
+	}
+
+	// Panning back over tiles which left the view a moment ago takes them
+	// from the tile cache instead of decoding them again.
+	public void testPanBackHitsTileCache() throws InterruptedException {
+		final float scale = 1f;
+		final int distance = TileImageView.getTileSize(getContext()) * 5 / 2;
+		final int startX = IMAGE_WIDTH / 4;
+		position(startX, IMAGE_HEIGHT / 2, scale);
+		settle();
+		for (int i = 1; i <= GESTURE_FRAMES / 2; i++) {
+			position(startX + distance * i * 2 / GESTURE_FRAMES, IMAGE_HEIGHT / 2, scale);
+		}
+		settle();
+
+		final int hits = mView.getTileCacheHitCount();
+		final int misses = mView.getTileCacheMissCount();
+		final int decodes = mView.getTileDecodeCount();
+		for (int i = GESTURE_FRAMES / 2 - 1; i >= 0; i--) {
+			position(startX + distance * i * 2 / GESTURE_FRAMES, IMAGE_HEIGHT / 2, scale);
+		}
+		settle();
+		Log.i(TAG, "pan back: " + (mView.getTileCacheHitCount() - hits) + " hits, "
+				+ (mView.getTileCacheMissCount() - misses) + " misses, " + (mView.getTileDecodeCount() - decodes)
+				+ " decodes");
+		// Every tile coming back had been decoded before it left.
+		assertTrue(mView.getTileCacheHitCount() > hits);
+		assertEquals(misses, mView.getTileCacheMissCount());
+		assertEquals(decodes, mView.getTileDecodeCount());
+		finish("pan back");
+	}
+
+	public void testPinch() throws InterruptedException {
+		final float fit = Math.min((float) VIEW_WIDTH / IMAGE_WIDTH, (float) VIEW_HEIGHT / IMAGE_HEIGHT);
+		position(IMAGE_WIDTH / 2, IMAGE_HEIGHT / 2, fit);
+		settle();
+		for (int i = 0; i <= GESTURE_FRAMES; i++) {
+			// In to 1:1 and back out, around the level boundaries.
+			final float t = (float) Math.sin(Math.PI * i / GESTURE_FRAMES);
+			position(IMAGE_WIDTH / 2, IMAGE_HEIGHT / 2, fit + t * (1 - fit));
+		}
+		position(IMAGE_WIDTH / 2, IMAGE_HEIGHT / 2, 1f);
+		settle();
+		finish("pinch");
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mThreadPool = new ThreadPool();
+		final Context context = getContext();
+		mRoot = new GLRootStub(context);
+		mCanvas = new RecordingGLCanvas();
+		mCanvas.setSize(VIEW_WIDTH, VIEW_HEIGHT);
+		mView = new TileImageView(new GalleryContext() {
+			@Override
+			public Context getAndroidContext() {
+				return context;
+			}
+
+			@Override
+			public DataManager getDataManager() {
+				return null;
+			}
+
+			@Override
+			public Looper getMainLooper() {
+				return context.getMainLooper();
+			}
+
+			@Override
+			public Resources getResources() {
+				return context.getResources();
+			}
+
+			@Override
+			public ThreadPool getThreadPool() {
+				return mThreadPool;
+			}
+		});
+		mView.attachToRoot(mRoot);
+		mView.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+		mModel = new SyntheticModel();
+		mView.setModel(mModel);
+		mReport = new Report();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mView.freeTextures();
+		super.tearDown();
+	}
+
+	// Pinches between scales 0.53 and 0.47, a frame each, and returns how
+	// many times the level changed.
+	private int countLevelChanges(final boolean inMotion) {
+		final int x = IMAGE_WIDTH / 2, y = IMAGE_HEIGHT / 2;
+		mView.setInMotion(inMotion);
+		position(x, y, 0.53f);
+		int changes = 0;
+		int level = mView.getLevel();
+		for (int i = 1; i <= GESTURE_FRAMES; i++) {
+			position(x, y, i % 2 == 0 ? 0.53f : 0.47f);
+			if (mView.getLevel() != level) {
+				level = mView.getLevel();
+				changes++;
+			}
+		}
+		mView.setInMotion(false);
+		return changes;
+	}
+
+	// Checks and logs the scenario. The last frame is the settled one.
+	private void finish(final String name) {
+		Log.i(TAG, name + ": " + mReport);
+		assertTrue(name + " overdraw " + mReport.lastOverdraw, mReport.lastOverdraw > 0.99f);
+		assertTrue(name + " overdraw " + mReport.lastOverdraw, mReport.lastOverdraw < 1.01f);
+		assertTrue(name + " draw calls", mReport.lastDrawCalls <= mReport.lastCommands);
+	}
+
+	// Moves the view and renders the frame PhotoView would draw for it.
+	private void position(final int centerX, final int centerY, final float scale) {
+		mView.setPosition(centerX, centerY, scale, 0);
+		renderFrame();
+	}
+
+	// Renders one frame like GLRootView.onDrawFrameLocked(), and then runs
+	// the idle work.
+	private void renderFrame() {
+		mRoot.takeRenderRequest();
+		final UploadScheduler scheduler = mRoot.getUploadScheduler();
+		mCanvas.beginFrame();
+		scheduler.onFrameStart();
+		UploadedTexture.resetUploadLimit(scheduler);
+		mView.render(mCanvas);
+		scheduler.onFrameEnd();
+		mCanvas.endFrame();
+		mReport.add(mCanvas);
+		mRoot.runIdle(mCanvas);
+	}
+
+	// Renders frames as long as the view asks for them, waiting for the
+	// decoder in between.
+	private void settle() throws InterruptedException {
+		for (int i = 0; i < MAX_SETTLE_FRAMES; i++) {
+			if (!mRoot.waitForRenderRequest(SETTLE_TIMEOUT)) return;
+			renderFrame();
+		}
+		fail("the view did not settle");
+	}
+
+	private static class Report {
+		int frames;
+		long totalCommands;
+		int maxCommands;
+		long totalDrawCalls;
+		int maxDrawCalls;
+		float totalOverdraw;
+		float maxOverdraw;
+		long totalTime;
+		long maxTime;
+
+		int lastCommands;
+		int lastDrawCalls;
+		float lastOverdraw;
+
+		public void add(final RecordingGLCanvas canvas) {
+			lastCommands = canvas.getCommandCount();
+			lastDrawCalls = canvas.getDrawCallCount();
+			lastOverdraw = canvas.getOverdraw();
+			final long time = canvas.getFrameTime();
+			frames++;
+			totalCommands += lastCommands;
+			maxCommands = Math.max(maxCommands, lastCommands);
+			totalDrawCalls += lastDrawCalls;
+			maxDrawCalls = Math.max(maxDrawCalls, lastDrawCalls);
+			totalOverdraw += lastOverdraw;
+			maxOverdraw = Math.max(maxOverdraw, lastOverdraw);
+			totalTime += time;
+			maxTime = Math.max(maxTime, time);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("frames: %d, commands: %d/%d, draw calls: %d/%d, overdraw: %.2f/%.2f, "
+					+ "render: %dus/%dus (avg/max)", frames, totalCommands / frames, maxCommands, totalDrawCalls
+					/ frames, maxDrawCalls, totalOverdraw / frames, maxOverdraw, totalTime / frames / 1000,
+					maxTime / 1000);
+		}
+	}
+
+	// An image of IMAGE_WIDTH x IMAGE_HEIGHT with a screen nail
+	// SCREEN_NAIL_WIDTH wide, the levels TileImageViewAdapter would give it,
+	// and tiles of a flat color. It records whether the last decode of each
+	// tile was a draft.
+	private static class SyntheticModel implements TileImageView.Model {
+		private final HashMap<Long, Boolean> mLastDecodes = new HashMap<Long, Boolean>();
+		private final ScreenNail mScreenNail = new BitmapScreenNail(Bitmap.createBitmap(SCREEN_NAIL_WIDTH,
+				SCREEN_NAIL_WIDTH * IMAGE_HEIGHT / IMAGE_WIDTH, Config.RGB_565));
+
+		@Override
+		public int getFirstLevel() {
+			return 0;
+		}
+
+		@Override
+		public int getImageHeight() {
+			return IMAGE_HEIGHT;
+		}
+
+		@Override
+		public int getImageWidth() {
+			return IMAGE_WIDTH;
+		}
+
+		// Returns the tiles decoded so far, keyed by level, x and y, and
+		// whether their last decode was a draft.
+		public synchronized Map<Long, Boolean> getLastDecodes() {
+			return new HashMap<Long, Boolean>(mLastDecodes);
+		}
+
+		@Override
+		public int getLevelCount() {
+			return Math.max(0, Utils.ceilLog2((float) IMAGE_WIDTH / SCREEN_NAIL_WIDTH));
+		}
+
+		@Override
+		public ScreenNail getScreenNail() {
+			return mScreenNail;
+		}
+
+		@Override
+		public Bitmap getTile(final int level, final int x, final int y, final int tileSize, final int borderSize,
+				final BitmapPool pool, final boolean draft) {
+			final int size = tileSize + borderSize * 2;
+			Bitmap bitmap = pool == null ? null : pool.getBitmap();
+			if (bitmap == null) {
+				bitmap = Bitmap.createBitmap(size, size, Config.ARGB_8888);
+			}
+			bitmap.eraseColor(0xFF000000 | (x * 31 + y * 17 + level * 101) & 0xFFFFFF);
+			synchronized (this) {
+				mLastDecodes.put(((long) level << 32) + ((long) x << 16) + y, draft);
+			}
+			return bitmap;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.ui;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.RectF;
+
+import junit.framework.TestCase;
+
+// Draws rotated TiledTextures on a RecordingGLCanvas and checks where the
+// tiles land, and which part of the uploaded bitmap a source rectangle in
+// rotated coordinates is drawn from. Nothing is uploaded; the bitmaps are
+// only there for their size.
+public class TiledTextureTest extends TestCase {
+	private static final int[] ROTATIONS = { 0, 90, 180, 270 };
+	// Of TiledTexture.
+	private static final int CONTENT_SIZE = 254;
+	private static final int BORDER_SIZE = 1;
+	private static final float EPSILON = 0.01f;
+
+	private RecordingGLCanvas mCanvas;
+
+	// A bitmap of one tile, so the source of the single draw is the source
+	// rectangle mapped back onto the bitmap, moved by the tile border.
+	public void testSourceRectMapping() {
+		final int width = 200;
+		final int height = 100;
+		final TiledTexture texture = createTexture(width, height);
+		final RectF source = new RectF(10, 20, 50, 40);
+		final RectF target = new RectF(100, 100, 100 + source.width() * 2, 100 + source.height() * 2);
+		for (final int rotation : ROTATIONS) {
+			texture.setRotation(rotation);
+			mCanvas.beginFrame();
+			texture.draw(mCanvas, source, target);
+			mCanvas.endFrame();
+			assertEquals(1, mCanvas.getCommandCount(RecordingGLCanvas.COMMAND_DRAW_TEXTURE));
+			final RecordingGLCanvas.Command command = findDraw(0);
+			final RectF expected = unrotate(source, rotation, width, height);
+			expected.offset(BORDER_SIZE, BORDER_SIZE);
+			assertRect("rotation " + rotation + " source", expected, command.source);
+			assertRect("rotation " + rotation + " target", target, command.bounds);
+		}
+		texture.recycle();
+	}
+
+	public void testSizeFollowsRotation() {
+		final TiledTexture texture = createTexture(600, 300);
+		for (final int rotation : ROTATIONS) {
+			texture.setRotation(rotation);
+			final boolean swap = rotation % 180 != 0;
+			assertEquals(swap ? 300 : 600, texture.getWidth());
+			assertEquals(swap ? 600 : 300, texture.getHeight());
+		}
+		texture.setRotation(-90);
+		assertEquals(270, texture.getRotation());
+		texture.recycle();
+	}
+
+	// The tiles cover the rotated texture once, and the first tile, the top
+	// left one of the bitmap, lands where the rotation takes that corner.
+	public void testTilesFollowRotation() {
+		final int width = 600;
+		final int height = 300;
+		final TiledTexture texture = createTexture(width, height);
+		for (final int rotation : ROTATIONS) {
+			texture.setRotation(rotation);
+			mCanvas.beginFrame();
+			texture.draw(mCanvas, 0, 0, texture.getWidth(), texture.getHeight());
+			mCanvas.endFrame();
+			final int count = mCanvas.getCommandCount(RecordingGLCanvas.COMMAND_DRAW_TEXTURE);
+			float area = 0;
+			for (int i = 0; i < count; i++) {
+				final RectF bounds = findDraw(i).bounds;
+				assertTrue(bounds.left > -EPSILON && bounds.top > -EPSILON);
+				assertTrue(bounds.right < texture.getWidth() + EPSILON);
+				assertTrue(bounds.bottom < texture.getHeight() + EPSILON);
+				area += bounds.width() * bounds.height();
+			}
+			assertEquals("rotation " + rotation, (float) width * height, area, 1f);
+			final RectF first = rotate(new RectF(0, 0, CONTENT_SIZE, CONTENT_SIZE), rotation, width, height);
+			assertRect("rotation " + rotation, first, findDraw(0).bounds);
+		}
+		texture.recycle();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mCanvas = new RecordingGLCanvas();
+		mCanvas.setSize(1024, 1024);
+	}
+
+	// Returns the index-th drawTexture() command of the frame.
+	private RecordingGLCanvas.Command findDraw(final int index) {
+		int found = 0;
+		for (int i = 0, n = mCanvas.getCommandCount(); i < n; i++) {
+			final RecordingGLCanvas.Command command = mCanvas.getCommand(i);
+			if (command.type == RecordingGLCanvas.COMMAND_DRAW_TEXTURE && found++ == index) return command;
+		}
+		fail("no draw " + index);
+		return null;
+	}
+
+	private static void assertRect(final String message, final RectF expected, final RectF actual) {
+		if (Math.abs(expected.left - actual.left) > EPSILON || Math.abs(expected.top - actual.top) > EPSILON
+				|| Math.abs(expected.right - actual.right) > EPSILON
+				|| Math.abs(expected.bottom - actual.bottom) > EPSILON) {
+			fail(message + ": expected " + expected + ", was " + actual);
+		}
+	}
+
+	private static TiledTexture createTexture(final int width, final int height) {
+		return new TiledTexture(Bitmap.createBitmap(width, height, Config.ARGB_8888));
+	}
+
+	// Maps a rectangle of the width x height bitmap to where the clockwise
+	// rotation puts it.
+	private static RectF rotate(final RectF rect, final int rotation, final int width, final int height) {
+		switch (rotation) {
+			case 90:
+				return new RectF(height - rect.bottom, rect.left, height - rect.top, rect.right);
+			case 180:
+				return new RectF(width - rect.right, height - rect.bottom, width - rect.left, height - rect.top);
+			case 270:
+				return new RectF(rect.top, width - rect.right, rect.bottom, width - rect.left);
+			default:
+				return new RectF(rect);
+		}
+	}
+
+	// The inverse of rotate(): maps a rectangle of the rotated texture back
+	// onto the width x height bitmap.
+	private static RectF unrotate(final RectF rect, final int rotation, final int width, final int height) {
+		return rotate(rect, (360 - rotation) % 360, rotation % 180 != 0 ? height : width,
+				rotation % 180 != 0 ? width : height);
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.gallery3d.util;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+// Drives ConcurrencyController with a deterministic simulation of a resource
+// shared by a number of clients, each submitting its next job as soon as the
+// previous one is done. Jobs are admitted like ThreadPool does: up to the
+// limit, the rest wait, and a job reports saturation only if others were
+// waiting when it finished.
+public class ConcurrencyControllerTest extends TestCase {
+	// The time a job needs alone, in ns.
+	private static final long SERVICE_TIME = 10000000;
+	private static final int JOBS = 5000;
+
+	public void testConvergesToCores() {
+		final ConcurrencyController controller = new ConcurrencyController(1, 1, 16);
+		final Simulation sim = new Simulation(controller, 4, 0, 32, new Random(1));
+		sim.run(JOBS);
+		final int limit = controller.getLimit();
+		assertTrue("limit " + limit, limit >= 4 && limit <= 7);
+		assertTrue("throughput " + sim.getThroughput(), sim.getThroughput() > 0.9f * 4 / SERVICE_TIME);
+	}
+
+	public void testBacksOffUnderContention() {
+		final ConcurrencyController controller = new ConcurrencyController(1, 1, 16);
+		final Simulation sim = new Simulation(controller, 8, 0, 32, new Random(2));
+		sim.run(JOBS);
+		final int before = controller.getLimit();
+		assertTrue("limit " + before, before >= 8);
+
+		// The device throttles down to two cores, and beyond them every extra
+		// job slows all of them down, like a memory bound decode thrashing
+		// the cache.
+		sim.setResource(2, 0.5f);
+		sim.run(JOBS * 2);
+		final int after = controller.getLimit();
+		assertTrue("limit " + after, after >= 1 && after <= 4);
+	}
+
+	public void testNoGrowthWithoutWaiters() {
+		// A single client never has a job waiting, so there is no reason to
+		// raise the limit however busy the resource is.
+		final ConcurrencyController controller = new ConcurrencyController(2, 1, 16);
+		new Simulation(controller, 4, 0, 1, new Random(3)).run(JOBS);
+		assertEquals(2, controller.getLimit());
+
+		// The same with as many clients as the limit: every unit is in use,
+		// but nothing waits for one more.
+		new Simulation(controller, 4, 0, 2, new Random(4)).run(JOBS);
+		assertEquals(2, controller.getLimit());
+	}
+
+	public void testStaysWithinBounds() {
+		final ConcurrencyController high = new ConcurrencyController(1, 1, 3);
+		new Simulation(high, 16, 0, 32, new Random(5)).run(JOBS);
+		assertEquals(3, high.getLimit());
+
+		final ConcurrencyController low = new ConcurrencyController(2, 2, 8);
+		final Simulation sim = new Simulation(low, 8, 0, 32, new Random(6));
+		sim.run(JOBS);
+		sim.setResource(1, 1);
+		sim.run(JOBS * 2);
+		assertEquals(2, low.getLimit());
+	}
+
+	public void testDeterministic() {
+		final ConcurrencyController a = new ConcurrencyController(1, 1, 16);
+		final ConcurrencyController b = new ConcurrencyController(1, 1, 16);
+		final Simulation simA = new Simulation(a, 4, 0.2f, 32, new Random(7));
+		final Simulation simB = new Simulation(b, 4, 0.2f, 32, new Random(7));
+		simA.run(JOBS);
+		simB.run(JOBS);
+		assertEquals(a.getLimit(), b.getLimit());
+		assertEquals(simA.getThroughput(), simB.getThroughput(), 0);
+	}
+
+	// A resource with a number of cores shared evenly by the jobs running on
+	// it. With k jobs on c cores each one progresses at min(1, c / k) of its
+	// speed alone, divided by 1 + contention * (k - c) / c once k exceeds c.
+	// The work of a job is SERVICE_TIME with up to 10% noise.
+	private static class Simulation {
+		private final ConcurrencyController mController;
+		private final int mClients;
+		private final Random mRandom;
+		private int mCores;
+		private float mContention;
+
+		private final long[] mStarts;
+		private final double[] mRemaining;
+		private int mRunning;
+		private int mWaiting;
+		private double mNow;
+		private int mCompleted;
+
+		public Simulation(final ConcurrencyController controller, final int cores, final float contention,
+				final int clients, final Random random) {
+			mController = controller;
+			mCores = cores;
+			mContention = contention;
+			mClients = clients;
+			mRandom = random;
+			mStarts = new long[clients];
+			mRemaining = new double[clients];
+			mWaiting = clients;
+		}
+
+		public float getThroughput() {
+			return mNow == 0 ? 0 : (float) (mCompleted / mNow);
+		}
+
+		// Runs until the given number of jobs has completed in total.
+		public void run(final int jobs) {
+			while (mCompleted < jobs) {
+				admit();
+				final int k = mRunning;
+				double rate = Math.min(1, mCores / (double) k);
+				if (k > mCores) {
+					rate /= 1 + mContention * (k - mCores) / mCores;
+				}
+				int next = 0;
+				for (int i = 1; i < k; i++) {
+					if (mRemaining[i] < mRemaining[next]) {
+						next = i;
+					}
+				}
+				final double work = mRemaining[next];
+				for (int i = 0; i < k; i++) {
+					mRemaining[i] -= work;
+				}
+				mNow += work / rate;
+				final long now = (long) mNow;
+				final long latency = now - mStarts[next];
+				mRunning--;
+				mStarts[next] = mStarts[mRunning];
+				mRemaining[next] = mRemaining[mRunning];
+				mCompleted++;
+				// The client submits its next job right away, but only after
+				// this one has been reported.
+				mController.onSample(now, latency, mWaiting > 0);
+				mWaiting++;
+			}
+		}
+
+		public void setResource(final int cores, final float contention) {
+			mCores = cores;
+			mContention = contention;
+		}
+
+		private void admit() {
+			while (mWaiting > 0 && mRunning < mController.getLimit()) {
+				mWaiting--;
+				mStarts[mRunning] = (long) mNow;
+				mRemaining[mRunning] = SERVICE_TIME * (1 + (mRandom.nextFloat() * 2 - 1) * 0.1);
+				mRunning++;
+			}
+		}
+	}
+}